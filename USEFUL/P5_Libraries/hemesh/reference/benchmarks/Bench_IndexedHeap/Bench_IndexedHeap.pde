@@ -0,0 +1,79 @@
+import wblut.core.*;
+
+// Compares IndexedHeap, used by HES_TriDec and HES_QuadricDec, with the
+// generic Heap. Each run pushes n random priorities, changes the priority
+// of a tenth of the entries and pops everything. Heap has no decrease-key,
+// a change is a remove followed by a push.
+// Heap walks its FastLists by index, every access is linear, so it is only
+// run up to heapLimit entries.
+// Throughput is printed in million operations per second.
+
+int[] sizes={1000, 10000, 100000, 1000000};
+int heapLimit=1000;
+int runs=5;
+
+void setup() {
+  size(200, 200);
+  for (int n : sizes) {
+    bench(n);
+  }
+  exit();
+}
+
+void bench(int n) {
+  double[] priorities=new double[n];
+  Integer[] objects=new Integer[n];
+  for (int i=0;i<n;i++) {
+    priorities[i]=random(1.0);
+    objects[i]=new Integer(i);
+  }
+  int updates=n/10;
+  int heapUpdates=updates;
+  boolean runHeap=n<=heapLimit;
+  double heapPush=0, heapUpdate=0, heapPop=0;
+  double indexedPush=0, indexedUpdate=0, indexedPop=0;
+  long t;
+  long check=0;
+  for (int r=0;r<runs && runHeap;r++) {
+    Heap<Integer> heap=new Heap<Integer>();
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) heap.push(priorities[i], objects[i]);
+    heapPush+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<heapUpdates;i++) {
+      int j=(int)((long)i*n/heapUpdates);
+      heap.remove(objects[j]);
+      heap.push(0.5*priorities[j], objects[j]);
+    }
+    heapUpdate+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) check+=heap.pop();
+    heapPop+=System.nanoTime()-t;
+    heap=null;
+  }
+  for (int r=0;r<runs;r++) {
+    IndexedHeap indexed=new IndexedHeap(n);
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) indexed.push(i, priorities[i]);
+    indexedPush+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<updates;i++) {
+      int j=(int)((long)i*n/updates);
+      indexed.update(j, 0.5*priorities[j]);
+    }
+    indexedUpdate+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) check+=indexed.pop();
+    indexedPop+=System.nanoTime()-t;
+    indexed=null;
+  }
+  println("n="+n+" (check "+check+")");
+  println("  push   Heap "+rate(runHeap, n, heapPush)+"  IndexedHeap "+rate(true, n, indexedPush));
+  println("  update Heap "+rate(runHeap, heapUpdates, heapUpdate)+"  IndexedHeap "+rate(true, updates, indexedUpdate));
+  println("  pop    Heap "+rate(runHeap, n, heapPop)+"  IndexedHeap "+rate(true, n, indexedPop));
+}
+
+String rate(boolean ran, int n, double nanos) {
+  if (!ran) return "-";
+  return nf((float)(1000.0*n*runs/nanos), 1, 4)+" Mops/s";
+}
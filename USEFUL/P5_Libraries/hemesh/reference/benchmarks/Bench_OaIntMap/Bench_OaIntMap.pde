@@ -0,0 +1,66 @@
+import wblut.core.*;
+import javolution.util.*;
+
+// Compares the element registry used by HE_MeshStructure (OaIntMap)
+// with the FastMap<Integer, ...> it replaced.
+// Throughput is printed in million operations per second.
+// The largest size needs a generous maximum heap, set it in the
+// Processing preferences.
+
+int[] sizes={10000, 100000, 1000000, 5000000};
+int runs=5;
+
+void setup() {
+  size(200, 200);
+  for (int n : sizes) {
+    bench(n);
+  }
+  exit();
+}
+
+void bench(int n) {
+  Integer[] keys=new Integer[n];
+  Object[] elements=new Object[n];
+  for (int i=0;i<n;i++) {
+    // element keys are boxed once, on creation of the element
+    keys[i]=new Integer(i);
+    elements[i]=new Object();
+  }
+  double fastAdd=0, fastGet=0, fastRemove=0;
+  double oaAdd=0, oaGet=0, oaRemove=0;
+  long t;
+  int found=0;
+  for (int r=0;r<runs;r++) {
+    FastMap<Integer, Object> fast=new FastMap<Integer, Object>();
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) fast.put(keys[i], elements[i]);
+    fastAdd+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) if (fast.get(keys[i])!=null) found++;
+    fastGet+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i+=2) fast.remove(keys[i]);
+    fastRemove+=System.nanoTime()-t;
+    fast=null;
+
+    OaIntMap<Object> oa=new OaIntMap<Object>();
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) oa.put(keys[i], elements[i]);
+    oaAdd+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i++) if (oa.get(keys[i])!=null) found++;
+    oaGet+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<n;i+=2) oa.remove(keys[i]);
+    oaRemove+=System.nanoTime()-t;
+    oa=null;
+  }
+  println("n="+n+" (check "+found+")");
+  println("  add    FastMap "+rate(n, fastAdd)+"  OaIntMap "+rate(n, oaAdd));
+  println("  lookup FastMap "+rate(n, fastGet)+"  OaIntMap "+rate(n, oaGet));
+  println("  remove FastMap "+rate(n/2, fastRemove)+"  OaIntMap "+rate(n/2, oaRemove));
+}
+
+String rate(int n, double nanos) {
+  return nf((float)(1000.0*n*runs/nanos), 1, 2)+" Mops/s";
+}
@@ -0,0 +1,175 @@
+import wblut.math.*;
+import wblut.core.*;
+import wblut.hemesh.*;
+import wblut.geom.*;
+
+// Times representative creator, modifier and subdividor pipelines at
+// increasing sizes, see the Measure tab for the harness.
+// For each pipeline and size, prints throughput in runs per second,
+// allocation per run and peak heap, and writes them to
+// results/<timestamp>.csv in the sketch folder. Compare two csv files to
+// spot regressions between builds.
+// Inputs are generated from a fixed seed outside of the timed region.
+// The largest sizes need a generous maximum heap, set it in the
+// Processing preferences.
+
+int warmup=3;
+int runs=5;
+
+void setup() {
+  size(200, 200);
+  randomSeed(42);
+  noiseSeed(42);
+  Pipeline[] pipelines= {
+    new GeodesicCatmullClark(), new BoxExtrudeChamfer(), new IsoSurface(),
+    new MultiSlice(), new ConvexHull(), new VoronoiCells()
+  };
+  ArrayList<String> lines=new ArrayList<String>();
+  lines.add(csvHeader());
+  for (Pipeline p : pipelines) {
+    for (int size : p.sizes()) {
+      Result r=measure(p, size, warmup, runs);
+      println(r);
+      lines.add(r.csv());
+    }
+  }
+  saveStrings("results/"+year()+nf(month(), 2)+nf(day(), 2)+"_"+nf(hour(), 2)+nf(minute(), 2)+".csv", lines.toArray(new String[0]));
+  exit();
+}
+
+// HEC_Geodesic -> HES_CatmullClark, size is the geodesic level
+class GeodesicCatmullClark extends Pipeline {
+  int level;
+  String name() { 
+    return "Geodesic-CatmullClark";
+  }
+  int[] sizes() { 
+    return new int[] {3, 4, 5};
+  }
+  void prepare(int size) { 
+    level=size;
+  }
+  HE_Mesh run() {
+    HE_Mesh mesh=new HE_Mesh(new HEC_Geodesic().setRadius(200).setLevel(level));
+    return mesh.subdivide(new HES_CatmullClark(), 2);
+  }
+}
+
+// HEC_Box -> HEM_Extrude -> HEM_ChamferCorners, size is the number of
+// segments along each side
+class BoxExtrudeChamfer extends Pipeline {
+  int segments;
+  String name() { 
+    return "Box-Extrude-ChamferCorners";
+  }
+  int[] sizes() { 
+    return new int[] {4, 8, 16};
+  }
+  void prepare(int size) { 
+    segments=size;
+  }
+  HE_Mesh run() {
+    HE_Mesh mesh=new HE_Mesh(new HEC_Box().setWidth(400).setHeight(400).setDepth(400)
+      .setWidthSegments(segments).setHeightSegments(segments).setDepthSegments(segments));
+    mesh.modify(new HEM_Extrude().setDistance(20));
+    return mesh.modify(new HEM_ChamferCorners().setDistance(2));
+  }
+}
+
+// HEC_IsoSurface on a noise field, size is the grid resolution
+class IsoSurface extends Pipeline {
+  float[][][] values;
+  int res;
+  String name() { 
+    return "IsoSurface";
+  }
+  int[] sizes() { 
+    return new int[] {32, 64, 128};
+  }
+  void prepare(int size) {
+    res=size;
+    values=new float[res+1][res+1][res+1];
+    float f=3.5/res;
+    for (int i=0;i<=res;i++) {
+      for (int j=0;j<=res;j++) {
+        for (int k=0;k<=res;k++) {
+          values[i][j][k]=2.1*noise(f*i, f*j, f*k);
+        }
+      }
+    }
+  }
+  HE_Mesh run() {
+    return new HE_Mesh(new HEC_IsoSurface().setResolution(res, res, res)
+      .setSize(400.0/res, 400.0/res, 400.0/res).setValues(values).setIsolevel(1));
+  }
+}
+
+// HEM_MultiSlice with 5 planes on a cylinder, size is the number of
+// facets, the timed run includes copying the source mesh
+class MultiSlice extends Pipeline {
+  HE_Mesh source;
+  WB_Plane[] planes;
+  String name() { 
+    return "MultiSlice";
+  }
+  int[] sizes() { 
+    return new int[] {32, 128, 512};
+  }
+  void prepare(int size) {
+    source=new HE_Mesh(new HEC_Cylinder().setFacets(size).setSteps(size/8).setRadius(200).setHeight(400));
+    planes=new WB_Plane[5];
+    for (int i=0;i<5;i++) {
+      int pol=(random(100)<50)?-1:1;
+      planes[i]=new WB_Plane(0, 0, -pol*random(50, 150), pol*random(1), pol*random(1), pol*random(1));
+    }
+  }
+  HE_Mesh run() {
+    return source.get().modify(new HEM_MultiSlice().setPlanes(planes));
+  }
+}
+
+// HEC_ConvexHull of random points in a cube, size is the number of points
+class ConvexHull extends Pipeline {
+  float[][] points;
+  String name() { 
+    return "ConvexHull";
+  }
+  int[] sizes() { 
+    return new int[] {1000, 100000, 1000000};
+  }
+  void prepare(int size) {
+    points=randomPoints(size, 200);
+  }
+  HE_Mesh run() {
+    return new HE_Mesh(new HEC_ConvexHull().setPoints(points).setN(points.length));
+  }
+}
+
+// HEMC_VoronoiCells in a geodesic container, size is the number of points
+class VoronoiCells extends Pipeline {
+  float[][] points;
+  HE_Mesh container;
+  String name() { 
+    return "VoronoiCells";
+  }
+  int[] sizes() { 
+    return new int[] {10, 50, 100};
+  }
+  void prepare(int size) {
+    container=new HE_Mesh(new HEC_Geodesic().setRadius(250).setLevel(2));
+    points=randomPoints(size, 250);
+  }
+  HE_Mesh[] run() {
+    return new HEMC_VoronoiCells().setPoints(points).setN(points.length).setContainer(container).setOffset(5).create();
+  }
+}
+
+float[][] randomPoints(int n, float r) {
+  float[][] points=new float[n][3];
+  for (int i=0;i<n;i++) {
+    points[i][0]=random(-r, r);
+    points[i][1]=random(-r, r);
+    points[i][2]=random(-r, r);
+  }
+  return points;
+}
@@ -0,0 +1,99 @@
+import java.lang.management.*;
+
+// A pipeline prepares its input for a size outside of the timed region,
+// run() is what gets measured. The result is kept until the next run so
+// that the work can not be optimized away.
+abstract class Pipeline {
+  abstract String name();
+  abstract int[] sizes();
+  abstract void prepare(int size);
+  abstract Object run();
+}
+
+class Result {
+  String name;
+  int size;
+  double runsPerSecond;
+  double mbPerRun;
+  double mbPerSecond;
+  double peakMb;
+
+  public String toString() {
+    return name+" size="+size+": "+nf((float)runsPerSecond, 1, 3)+" runs/s, "
+      +nf((float)mbPerRun, 1, 2)+" MB/run allocated ("+nf((float)mbPerSecond, 1, 1)+" MB/s), peak heap "
+      +nf((float)peakMb, 1, 1)+" MB";
+  }
+
+  String csv() {
+    return name+","+size+","+runsPerSecond+","+mbPerRun+","+mbPerSecond+","+peakMb;
+  }
+}
+
+String csvHeader() {
+  return "pipeline,size,runs_per_s,mb_per_run,mb_per_s,peak_heap_mb";
+}
+
+Object keep;
+
+Result measure(Pipeline p, int size, int warmup, int runs) {
+  p.prepare(size);
+  for (int i=0;i<warmup;i++) {
+    keep=p.run();
+  }
+  keep=null;
+  System.gc();
+  resetPeakHeap();
+  long allocated=allocatedBytes();
+  long t=System.nanoTime();
+  for (int i=0;i<runs;i++) {
+    keep=p.run();
+  }
+  long elapsed=System.nanoTime()-t;
+  allocated=allocatedBytes()-allocated;
+  Result r=new Result();
+  r.name=p.name();
+  r.size=size;
+  r.runsPerSecond=1e9*runs/elapsed;
+  r.mbPerRun=allocated/(1048576.0*runs);
+  r.mbPerSecond=allocated/(1048576.0*elapsed*1e-9);
+  r.peakMb=peakHeap()/1048576.0;
+  keep=null;
+  return r;
+}
+
+// Bytes allocated by all live threads, including the WB_Parallel workers.
+// Needs a HotSpot VM, returns 0 elsewhere.
+long allocatedBytes() {
+  ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+  if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+    return 0;
+  }
+  com.sun.management.ThreadMXBean hotspot=(com.sun.management.ThreadMXBean)bean;
+  long sum=0;
+  for (long b : hotspot.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+    if (b>0) {
+      sum+=b;
+    }
+  }
+  return sum;
+}
+
+void resetPeakHeap() {
+  for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+    if (pool.getType()==MemoryType.HEAP) {
+      pool.resetPeakUsage();
+    }
+  }
+}
+
+// Sum of the peak usage of the heap pools, an upper bound of the peak heap
+// since the pools do not peak at the same time.
+long peakHeap() {
+  long sum=0;
+  for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+    if (pool.getType()==MemoryType.HEAP) {
+      sum+=pool.getPeakUsage().getUsed();
+    }
+  }
+  return sum;
+}
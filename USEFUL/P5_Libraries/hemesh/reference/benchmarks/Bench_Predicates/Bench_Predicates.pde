@@ -0,0 +1,247 @@
+import wblut.geom.*;
+import java.math.BigDecimal;
+import java.util.Random;
+
+// Checks orient2d, incircle2d, orient and insphere of WB_Predicates2D and
+// WB_Predicates against an exact BigDecimal evaluation of the same
+// determinants, then measures their throughput.
+// Input sets:
+//   random  uniform points, decided by the floating point filter
+//   grid    points on a grid with spacing 0.1
+//   shape   points on a line, circle, plane or sphere, rounded to double
+//   ulp     exactly degenerate integer points, one coordinate moved by
+//           -2 to 2 ulps
+// Grid, shape and ulp cases mostly fail the filter and go to the exact
+// fallback. The ...Exact methods skip the filter.
+// Throughput is printed in million calls per second.
+
+String[] names={"orient2d", "incircle2d", "orient", "insphere"};
+String[] sets={"random", "grid", "shape", "ulp"};
+int[] numPoints={3, 4, 4, 5};
+int[] dims={2, 2, 3, 3};
+int cases=50000;
+int runs=5;
+Random rnd=new Random(1);
+
+void setup() {
+  size(200, 200);
+  double[][][] data=new double[names.length][sets.length][];
+  for (int p=0;p<names.length;p++) {
+    for (int s=0;s<sets.length;s++) {
+      data[p][s]=generate(p, s);
+    }
+  }
+  println("wrong signs against BigDecimal, of "+cases+" cases");
+  for (int p=0;p<names.length;p++) {
+    for (int s=0;s<sets.length;s++) {
+      check(p, s, data[p][s]);
+    }
+  }
+  println("throughput");
+  for (int p=0;p<names.length;p++) {
+    for (int s=0;s<sets.length;s++) {
+      bench(p, s, data[p][s]);
+    }
+  }
+  exit();
+}
+
+void check(int p, int s, double[] c) {
+  int stride=numPoints[p]*dims[p];
+  int wrong=0, wrongExact=0, zero=0;
+  for (int i=0;i<cases;i++) {
+    int ref=big(p, c, i*stride);
+    if (sign(eval(p, c, i*stride))!=ref) wrong++;
+    if (sign(evalExact(p, c, i*stride))!=ref) wrongExact++;
+    if (ref==0) zero++;
+  }
+  println("  "+names[p]+" "+sets[s]+": filtered "+wrong+", exact "+wrongExact+" ("+zero+" degenerate)");
+}
+
+void bench(int p, int s, double[] c) {
+  int stride=numPoints[p]*dims[p];
+  double filtered=0, exact=0, bigDecimal=0;
+  double check=0;
+  long t;
+  for (int r=0;r<runs;r++) {
+    t=System.nanoTime();
+    for (int i=0;i<cases;i++) check+=eval(p, c, i*stride);
+    filtered+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<cases;i++) check+=evalExact(p, c, i*stride);
+    exact+=System.nanoTime()-t;
+    t=System.nanoTime();
+    for (int i=0;i<cases;i++) check+=big(p, c, i*stride);
+    bigDecimal+=System.nanoTime()-t;
+  }
+  println("  "+names[p]+" "+sets[s]+" (check "+(long)check+")  filtered "+rate(filtered)+"  exact "+rate(exact)+"  BigDecimal "+rate(bigDecimal));
+}
+
+String rate(double nanos) {
+  return nf((float)(1000.0*cases*runs/nanos), 1, 3)+" Mcalls/s";
+}
+
+int sign(double d) {
+  return (d>0)?1:(d<0)?-1:0;
+}
+
+double eval(int p, double[] c, int o) {
+  switch (p) {
+  case 0:
+    return WB_Predicates2D.orient2d(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5]);
+  case 1:
+    return WB_Predicates2D.incircle2d(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7]);
+  case 2:
+    return WB_Predicates.orient(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7], c[o+8], c[o+9], c[o+10], c[o+11]);
+  default:
+    return WB_Predicates.insphere(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7], c[o+8], c[o+9], c[o+10], c[o+11], c[o+12], c[o+13], c[o+14]);
+  }
+}
+
+double evalExact(int p, double[] c, int o) {
+  switch (p) {
+  case 0:
+    return WB_Predicates2D.orientExact2d(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5]);
+  case 1:
+    return WB_Predicates2D.incircleExact2d(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7]);
+  case 2:
+    return WB_Predicates.orientExact(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7], c[o+8], c[o+9], c[o+10], c[o+11]);
+  default:
+    return WB_Predicates.insphereExact(c[o], c[o+1], c[o+2], c[o+3], c[o+4], c[o+5], c[o+6], c[o+7], c[o+8], c[o+9], c[o+10], c[o+11], c[o+12], c[o+13], c[o+14]);
+  }
+}
+
+// Sign of the determinant, written out as in WB_Predicates and
+// WB_Predicates2D. All BigDecimal operations here are exact.
+int big(int p, double[] c, int o) {
+  int n=numPoints[p];
+  int dim=dims[p];
+  // coordinates relative to the last point
+  BigDecimal[][] d=new BigDecimal[n-1][dim];
+  for (int i=0;i<n-1;i++) {
+    for (int k=0;k<dim;k++) {
+      d[i][k]=new BigDecimal(c[o+i*dim+k]).subtract(new BigDecimal(c[o+(n-1)*dim+k]));
+    }
+  }
+  switch (p) {
+  case 0:
+    return minor(d, 0, 1).signum();
+  case 1:
+    return lift(d[0]).multiply(minor(d, 1, 2))
+      .add(lift(d[1]).multiply(minor(d, 2, 0)))
+      .add(lift(d[2]).multiply(minor(d, 0, 1))).signum();
+  case 2:
+    return minor(d, 0, 1).multiply(d[2][2])
+      .subtract(minor(d, 0, 2).multiply(d[1][2]))
+      .add(minor(d, 1, 2).multiply(d[0][2])).signum();
+  default:
+    BigDecimal ab=minor(d, 0, 1), bc=minor(d, 1, 2), cd=minor(d, 2, 3);
+    BigDecimal da=minor(d, 3, 0), ac=minor(d, 0, 2), bd=minor(d, 1, 3);
+    BigDecimal abc=d[0][2].multiply(bc).subtract(d[1][2].multiply(ac)).add(d[2][2].multiply(ab));
+    BigDecimal bcd=d[1][2].multiply(cd).subtract(d[2][2].multiply(bd)).add(d[3][2].multiply(bc));
+    BigDecimal cda=d[2][2].multiply(da).add(d[3][2].multiply(ac)).add(d[0][2].multiply(cd));
+    BigDecimal dab=d[3][2].multiply(ab).add(d[0][2].multiply(bd)).add(d[1][2].multiply(da));
+    return lift(d[3]).multiply(abc).subtract(lift(d[2]).multiply(dab))
+      .add(lift(d[1]).multiply(cda).subtract(lift(d[0]).multiply(bcd))).signum();
+  }
+}
+
+// xi*yj-xj*yi of relative points i and j
+BigDecimal minor(BigDecimal[][] d, int i, int j) {
+  return d[i][0].multiply(d[j][1]).subtract(d[j][0].multiply(d[i][1]));
+}
+
+BigDecimal lift(BigDecimal[] v) {
+  BigDecimal l=BigDecimal.ZERO;
+  for (BigDecimal x : v) l=l.add(x.multiply(x));
+  return l;
+}
+
+double[] generate(int p, int s) {
+  int n=numPoints[p];
+  int dim=dims[p];
+  double[] c=new double[cases*n*dim];
+  double[] pt=new double[n*dim];
+  for (int i=0;i<cases;i++) {
+    if (s==0) {
+      for (int k=0;k<n*dim;k++) pt[k]=rnd.nextDouble();
+    } else if (s==1) {
+      for (int k=0;k<n*dim;k++) pt[k]=0.1*rnd.nextInt(5);
+    } else if (s==2) {
+      shape(p, pt);
+    } else {
+      integerShape(p, pt);
+      int k=rnd.nextInt(n*dim);
+      int ulps=rnd.nextInt(5)-2;
+      for (int u=0;u<ulps;u++) pt[k]=Math.nextUp(pt[k]);
+      for (int u=0;u>ulps;u--) pt[k]=-Math.nextUp(-pt[k]);
+    }
+    System.arraycopy(pt, 0, c, i*n*dim, n*dim);
+  }
+  return c;
+}
+
+// Points on a line or plane (orient), or on a circle or sphere (incircle,
+// insphere), rounded to double.
+void shape(int p, double[] pt) {
+  int n=numPoints[p];
+  int dim=dims[p];
+  if (p==0 || p==2) {
+    for (int k=0;k<(n-1)*dim;k++) pt[k]=rnd.nextDouble();
+    double s=3*rnd.nextDouble()-1;
+    double t=(p==2)?3*rnd.nextDouble()-1:0;
+    for (int k=0;k<dim;k++) {
+      pt[(n-1)*dim+k]=pt[k]+s*(pt[dim+k]-pt[k])+((p==2)?t*(pt[2*dim+k]-pt[k]):0);
+    }
+  } else {
+    double r=0.1+rnd.nextDouble();
+    double[] center={rnd.nextDouble(), rnd.nextDouble(), rnd.nextDouble()};
+    for (int i=0;i<n;i++) {
+      double[] v=new double[dim];
+      double l=0;
+      for (int k=0;k<dim;k++) {
+        v[k]=rnd.nextGaussian();
+        l+=v[k]*v[k];
+      }
+      l=Math.sqrt(l);
+      for (int k=0;k<dim;k++) pt[i*dim+k]=center[k]+r*v[k]/l;
+    }
+  }
+}
+
+// Exactly degenerate integer points: on a line or plane, or on a circle or
+// sphere with integer points, e.g. (3,4) and (1,2,2) times a factor.
+int[][] circle={{3, 4}, {4, 3}, {5, 0}, {0, 5}};
+int[][] sphere={{1, 2, 2}, {2, 1, 2}, {2, 2, 1}, {3, 0, 0}, {0, 3, 0}, {0, 0, 3}};
+
+void integerShape(int p, double[] pt) {
+  int n=numPoints[p];
+  int dim=dims[p];
+  if (p==0 || p==2) {
+    int s=rnd.nextInt(7)-3;
+    int t=rnd.nextInt(7)-3;
+    for (int k=0;k<dim;k++) {
+      int a=rnd.nextInt(2000000)-1000000;
+      int u=rnd.nextInt(2001)-1000;
+      int v=rnd.nextInt(2001)-1000;
+      pt[k]=a;
+      pt[dim+k]=a+u;
+      if (p==0) {
+        pt[2*dim+k]=a+s*u;
+      } else {
+        pt[2*dim+k]=a+v;
+        pt[3*dim+k]=a+s*u+t*v;
+      }
+    }
+  } else {
+    int[][] table=(p==1)?circle:sphere;
+    int m=1+rnd.nextInt(1000);
+    for (int i=0;i<n;i++) {
+      int[] q=table[rnd.nextInt(table.length)];
+      for (int k=0;k<dim;k++) {
+        int center=1000*(k+1);
+        pt[i*dim+k]=center+m*(rnd.nextBoolean()?q[k]:-q[k]);
+      }
+    }
+  }
+}
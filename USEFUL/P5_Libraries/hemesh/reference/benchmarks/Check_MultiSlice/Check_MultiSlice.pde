@@ -0,0 +1,73 @@
+import wblut.hemesh.*;
+import wblut.geom.*;
+import java.util.*;
+
+// Cuts closed geodesic spheres and boxes with 1 to 6 random planes, with
+// and without caps, and compares HEM_MultiSlice with HEM_Slice applied
+// plane by plane. Uncapped cuts open the mesh after the first plane, later
+// planes have to handle the boundary.
+// Prints the cases that throw, fail validation or differ in face count or
+// area. HEM_Slice itself leaves uncapped meshes that validate() rejects, so
+// only capped results are validated.
+
+int cases=200;
+
+void setup() {
+  size(200, 200);
+  int failed=0;
+  for (int i=0;i<cases;i++) {
+    for (int cap=0;cap<2;cap++) {
+      if (!check(i, cap==0)) failed++;
+    }
+  }
+  println(failed+" of "+(2*cases)+" cases failed");
+  exit();
+}
+
+boolean check(int seed, boolean cap) {
+  Random rnd=new Random(seed);
+  int np=1+rnd.nextInt(6);
+  List<WB_Plane> planes=new ArrayList<WB_Plane>();
+  for (int k=0;k<np;k++) {
+    WB_Vector3d n=new WB_Vector3d(rnd.nextGaussian(), rnd.nextGaussian(), rnd.nextGaussian());
+    n.normalize();
+    planes.add(new WB_Plane(new WB_Point3d(n.x*60*rnd.nextDouble(), n.y*60*rnd.nextDouble(), n.z*60*rnd.nextDouble()), n));
+  }
+  HE_Mesh multi=create(seed);
+  HE_Mesh single=create(seed);
+  try {
+    multi.modify(new HEM_MultiSlice().setPlanes(planes).setCap(cap));
+  }
+  catch(RuntimeException e) {
+    println("seed "+seed+" cap "+cap+": "+e);
+    return false;
+  }
+  HEM_Slice slice=new HEM_Slice().setCap(cap).setSimpleCap(true);
+  for (WB_Plane P : planes) {
+    single.modify(slice.setPlane(P));
+  }
+  if (cap && !multi.validate(false, false)) {
+    println("seed "+seed+" cap "+cap+": invalid mesh");
+    return false;
+  }
+  double a=area(multi);
+  double b=area(single);
+  if (multi.numberOfFaces()!=single.numberOfFaces() || Math.abs(a-b)>1e-6*Math.max(1, b)) {
+    println("seed "+seed+" cap "+cap+": F="+multi.numberOfFaces()+" area="+a+", per plane F="+single.numberOfFaces()+" area="+b);
+    return false;
+  }
+  return true;
+}
+
+HE_Mesh create(int seed) {
+  if (seed%2==0) {
+    return new HE_Mesh(new HEC_Geodesic().setRadius(100).setLevel(3));
+  }
+  return new HE_Mesh(new HEC_Box().setWidth(150).setHeight(120).setDepth(170).setWidthSegments(3).setHeightSegments(2).setDepthSegments(4));
+}
+
+double area(HE_Mesh mesh) {
+  double a=0;
+  for (HE_Face f : mesh.getFacesAsList()) a+=f.getFaceArea();
+  return a;
+}
@@ -0,0 +1,84 @@
+import wblut.core.*;
+import java.util.*;
+
+// Iterates over OaIntMap values while removing the current entry through
+// the iterator, removing other entries through the map and adding entries,
+// enough to make the map compact or grow its entry arrays mid-iteration.
+// Keys are added in increasing order, so an iteration is correct when it
+// returns increasing keys and every key still in the map at the end was
+// returned.
+// The first case removes the current entry and then puts until the entry
+// arrays are full, the others are random.
+// Prints the cases that fail.
+
+int cases=2000;
+
+void setup() {
+  size(200, 200);
+  int failed=0;
+  if (!removeCurrentThenCompact()) failed++;
+  for (int i=0;i<cases;i++) {
+    if (!check(i)) failed++;
+  }
+  println(failed+" of "+(cases+1)+" cases failed");
+  exit();
+}
+
+boolean removeCurrentThenCompact() {
+  OaIntMap<Integer> map=new OaIntMap<Integer>(16);
+  int key=0;
+  for (;key<16;key++) map.put(key, key);
+  List<Integer> visited=new ArrayList<Integer>();
+  Iterator<Integer> itr=map.values().iterator();
+  while (itr.hasNext()) {
+    int k=itr.next();
+    visited.add(k);
+    if (k==4) {
+      itr.remove();
+      map.remove(1);
+      map.remove(2);
+      // fill the entry arrays, the next put compacts
+      for (int i=0;i<4;i++) map.put(key, key++);
+    }
+  }
+  return report("remove current then compact", map, visited, key);
+}
+
+boolean check(int seed) {
+  Random rnd=new Random(seed);
+  OaIntMap<Integer> map=new OaIntMap<Integer>(1+rnd.nextInt(32));
+  int key=0;
+  int n=rnd.nextInt(100);
+  for (;key<n;key++) map.put(key, key);
+  int puts=0;
+  int maxPuts=rnd.nextInt(400);
+  List<Integer> visited=new ArrayList<Integer>();
+  Iterator<Integer> itr=map.values().iterator();
+  while (itr.hasNext()) {
+    visited.add(itr.next());
+    if (rnd.nextInt(3)==0) itr.remove();
+    int r=rnd.nextInt(4);
+    for (int i=0;i<r;i++) map.remove(rnd.nextInt(key+1));
+    int p=Math.min(rnd.nextInt(12), maxPuts-puts);
+    for (int i=0;i<p;i++) map.put(key, key++);
+    puts+=Math.max(p, 0);
+  }
+  return report("seed "+seed, map, visited, key);
+}
+
+boolean report(String name, OaIntMap<Integer> map, List<Integer> visited, int keys) {
+  for (int i=1;i<visited.size();i++) {
+    if (visited.get(i)<=visited.get(i-1)) {
+      println(name+": "+visited.get(i)+" returned after "+visited.get(i-1));
+      return false;
+    }
+  }
+  Set<Integer> seen=new HashSet<Integer>(visited);
+  for (int k=0;k<keys;k++) {
+    if (map.containsKey(k) && !seen.contains(k)) {
+      println(name+": "+k+" not returned");
+      return false;
+    }
+  }
+  return true;
+}
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package wblut.core;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int handles with double priorities. Handles are
+ * non-negative ints chosen by the caller, typically element indices. The
+ * position of each handle in the heap is tracked, so the priority of a handle
+ * can be changed, or the handle removed, in O(log n) without searching.
+ *
+ * Storage grows with the largest handle, pushing does not allocate otherwise.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class IndexedHeap {
+
+	/** Handles in heap order. */
+	private int[]		heap;
+
+	/** Position of each handle in heap, -1 if not in heap. */
+	private int[]		positions;
+
+	/** Priority of each handle. */
+	private double[]	priorities;
+
+	/** Number of handles in heap. */
+	private int			size;
+
+	public IndexedHeap() {
+		this(16);
+	}
+
+	/**
+	 *
+	 * @param capacity expected largest handle+1
+	 */
+	public IndexedHeap(final int capacity) {
+		final int cap = Math.max(capacity, 4);
+		heap = new int[cap];
+		positions = new int[cap];
+		Arrays.fill(positions, -1);
+		priorities = new double[cap];
+		size = 0;
+	}
+
+	private void ensureCapacity(final int handle) {
+		if (handle < positions.length) {
+			return;
+		}
+		int cap = positions.length;
+		while (cap <= handle) {
+			cap += cap;
+		}
+		final int old = positions.length;
+		heap = Arrays.copyOf(heap, cap);
+		positions = Arrays.copyOf(positions, cap);
+		Arrays.fill(positions, old, cap, -1);
+		priorities = Arrays.copyOf(priorities, cap);
+	}
+
+	/**
+	 * Add handle, or change its priority if it is already in the heap.
+	 *
+	 * @param handle non-negative handle
+	 * @param priority priority, lowest is popped first
+	 */
+	public void push(final int handle, final double priority) {
+		if (handle < 0) {
+			throw new IllegalArgumentException("Negative handle");
+		}
+		ensureCapacity(handle);
+		final int i = positions[handle];
+		if (i == -1) {
+			priorities[handle] = priority;
+			place(size, handle);
+			size++;
+			up(size - 1);
+		} else {
+			final double old = priorities[handle];
+			priorities[handle] = priority;
+			if (priority < old) {
+				up(i);
+			} else if (priority > old) {
+				down(i);
+			}
+		}
+	}
+
+	/**
+	 * Change priority of a handle. Same as push().
+	 *
+	 * @param handle non-negative handle
+	 * @param priority priority
+	 */
+	public void update(final int handle, final double priority) {
+		push(handle, priority);
+	}
+
+	/**
+	 * Remove and return the handle with the lowest priority.
+	 *
+	 * @return handle, -1 if empty
+	 */
+	public int pop() {
+		if (size == 0) {
+			return -1;
+		}
+		final int result = heap[0];
+		removeAt(0);
+		return result;
+	}
+
+	/**
+	 * Handle with the lowest priority.
+	 *
+	 * @return handle, -1 if empty
+	 */
+	public int peek() {
+		return (size == 0) ? -1 : heap[0];
+	}
+
+	/**
+	 * Lowest priority.
+	 *
+	 * @return priority, Double.POSITIVE_INFINITY if empty
+	 */
+	public double peekPriority() {
+		return (size == 0) ? Double.POSITIVE_INFINITY : priorities[heap[0]];
+	}
+
+	/**
+	 * Remove handle.
+	 *
+	 * @param handle handle
+	 * @return true, if handle was in heap
+	 */
+	public boolean remove(final int handle) {
+		if (!contains(handle)) {
+			return false;
+		}
+		removeAt(positions[handle]);
+		return true;
+	}
+
+	/**
+	 * Check if handle is in heap.
+	 *
+	 * @param handle handle
+	 * @return true, if successful
+	 */
+	public boolean contains(final int handle) {
+		return handle >= 0 && handle < positions.length
+				&& positions[handle] != -1;
+	}
+
+	/**
+	 * Priority of handle.
+	 *
+	 * @param handle handle
+	 * @return priority, Double.NaN if handle is not in heap
+	 */
+	public double getPriority(final int handle) {
+		return contains(handle) ? priorities[handle] : Double.NaN;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			positions[heap[i]] = -1;
+		}
+		size = 0;
+	}
+
+	private void removeAt(final int i) {
+		final int handle = heap[i];
+		size--;
+		if (i < size) {
+			place(i, heap[size]);
+			if (i > 0 && priorities[heap[i]] < priorities[heap[(i - 1) >> 1]]) {
+				up(i);
+			} else {
+				down(i);
+			}
+		}
+		positions[handle] = -1;
+	}
+
+	private void place(final int i, final int handle) {
+		heap[i] = handle;
+		positions[handle] = i;
+	}
+
+	private void up(int i) {
+		final int handle = heap[i];
+		final double p = priorities[handle];
+		while (i > 0) {
+			final int parent = (i - 1) >> 1;
+			if (priorities[heap[parent]] <= p) {
+				break;
+			}
+			place(i, heap[parent]);
+			i = parent;
+		}
+		place(i, handle);
+	}
+
+	private void down(int i) {
+		final int handle = heap[i];
+		final double p = priorities[handle];
+		int child;
+		while ((child = 2 * i + 1) < size) {
+			if (child + 1 < size
+					&& priorities[heap[child + 1]] < priorities[heap[child]]) {
+				child++;
+			}
+			if (p <= priorities[heap[child]]) {
+				break;
+			}
+			place(i, heap[child]);
+			i = child;
+		}
+		place(i, handle);
+	}
+
+}
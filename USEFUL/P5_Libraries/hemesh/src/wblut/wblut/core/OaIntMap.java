@@ -0,0 +1,354 @@
+/**
+ *
+ */
+package wblut.core;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Insertion-ordered map from primitive int keys to objects. Entries are kept
+ * in parallel key/value arrays in insertion order, an open addressing table
+ * (same hashing as OpenAddressingSet) maps keys to entries. Lookups, puts and
+ * removals do not box the key.
+ *
+ * Removed entries leave a gap that is reclaimed when the entry arrays are
+ * full. Iterators follow additions made during iteration, just like the
+ * linked maps this class replaces, and entries can be removed during
+ * iteration, through the iterator or the map. Each entry gets an insertion
+ * number, after entries have been moved an iterator resumes at the first
+ * entry numbered after the last one it returned.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class OaIntMap<T> {
+
+	private static final int	PRIME	= -1640531527;
+	private static final int	FREE	= 0;
+	private static final int	DELETED	= -1;
+
+	/** Entry keys in insertion order. */
+	private int[]				keys;
+
+	/** Entry values in insertion order, null for removed entries. */
+	private Object[]			values;
+
+	/** Entry insertion numbers, increasing, compared with wraparound. */
+	private int[]				numbers;
+
+	/** Insertion number of the next entry, never reset. */
+	private int					nextNumber;
+
+	/** Number of used entries, including removed ones. */
+	private int					count;
+
+	/** Number of live entries. */
+	private int					size;
+
+	/** Open addressing table, entry index+1, FREE or DELETED. */
+	private int[]				table;
+
+	/** Shift for table hashing. */
+	private int					load;
+
+	/** Incremented each time entries are moved. */
+	private int					compactions;
+
+	public OaIntMap() {
+		this(16);
+	}
+
+	public OaIntMap(final int initialCapacity) {
+		init(initialCapacity);
+	}
+
+	private void init(final int initialCapacity) {
+		int cap = 4;
+		while (cap < initialCapacity) {
+			cap += cap;
+		}
+		keys = new int[cap];
+		values = new Object[cap];
+		numbers = new int[cap];
+		count = 0;
+		size = 0;
+		buildTable(cap);
+	}
+
+	/**
+	 * Allocate an empty table for a number of entries, load factor 0.5.
+	 *
+	 * @param cap entry capacity
+	 */
+	private void buildTable(final int cap) {
+		int tcap = 8;
+		int bits = 3;
+		while (tcap < 2 * cap) {
+			tcap += tcap;
+			bits++;
+		}
+		table = new int[tcap];
+		load = 32 - bits;
+	}
+
+	private int slot(final int key) {
+		final int hash = PRIME * key >>> load;
+		int index = hash;
+		int e;
+		do {
+			e = table[index];
+			if (e == FREE) {
+				return -1;
+			}
+			if (e != DELETED && keys[e - 1] == key) {
+				return index;
+			}
+			index = index + (hash | 1) & table.length - 1;
+		} while (index != hash);
+		return -1;
+	}
+
+	private void insertInTable(final int key, final int entry) {
+		final int hash = PRIME * key >>> load;
+		int index = hash;
+		while (table[index] > FREE) {
+			index = index + (hash | 1) & table.length - 1;
+		}
+		table[index] = entry + 1;
+	}
+
+	/**
+	 * Index of the entry for a key.
+	 *
+	 * @param key key
+	 * @return entry index, -1 if not present
+	 */
+	private int entry(final int key) {
+		final int s = slot(key);
+		return (s == -1) ? -1 : table[s] - 1;
+	}
+
+	/**
+	 * Get value.
+	 *
+	 * @param key key
+	 * @return value, null if not present
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(final int key) {
+		final int s = slot(key);
+		return (s == -1) ? null : (T) values[table[s] - 1];
+	}
+
+	/**
+	 * Check if key is present.
+	 *
+	 * @param key key
+	 * @return true, if successful
+	 */
+	public boolean containsKey(final int key) {
+		return slot(key) != -1;
+	}
+
+	/**
+	 * Add value. An existing value for the key is replaced in place and keeps
+	 * its position in the iteration order.
+	 *
+	 * @param key key
+	 * @param value value, not null
+	 * @return previous value, null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public T put(final int key, final T value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Null value");
+		}
+		final int s = slot(key);
+		if (s != -1) {
+			final T old = (T) values[table[s] - 1];
+			values[table[s] - 1] = value;
+			return old;
+		}
+		if (count == keys.length) {
+			if (size <= count >> 1) {
+				compact(keys.length);
+			} else {
+				compact(2 * keys.length);
+			}
+		}
+		keys[count] = key;
+		values[count] = value;
+		numbers[count] = nextNumber++;
+		insertInTable(key, count);
+		count++;
+		size++;
+		return null;
+	}
+
+	/**
+	 * Remove value.
+	 *
+	 * @param key key
+	 * @return removed value, null if not present
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(final int key) {
+		final int s = slot(key);
+		if (s == -1) {
+			return null;
+		}
+		final int e = table[s] - 1;
+		final T old = (T) values[e];
+		values[e] = null;
+		table[s] = DELETED;
+		size--;
+		if (size == 0) {
+			// nothing left to keep in order, reuse storage from the start
+			count = 0;
+			Arrays.fill(table, FREE);
+			compactions++;
+		}
+		return old;
+	}
+
+	/**
+	 * Remove gaps and rebuild table.
+	 *
+	 * @param cap new entry capacity
+	 */
+	private void compact(final int cap) {
+		final int[] nkeys = new int[cap];
+		final Object[] nvalues = new Object[cap];
+		final int[] nnumbers = new int[cap];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (values[i] != null) {
+				nkeys[n] = keys[i];
+				nvalues[n] = values[i];
+				nnumbers[n] = numbers[i];
+				n++;
+			}
+		}
+		keys = nkeys;
+		values = nvalues;
+		numbers = nnumbers;
+		count = n;
+		buildTable(cap);
+		for (int i = 0; i < n; i++) {
+			insertInTable(keys[i], i);
+		}
+		compactions++;
+	}
+
+	/**
+	 * First entry inserted after a given insertion number.
+	 *
+	 * @param number insertion number
+	 * @return entry index, count if none
+	 */
+	private int firstAfter(final int number) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (numbers[mid] - number > 0) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	public void clear() {
+		init(16);
+		compactions++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Collection view of the values in insertion order. Removal through the
+	 * view is supported.
+	 *
+	 * @return values
+	 */
+	public Collection<T> values() {
+		return new AbstractCollection<T>() {
+
+			@Override
+			public Iterator<T> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				OaIntMap.this.clear();
+			}
+		};
+	}
+
+	private class ValueIterator implements Iterator<T> {
+		int		next		= 0;
+		int		lastKey;
+		int		lastNumber;
+		boolean	hasLast		= false;
+		boolean	started		= false;
+		int		expected	= compactions;
+
+		/**
+		 * Find position again after entries have been moved.
+		 */
+		private void sync() {
+			if (expected != compactions) {
+				expected = compactions;
+				next = started ? firstAfter(lastNumber) : 0;
+			}
+		}
+
+		public boolean hasNext() {
+			sync();
+			while (next < count && values[next] == null) {
+				next++;
+			}
+			return next < count;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException("Enumerator");
+			}
+			lastKey = keys[next];
+			lastNumber = numbers[next];
+			hasLast = true;
+			started = true;
+			return (T) values[next++];
+		}
+
+		public void remove() {
+			if (!hasLast) {
+				throw new IllegalStateException();
+			}
+			sync();
+			OaIntMap.this.remove(lastKey);
+			hasLast = false;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * 
+ */
+package wblut.core;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from primitive long keys to primitive int values, for
+ * lookups on combined keys such as a pair of vertex keys. Values are
+ * non-negative, -1 signals a missing key. Entries can not be removed.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ * 
+ */
+public class OaLongIntMap {
+
+	private long[]				keys;
+	private int[]				values;
+	private int					size;
+
+	public OaLongIntMap() {
+		this(16);
+	}
+
+	public OaLongIntMap(final int initialCapacity) {
+		init(initialCapacity);
+	}
+
+	private void init(final int initialCapacity) {
+		int cap = 8;
+		while (cap < 2 * initialCapacity) {
+			cap += cap;
+		}
+		keys = new long[cap];
+		values = new int[cap];
+		Arrays.fill(values, -1);
+		size = 0;
+	}
+
+	/**
+	 * Mix all bits of the key, combined keys of consecutive ints would
+	 * otherwise cluster.
+	 *
+	 * @param key key
+	 * @return hash
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/**
+	 * Get value.
+	 * 
+	 * @param key key
+	 * @return value, -1 if not present
+	 */
+	public int get(final long key) {
+		final long hash = mix(key);
+		final int mask = keys.length - 1;
+		final int step = (int) (hash >>> 32) | 1;
+		int index = (int) hash & mask;
+		while (values[index] != -1) {
+			if (keys[index] == key) {
+				return values[index];
+			}
+			index = index + step & mask;
+		}
+		return -1;
+	}
+
+	public boolean containsKey(final long key) {
+		return get(key) != -1;
+	}
+
+	/**
+	 * Add value, replaces existing value for key.
+	 * 
+	 * @param key key
+	 * @param value value, non-negative
+	 * @return previous value, -1 if none
+	 */
+	public int put(final long key, final int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value");
+		}
+		if (size >= keys.length >> 1) {
+			rehash();
+		}
+		final long hash = mix(key);
+		final int mask = keys.length - 1;
+		final int step = (int) (hash >>> 32) | 1;
+		int index = (int) hash & mask;
+		while (values[index] != -1) {
+			if (keys[index] == key) {
+				final int old = values[index];
+				values[index] = value;
+				return old;
+			}
+			index = index + step & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		size++;
+		return -1;
+	}
+
+	private void rehash() {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		init(oldKeys.length);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != -1) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		init(16);
+	}
+
+	/**
+	 * Combine two int keys into a single long key. Order matters.
+	 * 
+	 * @param a first key
+	 * @param b second key
+	 * @return combined key
+	 */
+	public static long key(final int a, final int b) {
+		return ((long) a << 32) | (b & 0xffffffffL);
+	}
+
+}
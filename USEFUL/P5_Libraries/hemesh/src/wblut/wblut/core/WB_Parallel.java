@@ -0,0 +1,151 @@
+/**
+ * 
+ */
+package wblut.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared worker pool for the parallel modes of creators, modifiers and
+ * subdividors. Worker threads are daemons, an application doesn't need to
+ * shut the pool down. Tasks submitted from inside a worker are run on the
+ * calling thread, so nested parallel calls can't starve the pool.
+ * 
+ * Element keys are handed out by atomic counters, so tasks can create mesh
+ * elements. A mesh itself is not thread-safe: each task should only modify
+ * a mesh it owns.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ * 
+ */
+public class WB_Parallel {
+
+	private static int				threads	= Runtime.getRuntime()
+													.availableProcessors();
+
+	private static ExecutorService	executor;
+
+	private static class Worker extends Thread {
+		Worker(final Runnable r, final int i) {
+			super(r, "WB_Parallel-" + i);
+			setDaemon(true);
+		}
+	}
+
+	private WB_Parallel() {
+	}
+
+	/**
+	 * Number of worker threads.
+	 * 
+	 * @return number of threads
+	 */
+	public static int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set number of worker threads, defaults to the number of available
+	 * processors.
+	 * 
+	 * @param n number of threads, at least 1
+	 */
+	public static synchronized void setThreads(final int n) {
+		threads = Math.max(1, n);
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Is the current thread a worker of this pool?
+	 * 
+	 * @return true if called from inside a task
+	 */
+	public static boolean isWorker() {
+		return Thread.currentThread() instanceof Worker;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threads,
+					new ThreadFactory() {
+						int	count	= 0;
+
+						public Thread newThread(final Runnable r) {
+							return new Worker(r, count++);
+						}
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Run all tasks and wait for them to finish. An exception thrown by a
+	 * task is rethrown, wrapped in a RuntimeException if necessary.
+	 * 
+	 * @param tasks tasks
+	 * @return results in task order
+	 */
+	public static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks) {
+		final List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (threads < 2 || tasks.size() < 2 || isWorker()) {
+				for (final Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			} else {
+				final List<Future<T>> futures = getExecutor().invokeAll(tasks);
+				for (final Future<T> future : futures) {
+					results.add(future.get());
+				}
+			}
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Split a range in chunks, at least one per thread when the range is
+	 * large enough.
+	 * 
+	 * @param n size of range
+	 * @param minChunk minimum chunk size
+	 * @return chunk boundaries, chunk i is [result[i], result[i+1])
+	 */
+	public static int[] split(final int n, final int minChunk) {
+		int chunks = Math.max(1, Math.min(4 * threads, n / Math.max(1, minChunk)));
+		if (chunks > n) {
+			chunks = Math.max(1, n);
+		}
+		final int[] result = new int[chunks + 1];
+		for (int i = 0; i <= chunks; i++) {
+			result[i] = (int) ((long) n * i / chunks);
+		}
+		return result;
+	}
+
+}
@@ -1,93 +1,1106 @@
 /**
- * 
+ *
  */
 package wblut.geom;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.WB_Parallel;
 import wblut.hemesh.HE_Face;
+import wblut.hemesh.HE_Halfedge;
 import wblut.hemesh.HE_Mesh;
-import wblut.hemesh.HE_Selection;
+import wblut.hemesh.HE_Vertex;
 
 /**
+ * Bounding volume hierarchy over the faces of a mesh. The tree is built top
+ * down, each node is split where the binned surface area heuristic puts it.
+ * Nodes are stored flat in primitive arrays, root is node 0. Faces are
+ * reordered so every leaf refers to a contiguous range of faces.
+ *
+ * In parallel mode the upper levels are split on the calling thread, the
+ * subtrees below them are built concurrently.
+ *
+ * getRoot() converts the hierarchy to linked WB_AABBNode objects on first
+ * use, for drawing and for code written against the node interface.
+ *
+ * After a modifier that only moves vertices, refit() updates the bounds in
+ * place without rebuilding. update() uses the version counters of the mesh to
+ * choose between doing nothing, a refit or a full rebuild.
+ *
  * @author Frederik Vanhoutte, W:Blut
  *
  */
 public class WB_AABBTree {
-	private WB_AABBNode	root;
-	private final int	maxLevel;
-	private final int	maxNumberOfFaces;
+
+	/** Number of bins along the split axis. */
+	private static final int	BINS		= 16;
+
+	/** Below this level nodes are split at the median. */
+	private static final int	MAXSAHLEVEL	= 64;
+
+	/** Smallest subtree built as a separate task. */
+	private static final int	MINTASK		= 4096;
+
+	private final int			maxNumberOfFaces;
+
+	private final HE_Mesh		mesh;
+
+	private final boolean		parallel;
+
+	/** Mesh versions the tree was built or refit for. */
+	private int					topologyVersion;
+
+	private int					geometryVersion;
+
+	/** Faces in leaf order. */
+	private HE_Face[]			faces;
+
+	/** Node bounds, minx, miny, minz, maxx, maxy, maxz. */
+	private double[]			bounds;
+
+	/** Node children, -1 for leafs. */
+	private int[]				children;
+
+	/** Leaf first face and number of faces. */
+	private int[]				ranges;
+
+	private int					numberOfNodes;
+
+	private int					depth;
+
+	private WB_AABBNode			root;
+
+	/** Triangle coordinates for the ray kernels, created on first use. */
+	private volatile double[]	triangles;
+
+	/** First triangle of each face in leaf order. */
+	private int[]				faceTriangles;
 
 	public WB_AABBTree(final HE_Mesh mesh, final int mnof) {
-		maxLevel = 2 * (int) Math.ceil(Math.log(mesh.numberOfFaces())
-				/ Math.log(3.0));
-		maxNumberOfFaces = Math.max(1, mnof);
-		buildTree(mesh);
+		this(mesh, mnof, false);
+	}
 
+	/**
+	 *
+	 * @param mesh mesh
+	 * @param mnof maximum number of faces in a leaf
+	 * @param parallel build concurrently?
+	 */
+	public WB_AABBTree(final HE_Mesh mesh, final int mnof,
+			final boolean parallel) {
+		maxNumberOfFaces = Math.max(1, mnof);
+		this.mesh = mesh;
+		this.parallel = parallel;
+		buildTree();
 	}
 
-	private void buildTree(final HE_Mesh mesh) {
-		root = new WB_AABBNode();
-		final HE_Selection faces = new HE_Selection(mesh);
-		faces.addFaces(mesh.getFacesAsList());
-		buildNode(root, faces, mesh, 0);
+	private void buildTree() {
+		topologyVersion = mesh.getTopologyVersion();
+		geometryVersion = mesh.getGeometryVersion();
+		final HE_Face[] meshFaces = mesh.getFacesAsArray();
+		final int n = meshFaces.length;
+		final double[] faceBounds = new double[6 * n];
+		final double[] centers = new double[3 * n];
+		faceBounds(meshFaces, faceBounds, centers);
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+
+		final Builder top = new Builder(faceBounds, centers, order, n);
+		if (parallel && WB_Parallel.getThreads() > 1) {
+			int level = 0;
+			while ((1 << level) < 4 * WB_Parallel.getThreads()) {
+				level++;
+			}
+			top.spawnLevel = level;
+		}
+		top.build(0, n, 0);
+		if (top.pending.isEmpty()) {
+			bounds = top.bounds;
+			children = top.children;
+			ranges = top.ranges;
+			numberOfNodes = top.n;
+			depth = top.maxLevel;
+		} else {
+			final List<Callable<Builder>> tasks = new ArrayList<Callable<Builder>>();
+			for (final int[] p : top.pending) {
+				tasks.add(new Callable<Builder>() {
+					public Builder call() {
+						final Builder sub = new Builder(faceBounds, centers,
+								order, p[1] - p[0]);
+						sub.build(p[0], p[1], p[2]);
+						return sub;
+					}
+				});
+			}
+			graft(top, WB_Parallel.invokeAll(tasks));
+		}
+
+		faces = new HE_Face[n];
+		for (int i = 0; i < n; i++) {
+			faces[i] = meshFaces[order[i]];
+		}
 	}
 
-	private void buildNode(final WB_AABBNode node, final HE_Selection faces,
-			final HE_Mesh mesh, final int level) {
-		node.level = level;
-		faces.collectVertices();
-		node.aabb = faces.getAABB();
-		if ((level == maxLevel) || (faces.numberOfFaces() <= maxNumberOfFaces)) {
-			node.faces.addAll(faces.getFacesAsList());
-			node.isLeaf = true;
+	/**
+	 * Bounds and bounds center of all faces, split in tasks in parallel mode.
+	 */
+	private void faceBounds(final HE_Face[] meshFaces,
+			final double[] faceBounds, final double[] centers) {
+		final int n = meshFaces.length;
+		if (parallel && n >= MINTASK && WB_Parallel.getThreads() > 1) {
+			final int[] chunks = WB_Parallel.split(n, MINTASK);
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int c = 0; c < chunks.length - 1; c++) {
+				final int s = chunks[c];
+				final int e = chunks[c + 1];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						faceBounds(meshFaces, s, e, faceBounds, centers);
+						return null;
+					}
+				});
+			}
+			WB_Parallel.invokeAll(tasks);
 		} else {
-			final HE_Selection pos = new HE_Selection(mesh);
-			final HE_Selection neg = new HE_Selection(mesh);
-			final HE_Selection mid = new HE_Selection(mesh);
-			final WB_Vector3d dir = new WB_Vector3d();
-			if (level % 3 == 0) {
-				dir.set(0, 0, 1);
-
-			} else if (level % 3 == 1) {
-				dir.set(0, 1, 0);
+			faceBounds(meshFaces, 0, n, faceBounds, centers);
+		}
+	}
+
+	/**
+	 * Bounds and bounds center of a range of faces.
+	 */
+	private static void faceBounds(final HE_Face[] meshFaces, final int s,
+			final int e, final double[] faceBounds, final double[] centers) {
+		for (int i = s; i < e; i++) {
+			double x0 = Double.POSITIVE_INFINITY, y0 = x0, z0 = x0;
+			double x1 = Double.NEGATIVE_INFINITY, y1 = x1, z1 = x1;
+			final HE_Halfedge start = meshFaces[i].getHalfedge();
+			if (start != null) {
+				HE_Halfedge he = start;
+				do {
+					final HE_Vertex v = he.getVertex();
+					x0 = Math.min(x0, v.x);
+					y0 = Math.min(y0, v.y);
+					z0 = Math.min(z0, v.z);
+					x1 = Math.max(x1, v.x);
+					y1 = Math.max(y1, v.y);
+					z1 = Math.max(z1, v.z);
+					he = he.getNextInFace();
+				} while (he != start);
+			} else {
+				x0 = y0 = z0 = x1 = y1 = z1 = 0;
+			}
+			faceBounds[6 * i] = x0;
+			faceBounds[6 * i + 1] = y0;
+			faceBounds[6 * i + 2] = z0;
+			faceBounds[6 * i + 3] = x1;
+			faceBounds[6 * i + 4] = y1;
+			faceBounds[6 * i + 5] = z1;
+			centers[3 * i] = 0.5 * (x0 + x1);
+			centers[3 * i + 1] = 0.5 * (y0 + y1);
+			centers[3 * i + 2] = 0.5 * (z0 + z1);
+		}
+	}
+
+	/**
+	 * Copy subtrees into the top level tree. The root of each subtree replaces
+	 * the placeholder leaf it was built for.
+	 */
+	private void graft(final Builder top, final List<Builder> subs) {
+		int total = top.n;
+		depth = top.maxLevel;
+		for (final Builder sub : subs) {
+			total += sub.n - 1;
+			depth = Math.max(depth, sub.maxLevel);
+		}
+		bounds = new double[6 * total];
+		children = new int[2 * total];
+		ranges = new int[2 * total];
+		System.arraycopy(top.bounds, 0, bounds, 0, 6 * top.n);
+		System.arraycopy(top.children, 0, children, 0, 2 * top.n);
+		System.arraycopy(top.ranges, 0, ranges, 0, 2 * top.n);
+		int offset = top.n;
+		for (int i = 0; i < subs.size(); i++) {
+			final Builder sub = subs.get(i);
+			final int placeholder = top.pending.get(i)[3];
+			for (int k = 0; k < sub.n; k++) {
+				final int node = (k == 0) ? placeholder : offset + k - 1;
+				System.arraycopy(sub.bounds, 6 * k, bounds, 6 * node, 6);
+				ranges[2 * node] = sub.ranges[2 * k];
+				ranges[2 * node + 1] = sub.ranges[2 * k + 1];
+				for (int c = 0; c < 2; c++) {
+					final int child = sub.children[2 * k + c];
+					children[2 * node + c] = (child == -1) ? -1 : offset
+							+ child - 1;
+				}
+			}
+			offset += sub.n - 1;
+		}
+		numberOfNodes = total;
+	}
+
+	/**
+	 * Builds nodes for ranges of the shared face order, each builder stores
+	 * its own nodes.
+	 */
+	private class Builder {
+		final double[]		faceBounds;
+		final double[]		centers;
+		final int[]			order;
+
+		double[]			bounds;
+		int[]				children;
+		int[]				ranges;
+		int					n;
+		int					maxLevel;
+
+		/** Level at which subtrees are left for separate tasks, -1 for none. */
+		int					spawnLevel	= -1;
+
+		/** Subtrees to build: first, end, level, placeholder node. */
+		final List<int[]>	pending		= new ArrayList<int[]>();
+
+		final int[]			binCount	= new int[BINS];
+		final double[]		binBounds	= new double[6 * BINS];
+		final double[]		rightArea	= new double[BINS];
+		final int[]			rightCount	= new int[BINS];
+
+		/** Scratch bounds, centers of a node and bins swept so far. */
+		final double[]		cb			= new double[6];
+		final double[]		acc			= new double[6];
+
+		Builder(final double[] faceBounds, final double[] centers,
+				final int[] order, final int size) {
+			this.faceBounds = faceBounds;
+			this.centers = centers;
+			this.order = order;
+			final int cap = Math.max(4,
+					2 * (size / maxNumberOfFaces) + 1);
+			bounds = new double[6 * cap];
+			children = new int[2 * cap];
+			ranges = new int[2 * cap];
+			n = 0;
+			maxLevel = 0;
+		}
+
+		private int newNode() {
+			if (n == ranges.length / 2) {
+				final int cap = 2 * n;
+				final double[] nbounds = new double[6 * cap];
+				System.arraycopy(bounds, 0, nbounds, 0, 6 * n);
+				bounds = nbounds;
+				final int[] nchildren = new int[2 * cap];
+				System.arraycopy(children, 0, nchildren, 0, 2 * n);
+				children = nchildren;
+				final int[] nranges = new int[2 * cap];
+				System.arraycopy(ranges, 0, nranges, 0, 2 * n);
+				ranges = nranges;
+			}
+			children[2 * n] = -1;
+			children[2 * n + 1] = -1;
+			return n++;
+		}
+
+		int build(final int s, final int e, final int level) {
+			final int node = newNode();
+			maxLevel = Math.max(maxLevel, level);
+			ranges[2 * node] = s;
+			ranges[2 * node + 1] = e - s;
+			reset(cb);
+			for (int j = 0; j < 3; j++) {
+				bounds[6 * node + j] = Double.POSITIVE_INFINITY;
+				bounds[6 * node + j + 3] = Double.NEGATIVE_INFINITY;
+			}
+			for (int i = s; i < e; i++) {
+				final int f = order[i];
+				for (int j = 0; j < 3; j++) {
+					bounds[6 * node + j] = Math.min(bounds[6 * node + j],
+							faceBounds[6 * f + j]);
+					bounds[6 * node + j + 3] = Math.max(bounds[6 * node + j
+							+ 3], faceBounds[6 * f + j + 3]);
+					cb[j] = Math.min(cb[j], centers[3 * f + j]);
+					cb[j + 3] = Math.max(cb[j + 3], centers[3 * f + j]);
+				}
+			}
+			if (e == s) {
+				for (int j = 0; j < 6; j++) {
+					bounds[6 * node + j] = 0;
+				}
+			}
+			if (e - s <= maxNumberOfFaces) {
+				return node;
+			}
+			if (level == spawnLevel && e - s >= MINTASK) {
+				pending.add(new int[] { s, e, level, node });
+				return node;
+			}
+			int axis = 0;
+			for (int j = 1; j < 3; j++) {
+				if (cb[j + 3] - cb[j] > cb[axis + 3] - cb[axis]) {
+					axis = j;
+				}
+			}
+			final double extent = cb[axis + 3] - cb[axis];
+			if (extent <= 0) {
+				// all centers coincide, no split will separate them
+				return node;
+			}
+			final int mid;
+			if (level < MAXSAHLEVEL) {
+				mid = splitSAH(s, e, axis, cb[axis], BINS / extent);
 			} else {
-				dir.set(1, 0, 0);
+				mid = (s + e) >>> 1;
+				select(s, e, mid, axis);
 			}
+			final int left = build(s, mid, level + 1);
+			final int right = build(mid, e, level + 1);
+			children[2 * node] = left;
+			children[2 * node + 1] = right;
+			return node;
+		}
 
-			node.separator = new WB_Plane(node.aabb.getCenter(), dir);
-			for (final HE_Face face : faces.getFacesAsList()) {
-				final WB_ClassifyPolygonToPlane cptp = node.separator
-						.classifyPolygonToPlane(face.toPolygon());
-				if (cptp == WB_ClassifyPolygonToPlane.POLYGON_STRADDLING_PLANE) {
-					mid.add(face);
-				} else if (cptp == WB_ClassifyPolygonToPlane.POLYGON_BEHIND_PLANE) {
-					neg.add(face);
+		private int bin(final int f, final int axis, final double min,
+				final double scale) {
+			final int k = (int) ((centers[3 * f + axis] - min) * scale);
+			return (k >= BINS) ? BINS - 1 : k;
+		}
+
+		/**
+		 * Partition range at the bin boundary with the lowest surface area
+		 * cost. The first and last bin are never empty, both halves contain
+		 * at least one face.
+		 */
+		private int splitSAH(final int s, final int e, final int axis,
+				final double min, final double scale) {
+			for (int k = 0; k < BINS; k++) {
+				binCount[k] = 0;
+				for (int j = 0; j < 3; j++) {
+					binBounds[6 * k + j] = Double.POSITIVE_INFINITY;
+					binBounds[6 * k + j + 3] = Double.NEGATIVE_INFINITY;
+				}
+			}
+			for (int i = s; i < e; i++) {
+				final int f = order[i];
+				final int k = bin(f, axis, min, scale);
+				binCount[k]++;
+				for (int j = 0; j < 3; j++) {
+					binBounds[6 * k + j] = Math.min(binBounds[6 * k + j],
+							faceBounds[6 * f + j]);
+					binBounds[6 * k + j + 3] = Math.max(binBounds[6 * k + j
+							+ 3], faceBounds[6 * f + j + 3]);
+				}
+			}
+			reset(acc);
+			int count = 0;
+			for (int k = BINS - 1; k > 0; k--) {
+				count += binCount[k];
+				grow(acc, k);
+				rightCount[k] = count;
+				rightArea[k] = area(acc);
+			}
+			reset(acc);
+			count = 0;
+			int split = 0;
+			double best = Double.POSITIVE_INFINITY;
+			for (int k = 0; k < BINS - 1; k++) {
+				count += binCount[k];
+				grow(acc, k);
+				final double cost = count * area(acc) + rightCount[k + 1]
+						* rightArea[k + 1];
+				if (cost < best) {
+					best = cost;
+					split = k;
+				}
+			}
+			int i = s;
+			int j = e - 1;
+			while (i <= j) {
+				if (bin(order[i], axis, min, scale) <= split) {
+					i++;
 				} else {
-					pos.add(face);
+					final int tmp = order[i];
+					order[i] = order[j];
+					order[j--] = tmp;
 				}
 			}
-			node.isLeaf = true;
-			if (mid.numberOfFaces() > 0) {
-				node.mid = new WB_AABBNode();
-				buildNode(node.mid, mid, mesh, level + 1);
-				node.isLeaf = false;
+			return i;
+		}
 
+		private void reset(final double[] acc) {
+			for (int j = 0; j < 3; j++) {
+				acc[j] = Double.POSITIVE_INFINITY;
+				acc[j + 3] = Double.NEGATIVE_INFINITY;
 			}
-			if (neg.numberOfFaces() > 0) {
-				node.negative = new WB_AABBNode();
-				buildNode(node.negative, neg, mesh, level + 1);
-				node.isLeaf = false;
+		}
 
+		private void grow(final double[] acc, final int k) {
+			if (binCount[k] > 0) {
+				for (int j = 0; j < 3; j++) {
+					acc[j] = Math.min(acc[j], binBounds[6 * k + j]);
+					acc[j + 3] = Math.max(acc[j + 3], binBounds[6 * k + j + 3]);
+				}
+			}
+		}
+
+		private double area(final double[] acc) {
+			final double dx = acc[3] - acc[0];
+			final double dy = acc[4] - acc[1];
+			final double dz = acc[5] - acc[2];
+			return dx * dy + dy * dz + dz * dx;
+		}
+
+		/**
+		 * Partial sort, the face with k-th center along axis ends up at k.
+		 */
+		private void select(final int s, final int e, final int k,
+				final int axis) {
+			int lo = s;
+			int hi = e - 1;
+			while (hi > lo) {
+				final double pivot = centers[3 * order[(lo + hi) >>> 1] + axis];
+				int i = lo;
+				int j = hi;
+				while (i <= j) {
+					while (centers[3 * order[i] + axis] < pivot) {
+						i++;
+					}
+					while (centers[3 * order[j] + axis] > pivot) {
+						j--;
+					}
+					if (i <= j) {
+						final int tmp = order[i];
+						order[i++] = order[j];
+						order[j--] = tmp;
+					}
+				}
+				if (k <= j) {
+					hi = j;
+				} else if (k >= i) {
+					lo = i;
+				} else {
+					return;
+				}
 			}
-			if (pos.numberOfFaces() > 0) {
-				node.positive = new WB_AABBNode();
-				buildNode(node.positive, pos, mesh, level + 1);
-				node.isLeaf = false;
+		}
+	}
+
+	/**
+	 * Recompute all node bounds from the current vertex positions, keeping the
+	 * hierarchy. Runs in O(n) but assumes the faces are unchanged, use
+	 * update() if that is not certain. Refitting does not move faces between
+	 * nodes, after large deformations a rebuild gives faster queries.
+	 */
+	public void refit() {
+		final int n = faces.length;
+		final double[] faceBounds = new double[6 * n];
+		faceBounds(faces, faceBounds, new double[3 * n]);
+		// children always have a higher index than their parent
+		for (int node = numberOfNodes - 1; node >= 0; node--) {
+			final int b = 6 * node;
+			if (children[2 * node] == -1) {
+				final int first = ranges[2 * node];
+				final int last = first + ranges[2 * node + 1];
+				for (int k = 0; k < 3; k++) {
+					bounds[b + k] = Double.POSITIVE_INFINITY;
+					bounds[b + k + 3] = Double.NEGATIVE_INFINITY;
+				}
+				for (int f = first; f < last; f++) {
+					for (int k = 0; k < 3; k++) {
+						bounds[b + k] = Math.min(bounds[b + k], faceBounds[6
+								* f + k]);
+						bounds[b + k + 3] = Math.max(bounds[b + k + 3],
+								faceBounds[6 * f + k + 3]);
+					}
+				}
+			} else {
+				final int l = 6 * children[2 * node];
+				final int r = 6 * children[2 * node + 1];
+				for (int k = 0; k < 3; k++) {
+					bounds[b + k] = Math.min(bounds[l + k], bounds[r + k]);
+					bounds[b + k + 3] = Math.max(bounds[l + k + 3], bounds[r
+							+ k + 3]);
+				}
 			}
+		}
+		synchronized (this) {
+			triangles = null;
+			faceTriangles = null;
+		}
+		root = null;
+		geometryVersion = mesh.getGeometryVersion();
+	}
 
+	/**
+	 * Bring the tree up to date with its mesh. Rebuilds if faces, edges or
+	 * vertices were added or removed since the last build, refits if only
+	 * vertex positions changed.
+	 *
+	 * @return true, if the tree was rebuilt or refit
+	 */
+	public boolean update() {
+		if (mesh.getTopologyVersion() != topologyVersion) {
+			synchronized (this) {
+				triangles = null;
+				faceTriangles = null;
+			}
+			root = null;
+			buildTree();
+			return true;
+		}
+		if (mesh.getGeometryVersion() != geometryVersion) {
+			refit();
+			return true;
 		}
+		return false;
 	}
 
+	/**
+	 * Check if the tree was built or refit for the current state of the mesh.
+	 *
+	 * @return true, if no changes to the mesh were signalled since the last build or refit
+	 */
+	public boolean isUpToDate() {
+		return mesh.getTopologyVersion() == topologyVersion
+				&& mesh.getGeometryVersion() == geometryVersion;
+	}
+
+	/**
+	 * Linked node hierarchy, created on first call.
+	 *
+	 * @return root node
+	 */
 	public WB_AABBNode getRoot() {
+		if (root == null) {
+			root = toNode(0, 0);
+		}
 		return root;
 	}
+
+	private WB_AABBNode toNode(final int node, final int level) {
+		final WB_AABBNode result = new WB_AABBNode();
+		result.level = level;
+		result.aabb = getAABB(node);
+		if (isLeaf(node)) {
+			result.isLeaf = true;
+			final int first = ranges[2 * node];
+			final int last = first + ranges[2 * node + 1];
+			for (int i = first; i < last; i++) {
+				result.faces.add(faces[i]);
+			}
+		} else {
+			result.isLeaf = false;
+			result.negative = toNode(children[2 * node], level + 1);
+			result.positive = toNode(children[2 * node + 1], level + 1);
+		}
+		return result;
+	}
+
+	public int getNumberOfNodes() {
+		return numberOfNodes;
+	}
+
+	/**
+	 * Number of levels below the root.
+	 *
+	 * @return depth
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	public int numberOfFaces() {
+		return faces.length;
+	}
+
+	/**
+	 * Face in leaf order.
+	 *
+	 * @param i index
+	 * @return face
+	 */
+	public HE_Face getFace(final int i) {
+		return faces[i];
+	}
+
+	public boolean isLeaf(final int node) {
+		return children[2 * node] == -1;
+	}
+
+	/**
+	 *
+	 * @param node node index
+	 * @return index of first child, -1 for leaf
+	 */
+	public int getLeftChild(final int node) {
+		return children[2 * node];
+	}
+
+	/**
+	 *
+	 * @param node node index
+	 * @return index of second child, -1 for leaf
+	 */
+	public int getRightChild(final int node) {
+		return children[2 * node + 1];
+	}
+
+	/**
+	 *
+	 * @param node leaf index
+	 * @return index of first face of leaf, see getFace()
+	 */
+	public int getFirstFace(final int node) {
+		return ranges[2 * node];
+	}
+
+	/**
+	 * Number of faces below a node.
+	 *
+	 * @param node node index
+	 * @return number of faces
+	 */
+	public int getNumberOfFaces(final int node) {
+		return ranges[2 * node + 1];
+	}
+
+	public WB_AABB getAABB(final int node) {
+		final int i = 6 * node;
+		return new WB_AABB(bounds[i], bounds[i + 1], bounds[i + 2],
+				bounds[i + 3], bounds[i + 4], bounds[i + 5]);
+	}
+
+	/**
+	 * Parameter where the linear origin+t*direction enters the bounds of a
+	 * node, restricted to [tmin,tmax]. A direction component 0 has an
+	 * infinite inverse.
+	 *
+	 * @param node node index
+	 * @param ox origin
+	 * @param oy
+	 * @param oz
+	 * @param idx inverse direction
+	 * @param idy
+	 * @param idz
+	 * @param tmin
+	 * @param tmax
+	 * @return entry parameter, Double.POSITIVE_INFINITY if the node is missed
+	 */
+	public double getEntry(final int node, final double ox, final double oy,
+			final double oz, final double idx, final double idy,
+			final double idz, double tmin, double tmax) {
+		final int i = 6 * node;
+		double t0 = (bounds[i] - ox) * idx;
+		double t1 = (bounds[i + 3] - ox) * idx;
+		if (t0 > t1) {
+			final double tmp = t0;
+			t0 = t1;
+			t1 = tmp;
+		}
+		// NaN comparisons are false, an origin on a slab boundary of a
+		// parallel direction doesn't restrict the interval
+		if (t0 > tmin) {
+			tmin = t0;
+		}
+		if (t1 < tmax) {
+			tmax = t1;
+		}
+		t0 = (bounds[i + 1] - oy) * idy;
+		t1 = (bounds[i + 4] - oy) * idy;
+		if (t0 > t1) {
+			final double tmp = t0;
+			t0 = t1;
+			t1 = tmp;
+		}
+		if (t0 > tmin) {
+			tmin = t0;
+		}
+		if (t1 < tmax) {
+			tmax = t1;
+		}
+		t0 = (bounds[i + 2] - oz) * idz;
+		t1 = (bounds[i + 5] - oz) * idz;
+		if (t0 > t1) {
+			final double tmp = t0;
+			t0 = t1;
+			t1 = tmp;
+		}
+		if (t0 > tmin) {
+			tmin = t0;
+		}
+		if (t1 < tmax) {
+			tmax = t1;
+		}
+		return (tmin > tmax) ? Double.POSITIVE_INFINITY : tmin;
+	}
+
+	public boolean checkIntersection(final int node, final WB_Plane P) {
+		final int i = 6 * node;
+		final WB_Normal3d n = P.getNormal();
+		final double cx = 0.5 * (bounds[i] + bounds[i + 3]);
+		final double cy = 0.5 * (bounds[i + 1] + bounds[i + 4]);
+		final double cz = 0.5 * (bounds[i + 2] + bounds[i + 5]);
+		final double r = (bounds[i + 3] - cx) * Math.abs(n.x)
+				+ (bounds[i + 4] - cy) * Math.abs(n.y) + (bounds[i + 5] - cz)
+				* Math.abs(n.z);
+		return Math.abs(n.x * cx + n.y * cy + n.z * cz - P.d()) <= r;
+	}
+
+	/**
+	 * Faces in leafs whose bounds are hit by ray.
+	 *
+	 * @param R ray
+	 * @return faces
+	 */
+	public List<HE_Face> getFaces(final WB_Ray R) {
+		return getFaces(R.getOrigin(), R.getDirection(), 0,
+				Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Faces in leafs whose bounds are hit by line.
+	 *
+	 * @param L line
+	 * @return faces
+	 */
+	public List<HE_Face> getFaces(final WB_Line L) {
+		return getFaces(L.getOrigin(), L.getDirection(),
+				Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Faces in leafs whose bounds are hit by segment.
+	 *
+	 * @param S segment
+	 * @return faces
+	 */
+	public List<HE_Face> getFaces(final WB_Segment S) {
+		return getFaces(S.getOrigin(), S.getEnd().subToVector(S.getOrigin()),
+				0, 1);
+	}
+
+	private List<HE_Face> getFaces(final WB_Point3d o, final WB_Vector3d d,
+			final double tmin, final double tmax) {
+		final List<HE_Face> result = new ArrayList<HE_Face>();
+		final double idx = 1.0 / d.x;
+		final double idy = 1.0 / d.y;
+		final double idz = 1.0 / d.z;
+		final int[] stack = new int[depth + 2];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (getEntry(node, o.x, o.y, o.z, idx, idy, idz, tmin, tmax) == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (isLeaf(node)) {
+				addFaces(node, result);
+			} else {
+				stack[top++] = children[2 * node + 1];
+				stack[top++] = children[2 * node];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Faces in leafs whose bounds are cut by plane.
+	 *
+	 * @param P plane
+	 * @return faces
+	 */
+	public List<HE_Face> getFaces(final WB_Plane P) {
+		final List<HE_Face> result = new ArrayList<HE_Face>();
+		final int[] stack = new int[depth + 2];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (!checkIntersection(node, P)) {
+				continue;
+			}
+			if (isLeaf(node)) {
+				addFaces(node, result);
+			} else {
+				stack[top++] = children[2 * node + 1];
+				stack[top++] = children[2 * node];
+			}
+		}
+		return result;
+	}
+
+	private void addFaces(final int node, final List<HE_Face> result) {
+		final int first = ranges[2 * node];
+		final int last = first + ranges[2 * node + 1];
+		for (int i = first; i < last; i++) {
+			result.add(faces[i]);
+		}
+	}
+
+	/**
+	 * Triangles of all faces in leaf order, 9 coordinates each. Convex faces
+	 * are split in a fan from the vertex of their halfedge, other faces are
+	 * triangulated as polygon. Built on first use by the ray kernels.
+	 */
+	private synchronized void prepareTriangles() {
+		if (triangles != null) {
+			return;
+		}
+		final int n = faces.length;
+		final int[] first = new int[n + 1];
+		double[] tris = new double[9 * n];
+		int nt = 0;
+		for (int i = 0; i < n; i++) {
+			first[i] = nt;
+			final HE_Face face = faces[i];
+			final int order = face.getFaceOrder();
+			if (order < 3) {
+				continue;
+			}
+			while (9 * (nt + order) > tris.length) {
+				final double[] ntris = new double[2 * tris.length];
+				System.arraycopy(tris, 0, ntris, 0, 9 * nt);
+				tris = ntris;
+			}
+			if (order == 3 || isConvex(face)) {
+				final HE_Halfedge start = face.getHalfedge();
+				final HE_Vertex v0 = start.getVertex();
+				HE_Halfedge he = start.getNextInFace();
+				while (he.getNextInFace() != start) {
+					final HE_Vertex v1 = he.getVertex();
+					final HE_Vertex v2 = he.getNextInFace().getVertex();
+					setTriangle(tris, nt++, v0.x, v0.y, v0.z, v1.x, v1.y, v1.z,
+							v2.x, v2.y, v2.z);
+					he = he.getNextInFace();
+				}
+			} else {
+				for (final WB_IndexedTriangle T : face.toPolygon()
+						.triangulate()) {
+					setTriangle(tris, nt++, T.p1().x, T.p1().y, T.p1().z,
+							T.p2().x, T.p2().y, T.p2().z, T.p3().x, T.p3().y,
+							T.p3().z);
+				}
+			}
+		}
+		first[n] = nt;
+		faceTriangles = first;
+		if (tris.length > 9 * nt) {
+			final double[] ntris = new double[9 * nt];
+			System.arraycopy(tris, 0, ntris, 0, 9 * nt);
+			tris = ntris;
+		}
+		triangles = tris;
+	}
+
+	private static void setTriangle(final double[] tris, final int t,
+			final double x0, final double y0, final double z0, final double x1,
+			final double y1, final double z1, final double x2,
+			final double y2, final double z2) {
+		final int i = 9 * t;
+		tris[i] = x0;
+		tris[i + 1] = y0;
+		tris[i + 2] = z0;
+		tris[i + 3] = x1;
+		tris[i + 4] = y1;
+		tris[i + 5] = z1;
+		tris[i + 6] = x2;
+		tris[i + 7] = y2;
+		tris[i + 8] = z2;
+	}
+
+	/**
+	 * Check if all triangles of the fan of a face turn the same way as the
+	 * face normal.
+	 */
+	private static boolean isConvex(final HE_Face face) {
+		final WB_Normal3d n = face.getFaceNormal();
+		final HE_Halfedge start = face.getHalfedge();
+		final HE_Vertex v0 = start.getVertex();
+		HE_Halfedge he = start.getNextInFace();
+		while (he.getNextInFace() != start) {
+			final HE_Vertex v1 = he.getVertex();
+			final HE_Vertex v2 = he.getNextInFace().getVertex();
+			final double ax = v1.x - v0.x, ay = v1.y - v0.y, az = v1.z - v0.z;
+			final double bx = v2.x - v0.x, by = v2.y - v0.y, bz = v2.z - v0.z;
+			if (n.x * (ay * bz - az * by) + n.y * (az * bx - ax * bz) + n.z
+					* (ax * by - ay * bx) <= 0) {
+				return false;
+			}
+			he = he.getNextInFace();
+		}
+		return true;
+	}
+
+	/**
+	 * Closest intersection of o+t*d, t in [tmin,tmax], with the faces.
+	 * Nothing is allocated, the caller supplies a stack of at least
+	 * getDepth()+2 ints and an array for the result. Safe to call from
+	 * several threads with separate stacks and result arrays.
+	 *
+	 * @param ox origin
+	 * @param oy
+	 * @param oz
+	 * @param dx direction, doesn't need to be normalized
+	 * @param dy
+	 * @param dz
+	 * @param tmin
+	 * @param tmax
+	 * @param stack work array
+	 * @param hit receives t and the barycentric coordinates u and v of the
+	 *        hit in the triangle of the face, weights of its second and
+	 *        third corner
+	 * @return index of the face in leaf order (see getFace()), -1 for a miss
+	 */
+	public int getClosestHit(final double ox, final double oy,
+			final double oz, final double dx, final double dy,
+			final double dz, final double tmin, final double tmax,
+			final int[] stack, final double[] hit) {
+		if (triangles == null) {
+			prepareTriangles();
+		}
+		final double idx = 1.0 / dx;
+		final double idy = 1.0 / dy;
+		final double idz = 1.0 / dz;
+		double best = tmax;
+		int result = -1;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (getEntry(node, ox, oy, oz, idx, idy, idz, tmin, best) == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (isLeaf(node)) {
+				final int first = ranges[2 * node];
+				final int last = first + ranges[2 * node + 1];
+				for (int f = first; f < last; f++) {
+					for (int t = faceTriangles[f]; t < faceTriangles[f + 1]; t++) {
+						if (intersectTriangle(t, ox, oy, oz, dx, dy, dz, tmin,
+								best, hit)) {
+							best = hit[0];
+							result = f;
+						}
+					}
+				}
+			} else {
+				final int left = children[2 * node];
+				final int right = children[2 * node + 1];
+				final double tl = getEntry(left, ox, oy, oz, idx, idy, idz,
+						tmin, best);
+				final double tr = getEntry(right, ox, oy, oz, idx, idy, idz,
+						tmin, best);
+				if (tl <= tr) {
+					stack[top++] = right;
+					stack[top++] = left;
+				} else {
+					stack[top++] = left;
+					stack[top++] = right;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check if o+t*d, t in [tmin,tmax], hits any face. Stops at the first
+	 * hit found. Nothing is allocated, the caller supplies a stack of at least
+	 * getDepth()+2 ints.
+	 *
+	 * @param ox origin
+	 * @param oy
+	 * @param oz
+	 * @param dx direction, doesn't need to be normalized
+	 * @param dy
+	 * @param dz
+	 * @param tmin
+	 * @param tmax
+	 * @param stack work array
+	 * @return true, if any face is hit
+	 */
+	public boolean isOccluded(final double ox, final double oy,
+			final double oz, final double dx, final double dy,
+			final double dz, final double tmin, final double tmax,
+			final int[] stack) {
+		if (triangles == null) {
+			prepareTriangles();
+		}
+		final double idx = 1.0 / dx;
+		final double idy = 1.0 / dy;
+		final double idz = 1.0 / dz;
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (getEntry(node, ox, oy, oz, idx, idy, idz, tmin, tmax) == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (isLeaf(node)) {
+				final int first = faceTriangles[ranges[2 * node]];
+				final int last = faceTriangles[ranges[2 * node]
+						+ ranges[2 * node + 1]];
+				for (int t = first; t < last; t++) {
+					if (intersectTriangle(t, ox, oy, oz, dx, dy, dz, tmin,
+							tmax, null)) {
+						return true;
+					}
+				}
+			} else {
+				stack[top++] = children[2 * node + 1];
+				stack[top++] = children[2 * node];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moeller-Trumbore ray-triangle intersection.
+	 *
+	 * @param hit if not null, receives t, u and v
+	 * @return true if the triangle is hit for t in [tmin,tmax]
+	 */
+	private boolean intersectTriangle(final int t, final double ox,
+			final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double tmin,
+			final double tmax, final double[] hit) {
+		final int i = 9 * t;
+		final double[] tris = triangles;
+		final double ax = tris[i], ay = tris[i + 1], az = tris[i + 2];
+		final double e1x = tris[i + 3] - ax, e1y = tris[i + 4] - ay, e1z = tris[i + 5]
+				- az;
+		final double e2x = tris[i + 6] - ax, e2y = tris[i + 7] - ay, e2z = tris[i + 8]
+				- az;
+		final double px = dy * e2z - dz * e2y;
+		final double py = dz * e2x - dx * e2z;
+		final double pz = dx * e2y - dy * e2x;
+		final double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0) {
+			return false;
+		}
+		final double idet = 1.0 / det;
+		final double sx = ox - ax, sy = oy - ay, sz = oz - az;
+		final double u = (sx * px + sy * py + sz * pz) * idet;
+		if (u < 0 || u > 1) {
+			return false;
+		}
+		final double qx = sy * e1z - sz * e1y;
+		final double qy = sz * e1x - sx * e1z;
+		final double qz = sx * e1y - sy * e1x;
+		final double v = (dx * qx + dy * qy + dz * qz) * idet;
+		if (v < 0 || u + v > 1) {
+			return false;
+		}
+		final double d = (e2x * qx + e2y * qy + e2z * qz) * idet;
+		if (d < tmin || d > tmax) {
+			return false;
+		}
+		if (hit != null) {
+			hit[0] = d;
+			hit[1] = u;
+			hit[2] = v;
+		}
+		return true;
+	}
 }
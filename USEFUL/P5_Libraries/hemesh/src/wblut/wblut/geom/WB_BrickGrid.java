@@ -0,0 +1,187 @@
+/**
+ * 
+ */
+package wblut.geom;
+
+import java.util.Arrays;
+
+import wblut.core.OaIntMap;
+
+/**
+ * Sparse grid of float values stored in bricks of 8x8x8 points. Bricks are
+ * only allocated when a value inside them is set, all other points have the
+ * default value. The list of allocated bricks allows visiting only the
+ * occupied part of the grid.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class WB_BrickGrid {
+
+	/** Number of points along each side of a brick. */
+	public static final int			BRICK	= 8;
+
+	private static final int		SHIFT	= 3;
+	private static final int		MASK	= BRICK - 1;
+
+	private final OaIntMap<float[]>	bricks;
+	private int[]					brickKeys;
+	private int						numberOfBricks;
+	private final double			defaultValue;
+	private final int				K, L, M;
+	private final int				BK, BKL;
+
+	public WB_BrickGrid(final int K, final int L, final int M,
+			final double defaultValue) {
+		this.K = K;
+		this.L = L;
+		this.M = M;
+		BK = (K + MASK) >> SHIFT;
+		BKL = BK * ((L + MASK) >> SHIFT);
+		bricks = new OaIntMap<float[]>();
+		brickKeys = new int[16];
+		this.defaultValue = defaultValue;
+	}
+
+	public WB_BrickGrid(final int K, final int L, final int M) {
+		this(K, L, M, -10000000);
+	}
+
+	/**
+	 * Copy the values of a WB_HashGrid.
+	 * 
+	 * @param grid WB_HashGrid
+	 */
+	public WB_BrickGrid(final WB_HashGrid grid) {
+		this(grid.getW(), grid.getH(), grid.getD(), grid.getDefaultValue());
+		final int KL = K * L;
+		int id, i, j, k;
+		for (final java.util.Map.Entry<Integer, Double> entry : grid
+				.getValues()) {
+			id = entry.getKey();
+			k = id / KL;
+			i = id - k * KL;
+			j = i / K;
+			i -= j * K;
+			setValue(entry.getValue(), i, j, k);
+		}
+	}
+
+	private boolean inGrid(final int i, final int j, final int k) {
+		return (i >= 0) && (i < K) && (j >= 0) && (j < L) && (k >= 0)
+				&& (k < M);
+	}
+
+	private int brickKey(final int i, final int j, final int k) {
+		return (i >> SHIFT) + (j >> SHIFT) * BK + (k >> SHIFT) * BKL;
+	}
+
+	private static int inBrick(final int i, final int j, final int k) {
+		return (i & MASK) + ((j & MASK) << SHIFT)
+				+ ((k & MASK) << (2 * SHIFT));
+	}
+
+	/**
+	 * Get brick containing a point, allocate it if necessary.
+	 */
+	private float[] brick(final int i, final int j, final int k) {
+		final int key = brickKey(i, j, k);
+		float[] brick = bricks.get(key);
+		if (brick == null) {
+			brick = new float[BRICK * BRICK * BRICK];
+			Arrays.fill(brick, (float) defaultValue);
+			bricks.put(key, brick);
+			if (numberOfBricks == brickKeys.length) {
+				brickKeys = Arrays.copyOf(brickKeys, 2 * numberOfBricks);
+			}
+			brickKeys[numberOfBricks++] = key;
+		}
+		return brick;
+	}
+
+	public boolean setValue(final double value, final int i, final int j,
+			final int k) {
+		if (inGrid(i, j, k)) {
+			brick(i, j, k)[inBrick(i, j, k)] = (float) value;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean addValue(final double value, final int i, final int j,
+			final int k) {
+		if (inGrid(i, j, k)) {
+			brick(i, j, k)[inBrick(i, j, k)] += (float) value;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reset a value to the default value. The brick stays allocated.
+	 */
+	public boolean clearValue(final int i, final int j, final int k) {
+		if (inGrid(i, j, k)) {
+			final float[] brick = bricks.get(brickKey(i, j, k));
+			if (brick != null) {
+				brick[inBrick(i, j, k)] = (float) defaultValue;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public double getValue(final int i, final int j, final int k) {
+		if (!inGrid(i, j, k)) {
+			return defaultValue;
+		}
+		final float[] brick = bricks.get(brickKey(i, j, k));
+		return (brick == null) ? defaultValue : brick[inBrick(i, j, k)];
+	}
+
+	/**
+	 * Is the brick containing this point allocated?
+	 */
+	public boolean isActive(final int i, final int j, final int k) {
+		return inGrid(i, j, k) && bricks.containsKey(brickKey(i, j, k));
+	}
+
+	public int numberOfBricks() {
+		return numberOfBricks;
+	}
+
+	/**
+	 * Get the lowest grid point of each allocated brick.
+	 * 
+	 * @return i0, j0, k0, i1, j1, k1, ...
+	 */
+	public int[] getBrickOrigins() {
+		final int[] result = new int[3 * numberOfBricks];
+		int key;
+		for (int n = 0; n < numberOfBricks; n++) {
+			key = brickKeys[n];
+			result[3 * n + 2] = (key / BKL) << SHIFT;
+			key %= BKL;
+			result[3 * n + 1] = (key / BK) << SHIFT;
+			result[3 * n] = (key % BK) << SHIFT;
+		}
+		return result;
+	}
+
+	public int getW() {
+		return K;
+	}
+
+	public int getH() {
+		return L;
+	}
+
+	public int getD() {
+		return M;
+	}
+
+	public double getDefaultValue() {
+		return defaultValue;
+	}
+
+}
@@ -0,0 +1,864 @@
+/**
+ *
+ */
+package wblut.geom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.WB_Parallel;
+
+/**
+ * Convex hull of a 3D point set given as packed coordinates.
+ *
+ * QuickHull with conflict lists: each hull triangle keeps the list of points
+ * in front of it, the farthest point of a list is added next and only the
+ * points of the triangles it replaces are reassigned. Triangles, neighbors
+ * and lists are flat int arrays. Visibility uses the exact predicates of
+ * WB_Predicates, so the hull is exactly convex.
+ *
+ * Adjacent triangles that are coplanar within a tolerance are merged into
+ * polygonal faces, as QuickHull3D does. Points left on an edge between two
+ * faces are dropped. The result is a list of faces, each a loop of
+ * halfedges, with the pair of each halfedge, ready to build a mesh from
+ * without matching halfedges.
+ *
+ * In parallel mode the points are split in chunks, the hull of each chunk is
+ * built on its own thread and the hull of all chunk hull vertices is built
+ * last.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class WB_ConvexHull3D {
+
+	/** Smallest number of points per task in parallel mode. */
+	private static final int	MINTASK	= 16384;
+
+	/** Global point index of each local point. */
+	private final int[]			pts;
+
+	/** Local coordinates, 3 per point. */
+	private final double[]		xyz;
+
+	private final int			m;
+
+	/** Merge tolerance. */
+	private final double		tolerance;
+
+	/** Three local points per triangle, ccw seen from outside, -1 if deleted. */
+	private int[]				vertices;
+
+	/** Neighbor across the edge from vertex j to vertex j+1. */
+	private int[]				neighbors;
+
+	/** Unnormalized normal and offset, 4 per triangle. */
+	private double[]			planes;
+
+	/** First point of the conflict list of each triangle, -1 if empty. */
+	private int[]				head;
+
+	/** Next point in the conflict list of each point. */
+	private final int[]			next;
+
+	private int					size;
+
+	private int[]				free;
+
+	private int					numFree;
+
+	private int[]				mark;
+
+	private int					stamp;
+
+	private final int[]			startAt;
+
+	// result
+	private int[]				faceOffsets;
+
+	private int[]				faceVertices;
+
+	private int[]				pairs;
+
+	/**
+	 * Convex hull of points.
+	 *
+	 * @param coords coordinates, 3 per point
+	 * @param n number of points
+	 */
+	public WB_ConvexHull3D(final double[] coords, final int n) {
+		this(coords, n, false);
+	}
+
+	/**
+	 * Convex hull of points.
+	 *
+	 * @param coords coordinates, 3 per point
+	 * @param n number of points
+	 * @param parallel build the hulls of chunks of points on multiple threads
+	 *            first
+	 */
+	public WB_ConvexHull3D(final double[] coords, final int n,
+			final boolean parallel) {
+		this(coords, candidates(coords, n, parallel));
+	}
+
+	private WB_ConvexHull3D(final double[] coords, final int[] pts) {
+		this.pts = pts;
+		m = pts.length;
+		xyz = new double[3 * m];
+		double mx = 0, my = 0, mz = 0;
+		for (int i = 0; i < m; i++) {
+			xyz[3 * i] = coords[3 * pts[i]];
+			xyz[3 * i + 1] = coords[3 * pts[i] + 1];
+			xyz[3 * i + 2] = coords[3 * pts[i] + 2];
+			mx = Math.max(mx, Math.abs(xyz[3 * i]));
+			my = Math.max(my, Math.abs(xyz[3 * i + 1]));
+			mz = Math.max(mz, Math.abs(xyz[3 * i + 2]));
+		}
+		// as QuickHull3D
+		tolerance = 3 * 2.2204460492503131e-16 * (mx + my + mz);
+		final int capacity = 2 * m + 8;
+		vertices = new int[3 * capacity];
+		neighbors = new int[3 * capacity];
+		planes = new double[4 * capacity];
+		head = new int[capacity];
+		mark = new int[capacity];
+		next = new int[m];
+		startAt = new int[m];
+		free = new int[64];
+		build();
+		extractFaces();
+	}
+
+	/**
+	 * Points that can be hull vertices: all points, or in parallel mode the
+	 * vertices of the hulls of chunks.
+	 */
+	private static int[] candidates(final double[] coords, final int n,
+			final boolean parallel) {
+		if (!parallel || (WB_Parallel.getThreads() < 2) || (n < 2 * MINTASK)) {
+			final int[] all = new int[n];
+			for (int i = 0; i < n; i++) {
+				all[i] = i;
+			}
+			return all;
+		}
+		final int[] bounds = WB_Parallel.split(n, MINTASK);
+		final List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+		for (int c = 0; c < bounds.length - 1; c++) {
+			final int from = bounds[c];
+			final int to = bounds[c + 1];
+			tasks.add(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					final int[] chunk = new int[to - from];
+					for (int i = from; i < to; i++) {
+						chunk[i - from] = i;
+					}
+					final WB_ConvexHull3D hull = new WB_ConvexHull3D(coords,
+							chunk);
+					if (hull.getNumberOfFaces() == 0) {
+						return chunk;
+					}
+					return hull.getVertices();
+				}
+			});
+		}
+		final List<int[]> results = WB_Parallel.invokeAll(tasks);
+		int count = 0;
+		for (final int[] result : results) {
+			count += result.length;
+		}
+		final int[] merged = new int[count];
+		count = 0;
+		for (final int[] result : results) {
+			System.arraycopy(result, 0, merged, count, result.length);
+			count += result.length;
+		}
+		return merged;
+	}
+
+	/**
+	 * Number of faces, 0 if the points are coplanar.
+	 *
+	 * @return number of faces
+	 */
+	public int getNumberOfFaces() {
+		return faceOffsets.length - 1;
+	}
+
+	/**
+	 * Start of the halfedges of each face, face i is
+	 * [offsets[i],offsets[i+1]).
+	 *
+	 * @return offsets, one more than the number of faces
+	 */
+	public int[] getFaceOffsets() {
+		return faceOffsets;
+	}
+
+	/**
+	 * Point index of the start vertex of each halfedge. Faces are ccw seen
+	 * from outside.
+	 *
+	 * @return point indices
+	 */
+	public int[] getFaceVertices() {
+		return faceVertices;
+	}
+
+	/**
+	 * Index of the pair of each halfedge.
+	 *
+	 * @return halfedge indices
+	 */
+	public int[] getPairs() {
+		return pairs;
+	}
+
+	/**
+	 * Faces as arrays of point indices, ccw seen from outside.
+	 *
+	 * @return faces
+	 */
+	public int[][] getFaces() {
+		final int[][] faces = new int[getNumberOfFaces()][];
+		for (int i = 0; i < faces.length; i++) {
+			faces[i] = Arrays.copyOfRange(faceVertices, faceOffsets[i],
+					faceOffsets[i + 1]);
+		}
+		return faces;
+	}
+
+	/**
+	 * Point indices of all hull vertices, including those removed from the
+	 * inside of merged faces.
+	 *
+	 * @return point indices
+	 */
+	public int[] getVertices() {
+		final boolean[] used = new boolean[m];
+		int count = 0;
+		for (int t = 0; t < size; t++) {
+			if (vertices[3 * t] >= 0) {
+				for (int j = 0; j < 3; j++) {
+					if (!used[vertices[3 * t + j]]) {
+						used[vertices[3 * t + j]] = true;
+						count++;
+					}
+				}
+			}
+		}
+		final int[] result = new int[count];
+		count = 0;
+		for (int i = 0; i < m; i++) {
+			if (used[i]) {
+				result[count++] = pts[i];
+			}
+		}
+		return result;
+	}
+
+	private void build() {
+		final int[] simplex = simplex();
+		if (simplex == null) {
+			return;
+		}
+		final int a = simplex[0], b = simplex[1], c = simplex[2], d = simplex[3];
+		final int[] t = new int[] { newTriangle(a, b, c, d),
+				newTriangle(a, b, d, c), newTriangle(a, c, d, b),
+				newTriangle(b, c, d, a) };
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 3; j++) {
+				final int u = vertices[3 * t[i] + j];
+				final int v = vertices[3 * t[i] + (j + 1) % 3];
+				for (int k = 0; k < 4; k++) {
+					final int s = edgeSlot(t[k], v, u);
+					if (s >= 0) {
+						neighbors[3 * t[i] + j] = t[k];
+					}
+				}
+			}
+		}
+		for (int i = 0; i < m; i++) {
+			if ((i == a) || (i == b) || (i == c) || (i == d)) {
+				continue;
+			}
+			for (int k = 0; k < 4; k++) {
+				if (visible(t[k], i)) {
+					next[i] = head[t[k]];
+					head[t[k]] = i;
+					break;
+				}
+			}
+		}
+		int[] stack = new int[64];
+		int sp = 0;
+		for (int k = 0; k < 4; k++) {
+			stack = push(stack, sp++, t[k]);
+		}
+		int[] visible = new int[64];
+		int[] horizon = new int[64];
+		int[] created = new int[64];
+		while (sp > 0) {
+			final int f = stack[--sp];
+			if ((vertices[3 * f] < 0) || (head[f] < 0)) {
+				continue;
+			}
+			// farthest point in front of f
+			int p = head[f];
+			double max = distance(f, p);
+			for (int q = next[p]; q >= 0; q = next[q]) {
+				final double dq = distance(f, q);
+				if (dq > max) {
+					max = dq;
+					p = q;
+				}
+			}
+			// visible triangles and horizon, mark is stamp if visible,
+			// -stamp if not
+			stamp++;
+			int numVisible = 0;
+			int numHorizon = 0;
+			mark[f] = stamp;
+			visible = push(visible, numVisible++, f);
+			for (int i = 0; i < numVisible; i++) {
+				final int g = visible[i];
+				for (int j = 0; j < 3; j++) {
+					final int h = neighbors[3 * g + j];
+					if (mark[h] == stamp) {
+						continue;
+					}
+					if ((mark[h] != -stamp) && visible(h, p)) {
+						mark[h] = stamp;
+						visible = push(visible, numVisible++, h);
+					} else {
+						mark[h] = -stamp;
+						horizon = push(horizon, numHorizon++, 3 * g + j);
+					}
+				}
+			}
+			// cone from p to the horizon
+			int numCreated = 0;
+			for (int i = 0; i < numHorizon; i++) {
+				final int g = horizon[i] / 3;
+				final int j = horizon[i] % 3;
+				final int u = vertices[3 * g + j];
+				final int v = vertices[3 * g + (j + 1) % 3];
+				final int outer = neighbors[3 * g + j];
+				final int nt = newTriangle(u, v, p, -1);
+				neighbors[3 * nt] = outer;
+				neighbors[3 * outer + edgeSlot(outer, v, u)] = nt;
+				startAt[u] = nt;
+				created = push(created, numCreated++, nt);
+			}
+			for (int i = 0; i < numCreated; i++) {
+				final int nt = created[i];
+				final int s = startAt[vertices[3 * nt + 1]];
+				neighbors[3 * nt + 1] = s;
+				neighbors[3 * s + 2] = nt;
+			}
+			// reassign the points of the visible triangles
+			for (int i = 0; i < numVisible; i++) {
+				final int g = visible[i];
+				int q = head[g];
+				while (q >= 0) {
+					final int nq = next[q];
+					if (q != p) {
+						for (int k = 0; k < numCreated; k++) {
+							if (visible(created[k], q)) {
+								next[q] = head[created[k]];
+								head[created[k]] = q;
+								break;
+							}
+						}
+					}
+					q = nq;
+				}
+				deleteTriangle(g);
+			}
+			for (int k = 0; k < numCreated; k++) {
+				if (head[created[k]] >= 0) {
+					stack = push(stack, sp++, created[k]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Initial tetrahedron from extreme points, null if all points are
+	 * coplanar.
+	 */
+	private int[] simplex() {
+		if (m < 4) {
+			return null;
+		}
+		final int[] extremes = new int[6];
+		for (int i = 1; i < m; i++) {
+			for (int k = 0; k < 3; k++) {
+				if (xyz[3 * i + k] < xyz[3 * extremes[2 * k] + k]) {
+					extremes[2 * k] = i;
+				}
+				if (xyz[3 * i + k] > xyz[3 * extremes[2 * k + 1] + k]) {
+					extremes[2 * k + 1] = i;
+				}
+			}
+		}
+		int a = 0, b = 0;
+		double max = -1;
+		for (int i = 0; i < 6; i++) {
+			for (int j = i + 1; j < 6; j++) {
+				final double d2 = sqDistance(extremes[i], extremes[j]);
+				if (d2 > max) {
+					max = d2;
+					a = extremes[i];
+					b = extremes[j];
+				}
+			}
+		}
+		if (max <= 0) {
+			return null;
+		}
+		// farthest from line ab
+		int c = -1;
+		max = 0;
+		final double abx = xyz[3 * b] - xyz[3 * a];
+		final double aby = xyz[3 * b + 1] - xyz[3 * a + 1];
+		final double abz = xyz[3 * b + 2] - xyz[3 * a + 2];
+		for (int i = 0; i < m; i++) {
+			final double px = xyz[3 * i] - xyz[3 * a];
+			final double py = xyz[3 * i + 1] - xyz[3 * a + 1];
+			final double pz = xyz[3 * i + 2] - xyz[3 * a + 2];
+			final double cx = aby * pz - abz * py;
+			final double cy = abz * px - abx * pz;
+			final double cz = abx * py - aby * px;
+			final double d2 = cx * cx + cy * cy + cz * cz;
+			if (d2 > max) {
+				max = d2;
+				c = i;
+			}
+		}
+		if (c < 0) {
+			return null;
+		}
+		// farthest from plane abc, exactly off the plane
+		final double acx = xyz[3 * c] - xyz[3 * a];
+		final double acy = xyz[3 * c + 1] - xyz[3 * a + 1];
+		final double acz = xyz[3 * c + 2] - xyz[3 * a + 2];
+		final double nx = aby * acz - abz * acy;
+		final double ny = abz * acx - abx * acz;
+		final double nz = abx * acy - aby * acx;
+		int d = -1;
+		max = -1;
+		for (int i = 0; i < m; i++) {
+			final double dist = Math.abs(nx * (xyz[3 * i] - xyz[3 * a]) + ny
+					* (xyz[3 * i + 1] - xyz[3 * a + 1]) + nz
+					* (xyz[3 * i + 2] - xyz[3 * a + 2]));
+			if ((dist > max) && (orient(a, b, c, i) != 0)) {
+				max = dist;
+				d = i;
+			}
+		}
+		if (d < 0) {
+			return null;
+		}
+		return new int[] { a, b, c, d };
+	}
+
+	/**
+	 * Merge nearly coplanar triangles, trace the boundary of each face and
+	 * remove the vertices on straight edges.
+	 */
+	private void extractFaces() {
+		final int[] group = new int[size];
+		final boolean[] degenerate = new boolean[size];
+		for (int t = 0; t < size; t++) {
+			group[t] = t;
+			degenerate[t] = (vertices[3 * t] >= 0) && isDegenerate(t);
+		}
+		for (int t = 0; t < size; t++) {
+			if ((vertices[3 * t] < 0) || degenerate[t]) {
+				continue;
+			}
+			for (int j = 0; j < 3; j++) {
+				final int s = neighbors[3 * t + j];
+				if ((s > t) && !degenerate[s] && coplanar(t, s)) {
+					union(group, t, s);
+				}
+			}
+		}
+		// triangles of points on a line, added on the line of an edge, lie in
+		// the planes of all their neighbors. Each connected set of them joins
+		// the face of its first neighbor, the other neighbors are joined if
+		// coplanar across the line.
+		final boolean[] visited = new boolean[size];
+		int[] stack = new int[16];
+		int[] border = new int[16];
+		int[] reps = new int[4];
+		for (int t = 0; t < size; t++) {
+			if (!degenerate[t] || visited[t]) {
+				continue;
+			}
+			int numStack = 0;
+			int numBorder = 0;
+			visited[t] = true;
+			stack = push(stack, numStack++, t);
+			while (numStack > 0) {
+				final int d = stack[--numStack];
+				union(group, t, d);
+				for (int j = 0; j < 3; j++) {
+					final int s = neighbors[3 * d + j];
+					if (!degenerate[s]) {
+						border = push(border, numBorder++, s);
+						border = push(border, numBorder++, opposite(s, d));
+					} else if (!visited[s]) {
+						visited[s] = true;
+						stack = push(stack, numStack++, s);
+					}
+				}
+			}
+			union(group, t, border[0]);
+			int numReps = 0;
+			for (int i = 0; i < numBorder; i += 2) {
+				int k = 0;
+				while ((k < numReps)
+						&& !coplanar(border[reps[k]], border[reps[k] + 1],
+								border[i], border[i + 1])) {
+					k++;
+				}
+				if (k < numReps) {
+					union(group, border[reps[k]], border[i]);
+				} else {
+					reps = push(reps, numReps++, i);
+				}
+			}
+		}
+		for (int t = 0; t < size; t++) {
+			group[t] = find(group, t);
+		}
+		while (!traceFaces(group)) {
+			continue;
+		}
+		removeCollinear();
+		for (int h = 0; h < faceVertices.length; h++) {
+			faceVertices[h] = pts[faceVertices[h]];
+		}
+	}
+
+	/**
+	 * Trace the boundary loops of all groups. A group whose boundary has more
+	 * than one loop is split in triangles and false is returned.
+	 */
+	private boolean traceFaces(final int[] group) {
+		final int[] index = new int[3 * size];
+		Arrays.fill(index, -1);
+		final int[] loops = new int[size];
+		int[] offsets = new int[64];
+		int[] loopVertices = new int[64];
+		int numFaces = 0;
+		int count = 0;
+		boolean valid = true;
+		for (int t = 0; t < size; t++) {
+			if (vertices[3 * t] < 0) {
+				continue;
+			}
+			for (int j = 0; j < 3; j++) {
+				if ((index[3 * t + j] >= 0)
+						|| (group[neighbors[3 * t + j]] == group[t])) {
+					continue;
+				}
+				offsets = push(offsets, numFaces++, count);
+				if (++loops[group[t]] > 1) {
+					valid = false;
+				}
+				int ct = t;
+				int cj = j;
+				do {
+					index[3 * ct + cj] = count;
+					loopVertices = push(loopVertices, count++,
+							vertices[3 * ct + cj]);
+					// turn around the end vertex to the next boundary edge
+					cj = (cj + 1) % 3;
+					while (group[neighbors[3 * ct + cj]] == group[ct]) {
+						final int s = neighbors[3 * ct + cj];
+						final int k = edgeSlot(s,
+								vertices[3 * ct + (cj + 1) % 3],
+								vertices[3 * ct + cj]);
+						ct = s;
+						cj = (k + 1) % 3;
+					}
+				} while ((ct != t) || (cj != j));
+			}
+		}
+		if (!valid) {
+			for (int t = 0; t < size; t++) {
+				if ((vertices[3 * t] >= 0) && (loops[group[t]] > 1)) {
+					group[t] = t;
+				}
+			}
+			return false;
+		}
+		offsets = push(offsets, numFaces, count);
+		faceOffsets = Arrays.copyOf(offsets, numFaces + 1);
+		faceVertices = Arrays.copyOf(loopVertices, count);
+		pairs = new int[count];
+		for (int t = 0; t < size; t++) {
+			if (vertices[3 * t] < 0) {
+				continue;
+			}
+			for (int j = 0; j < 3; j++) {
+				if (index[3 * t + j] >= 0) {
+					final int s = neighbors[3 * t + j];
+					pairs[index[3 * t + j]] = index[3
+							* s
+							+ edgeSlot(s, vertices[3 * t + (j + 1) % 3],
+									vertices[3 * t + j])];
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the vertices with only two faces. Merging faces can leave points
+	 * that are not extreme, e.g. on a grid, on the edge between two faces. The
+	 * two edges of such a vertex are collinear, exactly or within the merge
+	 * tolerance. The pair of a remaining halfedge is the pair of the last
+	 * halfedge before the next remaining vertex.
+	 */
+	private void removeCollinear() {
+		final int count = faceVertices.length;
+		final int numFaces = faceOffsets.length - 1;
+		final int[] valence = new int[m];
+		for (int h = 0; h < count; h++) {
+			valence[faceVertices[h]]++;
+		}
+		final boolean[] removed = new boolean[m];
+		int numRemoved = 0;
+		for (int v = 0; v < m; v++) {
+			if (valence[v] == 2) {
+				removed[v] = true;
+				numRemoved++;
+			}
+		}
+		if (numRemoved == 0) {
+			return;
+		}
+		final int[] newIndex = new int[count];
+		final int[] offsets = new int[numFaces + 1];
+		final int[] loopVertices = new int[count - 2 * numRemoved];
+		int kept = 0;
+		for (int f = 0; f < numFaces; f++) {
+			offsets[f] = kept;
+			for (int h = faceOffsets[f]; h < faceOffsets[f + 1]; h++) {
+				if (removed[faceVertices[h]]) {
+					newIndex[h] = -1;
+				} else {
+					newIndex[h] = kept;
+					loopVertices[kept++] = faceVertices[h];
+				}
+			}
+		}
+		offsets[numFaces] = kept;
+		final int[] newPairs = new int[kept];
+		for (int f = 0; f < numFaces; f++) {
+			final int start = faceOffsets[f];
+			final int end = faceOffsets[f + 1];
+			for (int h = start; h < end; h++) {
+				if (newIndex[h] < 0) {
+					continue;
+				}
+				int last = h;
+				int nextInFace = (last + 1 == end) ? start : last + 1;
+				while (removed[faceVertices[nextInFace]]) {
+					last = nextInFace;
+					nextInFace = (last + 1 == end) ? start : last + 1;
+				}
+				newPairs[newIndex[h]] = newIndex[pairs[last]];
+			}
+		}
+		faceOffsets = offsets;
+		faceVertices = loopVertices;
+		pairs = newPairs;
+	}
+
+	private static void union(final int[] group, final int t, final int s) {
+		final int rt = find(group, t);
+		final int rs = find(group, s);
+		if (rt != rs) {
+			group[Math.max(rt, rs)] = Math.min(rt, rs);
+		}
+	}
+
+	private static int find(final int[] group, int t) {
+		while (group[t] != t) {
+			group[t] = group[group[t]];
+			t = group[t];
+		}
+		return t;
+	}
+
+	/**
+	 * Are adjacent triangles t and s coplanar within tolerance? The vertex of
+	 * either opposite the shared edge is tested against the plane of the
+	 * other.
+	 */
+	private boolean coplanar(final int t, final int s) {
+		return coplanar(t, opposite(t, s), s, opposite(s, t));
+	}
+
+	/**
+	 * Are triangles t and s, with vertices p of t and q of s not on their
+	 * common edge, coplanar within tolerance?
+	 */
+	private boolean coplanar(final int t, final int p, final int s, final int q) {
+		return (distanceToPlane(t, q) > -tolerance)
+				|| (distanceToPlane(s, p) > -tolerance);
+	}
+
+	/**
+	 * Are the three points of t on a line within tolerance? The height of the
+	 * third point over the longest edge is the length of the normal divided
+	 * by the length of that edge.
+	 */
+	private boolean isDegenerate(final int t) {
+		double l2 = 0;
+		for (int j = 0; j < 3; j++) {
+			l2 = Math.max(l2, sqDistance(vertices[3 * t + j], vertices[3 * t
+					+ (j + 1) % 3]));
+		}
+		final double nx = planes[4 * t];
+		final double ny = planes[4 * t + 1];
+		final double nz = planes[4 * t + 2];
+		return (nx * nx + ny * ny + nz * nz) <= tolerance * tolerance * l2;
+	}
+
+	/**
+	 * Vertex of t not shared with its neighbor s.
+	 */
+	private int opposite(final int t, final int s) {
+		for (int j = 0; j < 3; j++) {
+			if (neighbors[3 * t + j] == s) {
+				return vertices[3 * t + (j + 2) % 3];
+			}
+		}
+		return -1;
+	}
+
+	private double distanceToPlane(final int t, final int p) {
+		final double nx = planes[4 * t];
+		final double ny = planes[4 * t + 1];
+		final double nz = planes[4 * t + 2];
+		final double l = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		return (l == 0) ? 0 : distance(t, p) / l;
+	}
+
+	/**
+	 * Unnormalized distance of p in front of t.
+	 */
+	private double distance(final int t, final int p) {
+		return planes[4 * t] * xyz[3 * p] + planes[4 * t + 1] * xyz[3 * p + 1]
+				+ planes[4 * t + 2] * xyz[3 * p + 2] - planes[4 * t + 3];
+	}
+
+	/**
+	 * Is p strictly in front of t?
+	 */
+	private boolean visible(final int t, final int p) {
+		return orient(vertices[3 * t], vertices[3 * t + 1],
+				vertices[3 * t + 2], p) < 0;
+	}
+
+	private double orient(final int a, final int b, final int c, final int d) {
+		return WB_Predicates.orient(xyz[3 * a], xyz[3 * a + 1],
+				xyz[3 * a + 2], xyz[3 * b], xyz[3 * b + 1], xyz[3 * b + 2],
+				xyz[3 * c], xyz[3 * c + 1], xyz[3 * c + 2], xyz[3 * d],
+				xyz[3 * d + 1], xyz[3 * d + 2]);
+	}
+
+	private double sqDistance(final int a, final int b) {
+		final double dx = xyz[3 * b] - xyz[3 * a];
+		final double dy = xyz[3 * b + 1] - xyz[3 * a + 1];
+		final double dz = xyz[3 * b + 2] - xyz[3 * a + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Neighbor slot of directed edge uv in triangle t, -1 if t has no edge
+	 * uv.
+	 */
+	private int edgeSlot(final int t, final int u, final int v) {
+		for (int j = 0; j < 3; j++) {
+			if ((vertices[3 * t + j] == u)
+					&& (vertices[3 * t + (j + 1) % 3] == v)) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * New triangle abc, flipped if inside is in front of it. Pass -1 as inside
+	 * if abc is known to be ccw seen from outside.
+	 */
+	private int newTriangle(final int a, int b, int c, final int inside) {
+		if ((inside >= 0) && (orient(a, b, c, inside) < 0)) {
+			final int swap = b;
+			b = c;
+			c = swap;
+		}
+		final int t;
+		if (numFree > 0) {
+			t = free[--numFree];
+		} else {
+			if (3 * (size + 1) > vertices.length) {
+				final int capacity = 2 * (size + 1);
+				vertices = Arrays.copyOf(vertices, 3 * capacity);
+				neighbors = Arrays.copyOf(neighbors, 3 * capacity);
+				planes = Arrays.copyOf(planes, 4 * capacity);
+				head = Arrays.copyOf(head, capacity);
+				mark = Arrays.copyOf(mark, capacity);
+			}
+			t = size++;
+		}
+		vertices[3 * t] = a;
+		vertices[3 * t + 1] = b;
+		vertices[3 * t + 2] = c;
+		head[t] = -1;
+		mark[t] = 0;
+		final double ux = xyz[3 * b] - xyz[3 * a];
+		final double uy = xyz[3 * b + 1] - xyz[3 * a + 1];
+		final double uz = xyz[3 * b + 2] - xyz[3 * a + 2];
+		final double vx = xyz[3 * c] - xyz[3 * a];
+		final double vy = xyz[3 * c + 1] - xyz[3 * a + 1];
+		final double vz = xyz[3 * c + 2] - xyz[3 * a + 2];
+		final double nx = uy * vz - uz * vy;
+		final double ny = uz * vx - ux * vz;
+		final double nz = ux * vy - uy * vx;
+		planes[4 * t] = nx;
+		planes[4 * t + 1] = ny;
+		planes[4 * t + 2] = nz;
+		planes[4 * t + 3] = nx * xyz[3 * a] + ny * xyz[3 * a + 1] + nz
+				* xyz[3 * a + 2];
+		return t;
+	}
+
+	private void deleteTriangle(final int t) {
+		vertices[3 * t] = -1;
+		vertices[3 * t + 1] = -1;
+		vertices[3 * t + 2] = -1;
+		head[t] = -1;
+		free = push(free, numFree++, t);
+	}
+
+	private static int[] push(final int[] list, final int i, final int value) {
+		final int[] result = (i == list.length) ? Arrays.copyOf(list, 2 * i)
+				: list;
+		result[i] = value;
+		return result;
+	}
+
+}
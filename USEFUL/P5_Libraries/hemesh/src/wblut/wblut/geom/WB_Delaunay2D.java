@@ -0,0 +1,1107 @@
+/**
+ *
+ */
+package wblut.geom;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javolution.util.FastList;
+import wblut.core.OaLongIntMap;
+
+/**
+ * Constrained Delaunay triangulation of a planar point set.
+ *
+ * Triangles are stored in flat int arrays: three vertex indices in ccw order
+ * and, for each vertex, the neighbor across the opposite edge. The hull is
+ * closed with ghost triangles sharing a vertex at infinity, so point location
+ * and insertion need no special cases outside the hull and no bounding
+ * triangle is needed.
+ *
+ * Points are inserted in biased randomized rounds (BRIO), each round sorted
+ * along a Hilbert curve, and located by walking from the last inserted point.
+ * Insertion is Bowyer-Watson. Constraints are added afterwards by removing the
+ * triangles crossed by the segment and retriangulating both sides. All tests
+ * use the exact predicates of WB_Predicates2D.
+ *
+ * Points are referenced by their index in the input array. Duplicate points
+ * are merged, triangles refer to the first one inserted.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class WB_Delaunay2D {
+
+	/** Size of the first BRIO round. */
+	private static final int	FIRSTROUND	= 64;
+
+	/** Resolution of the Hilbert curve, 2^15 per coordinate. */
+	private static final int	HILBERTBITS	= 15;
+
+	private final double[]		x, y;
+
+	/** Number of points, also the index of the vertex at infinity. */
+	private final int			n;
+
+	/** Three vertices per triangle, ccw, -1 for deleted triangles. */
+	private int[]				vertices;
+
+	/** Neighbor across the edge opposite each vertex. */
+	private int[]				neighbors;
+
+	/** Is the edge opposite each vertex constrained? */
+	private boolean[]			constrained;
+
+	/** Number of triangle slots in use, including deleted ones. */
+	private int					size;
+
+	private int[]				free;
+
+	private int					numFree;
+
+	/** One triangle per vertex, -1 if not in the triangulation. */
+	private final int[]			vertexTriangle;
+
+	/** Index of the point each point was merged with. */
+	private final int[]			representative;
+
+	private int[]				mark;
+
+	private int					stamp;
+
+	/** Starting triangle of the next walk. */
+	private int					last;
+
+	private int					seed;
+
+	// scratch for insertion
+	private int[]				stack, cavity, boundaryU, boundaryV,
+			boundaryOuter;
+
+	private boolean[]			boundaryConstrained;
+
+	private final int[]			startAt;
+
+	// scratch for constraints
+	private int[]				left, right, crossed, created, inner;
+
+	private int					numLeft, numRight, numCrossed, numCreated,
+			numInner;
+
+	/**
+	 * Delaunay triangulation of points.
+	 *
+	 * @param points
+	 */
+	public WB_Delaunay2D(final WB_Point2d[] points) {
+		this(points, points.length);
+	}
+
+	/**
+	 * Delaunay triangulation of the first n points.
+	 *
+	 * @param points
+	 * @param n number of points
+	 */
+	public WB_Delaunay2D(final WB_Point2d[] points, final int n) {
+		this.n = n;
+		x = new double[n];
+		y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = points[i].x;
+			y[i] = points[i].y;
+		}
+		representative = new int[n];
+		for (int i = 0; i < n; i++) {
+			representative[i] = i;
+		}
+		vertexTriangle = new int[n + 1];
+		Arrays.fill(vertexTriangle, -1);
+		startAt = new int[n + 1];
+		final int capacity = 3 * n + 8;
+		vertices = new int[3 * capacity];
+		neighbors = new int[3 * capacity];
+		constrained = new boolean[3 * capacity];
+		mark = new int[capacity];
+		free = new int[64];
+		stack = new int[64];
+		cavity = new int[64];
+		boundaryU = new int[64];
+		boundaryV = new int[64];
+		boundaryOuter = new int[64];
+		boundaryConstrained = new boolean[64];
+		left = new int[64];
+		right = new int[64];
+		crossed = new int[64];
+		created = new int[64];
+		inner = new int[64];
+		seed = 12345;
+		triangulate();
+	}
+
+	/**
+	 * Add a constraint between points i and j. Points on the segment split it.
+	 * A constraint crossing an existing constraint is refused, the part up to
+	 * the crossing is kept.
+	 *
+	 * @param i index of first point
+	 * @param j index of second point
+	 * @return true if the constraint was added
+	 */
+	public boolean addConstraint(final int i, final int j) {
+		int a = representative[i];
+		final int b = representative[j];
+		if ((a == b) || (vertexTriangle[a] < 0) || (vertexTriangle[b] < 0)) {
+			return false;
+		}
+		while (a != b) {
+			a = insertSegment(a, b);
+			if (a < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of triangles, ghost triangles excluded.
+	 *
+	 * @return number of triangles
+	 */
+	public int getNumberOfTriangles() {
+		int count = 0;
+		for (int t = 0; t < size; t++) {
+			if ((vertices[3 * t] >= 0) && !isGhost(t)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Index of the point that represents point i in the triangulation, i
+	 * itself unless it coincides with a point inserted before it.
+	 *
+	 * @param i index of point
+	 * @return index of representative point
+	 */
+	public int getRepresentative(final int i) {
+		return representative[i];
+	}
+
+	/**
+	 * All triangles, three point indices per triangle, ccw.
+	 *
+	 * @return triangles
+	 */
+	public int[] getTriangles() {
+		return collect(null);
+	}
+
+	/**
+	 * Triangles inside the constraints, three point indices per triangle, ccw.
+	 * A triangle is inside if it is separated from the outside of the hull by
+	 * an odd number of constraints, so closed constraints bound regions with
+	 * holes.
+	 *
+	 * @return triangles
+	 */
+	public int[] getTrianglesInsideConstraints() {
+		return collect(classify());
+	}
+
+	public WB_IndexedTriangle2D[] getIndexedTriangles(final WB_Point2d[] points) {
+		return toIndexedTriangles(getTriangles(), points);
+	}
+
+	public WB_IndexedTriangle2D[] getIndexedTrianglesInsideConstraints(
+			final WB_Point2d[] points) {
+		return toIndexedTriangles(getTrianglesInsideConstraints(), points);
+	}
+
+	public List<WB_IndexedTriangle2D> getIndexedTrianglesAsList(
+			final WB_Point2d[] points) {
+		final int[] triangles = getTriangles();
+		final List<WB_IndexedTriangle2D> result = new FastList<WB_IndexedTriangle2D>(
+				triangles.length / 3);
+		for (int i = 0; i < triangles.length; i += 3) {
+			result.add(new WB_IndexedTriangle2D(triangles[i],
+					triangles[i + 1], triangles[i + 2], points));
+		}
+		return result;
+	}
+
+	/**
+	 * Constrained Delaunay triangulation of a polygon, holes are not
+	 * supported. The triangles follow the orientation of the polygon.
+	 *
+	 * Indices are positions on the polygon. Where the polygon passes the same
+	 * point more than once, a triangle refers to the position whose corner it
+	 * lies in. A polygon that is not simple, has all points collinear, or
+	 * has a position no triangle refers to, e.g. a repeated point, is
+	 * triangulated by ear clipping instead, in n-2 triangles that may be
+	 * degenerate.
+	 *
+	 * @param points
+	 * @param n number of points
+	 * @return triangles, three point indices per triangle
+	 */
+	public static int[] triangulatePolygon(final WB_Point2d[] points,
+			final int n) {
+		return triangulatePolygon(points, n, false);
+	}
+
+	/**
+	 * Constrained Delaunay triangulation of a polygon, see
+	 * {@link #triangulatePolygon(WB_Point2d[], int)}. If strict, a polygon
+	 * with all points collinear has no triangles and a polygon whose
+	 * triangles do not cover it is rejected.
+	 *
+	 * @param points
+	 * @param n number of points
+	 * @param strict fail instead of falling back to ear clipping
+	 * @return triangles, three point indices per triangle
+	 * @throws IllegalArgumentException if strict and the polygon is not
+	 *             simple
+	 */
+	public static int[] triangulatePolygon(final WB_Point2d[] points,
+			final int n, final boolean strict) {
+		if (n < 3) {
+			return new int[0];
+		}
+		double area = 0;
+		for (int i = 0, j = n - 1; i < n; j = i, i++) {
+			area += (points[j].x - points[i].x) * (points[j].y + points[i].y);
+		}
+		final WB_Delaunay2D triangulation = new WB_Delaunay2D(points, n);
+		if (triangulation.size == 0) {
+			return strict ? new int[0] : clipEars(points, n, area >= 0);
+		}
+		for (int i = 0, j = n - 1; i < n; j = i, i++) {
+			triangulation.addConstraint(j, i);
+		}
+		final int[] triangles = triangulation.getTrianglesInsideConstraints();
+		// each point passed a second time, not right after itself, pinches
+		// off a part of the polygon
+		int distinct = 0;
+		int corners = 0;
+		for (int i = 0, j = n - 1; i < n; j = i, i++) {
+			if (triangulation.representative[i] == i) {
+				distinct++;
+			}
+			if (triangulation.representative[i] != triangulation.representative[j]) {
+				corners++;
+			}
+		}
+		final int expected = (distinct - 2) - (corners - distinct);
+		if (triangles.length != 3 * expected) {
+			if (strict) {
+				throw new IllegalArgumentException("Polygon is not simple, "
+						+ (triangles.length / 3) + " triangles instead of "
+						+ expected + ".");
+			}
+			return clipEars(points, n, area >= 0);
+		}
+		if (distinct < n) {
+			triangulation.toPositions(triangles, area > 0);
+			if (!strict && !coversAll(triangles, n)) {
+				return clipEars(points, n, area >= 0);
+			}
+		}
+		if (area < 0) {
+			for (int i = 0; i < triangles.length; i += 3) {
+				final int t = triangles[i + 1];
+				triangles[i + 1] = triangles[i + 2];
+				triangles[i + 2] = t;
+			}
+		}
+		return triangles;
+	}
+
+	/**
+	 * Does every position appear in a triangle?
+	 */
+	private static boolean coversAll(final int[] triangles, final int n) {
+		final boolean[] used = new boolean[n];
+		int count = 0;
+		for (int k = 0; k < triangles.length; k++) {
+			if (!used[triangles[k]]) {
+				used[triangles[k]] = true;
+				count++;
+			}
+		}
+		return count == n;
+	}
+
+	/**
+	 * Ear clipping on the positions of a polygon, in n-2 triangles with the
+	 * orientation of the polygon. An ear is a convex corner with no other
+	 * point inside. Where none is left, the first convex or flat corner is
+	 * cut, or else the first corner.
+	 *
+	 * @param points
+	 * @param n number of points
+	 * @param ccw is the polygon ccw?
+	 * @return triangles, three point indices per triangle
+	 */
+	private static int[] clipEars(final WB_Point2d[] points, final int n,
+			final boolean ccw) {
+		final int[] prev = new int[n];
+		final int[] next = new int[n];
+		for (int i = 0; i < n; i++) {
+			prev[i] = (i + n - 1) % n;
+			next[i] = (i + 1) % n;
+		}
+		final int[] triangles = new int[3 * (n - 2)];
+		int count = 0;
+		int v = 0;
+		for (int remaining = n; remaining > 3; remaining--) {
+			int ear = -1;
+			int flat = -1;
+			int u = v;
+			for (int k = 0; k < remaining; k++) {
+				final double o = turn(points, prev[u], u, next[u], ccw);
+				if ((o > 0) && isEar(points, prev, next, u, ccw)) {
+					ear = u;
+					break;
+				}
+				if ((o >= 0) && (flat < 0)) {
+					flat = u;
+				}
+				u = next[u];
+			}
+			if (ear < 0) {
+				ear = (flat < 0) ? v : flat;
+			}
+			triangles[count++] = prev[ear];
+			triangles[count++] = ear;
+			triangles[count++] = next[ear];
+			next[prev[ear]] = next[ear];
+			prev[next[ear]] = prev[ear];
+			v = next[ear];
+		}
+		triangles[count++] = prev[v];
+		triangles[count++] = v;
+		triangles[count] = next[v];
+		return triangles;
+	}
+
+	/**
+	 * Orientation of abc, positive if it turns like the polygon.
+	 */
+	private static double turn(final WB_Point2d[] points, final int a,
+			final int b, final int c, final boolean ccw) {
+		final double o = WB_Predicates2D.orient2d(points[a], points[b],
+				points[c]);
+		return ccw ? o : -o;
+	}
+
+	/**
+	 * Is no remaining point strictly inside the corner triangle at u?
+	 */
+	private static boolean isEar(final WB_Point2d[] points, final int[] prev,
+			final int[] next, final int u, final boolean ccw) {
+		final int a = prev[u];
+		final int c = next[u];
+		for (int w = next[c]; w != a; w = next[w]) {
+			if ((turn(points, a, u, w, ccw) > 0)
+					&& (turn(points, u, c, w, ccw) > 0)
+					&& (turn(points, c, a, w, ccw) > 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replace merged points in the triangles of a polygon by the position on
+	 * the polygon whose corner contains the triangle.
+	 *
+	 * @param triangles ccw triangles inside the polygon
+	 * @param ccw is the polygon ccw?
+	 */
+	private void toPositions(final int[] triangles, final boolean ccw) {
+		// other positions of each representative, as a linked list
+		final int[] nextPosition = new int[n];
+		Arrays.fill(nextPosition, -1);
+		for (int i = n - 1; i >= 0; i--) {
+			final int r = representative[i];
+			if (r != i) {
+				nextPosition[i] = nextPosition[r];
+				nextPosition[r] = i;
+			}
+		}
+		for (int k = 0; k < triangles.length; k++) {
+			final int c = triangles[k];
+			if (nextPosition[c] < 0) {
+				continue;
+			}
+			final int t = k - k % 3;
+			final int v = triangles[t + (k + 1) % 3];
+			final int w = triangles[t + (k + 2) % 3];
+			final double qx = 0.5 * (x[v] + x[w]);
+			final double qy = 0.5 * (y[v] + y[w]);
+			for (int p = c; p >= 0; p = nextPosition[p]) {
+				if (inCorner(p, qx, qy, ccw)) {
+					triangles[k] = p;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Is q inside the interior angle of the polygon at position p?
+	 */
+	private boolean inCorner(final int p, final double qx, final double qy,
+			final boolean ccw) {
+		final int r = representative[p];
+		int prev = (p + n - 1) % n;
+		while ((representative[prev] == r) && (prev != p)) {
+			prev = (prev + n - 1) % n;
+		}
+		int next = (p + 1) % n;
+		while ((representative[next] == r) && (next != p)) {
+			next = (next + 1) % n;
+		}
+		// the interior turns ccw from the first to the second edge
+		final int from = ccw ? next : prev;
+		final int to = ccw ? prev : next;
+		final double px = x[p];
+		final double py = y[p];
+		if (WB_Predicates2D.orient2d(px, py, x[from], y[from], x[to], y[to]) > 0) {
+			return (WB_Predicates2D.orient2d(px, py, x[from], y[from], qx, qy) > 0)
+					&& (WB_Predicates2D.orient2d(px, py, qx, qy, x[to], y[to]) > 0);
+		}
+		// reflex corner: q is not in the closed exterior angle
+		return (WB_Predicates2D.orient2d(px, py, x[to], y[to], qx, qy) < 0)
+				|| (WB_Predicates2D.orient2d(px, py, qx, qy, x[from], y[from]) < 0);
+	}
+
+	private static WB_IndexedTriangle2D[] toIndexedTriangles(
+			final int[] triangles, final WB_Point2d[] points) {
+		final WB_IndexedTriangle2D[] result = new WB_IndexedTriangle2D[triangles.length / 3];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new WB_IndexedTriangle2D(triangles[3 * i],
+					triangles[3 * i + 1], triangles[3 * i + 2], points);
+		}
+		return result;
+	}
+
+	private int[] collect(final boolean[] inside) {
+		int count = 0;
+		for (int t = 0; t < size; t++) {
+			if ((vertices[3 * t] >= 0) && !isGhost(t)
+					&& ((inside == null) || inside[t])) {
+				count++;
+			}
+		}
+		final int[] result = new int[3 * count];
+		count = 0;
+		for (int t = 0; t < size; t++) {
+			if ((vertices[3 * t] >= 0) && !isGhost(t)
+					&& ((inside == null) || inside[t])) {
+				System.arraycopy(vertices, 3 * t, result, count, 3);
+				count += 3;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Flood the triangles from the ghost triangles, counting the constraints
+	 * crossed.
+	 */
+	private boolean[] classify() {
+		final int[] depth = new int[size];
+		Arrays.fill(depth, -1);
+		int[] current = new int[64];
+		int[] next = new int[64];
+		int numCurrent = 0;
+		int numNext = 0;
+		for (int t = 0; t < size; t++) {
+			if ((vertices[3 * t] >= 0) && isGhost(t)) {
+				current = push(current, numCurrent++, t);
+			}
+		}
+		int level = 0;
+		while (numCurrent > 0) {
+			int sp = 0;
+			for (int i = 0; i < numCurrent; i++) {
+				final int t = current[i];
+				if (depth[t] < 0) {
+					depth[t] = level;
+					stack = push(stack, sp++, t);
+				}
+			}
+			numNext = 0;
+			while (sp > 0) {
+				final int t = stack[--sp];
+				for (int j = 0; j < 3; j++) {
+					final int nb = neighbors[3 * t + j];
+					if (depth[nb] >= 0) {
+						continue;
+					}
+					if (constrained[3 * t + j]) {
+						next = push(next, numNext++, nb);
+					} else {
+						depth[nb] = level;
+						stack = push(stack, sp++, nb);
+					}
+				}
+			}
+			final int[] swap = current;
+			current = next;
+			next = swap;
+			numCurrent = numNext;
+			level++;
+		}
+		final boolean[] inside = new boolean[size];
+		for (int t = 0; t < size; t++) {
+			inside[t] = (depth[t] & 1) == 1;
+		}
+		return inside;
+	}
+
+	private void triangulate() {
+		if (n < 3) {
+			return;
+		}
+		final int[] order = insertionOrder();
+		final int a = order[0];
+		int ib = 1;
+		while ((ib < n) && (x[order[ib]] == x[a]) && (y[order[ib]] == y[a])) {
+			ib++;
+		}
+		if (ib == n) {
+			return;
+		}
+		final int b = order[ib];
+		int ic = ib + 1;
+		while ((ic < n) && (orient(a, b, order[ic]) == 0)) {
+			ic++;
+		}
+		if (ic == n) {
+			return;
+		}
+		final int c = order[ic];
+		final int t;
+		if (orient(a, b, c) > 0) {
+			t = start(a, b, c);
+		} else {
+			t = start(b, a, c);
+		}
+		last = t;
+		for (int i = 1; i < n; i++) {
+			if ((i != ib) && (i != ic)) {
+				insert(order[i]);
+			}
+		}
+	}
+
+	/**
+	 * First triangle and its three ghosts.
+	 */
+	private int start(final int a, final int b, final int c) {
+		final int t = newTriangle(a, b, c);
+		final int ga = newTriangle(c, b, n);
+		final int gb = newTriangle(a, c, n);
+		final int gc = newTriangle(b, a, n);
+		link(t, 0, ga, 2);
+		link(t, 1, gb, 2);
+		link(t, 2, gc, 2);
+		// ghost (c,b,inf): edge (b,inf) opposite c, edge (inf,c) opposite b
+		link(ga, 0, gc, 1);
+		link(ga, 1, gb, 0);
+		link(gb, 1, gc, 0);
+		vertexTriangle[a] = t;
+		vertexTriangle[b] = t;
+		vertexTriangle[c] = t;
+		return t;
+	}
+
+	/**
+	 * Bowyer-Watson insertion of point p.
+	 */
+	private void insert(final int p) {
+		final int t0 = locate(p);
+		if (!isGhost(t0)) {
+			for (int j = 0; j < 3; j++) {
+				final int v = vertices[3 * t0 + j];
+				if ((x[v] == x[p]) && (y[v] == y[p])) {
+					representative[p] = representative[v];
+					return;
+				}
+			}
+		}
+		// cavity: all triangles whose circumcircle contains p
+		stamp++;
+		int sp = 0;
+		int numCavity = 0;
+		int numBoundary = 0;
+		mark[t0] = stamp;
+		stack = push(stack, sp++, t0);
+		cavity = push(cavity, numCavity++, t0);
+		while (sp > 0) {
+			final int t = stack[--sp];
+			for (int j = 0; j < 3; j++) {
+				final int nb = neighbors[3 * t + j];
+				if (mark[nb] == stamp) {
+					continue;
+				}
+				if (inCircle(nb, p)) {
+					mark[nb] = stamp;
+					stack = push(stack, sp++, nb);
+					cavity = push(cavity, numCavity++, nb);
+				} else {
+					if (numBoundary == boundaryU.length) {
+						boundaryU = Arrays.copyOf(boundaryU, 2 * numBoundary);
+						boundaryV = Arrays.copyOf(boundaryV, 2 * numBoundary);
+						boundaryOuter = Arrays.copyOf(boundaryOuter,
+								2 * numBoundary);
+						boundaryConstrained = Arrays.copyOf(
+								boundaryConstrained, 2 * numBoundary);
+					}
+					boundaryU[numBoundary] = vertices[3 * t + (j + 1) % 3];
+					boundaryV[numBoundary] = vertices[3 * t + (j + 2) % 3];
+					boundaryOuter[numBoundary] = nb;
+					boundaryConstrained[numBoundary] = constrained[3 * t + j];
+					numBoundary++;
+				}
+			}
+		}
+		for (int i = 0; i < numCavity; i++) {
+			deleteTriangle(cavity[i]);
+		}
+		// fan from p to the cavity boundary
+		for (int i = 0; i < numBoundary; i++) {
+			final int u = boundaryU[i];
+			final int v = boundaryV[i];
+			final int outer = boundaryOuter[i];
+			final int t = newTriangle(u, v, p);
+			link(t, 2, outer, edgeSlot(outer, v, u));
+			constrained[3 * t + 2] = boundaryConstrained[i];
+			startAt[u] = t;
+			vertexTriangle[u] = t;
+			if (u != n) {
+				last = t;
+			}
+		}
+		for (int i = 0; i < numBoundary; i++) {
+			final int t = startAt[boundaryU[i]];
+			link(t, 0, startAt[boundaryV[i]], 1);
+		}
+		vertexTriangle[p] = startAt[boundaryU[0]];
+		if (isGhost(last)) {
+			last = neighbors[3 * last + slot(last, n)];
+		}
+	}
+
+	/**
+	 * Visibility walk to the triangle containing p. Returns a ghost triangle
+	 * if p is outside the hull.
+	 */
+	private int locate(final int p) {
+		int t = last;
+		if (isGhost(t)) {
+			t = neighbors[3 * t + slot(t, n)];
+		}
+		while (true) {
+			seed = seed * 1103515245 + 12345;
+			final int r = ((seed >>> 16) & 0x7fff) % 3;
+			boolean moved = false;
+			for (int k = 0; k < 3; k++) {
+				final int j = (r + k) % 3;
+				if (orient(vertices[3 * t + (j + 1) % 3], vertices[3 * t
+						+ (j + 2) % 3], p) < 0) {
+					t = neighbors[3 * t + j];
+					moved = true;
+					break;
+				}
+			}
+			if (!moved || isGhost(t)) {
+				return t;
+			}
+		}
+	}
+
+	/**
+	 * Is p inside the circumcircle of t? The circumcircle of a ghost triangle
+	 * is the open half plane outside its hull edge, plus the open edge itself.
+	 */
+	private boolean inCircle(final int t, final int p) {
+		final int a = vertices[3 * t];
+		final int b = vertices[3 * t + 1];
+		final int c = vertices[3 * t + 2];
+		if (a == n) {
+			return outside(b, c, p);
+		}
+		if (b == n) {
+			return outside(c, a, p);
+		}
+		if (c == n) {
+			return outside(a, b, p);
+		}
+		return WB_Predicates2D.incircle2d(x[a], y[a], x[b], y[b], x[c], y[c],
+				x[p], y[p]) > 0;
+	}
+
+	private boolean outside(final int a, final int b, final int p) {
+		final double o = orient(a, b, p);
+		if (o != 0) {
+			return o > 0;
+		}
+		return between(a, b, p);
+	}
+
+	/**
+	 * Is p, collinear with a and b, strictly between a and b?
+	 */
+	private boolean between(final int a, final int b, final int p) {
+		if (x[a] != x[b]) {
+			return (x[p] > Math.min(x[a], x[b])) && (x[p] < Math.max(x[a], x[b]));
+		}
+		return (y[p] > Math.min(y[a], y[b])) && (y[p] < Math.max(y[a], y[b]));
+	}
+
+	/**
+	 * Insert the part of segment ab up to the first point on it.
+	 *
+	 * @return end of the inserted part, -1 if a constraint was crossed
+	 */
+	private int insertSegment(final int a, final int b) {
+		// find the edge or the first triangle crossed, turning around a
+		final int first = vertexTriangle[a];
+		int t = first;
+		int u, w;
+		while (true) {
+			final int i = slot(t, a);
+			u = vertices[3 * t + (i + 1) % 3];
+			w = vertices[3 * t + (i + 2) % 3];
+			if ((u == b) || (w == b)) {
+				setConstrained(t, a, b);
+				return b;
+			}
+			if ((u != n) && (w != n)) {
+				if ((orient(a, b, u) == 0) && between(a, b, u)) {
+					setConstrained(t, a, u);
+					return u;
+				}
+				if ((orient(a, b, w) == 0) && between(a, b, w)) {
+					setConstrained(t, w, a);
+					return w;
+				}
+				if ((orient(a, u, b) > 0) && (orient(a, b, w) > 0)) {
+					break;
+				}
+			}
+			t = neighbors[3 * t + (i + 2) % 3];
+			if (t == first) {
+				return -1;
+			}
+		}
+		// walk along ab, u right and w left of the crossed edge
+		numLeft = 0;
+		numRight = 0;
+		numCrossed = 0;
+		right = push(right, numRight++, u);
+		left = push(left, numLeft++, w);
+		crossed = push(crossed, numCrossed++, t);
+		int opposite = a;
+		int end;
+		while (true) {
+			final int j = slot(t, opposite);
+			if (constrained[3 * t + j]) {
+				return -1;
+			}
+			final int nb = neighbors[3 * t + j];
+			crossed = push(crossed, numCrossed++, nb);
+			end = vertices[3 * nb + edgeSlot(nb, w, u)];
+			if (end == b) {
+				break;
+			}
+			final double o = orient(a, b, end);
+			if (o == 0) {
+				break;
+			}
+			if (o < 0) {
+				right = push(right, numRight++, end);
+				opposite = u;
+				u = end;
+			} else {
+				left = push(left, numLeft++, end);
+				opposite = w;
+				w = end;
+			}
+			t = nb;
+		}
+		retriangulate(a, end);
+		return end;
+	}
+
+	/**
+	 * Replace the crossed triangles by the constrained Delaunay triangulations
+	 * of the polygons left and right of segment ab.
+	 */
+	private void retriangulate(final int a, final int b) {
+		final OaLongIntMap edges = new OaLongIntMap(8 * numCrossed);
+		stamp++;
+		for (int i = 0; i < numCrossed; i++) {
+			mark[crossed[i]] = stamp;
+		}
+		numInner = 0;
+		for (int i = 0; i < numCrossed; i++) {
+			final int t = crossed[i];
+			for (int j = 0; j < 3; j++) {
+				final int nb = neighbors[3 * t + j];
+				final int u = vertices[3 * t + (j + 1) % 3];
+				final int v = vertices[3 * t + (j + 2) % 3];
+				if (mark[nb] != stamp) {
+					edges.put(OaLongIntMap.key(v, u),
+							3 * nb + edgeSlot(nb, v, u));
+				} else if (constrained[3 * t + j]) {
+					// the segment passed on both sides of a constraint hanging
+					// from the boundary, fill() rebuilds it between two chain
+					// points
+					inner = push(inner, numInner++, u);
+					inner = push(inner, numInner++, v);
+				}
+			}
+		}
+		for (int i = 0; i < numCrossed; i++) {
+			deleteTriangle(crossed[i]);
+		}
+		numCreated = 0;
+		fill(a, b, left, 0, numLeft);
+		for (int i = 0, j = numRight - 1; i < j; i++, j--) {
+			final int swap = right[i];
+			right[i] = right[j];
+			right[j] = swap;
+		}
+		fill(b, a, right, 0, numRight);
+		stamp++;
+		for (int i = 0; i < numCreated; i++) {
+			final int t = created[i];
+			mark[t] = stamp;
+			for (int j = 0; j < 3; j++) {
+				edges.put(OaLongIntMap.key(vertices[3 * t + (j + 1) % 3],
+						vertices[3 * t + (j + 2) % 3]), 3 * t + j);
+				vertexTriangle[vertices[3 * t + j]] = t;
+			}
+		}
+		for (int i = 0; i < numCreated; i++) {
+			final int t = created[i];
+			for (int j = 0; j < 3; j++) {
+				final int u = vertices[3 * t + (j + 1) % 3];
+				final int v = vertices[3 * t + (j + 2) % 3];
+				final int e = edges.get(OaLongIntMap.key(v, u));
+				neighbors[3 * t + j] = e / 3;
+				neighbors[e] = t;
+				if (mark[e / 3] != stamp) {
+					constrained[3 * t + j] = constrained[e];
+				} else if (((u == a) && (v == b)) || ((u == b) && (v == a))
+						|| isInner(u, v)) {
+					constrained[3 * t + j] = true;
+				}
+			}
+		}
+		last = created[0];
+	}
+
+	/**
+	 * Was uv a constraint inside the last cavity?
+	 */
+	private boolean isInner(final int u, final int v) {
+		for (int i = 0; i < numInner; i += 2) {
+			if (((inner[i] == u) && (inner[i + 1] == v))
+					|| ((inner[i] == v) && (inner[i + 1] == u))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Constrained Delaunay triangulation of the polygon a, b, chain[to-1], ...,
+	 * chain[from], all chain points left of ab.
+	 */
+	private void fill(final int a, final int b, final int[] chain,
+			final int from, final int to) {
+		if (from >= to) {
+			return;
+		}
+		int c = from;
+		for (int i = from + 1; i < to; i++) {
+			final int pc = chain[c];
+			final int pi = chain[i];
+			if (WB_Predicates2D.incircle2d(x[a], y[a], x[b], y[b], x[pc],
+					y[pc], x[pi], y[pi]) > 0) {
+				c = i;
+			}
+		}
+		fill(a, chain[c], chain, from, c);
+		fill(chain[c], b, chain, c + 1, to);
+		created = push(created, numCreated++, newTriangle(a, b, chain[c]));
+	}
+
+	private void setConstrained(final int t, final int a, final int b) {
+		final int j = edgeSlot(t, a, b);
+		if (j >= 0) {
+			constrained[3 * t + j] = true;
+			final int nb = neighbors[3 * t + j];
+			constrained[3 * nb + edgeSlot(nb, b, a)] = true;
+		} else {
+			final int k = edgeSlot(t, b, a);
+			constrained[3 * t + k] = true;
+			final int nb = neighbors[3 * t + k];
+			constrained[3 * nb + edgeSlot(nb, a, b)] = true;
+		}
+	}
+
+	/**
+	 * Insertion order: random rounds of doubling size, each sorted along a
+	 * Hilbert curve.
+	 */
+	private int[] insertionOrder() {
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		final Random random = new Random(n);
+		for (int i = n - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+		double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minx = Math.min(minx, x[i]);
+			miny = Math.min(miny, y[i]);
+			maxx = Math.max(maxx, x[i]);
+			maxy = Math.max(maxy, y[i]);
+		}
+		final double extent = Math.max(maxx - minx, maxy - miny);
+		final double scale = (extent > 0) ? ((1 << HILBERTBITS) - 1) / extent
+				: 0;
+		final long[] keys = new long[n];
+		int end = n;
+		while (end > 0) {
+			final int start = (end <= FIRSTROUND) ? 0 : end / 2;
+			for (int i = start; i < end; i++) {
+				final int p = order[i];
+				keys[i - start] = ((long) hilbert(
+						(int) ((x[p] - minx) * scale),
+						(int) ((y[p] - miny) * scale)) << 32)
+						| p;
+			}
+			Arrays.sort(keys, 0, end - start);
+			for (int i = start; i < end; i++) {
+				order[i] = (int) keys[i - start];
+			}
+			end = start;
+		}
+		return order;
+	}
+
+	/**
+	 * Distance along the Hilbert curve.
+	 */
+	private static int hilbert(int hx, int hy) {
+		final int side = 1 << HILBERTBITS;
+		int d = 0;
+		for (int s = side >> 1; s > 0; s >>= 1) {
+			final int rx = ((hx & s) > 0) ? 1 : 0;
+			final int ry = ((hy & s) > 0) ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					hx = side - 1 - hx;
+					hy = side - 1 - hy;
+				}
+				final int swap = hx;
+				hx = hy;
+				hy = swap;
+			}
+		}
+		return d;
+	}
+
+	private double orient(final int a, final int b, final int c) {
+		return WB_Predicates2D.orient2d(x[a], y[a], x[b], y[b], x[c], y[c]);
+	}
+
+	private boolean isGhost(final int t) {
+		return (vertices[3 * t] == n) || (vertices[3 * t + 1] == n)
+				|| (vertices[3 * t + 2] == n);
+	}
+
+	/**
+	 * Position of vertex v in triangle t.
+	 */
+	private int slot(final int t, final int v) {
+		if (vertices[3 * t] == v) {
+			return 0;
+		}
+		return (vertices[3 * t + 1] == v) ? 1 : 2;
+	}
+
+	/**
+	 * Neighbor slot of directed edge uv in triangle t, -1 if t has no edge
+	 * uv.
+	 */
+	private int edgeSlot(final int t, final int u, final int v) {
+		for (int j = 0; j < 3; j++) {
+			if ((vertices[3 * t + (j + 1) % 3] == u)
+					&& (vertices[3 * t + (j + 2) % 3] == v)) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private void link(final int t, final int i, final int s, final int j) {
+		neighbors[3 * t + i] = s;
+		neighbors[3 * s + j] = t;
+	}
+
+	private int newTriangle(final int a, final int b, final int c) {
+		final int t;
+		if (numFree > 0) {
+			t = free[--numFree];
+		} else {
+			if (3 * (size + 1) > vertices.length) {
+				final int capacity = 2 * vertices.length;
+				vertices = Arrays.copyOf(vertices, capacity);
+				neighbors = Arrays.copyOf(neighbors, capacity);
+				constrained = Arrays.copyOf(constrained, capacity);
+				mark = Arrays.copyOf(mark, capacity / 3);
+			}
+			t = size++;
+		}
+		vertices[3 * t] = a;
+		vertices[3 * t + 1] = b;
+		vertices[3 * t + 2] = c;
+		constrained[3 * t] = false;
+		constrained[3 * t + 1] = false;
+		constrained[3 * t + 2] = false;
+		return t;
+	}
+
+	private void deleteTriangle(final int t) {
+		vertices[3 * t] = -1;
+		vertices[3 * t + 1] = -1;
+		vertices[3 * t + 2] = -1;
+		free = push(free, numFree++, t);
+	}
+
+	private static int[] push(final int[] list, final int i, final int value) {
+		final int[] result = (i == list.length) ? Arrays.copyOf(list, 2 * i)
+				: list;
+		result[i] = value;
+		return result;
+	}
+
+}
@@ -0,0 +1,324 @@
+/**
+ *
+ */
+package wblut.geom;
+
+/**
+ * Exact floating point arithmetic on expansions, after J.R. Shewchuk,
+ * "Adaptive Precision Floating-Point Arithmetic and Fast Robust Geometric
+ * Predicates". An expansion is a sum of non-overlapping doubles stored in
+ * order of increasing magnitude, its sign is the sign of the last component.
+ *
+ * Expansions live in numbered slots. Slots and scratch space are allocated
+ * once per thread and only grow, so evaluating a predicate doesn't allocate.
+ * Expansions of differences of input coordinates are usually a single double,
+ * the lengths of all derived expansions adapt to that.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+strictfp final class WB_Expansion {
+
+	/** 2^27+1, splits a double in two halves of 26 bits. */
+	private static final double						SPLITTER	= 134217729.0;
+
+	/** Number of slots. */
+	static final int								SLOTS		= 40;
+
+	private static final ThreadLocal<WB_Expansion>	LOCAL		= new ThreadLocal<WB_Expansion>() {
+		@Override
+		protected WB_Expansion initialValue() {
+			return new WB_Expansion();
+		}
+	};
+
+	private final double[][]						slots;
+
+	private final int[]								lengths;
+
+	/** Scratch for products. */
+	private double[]								scaled;
+
+	private double[]								sum;
+
+	private double[]								swap;
+
+	private WB_Expansion() {
+		slots = new double[SLOTS][];
+		lengths = new int[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			slots[i] = new double[16];
+		}
+		scaled = new double[64];
+		sum = new double[64];
+		swap = new double[64];
+	}
+
+	/**
+	 * Expansion arithmetic of the current thread.
+	 *
+	 * @return WB_Expansion
+	 */
+	static WB_Expansion get() {
+		return LOCAL.get();
+	}
+
+	/**
+	 * h=a-b, exactly.
+	 */
+	void diff(final int h, final double a, final double b) {
+		final double x = a - b;
+		final double bvirt = a - x;
+		final double avirt = x + bvirt;
+		final double bround = bvirt - b;
+		final double around = a - avirt;
+		final double y = around + bround;
+		final double[] H = slots[h];
+		if (y == 0.0) {
+			H[0] = x;
+			lengths[h] = 1;
+		} else {
+			H[0] = y;
+			H[1] = x;
+			lengths[h] = 2;
+		}
+	}
+
+	/**
+	 * h=e+f, h can not be e or f.
+	 */
+	void add(final int h, final int e, final int f) {
+		final double[] H = ensure(h, lengths[e] + lengths[f]);
+		lengths[h] = sum(lengths[e], slots[e], lengths[f], slots[f], H);
+	}
+
+	/**
+	 * h=e-f, h can not be e or f, e can not be f.
+	 */
+	void sub(final int h, final int e, final int f) {
+		final int flen = lengths[f];
+		final double[] F = slots[f];
+		for (int i = 0; i < flen; i++) {
+			F[i] = -F[i];
+		}
+		add(h, e, f);
+		for (int i = 0; i < flen; i++) {
+			F[i] = -F[i];
+		}
+	}
+
+	/**
+	 * h=e*f, h can not be e or f.
+	 */
+	void mul(final int h, final int e, final int f) {
+		int elen = lengths[e];
+		int flen = lengths[f];
+		double[] E = slots[e];
+		double[] F = slots[f];
+		// scale the longer expansion by each component of the shorter one
+		if (elen < flen) {
+			final double[] T = E;
+			E = F;
+			F = T;
+			final int t = elen;
+			elen = flen;
+			flen = t;
+		}
+		if (flen == 1) {
+			lengths[h] = scale(elen, E, F[0], ensure(h, 2 * elen));
+			return;
+		}
+		final int max = 2 * elen * flen;
+		if (scaled.length < 2 * elen) {
+			scaled = new double[2 * 2 * elen];
+		}
+		if (sum.length < max) {
+			sum = new double[2 * max];
+			swap = new double[2 * max];
+		}
+		int len = scale(elen, E, F[0], sum);
+		for (int i = 1; i < flen; i++) {
+			final int slen = scale(elen, E, F[i], scaled);
+			len = sum(len, sum, slen, scaled, swap);
+			final double[] T = sum;
+			sum = swap;
+			swap = T;
+		}
+		final double[] H = ensure(h, len);
+		System.arraycopy(sum, 0, H, 0, len);
+		lengths[h] = len;
+	}
+
+	/**
+	 * Sign of expansion.
+	 *
+	 * @return 1, -1 or 0
+	 */
+	double sign(final int e) {
+		final double v = slots[e][lengths[e] - 1];
+		return (v > 0) ? 1 : ((v < 0) ? -1 : 0);
+	}
+
+	private double[] ensure(final int h, final int n) {
+		if (slots[h].length < n) {
+			slots[h] = new double[2 * n];
+		}
+		return slots[h];
+	}
+
+	/**
+	 * h=e*b, zero components eliminated. h has room for 2*elen components.
+	 *
+	 * @return length of h
+	 */
+	private static int scale(final int elen, final double[] e, final double b,
+			final double[] h) {
+		double c = SPLITTER * b;
+		double abig = c - b;
+		final double bhi = c - abig;
+		final double blo = b - bhi;
+		double enow = e[0];
+		double x = enow * b;
+		c = SPLITTER * enow;
+		abig = c - enow;
+		double ahi = c - abig;
+		double alo = enow - ahi;
+		double err = x - ahi * bhi - alo * bhi - ahi * blo;
+		double hh = alo * blo - err;
+		double Q = x;
+		int hindex = 0;
+		if (hh != 0.0) {
+			h[hindex++] = hh;
+		}
+		for (int i = 1; i < elen; i++) {
+			enow = e[i];
+			final double product1 = enow * b;
+			c = SPLITTER * enow;
+			abig = c - enow;
+			ahi = c - abig;
+			alo = enow - ahi;
+			err = product1 - ahi * bhi - alo * bhi - ahi * blo;
+			final double product0 = alo * blo - err;
+			// Two_Sum(Q, product0)
+			final double s = Q + product0;
+			double bvirt = s - Q;
+			final double avirt = s - bvirt;
+			final double bround = product0 - bvirt;
+			final double around = Q - avirt;
+			hh = around + bround;
+			if (hh != 0.0) {
+				h[hindex++] = hh;
+			}
+			// Fast_Two_Sum(product1, s)
+			Q = product1 + s;
+			bvirt = Q - product1;
+			hh = s - bvirt;
+			if (hh != 0.0) {
+				h[hindex++] = hh;
+			}
+		}
+		if ((Q != 0.0) || (hindex == 0)) {
+			h[hindex++] = Q;
+		}
+		return hindex;
+	}
+
+	/**
+	 * h=e+f, zero components eliminated. h has room for elen+flen components.
+	 *
+	 * @return length of h
+	 */
+	private static int sum(final int elen, final double[] e, final int flen,
+			final double[] f, final double[] h) {
+		double enow = e[0];
+		double fnow = f[0];
+		int eindex = 0;
+		int findex = 0;
+		double Q;
+		if ((fnow > enow) == (fnow > -enow)) {
+			Q = enow;
+			eindex++;
+			enow = (eindex < elen) ? e[eindex] : 0;
+		} else {
+			Q = fnow;
+			findex++;
+			fnow = (findex < flen) ? f[findex] : 0;
+		}
+		int hindex = 0;
+		double Qnew, hh, bvirt, avirt, bround, around;
+		if ((eindex < elen) && (findex < flen)) {
+			if ((fnow > enow) == (fnow > -enow)) {
+				Qnew = enow + Q;
+				bvirt = Qnew - enow;
+				hh = Q - bvirt;
+				eindex++;
+				enow = (eindex < elen) ? e[eindex] : 0;
+			} else {
+				Qnew = fnow + Q;
+				bvirt = Qnew - fnow;
+				hh = Q - bvirt;
+				findex++;
+				fnow = (findex < flen) ? f[findex] : 0;
+			}
+			Q = Qnew;
+			if (hh != 0.0) {
+				h[hindex++] = hh;
+			}
+			while ((eindex < elen) && (findex < flen)) {
+				final double b;
+				if ((fnow > enow) == (fnow > -enow)) {
+					b = enow;
+					eindex++;
+					enow = (eindex < elen) ? e[eindex] : 0;
+				} else {
+					b = fnow;
+					findex++;
+					fnow = (findex < flen) ? f[findex] : 0;
+				}
+				Qnew = Q + b;
+				bvirt = Qnew - Q;
+				avirt = Qnew - bvirt;
+				bround = b - bvirt;
+				around = Q - avirt;
+				hh = around + bround;
+				Q = Qnew;
+				if (hh != 0.0) {
+					h[hindex++] = hh;
+				}
+			}
+		}
+		while (eindex < elen) {
+			Qnew = Q + enow;
+			bvirt = Qnew - Q;
+			avirt = Qnew - bvirt;
+			bround = enow - bvirt;
+			around = Q - avirt;
+			hh = around + bround;
+			eindex++;
+			enow = (eindex < elen) ? e[eindex] : 0;
+			Q = Qnew;
+			if (hh != 0.0) {
+				h[hindex++] = hh;
+			}
+		}
+		while (findex < flen) {
+			Qnew = Q + fnow;
+			bvirt = Qnew - Q;
+			avirt = Qnew - bvirt;
+			bround = fnow - bvirt;
+			around = Q - avirt;
+			hh = around + bround;
+			findex++;
+			fnow = (findex < flen) ? f[findex] : 0;
+			Q = Qnew;
+			if (hh != 0.0) {
+				h[hindex++] = hh;
+			}
+		}
+		if ((Q != 0.0) || (hindex == 0)) {
+			h[hindex++] = Q;
+		}
+		return hindex;
+	}
+
+}
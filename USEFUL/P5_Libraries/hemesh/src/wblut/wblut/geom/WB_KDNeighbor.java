@@ -25,6 +25,12 @@ public class WB_KDNeighbor<V> implements Comparable<WB_KDNeighbor<V>> {
 		this.value = neighbor.getValue();
 	}
 
+	WB_KDNeighbor(final double d2, final WB_Point3d neighbor, final V value) {
+		sqDistance = d2;
+		this.neighbor = neighbor;
+		this.value = value;
+	}
+
 	/**
 	 * Squared distance to the query point
 	 * @return squared distance
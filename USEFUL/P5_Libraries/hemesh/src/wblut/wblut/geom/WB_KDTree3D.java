@@ -0,0 +1,544 @@
+/**
+ *
+ */
+package wblut.geom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.WB_Parallel;
+
+/**
+ * Static KD-tree of 3D points with an int value per point. The tree is
+ * implicit: points are stored in flat arrays, reordered so the node for a
+ * range [s,e) is its middle element and its children are the ranges on
+ * either side. Each node splits on the axis with the largest extent of its
+ * range.
+ *
+ * The tree is built in one go in O(n log n). Queries write into arrays
+ * supplied by the caller and don't allocate. Points added after building
+ * are kept in a small list that is searched linearly, the tree is rebuilt
+ * when that list grows too large.
+ *
+ * A tree can be queried from several threads at once, but not while points
+ * are added.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class WB_KDTree3D {
+
+	/** Smallest number of queries per task in batched queries. */
+	private static final int	MINTASK		= 1024;
+
+	/** Minimum number of added points before a rebuild. */
+	private static final int	MINEXTRA	= 32;
+
+	/** Point coordinates in tree order, x, y, z. */
+	private double[]			coords;
+
+	/** Point values in tree order. */
+	private int[]				values;
+
+	/** Split axis of each node. */
+	private byte[]				axis;
+
+	/** Number of points in the tree. */
+	private int					size;
+
+	/** Points added since the last build. */
+	private double[]			extraCoords;
+
+	private int[]				extraValues;
+
+	private int					numberOfExtra;
+
+	/**
+	 * Empty tree, points can be added with add().
+	 */
+	public WB_KDTree3D() {
+		this(new double[0], new int[0], 0);
+	}
+
+	/**
+	 * Tree of packed coordinates, the value of each point is its index.
+	 *
+	 * @param coords x, y, z of each point
+	 */
+	public WB_KDTree3D(final double[] coords) {
+		this(coords, null, coords.length / 3);
+	}
+
+	/**
+	 *
+	 * @param coords x, y, z of each point
+	 * @param values value of each point, null for index
+	 * @param n number of points
+	 */
+	public WB_KDTree3D(final double[] coords, final int[] values, final int n) {
+		final double[] c = Arrays.copyOf(coords, 3 * n);
+		final int[] v = new int[n];
+		for (int i = 0; i < n; i++) {
+			v[i] = (values == null) ? i : values[i];
+		}
+		extraCoords = new double[3 * MINEXTRA];
+		extraValues = new int[MINEXTRA];
+		build(c, v, n);
+	}
+
+	/**
+	 * Tree of points, the value of each point is its index in the collection.
+	 *
+	 * @param points points
+	 */
+	public WB_KDTree3D(final Collection<? extends WB_Point3d> points) {
+		this(toCoords(points), null, points.size());
+	}
+
+	private static double[] toCoords(final Collection<? extends WB_Point3d> points) {
+		final double[] result = new double[3 * points.size()];
+		int i = 0;
+		for (final WB_Point3d p : points) {
+			result[i++] = p.x;
+			result[i++] = p.y;
+			result[i++] = p.z;
+		}
+		return result;
+	}
+
+	private void build(final double[] c, final int[] v, final int n) {
+		coords = c;
+		values = v;
+		size = n;
+		axis = new byte[n];
+		numberOfExtra = 0;
+		build(0, n);
+	}
+
+	private void build(final int s, final int e) {
+		if (e - s < 2) {
+			return;
+		}
+		double x0 = Double.POSITIVE_INFINITY, y0 = x0, z0 = x0;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = x1, z1 = x1;
+		for (int i = s; i < e; i++) {
+			x0 = Math.min(x0, coords[3 * i]);
+			y0 = Math.min(y0, coords[3 * i + 1]);
+			z0 = Math.min(z0, coords[3 * i + 2]);
+			x1 = Math.max(x1, coords[3 * i]);
+			y1 = Math.max(y1, coords[3 * i + 1]);
+			z1 = Math.max(z1, coords[3 * i + 2]);
+		}
+		final double dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+		final int a = (dx >= dy) ? ((dx >= dz) ? 0 : 2) : ((dy >= dz) ? 1 : 2);
+		final int m = (s + e) >>> 1;
+		select(s, e, m, a);
+		axis[m] = (byte) a;
+		build(s, m);
+		build(m + 1, e);
+	}
+
+	/**
+	 * Partition [s,e) so the point at k has the k-th coordinate along the
+	 * axis, smaller or equal points before it, larger or equal after it.
+	 */
+	private void select(final int s, final int e, final int k, final int a) {
+		int lo = s, hi = e - 1;
+		while (hi > lo) {
+			final double pivot = coords[3 * ((lo + hi) >>> 1) + a];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (coords[3 * i + a] < pivot) {
+					i++;
+				}
+				while (coords[3 * j + a] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		for (int k = 0; k < 3; k++) {
+			final double t = coords[3 * i + k];
+			coords[3 * i + k] = coords[3 * j + k];
+			coords[3 * j + k] = t;
+		}
+		final int t = values[i];
+		values[i] = values[j];
+		values[j] = t;
+	}
+
+	/**
+	 * Add a point. It is found by all following queries, the tree is rebuilt
+	 * when enough points have been added.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param value
+	 */
+	public void add(final double x, final double y, final double z,
+			final int value) {
+		if (numberOfExtra == extraValues.length) {
+			if (numberOfExtra >= Math.max(MINEXTRA, size >> 3)) {
+				rebuild();
+			} else {
+				extraCoords = Arrays.copyOf(extraCoords, 6 * numberOfExtra);
+				extraValues = Arrays.copyOf(extraValues, 2 * numberOfExtra);
+			}
+		}
+		extraCoords[3 * numberOfExtra] = x;
+		extraCoords[3 * numberOfExtra + 1] = y;
+		extraCoords[3 * numberOfExtra + 2] = z;
+		extraValues[numberOfExtra] = value;
+		numberOfExtra++;
+	}
+
+	/**
+	 * Add a point.
+	 *
+	 * @param p point
+	 * @param value value
+	 */
+	public void add(final WB_Point3d p, final int value) {
+		add(p.x, p.y, p.z, value);
+	}
+
+	private void rebuild() {
+		final int n = size + numberOfExtra;
+		final double[] c = Arrays.copyOf(coords, 3 * n);
+		final int[] v = Arrays.copyOf(values, n);
+		System.arraycopy(extraCoords, 0, c, 3 * size, 3 * numberOfExtra);
+		System.arraycopy(extraValues, 0, v, size, numberOfExtra);
+		build(c, v, n);
+	}
+
+	/**
+	 * Number of points.
+	 *
+	 * @return number of points
+	 */
+	public int size() {
+		return size + numberOfExtra;
+	}
+
+	/**
+	 * Value of the point closest to the query point.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return value, -1 if the tree is empty
+	 */
+	public int getNearest(final double x, final double y, final double z) {
+		final int i = nearest(x, y, z);
+		return (i == -1) ? -1 : getValue(i);
+	}
+
+	/**
+	 * Value of the point closest to the query point.
+	 *
+	 * @param p query point
+	 * @return value, -1 if the tree is empty
+	 */
+	public int getNearest(final WB_Point3d p) {
+		return getNearest(p.x, p.y, p.z);
+	}
+
+	/**
+	 * Index of the closest point, indices above size refer to added points.
+	 */
+	private int nearest(final double x, final double y, final double z) {
+		int best = nearest(0, size, x, y, z, -1, Double.POSITIVE_INFINITY);
+		double bestd2 = (best == -1) ? Double.POSITIVE_INFINITY : sqDistance(
+				coords, best, x, y, z);
+		for (int i = 0; i < numberOfExtra; i++) {
+			final double d2 = sqDistance(extraCoords, i, x, y, z);
+			if (d2 < bestd2) {
+				bestd2 = d2;
+				best = size + i;
+			}
+		}
+		return best;
+	}
+
+	private int nearest(final int s, final int e, final double x,
+			final double y, final double z, int best, double bestd2) {
+		if (s >= e) {
+			return best;
+		}
+		final int m = (s + e) >>> 1;
+		final double d2 = sqDistance(coords, m, x, y, z);
+		if (d2 < bestd2) {
+			best = m;
+			bestd2 = d2;
+		}
+		final int a = axis[m];
+		final double diff = ((a == 0) ? x : (a == 1) ? y : z)
+				- coords[3 * m + a];
+		final int near = nearest((diff < 0) ? s : m + 1, (diff < 0) ? m : e,
+				x, y, z, best, bestd2);
+		if (near != best) {
+			best = near;
+			bestd2 = sqDistance(coords, best, x, y, z);
+		}
+		if (diff * diff < bestd2) {
+			best = nearest((diff < 0) ? m + 1 : s, (diff < 0) ? e : m, x, y,
+					z, best, bestd2);
+		}
+		return best;
+	}
+
+	/**
+	 * Find the k points closest to the query point, sorted by distance. k is
+	 * the length of values.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param values receives values of the neighbors
+	 * @param sqDistances receives squared distances, same length as values
+	 * @return number of neighbors found, less than k if the tree is smaller
+	 */
+	public int getNearestNeighbors(final double x, final double y,
+			final double z, final int[] values, final double[] sqDistances) {
+		final int count = nearestIndices(x, y, z, values, sqDistances);
+		for (int i = 0; i < count; i++) {
+			values[i] = getValue(values[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * k nearest neighbors as point indices, indices above size refer to added
+	 * points.
+	 */
+	private int nearestIndices(final double x, final double y,
+			final double z, final int[] indices, final double[] sqDistances) {
+		final int k = indices.length;
+		if (k == 0) {
+			return 0;
+		}
+		int count = nearest(0, size, x, y, z, k, indices, sqDistances, 0);
+		for (int i = 0; i < numberOfExtra; i++) {
+			count = insert(sqDistance(extraCoords, i, x, y, z), size + i, k,
+					indices, sqDistances, count);
+		}
+		return count;
+	}
+
+	private int getValue(final int i) {
+		return (i < size) ? values[i] : extraValues[i - size];
+	}
+
+	private int nearest(final int s, final int e, final double x,
+			final double y, final double z, final int k, final int[] indices,
+			final double[] sqDistances, int count) {
+		if (s >= e) {
+			return count;
+		}
+		final int m = (s + e) >>> 1;
+		count = insert(sqDistance(coords, m, x, y, z), m, k, indices,
+				sqDistances, count);
+		final int a = axis[m];
+		final double diff = ((a == 0) ? x : (a == 1) ? y : z)
+				- coords[3 * m + a];
+		count = nearest((diff < 0) ? s : m + 1, (diff < 0) ? m : e, x, y, z,
+				k, indices, sqDistances, count);
+		if (count < k || diff * diff < sqDistances[k - 1]) {
+			count = nearest((diff < 0) ? m + 1 : s, (diff < 0) ? e : m, x, y,
+					z, k, indices, sqDistances, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Insert a candidate in the sorted neighbor list if it is closer than the
+	 * k-th neighbor.
+	 */
+	private static int insert(final double d2, final int index, final int k,
+			final int[] indices, final double[] sqDistances, int count) {
+		if (count == k) {
+			if (d2 >= sqDistances[k - 1]) {
+				return count;
+			}
+			count--;
+		}
+		int i = count;
+		while (i > 0 && sqDistances[i - 1] > d2) {
+			sqDistances[i] = sqDistances[i - 1];
+			indices[i] = indices[i - 1];
+			i--;
+		}
+		sqDistances[i] = d2;
+		indices[i] = index;
+		return count + 1;
+	}
+
+	/**
+	 * Find all points within a distance of the query point, in no particular
+	 * order. Only as many as fit in values are stored.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r radius
+	 * @param values receives values of the neighbors
+	 * @param sqDistances receives squared distances, can be null
+	 * @return number of points within the radius, can be larger than the
+	 *         number stored
+	 */
+	public int getNeighborsInRadius(final double x, final double y,
+			final double z, final double r, final int[] values,
+			final double[] sqDistances) {
+		final double r2 = r * r;
+		int count = inRadius(0, size, x, y, z, r2, values, sqDistances, 0);
+		for (int i = 0; i < numberOfExtra; i++) {
+			final double d2 = sqDistance(extraCoords, i, x, y, z);
+			if (d2 <= r2) {
+				count = store(d2, extraValues[i], values, sqDistances, count);
+			}
+		}
+		return count;
+	}
+
+	private int inRadius(final int s, final int e, final double x,
+			final double y, final double z, final double r2,
+			final int[] vals, final double[] sqDistances, int count) {
+		if (s >= e) {
+			return count;
+		}
+		final int m = (s + e) >>> 1;
+		final double d2 = sqDistance(coords, m, x, y, z);
+		if (d2 <= r2) {
+			count = store(d2, values[m], vals, sqDistances, count);
+		}
+		final int a = axis[m];
+		final double diff = ((a == 0) ? x : (a == 1) ? y : z)
+				- coords[3 * m + a];
+		if (diff <= 0 || diff * diff <= r2) {
+			count = inRadius(s, m, x, y, z, r2, vals, sqDistances, count);
+		}
+		if (diff >= 0 || diff * diff <= r2) {
+			count = inRadius(m + 1, e, x, y, z, r2, vals, sqDistances, count);
+		}
+		return count;
+	}
+
+	private static int store(final double d2, final int value,
+			final int[] vals, final double[] sqDistances, final int count) {
+		if (count < vals.length) {
+			vals[count] = value;
+			if (sqDistances != null) {
+				sqDistances[count] = d2;
+			}
+		}
+		return count + 1;
+	}
+
+	/**
+	 * Find the closest point for each of a batch of query points.
+	 *
+	 * @param queries x, y, z of each query point
+	 * @param numberOfQueries number of query points
+	 * @param values receives value of the closest point, -1 if the tree is
+	 *            empty
+	 * @param sqDistances receives squared distance to the closest point, can
+	 *            be null
+	 * @param parallel split the batch over the worker threads?
+	 */
+	public void getNearest(final double[] queries, final int numberOfQueries,
+			final int[] values, final double[] sqDistances,
+			final boolean parallel) {
+		if (parallel && numberOfQueries >= 2 * MINTASK
+				&& WB_Parallel.getThreads() > 1) {
+			final int[] chunks = WB_Parallel.split(numberOfQueries, MINTASK);
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int c = 0; c < chunks.length - 1; c++) {
+				final int s = chunks[c];
+				final int e = chunks[c + 1];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						getNearest(queries, s, e, values, sqDistances);
+						return null;
+					}
+				});
+			}
+			WB_Parallel.invokeAll(tasks);
+		} else {
+			getNearest(queries, 0, numberOfQueries, values, sqDistances);
+		}
+	}
+
+	private void getNearest(final double[] queries, final int s, final int e,
+			final int[] vals, final double[] sqDistances) {
+		for (int q = s; q < e; q++) {
+			final double x = queries[3 * q];
+			final double y = queries[3 * q + 1];
+			final double z = queries[3 * q + 2];
+			final int i = nearest(x, y, z);
+			if (i == -1) {
+				vals[q] = -1;
+				if (sqDistances != null) {
+					sqDistances[q] = Double.POSITIVE_INFINITY;
+				}
+			} else {
+				vals[q] = getValue(i);
+				if (sqDistances != null) {
+					sqDistances[q] = (i < size) ? sqDistance(coords, i, x, y,
+							z) : sqDistance(extraCoords, i - size, x, y, z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the k points closest to the query point, sorted by distance.
+	 * Convenience method, allocates the result.
+	 *
+	 * @param p query point
+	 * @param k number of neighbors
+	 * @return neighbors
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public WB_KDNeighbor<Integer>[] getNearestNeighbors(final WB_Point3d p,
+			final int k) {
+		final int[] indices = new int[Math.max(0, Math.min(k, size()))];
+		final double[] d2 = new double[indices.length];
+		final int n = nearestIndices(p.x, p.y, p.z, indices, d2);
+		final WB_KDNeighbor<Integer>[] result = new WB_KDNeighbor[n];
+		for (int i = 0; i < n; i++) {
+			final int j = indices[i];
+			final double[] c = (j < size) ? coords : extraCoords;
+			final int o = 3 * ((j < size) ? j : j - size);
+			result[i] = new WB_KDNeighbor<Integer>(d2[i], new WB_Point3d(
+					c[o], c[o + 1], c[o + 2]), getValue(j));
+		}
+		return result;
+	}
+
+	private static double sqDistance(final double[] c, final int i,
+			final double x, final double y, final double z) {
+		final double dx = c[3 * i] - x;
+		final double dy = c[3 * i + 1] - y;
+		final double dz = c[3 * i + 2] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+}
@@ -0,0 +1,410 @@
+/**
+ *
+ */
+package wblut.geom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.WB_Parallel;
+
+/**
+ * Static uniform grid of 3D points for neighborhood queries on large point
+ * sets. The grid is unbounded: cells are hashed into a table with one bucket
+ * per point, rounded up to a power of two. Points are sorted by bucket with a
+ * counting sort, each bucket is a contiguous range of the packed point
+ * arrays. Nothing is allocated per cell or per point.
+ *
+ * Queries don't allocate. Points sharing a bucket with a cell that is not
+ * queried are rejected by their distance, points in two queried cells that
+ * share a bucket are reported once.
+ *
+ * Unlike WB_GeomGrid, points can't be added or removed after building.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class WB_PointGrid {
+
+	/** Smallest number of points per task in parallel mode. */
+	private static final int	MINTASK	= 16384;
+
+	/**
+	 * Receives the points found by forEachNeighbor.
+	 */
+	public interface Visitor {
+
+		/**
+		 *
+		 * @param index index of the point
+		 * @param sqDistance squared distance to the query point
+		 * @return true to continue, false to stop the query
+		 */
+		boolean visit(int index, double sqDistance);
+	}
+
+	private final double		cellSize, invCellSize;
+
+	private final int			mask;
+
+	/** First slot of each bucket, bucket b is [start[b],start[b+1]). */
+	private final int[]			start;
+
+	/** Point index of each slot. */
+	private final int[]			indices;
+
+	/** Point coordinates in slot order. */
+	private final double[]		coords;
+
+	private final int			size;
+
+	/**
+	 *
+	 * @param coords x, y, z of each point
+	 * @param n number of points
+	 * @param cellSize cell size, typically the query radius
+	 */
+	public WB_PointGrid(final double[] coords, final int n,
+			final double cellSize) {
+		this(coords, n, cellSize, false);
+	}
+
+	/**
+	 *
+	 * @param coords x, y, z of each point
+	 * @param n number of points
+	 * @param cellSize cell size, typically the query radius
+	 * @param parallel hash and gather points concurrently?
+	 */
+	public WB_PointGrid(final double[] coords, final int n,
+			final double cellSize, final boolean parallel) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Cell size should be positive.");
+		}
+		this.cellSize = cellSize;
+		invCellSize = 1.0 / cellSize;
+		size = n;
+		int tableSize = 16;
+		while (tableSize < n) {
+			tableSize <<= 1;
+		}
+		mask = tableSize - 1;
+		start = new int[tableSize + 1];
+		indices = new int[n];
+		this.coords = new double[3 * n];
+
+		final int[] buckets = new int[n];
+		final boolean split = parallel && n >= 2 * MINTASK
+				&& WB_Parallel.getThreads() > 1;
+		final int[] chunks = split ? WB_Parallel.split(n, MINTASK)
+				: new int[] { 0, n };
+		run(chunks, new Range() {
+			public void run(final int s, final int e) {
+				for (int i = s; i < e; i++) {
+					buckets[i] = bucket(cell(coords[3 * i]),
+							cell(coords[3 * i + 1]), cell(coords[3 * i + 2]));
+				}
+			}
+		});
+		for (int i = 0; i < n; i++) {
+			start[buckets[i] + 1]++;
+		}
+		for (int b = 0; b < tableSize; b++) {
+			start[b + 1] += start[b];
+		}
+		// fill buckets from the back, keeps points in input order
+		final int[] next = start.clone();
+		for (int i = n - 1; i >= 0; i--) {
+			indices[--next[buckets[i] + 1]] = i;
+		}
+		final double[] sorted = this.coords;
+		run(chunks, new Range() {
+			public void run(final int s, final int e) {
+				for (int slot = s; slot < e; slot++) {
+					final int i = indices[slot];
+					sorted[3 * slot] = coords[3 * i];
+					sorted[3 * slot + 1] = coords[3 * i + 1];
+					sorted[3 * slot + 2] = coords[3 * i + 2];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Grid of points.
+	 *
+	 * @param points points, the index of a point is its position in the list
+	 * @param cellSize cell size
+	 */
+	public WB_PointGrid(final List<? extends WB_Point3d> points,
+			final double cellSize) {
+		this(toCoords(points), points.size(), cellSize, false);
+	}
+
+	private static double[] toCoords(final List<? extends WB_Point3d> points) {
+		final double[] result = new double[3 * points.size()];
+		int i = 0;
+		for (final WB_Point3d p : points) {
+			result[i++] = p.x;
+			result[i++] = p.y;
+			result[i++] = p.z;
+		}
+		return result;
+	}
+
+	private interface Range {
+		void run(int s, int e);
+	}
+
+	private static void run(final int[] chunks, final Range range) {
+		if (chunks.length == 2) {
+			range.run(chunks[0], chunks[1]);
+			return;
+		}
+		final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int s = chunks[c];
+			final int e = chunks[c + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					range.run(s, e);
+					return null;
+				}
+			});
+		}
+		WB_Parallel.invokeAll(tasks);
+	}
+
+	private int cell(final double v) {
+		final double c = v * invCellSize;
+		final int i = (int) c;
+		return (c < i) ? i - 1 : i;
+	}
+
+	private int bucket(final int i, final int j, final int k) {
+		return ((i * 73856093) ^ (j * 19349663) ^ (k * 83492791)) & mask;
+	}
+
+	/**
+	 * Number of points.
+	 *
+	 * @return number of points
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Call the visitor for every point within a distance of the query point,
+	 * in no particular order.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r radius
+	 * @param visitor visitor
+	 * @return false if the visitor stopped the query
+	 */
+	public boolean forEachNeighbor(final double x, final double y,
+			final double z, final double r, final Visitor visitor) {
+		final double r2 = r * r;
+		final int i0 = cell(x - r), i1 = cell(x + r);
+		final int j0 = cell(y - r), j1 = cell(y + r);
+		final int k0 = cell(z - r), k1 = cell(z + r);
+		if ((long) (i1 - i0 + 1) * (j1 - j0 + 1) * (k1 - k0 + 1) > mask) {
+			// more cells than buckets, check all points
+			for (int slot = 0; slot < size; slot++) {
+				final double d2 = sqDistance(slot, x, y, z);
+				if (d2 <= r2 && !visitor.visit(indices[slot], d2)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int k = k0; k <= k1; k++) {
+			for (int j = j0; j <= j1; j++) {
+				for (int i = i0; i <= i1; i++) {
+					final int b = bucket(i, j, k);
+					for (int slot = start[b]; slot < start[b + 1]; slot++) {
+						final double d2 = sqDistance(slot, x, y, z);
+						if (d2 <= r2 && inCell(slot, i, j, k)
+								&& !visitor.visit(indices[slot], d2)) {
+							return false;
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find all points within a distance of the query point, in no particular
+	 * order. Only as many as fit in result are stored.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r radius
+	 * @param result receives indices of the points
+	 * @param sqDistances receives squared distances, can be null
+	 * @return number of points within the radius, can be larger than the
+	 *         number stored
+	 */
+	public int getNeighborsInRadius(final double x, final double y,
+			final double z, final double r, final int[] result,
+			final double[] sqDistances) {
+		final double r2 = r * r;
+		final int i0 = cell(x - r), i1 = cell(x + r);
+		final int j0 = cell(y - r), j1 = cell(y + r);
+		final int k0 = cell(z - r), k1 = cell(z + r);
+		int count = 0;
+		if ((long) (i1 - i0 + 1) * (j1 - j0 + 1) * (k1 - k0 + 1) > mask) {
+			for (int slot = 0; slot < size; slot++) {
+				final double d2 = sqDistance(slot, x, y, z);
+				if (d2 <= r2) {
+					count = store(slot, d2, result, sqDistances, count);
+				}
+			}
+			return count;
+		}
+		for (int k = k0; k <= k1; k++) {
+			for (int j = j0; j <= j1; j++) {
+				for (int i = i0; i <= i1; i++) {
+					final int b = bucket(i, j, k);
+					for (int slot = start[b]; slot < start[b + 1]; slot++) {
+						final double d2 = sqDistance(slot, x, y, z);
+						if (d2 <= r2 && inCell(slot, i, j, k)) {
+							count = store(slot, d2, result, sqDistances, count);
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Check if any point other than the excluded one lies within a distance of
+	 * the query point.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param r radius
+	 * @param exclude index of point to ignore, -1 for none
+	 * @return true, if a point was found
+	 */
+	public boolean hasNeighbor(final double x, final double y, final double z,
+			final double r, final int exclude) {
+		final double r2 = r * r;
+		final int i0 = cell(x - r), i1 = cell(x + r);
+		final int j0 = cell(y - r), j1 = cell(y + r);
+		final int k0 = cell(z - r), k1 = cell(z + r);
+		if ((long) (i1 - i0 + 1) * (j1 - j0 + 1) * (k1 - k0 + 1) > mask) {
+			for (int slot = 0; slot < size; slot++) {
+				if (indices[slot] != exclude
+						&& sqDistance(slot, x, y, z) <= r2) {
+					return true;
+				}
+			}
+			return false;
+		}
+		for (int k = k0; k <= k1; k++) {
+			for (int j = j0; j <= j1; j++) {
+				for (int i = i0; i <= i1; i++) {
+					final int b = bucket(i, j, k);
+					for (int slot = start[b]; slot < start[b + 1]; slot++) {
+						if (indices[slot] != exclude
+								&& sqDistance(slot, x, y, z) <= r2) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Merge points closer than a tolerance. Points are processed in input
+	 * order, each point is mapped to the closest earlier point that was not
+	 * merged itself, or to itself if there is none within the tolerance.
+	 *
+	 * @param tolerance merge distance, at most the cell size for best
+	 *            performance
+	 * @return index of the point each point is merged with
+	 */
+	public int[] weld(final double tolerance) {
+		final int[] result = new int[size];
+		final double t2 = tolerance * tolerance;
+		// walk points in input order, indices[] is grouped by bucket
+		final int[] slotOf = new int[size];
+		for (int slot = 0; slot < size; slot++) {
+			slotOf[indices[slot]] = slot;
+		}
+		for (int p = 0; p < size; p++) {
+			final int ps = slotOf[p];
+			final double x = coords[3 * ps];
+			final double y = coords[3 * ps + 1];
+			final double z = coords[3 * ps + 2];
+			final int k1 = cell(z + tolerance);
+			final int j1 = cell(y + tolerance);
+			final int i1 = cell(x + tolerance);
+			int best = p;
+			double bestd2 = Double.POSITIVE_INFINITY;
+			for (int k = cell(z - tolerance); k <= k1; k++) {
+				for (int j = cell(y - tolerance); j <= j1; j++) {
+					for (int i = cell(x - tolerance); i <= i1; i++) {
+						final int b = bucket(i, j, k);
+						for (int slot = start[b]; slot < start[b + 1]; slot++) {
+							final double d2 = sqDistance(slot, x, y, z);
+							if (d2 > t2 || d2 > bestd2) {
+								continue;
+							}
+							final int q = indices[slot];
+							if (q < p && result[q] == q
+									&& (d2 < bestd2 || q < best)) {
+								bestd2 = d2;
+								best = q;
+							}
+						}
+					}
+				}
+			}
+			result[p] = best;
+		}
+		return result;
+	}
+
+	private boolean inCell(final int slot, final int i, final int j,
+			final int k) {
+		return cell(coords[3 * slot]) == i && cell(coords[3 * slot + 1]) == j
+				&& cell(coords[3 * slot + 2]) == k;
+	}
+
+	private int store(final int slot, final double d2, final int[] result,
+			final double[] sqDistances, final int count) {
+		if (count < result.length) {
+			result[count] = indices[slot];
+			if (sqDistances != null) {
+				sqDistances[count] = d2;
+			}
+		}
+		return count + 1;
+	}
+
+	private double sqDistance(final int slot, final double x, final double y,
+			final double z) {
+		final double dx = coords[3 * slot] - x;
+		final double dy = coords[3 * slot + 1] - y;
+		final double dz = coords[3 * slot + 2] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+}
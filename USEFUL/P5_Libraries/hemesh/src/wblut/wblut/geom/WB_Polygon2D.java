@@ -208,25 +208,36 @@ public class WB_Polygon2D {
 	}
 
 	/**
-	 * Triangulate polygon.
+	 * Triangulate polygon. Triangles have the opposite orientation of the
+	 * polygon.
 	 *
 	 * @return arrayList of WB_Triangle, points are not copied
 	 */
 	public List<WB_ExplicitTriangle2D> triangulate() {
-		final Triangulation tri = new Triangulation();
-		tri.startWithBoundary(points);
-		return tri.getExplicitTrianglesAsList();
+		final int[] tris = WB_Delaunay2D.triangulatePolygon(points, n);
+		final List<WB_ExplicitTriangle2D> result = new FastList<WB_ExplicitTriangle2D>(
+				tris.length / 3);
+		for (int i = 0; i < tris.length; i += 3) {
+			result.add(new WB_ExplicitTriangle2D(points[tris[i]],
+					points[tris[i + 2]], points[tris[i + 1]]));
+		}
+		return result;
 	}
 
 	/**
-	 * Triangulate polygon.
+	 * Triangulate polygon. Triangles have the orientation of the polygon.
 	 *
 	 * @return arrayList of WB_IndexedTriangle, points are not copied
 	 */
 	public List<WB_IndexedTriangle2D> indexedTriangulate() {
-		final Triangulation tri = new Triangulation();
-		tri.startWithBoundary(points, true);
-		return tri.getIndexedTrianglesAsList(points, true);
+		final int[] tris = WB_Delaunay2D.triangulatePolygon(points, n);
+		final List<WB_IndexedTriangle2D> result = new FastList<WB_IndexedTriangle2D>(
+				tris.length / 3);
+		for (int i = 0; i < tris.length; i += 3) {
+			result.add(new WB_IndexedTriangle2D(tris[i], tris[i + 1],
+					tris[i + 2], points));
+		}
+		return result;
 	}
 
 	/**
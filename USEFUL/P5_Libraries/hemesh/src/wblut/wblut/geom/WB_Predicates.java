@@ -3,15 +3,38 @@
  */
 package wblut.geom;
 
-import wblut.math.WB_DoubleDouble;
-
 /**
+ * Robust 3D orientation and insphere tests. A fast floating point filter
+ * decides most cases, the rest are evaluated exactly with expansion
+ * arithmetic, see WB_Expansion.
+ * 
  * @author Frederik Vanhoutte, W:Blut
  * 
  */
 public class WB_Predicates {
-	private static double orientErrorBound = -1;
-	private static double insphereErrorBound = -1;
+	private static final double	orientErrorBound;
+	private static final double	insphereErrorBound;
+
+	// expansion slots
+	private static final int	ADX = 0, BDX = 1, CDX = 2, ADY = 3, BDY = 4,
+			CDY = 5, ADZ = 6, BDZ = 7, CDZ = 8;
+	private static final int	AEX = 0, BEX = 1, CEX = 2, DEX = 3, AEY = 4,
+			BEY = 5, CEY = 6, DEY = 7, AEZ = 8, BEZ = 9, CEZ = 10, DEZ = 11;
+	private static final int	T1 = 12, T2 = 13;
+	private static final int	AB = 14, BC = 15, CD = 16, DA = 17, AC = 18,
+			BD = 19;
+	private static final int	ABC = 20, BCD = 21, CDA = 22, DAB = 23;
+	private static final int	ALIFT = 24, BLIFT = 25, CLIFT = 26,
+			DLIFT = 27;
+	private static final int	U1 = 28, U2 = 29, U3 = 30;
+	private static final int	M1 = 14, M2 = 15, M3 = 16;
+	private static final int	DET = 31;
+
+	static {
+		final double epsilon = findMachEpsilon();
+		orientErrorBound = (7.0 + 56.0 * epsilon) * epsilon;
+		insphereErrorBound = (16.0 + 224.0 * epsilon) * epsilon;
+	}
 
 	private static double findMachEpsilon() {
 		double epsilon, check, lastcheck;
@@ -25,28 +48,23 @@ public class WB_Predicates {
 		return epsilon;
 	}
 
-	private static void init() {
-		final double epsilon = findMachEpsilon();
-
-		orientErrorBound = (7.0 + 56.0 * epsilon) * epsilon;
-		insphereErrorBound = (16.0 + 224.0 * epsilon) * epsilon;
-	}
-
 	// >0 if pd below plane defined by pa,pb,pc
 	// <0 if above (pa,pb,pc are ccw viewed from above)
 	// = 0 if on plane
 	public static double orient(final WB_Point3d pa, final WB_Point3d pb,
 			final WB_Point3d pc, final WB_Point3d pd) {
-		if (orientErrorBound == -1) {
-			init();
-		}
+		return orient(pa.x, pa.y, pa.z, pb.x, pb.y, pb.z, pc.x, pc.y, pc.z,
+				pd.x, pd.y, pd.z);
+	}
 
-		final double adx = pa.x - pd.x, bdx = pb.x - pd.x, cdx = pc.x
-				- pd.x;
-		final double ady = pa.y - pd.y, bdy = pb.y - pd.y, cdy = pc.y
-				- pd.y;
-		double adz = pa.z - pb.z, bdz = pb.z - pd.x, cdz = pc.z
-				- pd.z;
+	public static double orient(final double pax, final double pay,
+			final double paz, final double pbx, final double pby,
+			final double pbz, final double pcx, final double pcy,
+			final double pcz, final double pdx, final double pdy,
+			final double pdz) {
+		final double adx = pax - pdx, bdx = pbx - pdx, cdx = pcx - pdx;
+		final double ady = pay - pdy, bdy = pby - pdy, cdy = pcy - pdy;
+		double adz = paz - pdz, bdz = pbz - pdz, cdz = pcz - pdz;
 
 		double adxbdy = adx * bdy;
 		double adybdx = ady * bdx;
@@ -92,56 +110,47 @@ public class WB_Predicates {
 				+ (bdxcdy + bdycdx) * adz;
 		errbound *= orientErrorBound;
 
-		if (det >= errbound) {
-			return (det > 0) ? 1 : -1;
-
-		} else if (-det >= errbound) {
+		if ((det > errbound) || (-det > errbound)) {
 			return (det > 0) ? 1 : -1;
-		} else {
-			return orientExact(pa, pb, pc, pd);
 		}
-
+		return orientExact(pax, pay, paz, pbx, pby, pbz, pcx, pcy, pcz, pdx,
+				pdy, pdz);
 	}
 
+	/**
+	 * Exact orientation, without filter.
+	 */
 	public static double orientExact(final WB_Point3d pa, final WB_Point3d pb,
 			final WB_Point3d pc, final WB_Point3d pd) {
-		WB_DoubleDouble ax, ay, az, bx, by, bz, cx, cy, cz, dx, dy, dz;
-		WB_DoubleDouble adx, bdx, cdx, ady, bdy, cdy, adz, bdz, cdz;
-		WB_DoubleDouble m1, m2, m3;
-		WB_DoubleDouble det;
-
-		det = WB_DoubleDouble.ZERO;
-
-		ax = new WB_DoubleDouble(pa.x);
-		ay = new WB_DoubleDouble(pa.y);
-		az = new WB_DoubleDouble(pa.z);
-		bx = new WB_DoubleDouble(pb.x);
-		by = new WB_DoubleDouble(pb.y);
-		bz = new WB_DoubleDouble(pb.z);
-		cx = new WB_DoubleDouble(pc.x);
-		cy = new WB_DoubleDouble(pc.y);
-		cz = new WB_DoubleDouble(pc.z);
-		dx = new WB_DoubleDouble(pd.x).negate();
-		dy = new WB_DoubleDouble(pd.y).negate();
-		dz = new WB_DoubleDouble(pd.z).negate();
-
-		adx = ax.add(dx);
-		bdx = bx.add(dx);
-		cdx = cx.add(dx);
-		ady = ay.add(dy);
-		bdy = by.add(dy);
-		cdy = cy.add(dy);
-		adz = az.add(dz);
-		bdz = bz.add(dz);
-		cdz = cz.add(dz);
-
-		m1 = adx.multiply(bdy).subtract(ady.multiply(bdx));
-		m2 = adx.multiply(cdy).subtract(ady.multiply(cdx));
-		m3 = bdx.multiply(cdy).subtract(bdy.multiply(cdx));
-
-		det = m1.multiply(cdz).add(m3.multiply(adz)).subtract(m2.multiply(bdz));
-
-		return det.compareTo(WB_DoubleDouble.ZERO);
+		return orientExact(pa.x, pa.y, pa.z, pb.x, pb.y, pb.z, pc.x, pc.y,
+				pc.z, pd.x, pd.y, pd.z);
+	}
+
+	public static double orientExact(final double pax, final double pay,
+			final double paz, final double pbx, final double pby,
+			final double pbz, final double pcx, final double pcy,
+			final double pcz, final double pdx, final double pdy,
+			final double pdz) {
+		final WB_Expansion x = WB_Expansion.get();
+		x.diff(ADX, pax, pdx);
+		x.diff(BDX, pbx, pdx);
+		x.diff(CDX, pcx, pdx);
+		x.diff(ADY, pay, pdy);
+		x.diff(BDY, pby, pdy);
+		x.diff(CDY, pcy, pdy);
+		x.diff(ADZ, paz, pdz);
+		x.diff(BDZ, pbz, pdz);
+		x.diff(CDZ, pcz, pdz);
+		minor(x, M1, ADX, BDY, ADY, BDX);
+		minor(x, M2, ADX, CDY, ADY, CDX);
+		minor(x, M3, BDX, CDY, BDY, CDX);
+		// det=m1*cdz-m2*bdz+m3*adz
+		x.mul(U1, M1, CDZ);
+		x.mul(U2, M2, BDZ);
+		x.mul(U3, M3, ADZ);
+		x.sub(T1, U1, U2);
+		x.add(DET, T1, U3);
+		return x.sign(DET);
 	}
 
 	// >0 if pe inside sphere through pa,pb,pc,pd (if orient3d(pa,pb,pc,pd)>0))
@@ -149,10 +158,16 @@ public class WB_Predicates {
 	// =0 if on sphere
 	public static double insphere(final WB_Point3d pa, final WB_Point3d pb,
 			final WB_Point3d pc, final WB_Point3d pd, final WB_Point3d pe) {
+		return insphere(pa.x, pa.y, pa.z, pb.x, pb.y, pb.z, pc.x, pc.y, pc.z,
+				pd.x, pd.y, pd.z, pe.x, pe.y, pe.z);
+	}
 
-		if (insphereErrorBound == -1) {
-			init();
-		}
+	public static double insphere(final double pax, final double pay,
+			final double paz, final double pbx, final double pby,
+			final double pbz, final double pcx, final double pcy,
+			final double pcz, final double pdx, final double pdy,
+			final double pdz, final double pex, final double pey,
+			final double pez) {
 		double aex, bex, cex, dex;
 		double aey, bey, cey, dey;
 		double aez, bez, cez, dez;
@@ -168,18 +183,18 @@ public class WB_Predicates {
 		double det;
 		double permanent, errbound;
 
-		aex = pa.x - pe.x;
-		bex = pb.x - pe.x;
-		cex = pc.x - pe.x;
-		dex = pd.x - pe.x;
-		aey = pa.y - pe.y;
-		bey = pb.y - pe.y;
-		cey = pc.y - pe.y;
-		dey = pd.y - pe.y;
-		aez = pa.z - pe.z;
-		bez = pb.z - pe.z;
-		cez = pc.z - pe.z;
-		dez = pd.z - pe.z;
+		aex = pax - pex;
+		bex = pbx - pex;
+		cex = pcx - pex;
+		dex = pdx - pex;
+		aey = pay - pey;
+		bey = pby - pey;
+		cey = pcy - pey;
+		dey = pdy - pey;
+		aez = paz - pez;
+		bez = pbz - pez;
+		cez = pcz - pez;
+		dez = pdz - pez;
 
 		aexbey = aex * bey;
 		bexaey = bex * aey;
@@ -249,87 +264,104 @@ public class WB_Predicates {
 			return (det > 0) ? 1 : -1;
 		}
 
-		return insphereExact(pa, pb, pc, pd, pe);
+		return insphereExact(pax, pay, paz, pbx, pby, pbz, pcx, pcy, pcz, pdx,
+				pdy, pdz, pex, pey, pez);
 	}
 
+	/**
+	 * Exact insphere test, without filter.
+	 */
 	public static double insphereExact(final WB_Point3d pa,
 			final WB_Point3d pb, final WB_Point3d pc, final WB_Point3d pd,
 			final WB_Point3d pe) {
-		WB_DoubleDouble ax, ay, az, bx, by, bz, cx, cy, cz, dx, dy, dz, ex, ey, ez;
-		WB_DoubleDouble aex, bex, cex, dex;
-		WB_DoubleDouble aey, bey, cey, dey;
-		WB_DoubleDouble aez, bez, cez, dez;
-		WB_DoubleDouble aexbey, bexaey, bexcey, cexbey, cexdey, dexcey, dexaey, aexdey;
-		WB_DoubleDouble aexcey, cexaey, bexdey, dexbey;
-		WB_DoubleDouble alift, blift, clift, dlift;
-		WB_DoubleDouble ab, bc, cd, da, ac, bd;
-		WB_DoubleDouble abc, bcd, cda, dab;
-		WB_DoubleDouble det;
-
-		det = WB_DoubleDouble.ZERO;
-
-		ax = new WB_DoubleDouble(pa.x);
-		ay = new WB_DoubleDouble(pa.y);
-		az = new WB_DoubleDouble(pa.z);
-		bx = new WB_DoubleDouble(pb.x);
-		by = new WB_DoubleDouble(pb.y);
-		bz = new WB_DoubleDouble(pb.z);
-		cx = new WB_DoubleDouble(pc.x);
-		cy = new WB_DoubleDouble(pc.y);
-		cz = new WB_DoubleDouble(pc.z);
-		dx = new WB_DoubleDouble(pd.x);
-		dy = new WB_DoubleDouble(pd.y);
-		dz = new WB_DoubleDouble(pd.z);
-		ex = new WB_DoubleDouble(pe.x).negate();
-		ey = new WB_DoubleDouble(pe.y).negate();
-		ez = new WB_DoubleDouble(pe.z).negate();
-
-		aex = ax.add(ex);
-		bex = bx.add(ex);
-		cex = cx.add(ex);
-		dex = dx.add(ex);
-		aey = ay.add(ey);
-		bey = by.add(ey);
-		cey = cy.add(ey);
-		dey = dy.add(ey);
-		aez = az.add(ez);
-		bez = bz.add(ez);
-		cez = cz.add(ez);
-		dez = dz.add(ez);
-
-		aexbey = aex.multiply(bey);
-		bexaey = bex.multiply(aey);
-		ab = aexbey.subtract(bexaey);
-		bexcey = bex.multiply(cey);
-		cexbey = cex.multiply(bey);
-		bc = bexcey.subtract(cexbey);
-		cexdey = cex.multiply(dey);
-		dexcey = dex.multiply(cey);
-		cd = cexdey.subtract(dexcey);
-		dexaey = dex.multiply(aey);
-		aexdey = aex.multiply(dey);
-		da = dexaey.subtract(aexdey);
-		aexcey = aex.multiply(cey);
-		cexaey = cex.multiply(aey);
-		ac = aexcey.subtract(cexaey);
-		bexdey = bex.multiply(dey);
-		dexbey = dex.multiply(bey);
-		bd = bexdey.subtract(dexbey);
-
-		abc = aez.multiply(bc).add(cez.multiply(ab)).subtract(bez.multiply(ac));
-		bcd = bez.multiply(cd).add(dez.multiply(bc)).subtract(cez.multiply(bd));
-		cda = cez.multiply(da).add(aez.multiply(cd)).subtract(dez.multiply(ac));
-		dab = dez.multiply(ab).add(bez.multiply(da)).subtract(aez.multiply(bd));
-
-		alift = aex.sqr().add(aey.sqr()).add(aez.sqr());
-		blift = bex.sqr().add(bey.sqr()).add(bez.sqr());
-		clift = cex.sqr().add(cey.sqr()).add(cez.sqr());
-		dlift = dex.sqr().add(dey.sqr()).add(dez.sqr());
-
-		det = dlift.multiply(abc).subtract(clift.multiply(dab))
-				.add(blift.multiply(cda)).subtract(alift.multiply(bcd));
-
-		return det.compareTo(WB_DoubleDouble.ZERO);
+		return insphereExact(pa.x, pa.y, pa.z, pb.x, pb.y, pb.z, pc.x, pc.y,
+				pc.z, pd.x, pd.y, pd.z, pe.x, pe.y, pe.z);
+	}
+
+	public static double insphereExact(final double pax, final double pay,
+			final double paz, final double pbx, final double pby,
+			final double pbz, final double pcx, final double pcy,
+			final double pcz, final double pdx, final double pdy,
+			final double pdz, final double pex, final double pey,
+			final double pez) {
+		final WB_Expansion x = WB_Expansion.get();
+		x.diff(AEX, pax, pex);
+		x.diff(BEX, pbx, pex);
+		x.diff(CEX, pcx, pex);
+		x.diff(DEX, pdx, pex);
+		x.diff(AEY, pay, pey);
+		x.diff(BEY, pby, pey);
+		x.diff(CEY, pcy, pey);
+		x.diff(DEY, pdy, pey);
+		x.diff(AEZ, paz, pez);
+		x.diff(BEZ, pbz, pez);
+		x.diff(CEZ, pcz, pez);
+		x.diff(DEZ, pdz, pez);
+		minor(x, AB, AEX, BEY, BEX, AEY);
+		minor(x, BC, BEX, CEY, CEX, BEY);
+		minor(x, CD, CEX, DEY, DEX, CEY);
+		minor(x, DA, DEX, AEY, AEX, DEY);
+		minor(x, AC, AEX, CEY, CEX, AEY);
+		minor(x, BD, BEX, DEY, DEX, BEY);
+		// abc=aez*bc-bez*ac+cez*ab
+		x.mul(U1, AEZ, BC);
+		x.mul(U2, BEZ, AC);
+		x.mul(U3, CEZ, AB);
+		x.sub(T1, U1, U2);
+		x.add(ABC, T1, U3);
+		// bcd=bez*cd-cez*bd+dez*bc
+		x.mul(U1, BEZ, CD);
+		x.mul(U2, CEZ, BD);
+		x.mul(U3, DEZ, BC);
+		x.sub(T1, U1, U2);
+		x.add(BCD, T1, U3);
+		// cda=cez*da+dez*ac+aez*cd
+		x.mul(U1, CEZ, DA);
+		x.mul(U2, DEZ, AC);
+		x.mul(U3, AEZ, CD);
+		x.add(T1, U1, U2);
+		x.add(CDA, T1, U3);
+		// dab=dez*ab+aez*bd+bez*da
+		x.mul(U1, DEZ, AB);
+		x.mul(U2, AEZ, BD);
+		x.mul(U3, BEZ, DA);
+		x.add(T1, U1, U2);
+		x.add(DAB, T1, U3);
+		lift(x, ALIFT, AEX, AEY, AEZ);
+		lift(x, BLIFT, BEX, BEY, BEZ);
+		lift(x, CLIFT, CEX, CEY, CEZ);
+		lift(x, DLIFT, DEX, DEY, DEZ);
+		// det=(dlift*abc-clift*dab)+(blift*cda-alift*bcd)
+		x.mul(U1, DLIFT, ABC);
+		x.mul(U2, CLIFT, DAB);
+		x.sub(T1, U1, U2);
+		x.mul(U1, BLIFT, CDA);
+		x.mul(U2, ALIFT, BCD);
+		x.sub(T2, U1, U2);
+		x.add(DET, T1, T2);
+		return x.sign(DET);
+	}
+
+	/**
+	 * h=a*b-c*d.
+	 */
+	private static void minor(final WB_Expansion x, final int h, final int a,
+			final int b, final int c, final int d) {
+		x.mul(T1, a, b);
+		x.mul(T2, c, d);
+		x.sub(h, T1, T2);
+	}
+
+	/**
+	 * h=a*a+b*b+c*c.
+	 */
+	private static void lift(final WB_Expansion x, final int h, final int a,
+			final int b, final int c) {
+		x.mul(U1, a, a);
+		x.mul(U2, b, b);
+		x.mul(U3, c, c);
+		x.add(T1, U1, U2);
+		x.add(h, T1, U3);
 	}
 
 	// >0 if pe inside sphere through pa,pb,pc,pd (regardless of
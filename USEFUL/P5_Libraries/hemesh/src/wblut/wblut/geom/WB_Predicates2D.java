@@ -3,15 +3,33 @@
  */
 package wblut.geom;
 
-import wblut.math.WB_DoubleDouble;
-
 /**
+ * Robust 2D orientation and incircle tests. A fast floating point filter
+ * decides most cases, the rest are evaluated exactly with expansion
+ * arithmetic, see WB_Expansion.
+ * 
  * @author Frederik Vanhoutte, W:Blut
  * 
  */
 public class WB_Predicates2D {
-	private static double orientErrorBound = -1;
-	private static double incircleErrorBound = -1;
+	private static final double	orientErrorBound;
+	private static final double	incircleErrorBound;
+
+	// expansion slots
+	private static final int	ACX = 0, BCX = 1, ACY = 2, BCY = 3;
+	private static final int	ADX = 0, ADY = 1, BDX = 2, BDY = 3, CDX = 4,
+			CDY = 5;
+	private static final int	T1 = 6, T2 = 7;
+	private static final int	BC = 8, CA = 9, AB = 10;
+	private static final int	ALIFT = 11, BLIFT = 12, CLIFT = 13;
+	private static final int	U1 = 14, U2 = 15, U3 = 16;
+	private static final int	S = 17, DET = 18;
+
+	static {
+		final double epsilon = findMachEpsilon();
+		orientErrorBound = (3.0 + 16.0 * epsilon) * epsilon;
+		incircleErrorBound = (10.0 + 96.0 * epsilon) * epsilon;
+	}
 
 	private static double findMachEpsilon() {
 		double epsilon, check, lastcheck;
@@ -25,25 +43,22 @@ public class WB_Predicates2D {
 		return epsilon;
 	}
 
-	private static void init() {
-		final double epsilon = findMachEpsilon();
-		orientErrorBound = (3.0 + 16.0 * epsilon) * epsilon;
-		incircleErrorBound = (10.0 + 96.0 * epsilon) * epsilon;
-	}
-
 	// >0 if pa,pb,pc ccw
 	// <0 if pa,pb,pc cw
 	// =0 if colinear
 	public static double orient2d(final WB_Point2d pa, final WB_Point2d pb,
 			final WB_Point2d pc) {
-		if (orientErrorBound == -1) {
-			init();
-		}
+		return orient2d(pa.x, pa.y, pb.x, pb.y, pc.x, pc.y);
+	}
+
+	public static double orient2d(final double pax, final double pay,
+			final double pbx, final double pby, final double pcx,
+			final double pcy) {
 		double detleft, detright, det;
 		double detsum, errbound;
 
-		detleft = (pa.x - pc.x) * (pb.y - pc.y);
-		detright = (pa.y - pc.y) * (pb.x - pc.x);
+		detleft = (pax - pcx) * (pby - pcy);
+		detright = (pay - pcy) * (pbx - pcx);
 		det = detleft - detright;
 
 		if (detleft > 0.0) {
@@ -66,30 +81,28 @@ public class WB_Predicates2D {
 		if ((det >= errbound) || (-det >= errbound)) {
 			return Math.signum(det);
 		}
-		return orientDD2d(pa, pb, pc);
+
+		return orientExact2d(pax, pay, pbx, pby, pcx, pcy);
 	}
 
+	/**
+	 * Exact orientation, without filter.
+	 */
 	public static double orientDD2d(final WB_Point2d pa, final WB_Point2d pb,
 			final WB_Point2d pc) {
-		WB_DoubleDouble ax, ay, bx, by, cx, cy;
-		WB_DoubleDouble acx, bcx, acy, bcy;
-		WB_DoubleDouble detleft, detright, det;
-		det = WB_DoubleDouble.valueOf(0.0);
-		ax = WB_DoubleDouble.valueOf(pa.x);
-		ay = WB_DoubleDouble.valueOf(pa.y);
-		bx = WB_DoubleDouble.valueOf(pb.x);
-		by = WB_DoubleDouble.valueOf(pb.y);
-		cx = WB_DoubleDouble.valueOf(pc.x);
-		cy = WB_DoubleDouble.valueOf(pc.y);
-		acx = ax.add(cx.negate());
-		bcx = bx.add(cx.negate());
-		acy = ay.add(cy.negate());
-		bcy = by.add(cy.negate());
-		detleft = acx.multiply(bcy);
-		detright = acy.multiply(bcx);
-		det = detleft.add(detright.negate());
+		return orientExact2d(pa.x, pa.y, pb.x, pb.y, pc.x, pc.y);
+	}
 
-		return det.compareTo(WB_DoubleDouble.ZERO);
+	public static double orientExact2d(final double pax, final double pay,
+			final double pbx, final double pby, final double pcx,
+			final double pcy) {
+		final WB_Expansion x = WB_Expansion.get();
+		x.diff(ACX, pax, pcx);
+		x.diff(BCX, pbx, pcx);
+		x.diff(ACY, pay, pcy);
+		x.diff(BCY, pby, pcy);
+		minor(x, DET, ACX, BCY, ACY, BCX);
+		return x.sign(DET);
 	}
 
 	// >0 if pd inside circle through pa,pb,pc (if ccw)
@@ -97,22 +110,24 @@ public class WB_Predicates2D {
 	// =0 if on circle
 	public static double incircle2d(final WB_Point2d pa, final WB_Point2d pb,
 			final WB_Point2d pc, final WB_Point2d pd) {
+		return incircle2d(pa.x, pa.y, pb.x, pb.y, pc.x, pc.y, pd.x, pd.y);
+	}
 
-		if (incircleErrorBound == -1) {
-			init();
-		}
+	public static double incircle2d(final double pax, final double pay,
+			final double pbx, final double pby, final double pcx,
+			final double pcy, final double pdx, final double pdy) {
 		double adx, ady, bdx, bdy, cdx, cdy;
 		double bdxcdy, cdxbdy, cdxady, adxcdy, adxbdy, bdxady;
 		double alift, blift, clift;
 		double det;
 		double permanent, errbound;
 
-		adx = pa.x - pd.x;
-		bdx = pb.x - pd.x;
-		cdx = pc.x - pd.x;
-		ady = pa.y - pd.y;
-		bdy = pb.y - pd.y;
-		cdy = pc.y - pd.y;
+		adx = pax - pdx;
+		bdx = pbx - pdx;
+		cdx = pcx - pdx;
+		ady = pay - pdy;
+		bdy = pby - pdy;
+		cdy = pcy - pdy;
 
 		bdxcdy = bdx * cdy;
 		cdxbdy = cdx * bdy;
@@ -154,66 +169,59 @@ public class WB_Predicates2D {
 		if ((det > errbound) || (-det > errbound)) {
 			return Math.signum(det);
 		}
-		return incircleDD2d(pa, pb, pc, pd);
+		return incircleExact2d(pax, pay, pbx, pby, pcx, pcy, pdx, pdy);
 	}
 
+	/**
+	 * Exact incircle test, without filter.
+	 */
 	public static double incircleDD2d(final WB_Point2d pa, final WB_Point2d pb,
 			final WB_Point2d pc, final WB_Point2d pd) {
-		WB_DoubleDouble ax, ay, bx, by, cx, cy, dx, dy;
-		WB_DoubleDouble adx, ady, bdx, bdy, cdx, cdy;
-		WB_DoubleDouble bdxcdy, cdxbdy, cdxady, adxcdy, adxbdy, bdxady;
-		WB_DoubleDouble alift, blift, clift;
-		WB_DoubleDouble det;
-
-		det = WB_DoubleDouble.valueOf(0.0);
-
-		ax = WB_DoubleDouble.valueOf(pa.x);
-		ay = WB_DoubleDouble.valueOf(pa.y);
-		bx = WB_DoubleDouble.valueOf(pb.x);
-		by = WB_DoubleDouble.valueOf(pb.y);
-		cx = WB_DoubleDouble.valueOf(pc.x);
-		cy = WB_DoubleDouble.valueOf(pc.y);
-		dx = WB_DoubleDouble.valueOf(pd.x);
-		dy = WB_DoubleDouble.valueOf(pd.y);
-
-		dx = dx.negate();
-		dy = dy.negate();
-
-		adx = ax.add(dx);
-		bdx = bx.add(dx);
-		cdx = cx.add(dx);
-		ady = ay.add(dy);
-		bdy = by.add(dy);
-		cdy = cy.add(dy);
-
-		bdxcdy = bdx.multiply(cdy);
-		cdxbdy = cdx.multiply(bdy);
-
-		cdxady = cdx.multiply(ady);
-		adxcdy = adx.multiply(cdy);
-
-		adxbdy = adx.multiply(bdy);
-		bdxady = bdx.multiply(ady);
-
-		adx = adx.multiply(adx);
-		ady = ady.multiply(ady);
-		alift = adx.add(ady);
-
-		bdx = bdx.multiply(bdx);
-		bdy = bdy.multiply(bdy);
-		blift = bdx.add(bdy);
-
-		cdx = cdx.multiply(cdx);
-		cdy = cdy.multiply(cdy);
-		clift = cdx.add(cdy);
+		return incircleExact2d(pa.x, pa.y, pb.x, pb.y, pc.x, pc.y, pd.x, pd.y);
+	}
 
-		alift = alift.multiply(bdxcdy.add(cdxbdy.negate()));
-		blift = blift.multiply(cdxady.add(adxcdy.negate()));
-		clift = clift.multiply(adxbdy.add(bdxady.negate()));
+	public static double incircleExact2d(final double pax, final double pay,
+			final double pbx, final double pby, final double pcx,
+			final double pcy, final double pdx, final double pdy) {
+		final WB_Expansion x = WB_Expansion.get();
+		x.diff(ADX, pax, pdx);
+		x.diff(ADY, pay, pdy);
+		x.diff(BDX, pbx, pdx);
+		x.diff(BDY, pby, pdy);
+		x.diff(CDX, pcx, pdx);
+		x.diff(CDY, pcy, pdy);
+		minor(x, BC, BDX, CDY, CDX, BDY);
+		minor(x, CA, CDX, ADY, ADX, CDY);
+		minor(x, AB, ADX, BDY, BDX, ADY);
+		lift(x, ALIFT, ADX, ADY);
+		lift(x, BLIFT, BDX, BDY);
+		lift(x, CLIFT, CDX, CDY);
+		x.mul(U1, ALIFT, BC);
+		x.mul(U2, BLIFT, CA);
+		x.mul(U3, CLIFT, AB);
+		x.add(S, U1, U2);
+		x.add(DET, S, U3);
+		return x.sign(DET);
+	}
 
-		det = alift.add(blift).add(clift);
+	/**
+	 * h=a*b-c*d.
+	 */
+	private static void minor(final WB_Expansion x, final int h, final int a,
+			final int b, final int c, final int d) {
+		x.mul(T1, a, b);
+		x.mul(T2, c, d);
+		x.sub(h, T1, T2);
+	}
 
-		return det.compareTo(WB_DoubleDouble.ZERO);
+	/**
+	 * h=a*a+b*b.
+	 */
+	private static void lift(final WB_Expansion x, final int h, final int a,
+			final int b) {
+		x.mul(T1, a, a);
+		x.mul(T2, b, b);
+		x.add(h, T1, T2);
 	}
 
 	// >0 if pd inside circle through pa,pb,pc (cw or ccw)
@@ -18,11 +18,7 @@ public class WB_Triangulation2D {
 	 */
 	public static WB_IndexedTriangle2D[] triangulate(final WB_Point2d[] points,
 			final int numPoints) {
-
-		final Triangulation tri = new Triangulation();
-		tri.startWithBoundary(points);
-		final WB_Point2d[] tripoints = tri.getPoints();
-		return tri.getIndexedTriangles(tripoints);
+		return new WB_Delaunay2D(points, numPoints).getIndexedTriangles(points);
 
 	}
 
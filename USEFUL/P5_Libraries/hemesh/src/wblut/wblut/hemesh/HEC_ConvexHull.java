@@ -15,18 +15,18 @@ package wblut.hemesh;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
-
 
 import javolution.util.FastMap;
-import quickhull3d.Point3d;
-import quickhull3d.QuickHull3D;
-import wblut.geom.WB_ClassifyPointToPlane;
+import wblut.geom.WB_ConvexHull3D;
 import wblut.geom.WB_Point3d;
 
 /**
  * Creates the convex hull of a collection of points.
  * 
+ * The mesh is built directly from the faces and halfedge pairs of
+ * WB_ConvexHull3D. With setParallel(true) the hulls of chunks of points are
+ * built on multiple threads first.
+ * 
  * @author Frederik Vanhoutte (W:Blut)
  * 
  */
@@ -40,6 +40,8 @@ public class HEC_ConvexHull extends HEC_Creator {
 
 	private boolean						useQuickHull;
 
+	private boolean						parallel;
+
 	public FastMap<Integer, Integer>	vertexToPointIndex;
 
 	/**
@@ -182,14 +184,26 @@ public class HEC_ConvexHull extends HEC_Creator {
 	}
 
 	/**
-	 * Use QHull3D?
+	 * Use QHull3D? Kept for compatibility, the hull is always built with
+	 * WB_ConvexHull3D.
 	 *
 	 * @param b true/false
 	 * @return self
 	 */
 	public HEC_ConvexHull setUseQuickHull(final boolean b) {
 		useQuickHull = b;
-		;
+		return this;
+	}
+
+	/**
+	 * Build the hulls of chunks of points on multiple threads first. Only
+	 * worthwhile for large numbers of points.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_ConvexHull setParallel(final boolean b) {
+		parallel = b;
 		return this;
 	}
 
@@ -199,132 +213,73 @@ public class HEC_ConvexHull extends HEC_Creator {
 	 */
 	@Override
 	public HE_Mesh createBase() {
-		if (useQuickHull) {
-			return createWithQuickHull();
-		}
-		if (points == null) {
-			return new HE_Mesh();
-		}
-		if (numberOfPoints == 0) {
-			numberOfPoints = points.length;
-		}
-		final WB_Point3d cog = new WB_Point3d();
-		for (int i = 0; i < numberOfPoints; i++) {
-			cog.add(points[i]);
-		}
-		cog.div(numberOfPoints);
-
-		HE_Mesh mesh = new HE_Mesh(new HEC_Cube().setEdge(.01).setCenter(cog));
-		vertexToPointIndex = new FastMap<Integer, Integer>();
-		for (int i = 0; i < numberOfPoints; i++) {
-
-			mesh = addPointToHull(mesh, i);
-		}
-		return mesh;
+		return createWithQuickHull();
 	}
 
+	/**
+	 * Create the hull. Nearly coplanar faces are merged, vertices are labeled
+	 * with the index of their point.
+	 *
+	 * @return HE_Mesh
+	 */
 	public HE_Mesh createWithQuickHull() {
+		vertexToPointIndex = new FastMap<Integer, Integer>();
 		if (points == null) {
 			return new HE_Mesh();
 		}
 		if (numberOfPoints == 0) {
 			numberOfPoints = points.length;
 		}
-		final Point3d[] locpoints = new Point3d[numberOfPoints];
+		final double[] coords = new double[3 * numberOfPoints];
 		for (int i = 0; i < numberOfPoints; i++) {
-			locpoints[i] = new Point3d(points[i].x, points[i].y, points[i].z);
+			coords[3 * i] = points[i].x;
+			coords[3 * i + 1] = points[i].y;
+			coords[3 * i + 2] = points[i].z;
 		}
-		final QuickHull3D hull = new QuickHull3D();
-		hull.build(locpoints);
-		// /hull.triangulate();
-		final int[][] faceIndices = hull.getFaces(QuickHull3D.POINT_RELATIVE);
-		final HEC_FromFacelist ffl = new HEC_FromFacelist().setVertices(points)
-				.setFaces(faceIndices).setDuplicate(false);
-		final HE_Mesh result = ffl.createBase();
-		vertexToPointIndex = new FastMap<Integer, Integer>();
-		final Iterator<HE_Vertex> vItr = result.vItr();
-		int i = 0;
-		while (vItr.hasNext()) {
-			vertexToPointIndex.put(vItr.next().key(), i++);
-		}
-
-		result.cleanUnusedElementsByFace();
-		return result;
-
-	}
-
-	private HE_Selection getAllFacesVisibleToPoint(final HE_Mesh mesh,
-			final WB_Point3d p) {
-		final HE_Selection visibleFaces = new HE_Selection(mesh);
-		final Iterator<HE_Face> fItr = mesh.fItr();
-		HE_Face f;
-		while (fItr.hasNext()) {
-			f = fItr.next();
-			if (f.toPlane().classifyPointToPlane(p) == WB_ClassifyPointToPlane.POINT_IN_FRONT_OF_PLANE) {
-				visibleFaces.add(f);
+		final WB_ConvexHull3D hull = new WB_ConvexHull3D(coords,
+				numberOfPoints, parallel);
+		final int[] offsets = hull.getFaceOffsets();
+		final int[] faceVertices = hull.getFaceVertices();
+		final int[] pairs = hull.getPairs();
+		final HE_Mesh result = new HE_Mesh();
+		final HE_Vertex[] vertices = new HE_Vertex[numberOfPoints];
+		final HE_Halfedge[] halfedges = new HE_Halfedge[faceVertices.length];
+		for (int i = 0; i < faceVertices.length; i++) {
+			final int id = faceVertices[i];
+			if (vertices[id] == null) {
+				vertices[id] = new HE_Vertex(points[id]);
+				vertices[id].setLabel(id);
+				vertexToPointIndex.put(vertices[id].key(), id);
+				result.add(vertices[id]);
 			}
+			halfedges[i] = new HE_Halfedge();
+			halfedges[i].setVertex(vertices[id]);
+			vertices[id].setHalfedge(halfedges[i]);
+			result.add(halfedges[i]);
 		}
-		return visibleFaces;
-
-	}
-
-	private HE_Mesh addPointToHull(final HE_Mesh mesh, final int i) {
-		final WB_Point3d p = points[i];
-
-		final HE_Selection visibleFaces = getAllFacesVisibleToPoint(mesh, p);
-		if (visibleFaces.numberOfFaces() > 0) {
-			final Iterator<HE_Face> fItr = visibleFaces.fItr();
-			while (fItr.hasNext()) {
-				mesh.deleteFace(fItr.next());
-
+		for (int f = 0; f < hull.getNumberOfFaces(); f++) {
+			final HE_Face face = new HE_Face();
+			face.setLabel(f);
+			face.setHalfedge(halfedges[offsets[f]]);
+			result.add(face);
+			for (int i = offsets[f]; i < offsets[f + 1]; i++) {
+				halfedges[i].setFace(face);
+				halfedges[i].setNext(halfedges[(i + 1 < offsets[f + 1]) ? i + 1
+						: offsets[f]]);
 			}
-			mesh.cleanUnusedElementsByFace();
-			final List<HE_Halfedge> halfedges = mesh.getUnpairedHalfedges();
-			final HE_Vertex v = new HE_Vertex(p);
-			vertexToPointIndex.put(v.key(), i);
-			mesh.add(v);
-			final int n = halfedges.size();
-
-			for (int j = 0; j < n; j++) {
-				final HE_Halfedge he = halfedges.get(j);
-				final HE_Halfedge hen = new HE_Halfedge();
-				mesh.add(hen);
-				final HE_Halfedge hei = new HE_Halfedge();
-				final HE_Halfedge heo = new HE_Halfedge();
-				mesh.add(hei);
-				mesh.add(heo);
-				hen.setPair(he);
+		}
+		for (int i = 0; i < halfedges.length; i++) {
+			if (i < pairs[i]) {
+				final HE_Halfedge he = halfedges[i];
+				final HE_Halfedge hep = halfedges[pairs[i]];
+				he.setPair(hep);
 				final HE_Edge e = new HE_Edge();
-				mesh.add(e);
-				he.setEdge(e);
-				hen.setEdge(e);
 				e.setHalfedge(he);
-				hen.setVertex(he.getNextInFace().getVertex());
-				hei.setVertex(he.getVertex());
-				heo.setVertex(v);
-				v.setHalfedge(heo);
-				final HE_Face nf = new HE_Face();
-				mesh.add(nf);
-				nf.setHalfedge(hei);
-				hen.setFace(nf);
-				hei.setFace(nf);
-				heo.setFace(nf);
-				hen.setNext(hei);
-				hei.setNext(heo);
-				heo.setNext(hen);
-			}
-			mesh.pairHalfedges();
-
-		}
-
-		final Collection<Integer> c = vertexToPointIndex.keySet();
-		final Iterator<Integer> itr = c.iterator();
-		while (itr.hasNext()) {
-			final int key = itr.next();
-			if (mesh.getVertexByKey(key) == null) {
-				itr.remove();
+				he.setEdge(e);
+				hep.setEdge(e);
+				result.add(e);
 			}
 		}
-		return mesh;
+		return result;
 	}
 }
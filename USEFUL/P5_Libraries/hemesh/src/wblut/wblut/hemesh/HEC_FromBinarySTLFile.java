@@ -9,15 +9,31 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPInputStream;
 
-import wblut.geom.WB_ExplicitTriangle;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_Point3d;
 
 
 
 /**
+ * Creates a mesh from a binary STL file, optionally gzipped.
+ *
+ * Uncompressed files are memory-mapped in ranges of facets, each range is
+ * parsed into an indexed triangle list. Identical vertices are welded on the
+ * fly through a hash of their float coordinates, the ranges are then merged
+ * in file order and passed to HEC_FromFacelist without further duplicate
+ * checking. With setParallel(true) the ranges are parsed on multiple
+ * threads, the result is the same.
+ *
  * @author Frederik Vanhoutte, W:Blut
  * 
  * based on
@@ -48,9 +64,19 @@ import wblut.geom.WB_Point3d;
  */
 
 public class HEC_FromBinarySTLFile extends HEC_Creator {
-	private final byte[]	buf	= new byte[12];
-	private String			path;
-	private double			scale;
+
+	/** Size of a facet record: normal, 3 vertices, attribute. */
+	private static final int	FACET		= 50;
+
+	/** Size of header and facet count. */
+	private static final int	HEADER		= 84;
+
+	/** Largest range of facets mapped at once. */
+	private static final int	MAXRANGE	= 1 << 22;
+
+	private String				path;
+	private double				scale;
+	private boolean				parallel;
 
 	public HEC_FromBinarySTLFile() {
 		super();
@@ -76,17 +102,16 @@ public class HEC_FromBinarySTLFile extends HEC_Creator {
 		return this;
 	}
 
-	private final double bufferToDouble() {
-		return Float.intBitsToFloat(bufferToInt());
-	}
-
-	private final int bufferToInt() {
-		return byteToInt(buf[0]) | (byteToInt(buf[1]) << 8)
-				| (byteToInt(buf[2]) << 16) | (byteToInt(buf[3]) << 24);
-	}
-
-	private final int byteToInt(final byte b) {
-		return (b < 0 ? 256 + b : b);
+	/**
+	 * Parse facets and pair halfedges on multiple threads. Only worthwhile
+	 * for large files.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_FromBinarySTLFile setParallel(final boolean b) {
+		parallel = b;
+		return this;
 	}
 
 	private InputStream createInputStream(final File file) {
@@ -106,17 +131,6 @@ public class HEC_FromBinarySTLFile extends HEC_Creator {
 		return null;
 	}
 
-	private WB_Point3d readVector(final DataInputStream ds, final WB_Point3d result)
-			throws IOException {
-		ds.read(buf, 0, 4);
-		result.x = scale * bufferToDouble();
-		ds.read(buf, 0, 4);
-		result.y = scale * bufferToDouble();
-		ds.read(buf, 0, 4);
-		result.z = scale * bufferToDouble();
-		return result;
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * @see wblut.hemesh.creators.HEC_Creator#createBase()
@@ -124,42 +138,272 @@ public class HEC_FromBinarySTLFile extends HEC_Creator {
 	@Override
 	protected HE_Mesh createBase() {
 		final File file = new File(path);
-		final InputStream stream = createInputStream(file);
-		final ArrayList<WB_ExplicitTriangle> triangles = new ArrayList<WB_ExplicitTriangle>();
 		try {
-			final DataInputStream ds = new DataInputStream(
-					new BufferedInputStream(stream, 0x8000));
-			// read header, ignore color model
-			for (int i = 0; i < 80; i++) {
-				ds.read();
-			}
-			// read num faces
-			ds.read(buf, 0, 4);
-			final int numFaces = bufferToInt();
-			final WB_Point3d a = new WB_Point3d();
-			final WB_Point3d b = new WB_Point3d();
-			final WB_Point3d c = new WB_Point3d();
-			for (int i = 0; i < numFaces; i++) {
-				// ignore face normal
-				ds.read(buf, 0, 12);
-				// face vertices
-				readVector(ds, a);
-				readVector(ds, b);
-				readVector(ds, c);
-				triangles
-						.add(new WB_ExplicitTriangle(a.get(), b.get(), c.get()));
-				// ignore colour
-				ds.read(buf, 0, 2);
-			}
-			final HEC_FromTriangles<WB_ExplicitTriangle> ft = new HEC_FromTriangles<WB_ExplicitTriangle>();
-			ft.setTriangles(triangles);
-			return new HE_Mesh(ft);
-
+			final Welder welder;
+			if (file.getName().toLowerCase().endsWith(".gz")) {
+				welder = readStream(file);
+			} else {
+				welder = readMapped(file);
+			}
+			final WB_Point3d[] vertices = new WB_Point3d[welder.nv];
+			for (int i = 0; i < welder.nv; i++) {
+				vertices[i] = new WB_Point3d(scale * welder.coords[3 * i],
+						scale * welder.coords[3 * i + 1], scale
+								* welder.coords[3 * i + 2]);
+			}
+			final int[][] faces = new int[welder.nt][];
+			for (int i = 0; i < welder.nt; i++) {
+				faces[i] = new int[] { welder.triangles[3 * i],
+						welder.triangles[3 * i + 1], welder.triangles[3 * i + 2] };
+			}
+			return new HEC_FromFacelist().setVertices(vertices)
+					.setFaces(faces).setDuplicate(false).setParallel(parallel)
+					.createBase();
 		} catch (final IOException e) {
 			e.printStackTrace();
 		}
 		return null;
+	}
 
+	/**
+	 * Read uncompressed file through memory-mapped ranges of facets.
+	 *
+	 * @param file file
+	 * @return welded triangles
+	 * @throws IOException
+	 */
+	private Welder readMapped(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER).order(
+					ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Unexpected end of file.");
+				}
+			}
+			// trust the file size over the facet count in the header
+			final long available = (channel.size() - HEADER) / FACET;
+			final int n = (int) Math.min(header.getInt(80) & 0xffffffffL,
+					available);
+			int[] ranges = parallel ? WB_Parallel.split(n, 1 << 16)
+					: new int[] { 0, n };
+			final int minRanges = (n + MAXRANGE - 1) / MAXRANGE;
+			if (ranges.length - 1 < minRanges) {
+				ranges = new int[minRanges + 1];
+				for (int i = 0; i <= minRanges; i++) {
+					ranges[i] = (int) ((long) n * i / minRanges);
+				}
+			}
+			final List<Callable<Welder>> tasks = new ArrayList<Callable<Welder>>();
+			for (int r = 0; r < ranges.length - 1; r++) {
+				final int from = ranges[r];
+				final int to = ranges[r + 1];
+				tasks.add(new Callable<Welder>() {
+					public Welder call() throws IOException {
+						final ByteBuffer buffer = channel.map(
+								FileChannel.MapMode.READ_ONLY, HEADER
+										+ (long) FACET * from,
+								(long) FACET * (to - from)).order(
+								ByteOrder.LITTLE_ENDIAN);
+						final Welder welder = new Welder(to - from);
+						welder.parse(buffer, to - from);
+						return welder;
+					}
+				});
+			}
+			final List<Welder> parts;
+			if (parallel && tasks.size() > 1) {
+				parts = WB_Parallel.invokeAll(tasks);
+			} else {
+				parts = new ArrayList<Welder>();
+				for (final Callable<Welder> task : tasks) {
+					try {
+						parts.add(task.call());
+					} catch (final IOException e) {
+						throw e;
+					} catch (final Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+			return merge(parts, n);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read compressed file in blocks of facets.
+	 *
+	 * @param file file
+	 * @return welded triangles
+	 * @throws IOException
+	 */
+	private Welder readStream(final File file) throws IOException {
+		final InputStream stream = createInputStream(file);
+		final DataInputStream ds = new DataInputStream(new BufferedInputStream(
+				stream, 0x8000));
+		try {
+			final byte[] block = new byte[FACET * 4096];
+			ds.readFully(block, 0, HEADER);
+			final int n = ByteBuffer.wrap(block, 0, HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN).getInt(80);
+			final Welder welder = new Welder(Math.min(n, MAXRANGE));
+			final ByteBuffer buffer = ByteBuffer.wrap(block).order(
+					ByteOrder.LITTLE_ENDIAN);
+			int read = 0;
+			while (read < n) {
+				final int count = Math.min(4096, n - read);
+				ds.readFully(block, 0, FACET * count);
+				buffer.clear();
+				welder.parse(buffer, count);
+				read += count;
+			}
+			return welder;
+		} finally {
+			ds.close();
+		}
+	}
+
+	/**
+	 * Weld the parsed ranges in file order. The vertex order is the same as
+	 * when welding the whole file at once.
+	 *
+	 * @param parts welded ranges
+	 * @param n total number of facets
+	 * @return welded triangles
+	 */
+	private Welder merge(final List<Welder> parts, final int n) {
+		if (parts.size() == 1) {
+			return parts.get(0);
+		}
+		final Welder result = new Welder(n);
+		for (int p = 0; p < parts.size(); p++) {
+			final Welder part = parts.get(p);
+			final int[] remap = new int[part.nv];
+			for (int i = 0; i < part.nv; i++) {
+				remap[i] = result.add(part.coords[3 * i],
+						part.coords[3 * i + 1], part.coords[3 * i + 2]);
+			}
+			for (int i = 0; i < part.nt; i++) {
+				result.addTriangle(remap[part.triangles[3 * i]],
+						remap[part.triangles[3 * i + 1]],
+						remap[part.triangles[3 * i + 2]]);
+			}
+			parts.set(p, null);
+		}
+		return result;
+	}
+
+	/**
+	 * Indexed triangle list that merges vertices with identical coordinates,
+	 * looked up through an open addressing table on the float bits.
+	 */
+	private static class Welder {
+		float[]	coords;
+		int		nv;
+		int[]	triangles;
+		int		nt;
+
+		/** Vertex index+1, 0 is free. */
+		int[]	table;
+
+		Welder(final int facets) {
+			// closed meshes have about half as many vertices as facets
+			final int expected = Math.max(16, facets / 2);
+			coords = new float[3 * expected];
+			triangles = new int[3 * Math.max(16, facets)];
+			int cap = 16;
+			while (cap < 2 * expected) {
+				cap += cap;
+			}
+			table = new int[cap];
+		}
+
+		void parse(final ByteBuffer buffer, final int facets) {
+			int offset = buffer.position();
+			for (int i = 0; i < facets; i++) {
+				// skip normal, ignore attribute
+				final int a = add(buffer.getFloat(offset + 12),
+						buffer.getFloat(offset + 16),
+						buffer.getFloat(offset + 20));
+				final int b = add(buffer.getFloat(offset + 24),
+						buffer.getFloat(offset + 28),
+						buffer.getFloat(offset + 32));
+				final int c = add(buffer.getFloat(offset + 36),
+						buffer.getFloat(offset + 40),
+						buffer.getFloat(offset + 44));
+				addTriangle(a, b, c);
+				offset += FACET;
+			}
+		}
+
+		private static int hash(final int x, final int y, final int z) {
+			int h = x * 0x9E3779B1 + y;
+			h = h * 0x9E3779B1 + z;
+			h *= 0x9E3779B1;
+			return h ^ (h >>> 16);
+		}
+
+		int add(float x, float y, float z) {
+			// -0.0 and 0.0 weld
+			x += 0.0f;
+			y += 0.0f;
+			z += 0.0f;
+			final int bx = Float.floatToIntBits(x);
+			final int by = Float.floatToIntBits(y);
+			final int bz = Float.floatToIntBits(z);
+			final int mask = table.length - 1;
+			int index = hash(bx, by, bz) & mask;
+			int e;
+			while ((e = table[index]) != 0) {
+				final int i = 3 * (e - 1);
+				if (Float.floatToIntBits(coords[i]) == bx
+						&& Float.floatToIntBits(coords[i + 1]) == by
+						&& Float.floatToIntBits(coords[i + 2]) == bz) {
+					return e - 1;
+				}
+				index = (index + 1) & mask;
+			}
+			if (3 * nv == coords.length) {
+				coords = Arrays.copyOf(coords, 2 * coords.length);
+			}
+			coords[3 * nv] = x;
+			coords[3 * nv + 1] = y;
+			coords[3 * nv + 2] = z;
+			table[index] = ++nv;
+			if (2 * nv > table.length) {
+				rehash();
+			}
+			return nv - 1;
+		}
+
+		private void rehash() {
+			table = new int[2 * table.length];
+			final int mask = table.length - 1;
+			for (int v = 0; v < nv; v++) {
+				int index = hash(Float.floatToIntBits(coords[3 * v]),
+						Float.floatToIntBits(coords[3 * v + 1]),
+						Float.floatToIntBits(coords[3 * v + 2]))
+						& mask;
+				while (table[index] != 0) {
+					index = (index + 1) & mask;
+				}
+				table[index] = v + 1;
+			}
+		}
+
+		void addTriangle(final int a, final int b, final int c) {
+			if (3 * nt == triangles.length) {
+				triangles = Arrays.copyOf(triangles, 2 * triangles.length);
+			}
+			triangles[3 * nt] = a;
+			triangles[3 * nt + 1] = b;
+			triangles[3 * nt + 2] = c;
+			nt++;
+		}
 	}
 
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010, Frederik Vanhoutte This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ * http://creativecommons.org/licenses/LGPL/2.1/ This library is distributed in
+ * the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Lesser General Public License for more details. You should have
+ * received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package wblut.hemesh;
+
+/**
+ * Creates a new mesh from a HE_CompactMesh.
+ * 
+ * @author Frederik Vanhoutte (W:Blut)
+ * 
+ */
+public class HEC_FromCompactMesh extends HEC_Creator {
+
+	/** Source mesh. */
+	private HE_CompactMesh	source;
+
+	/**
+	 * Instantiates a new HEC_FromCompactMesh.
+	 *
+	 */
+	public HEC_FromCompactMesh() {
+		super();
+		override = true;
+	}
+
+	/**
+	 * Instantiates a new HEC_FromCompactMesh.
+	 *
+	 * @param mesh source mesh
+	 */
+	public HEC_FromCompactMesh(final HE_CompactMesh mesh) {
+		this();
+		source = mesh;
+	}
+
+	/**
+	 * Set source mesh.
+	 *
+	 * @param mesh source mesh
+	 * @return self
+	 */
+	public HEC_FromCompactMesh setSource(final HE_CompactMesh mesh) {
+		source = mesh;
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see wblut.hemesh.HE_Creator#create()
+	 */
+	@Override
+	protected HE_Mesh createBase() {
+		if (source == null) {
+			return new HE_Mesh();
+		}
+		return source.toMesh();
+	}
+}
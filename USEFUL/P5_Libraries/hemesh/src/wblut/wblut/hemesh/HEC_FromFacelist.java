@@ -20,8 +20,7 @@ import java.util.List;
 
 import wblut.WB_Epsilon;
 import wblut.geom.WB_Distance;
-import wblut.geom.WB_KDNeighbor;
-import wblut.geom.WB_KDTree3Dold;
+import wblut.geom.WB_KDTree3D;
 import wblut.geom.WB_Point3d;
 
 
@@ -44,6 +43,9 @@ public class HEC_FromFacelist extends HEC_Creator {
 	/** Duplicate vertices? */
 	private boolean			duplicate;
 
+	/** Pair halfedges on multiple threads? */
+	private boolean			parallel;
+
 	/**
 	 * Instantiates a new HEC_Facelist.
 	 *
@@ -52,6 +54,7 @@ public class HEC_FromFacelist extends HEC_Creator {
 		super();
 		override = true;
 		duplicate = true;
+		parallel = false;
 	}
 
 	/**
@@ -209,6 +212,18 @@ public class HEC_FromFacelist extends HEC_Creator {
 		return this;
 	}
 
+	/**
+	 * Pair halfedges on multiple threads. Only worthwhile for very large
+	 * meshes, e.g. imported from STL or OBJ files.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_FromFacelist setParallel(final boolean b) {
+		parallel = b;
+		return this;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see wblut.hemesh.HE_Creator#create()
@@ -220,32 +235,51 @@ public class HEC_FromFacelist extends HEC_Creator {
 		if ((faces != null) && (vertices != null)) {
 			final HE_Vertex[] uniqueVertices = new HE_Vertex[vertices.length];
 			if (duplicate) {
-				final WB_KDTree3Dold<Integer> kdtree = new WB_KDTree3Dold<Integer>();
-				WB_KDNeighbor<Integer>[] neighbors;
-				HE_Vertex v = new HE_Vertex(vertices[0]);
-				kdtree.put(v, 0);
-				uniqueVertices[0] = v;
-				mesh.add(v);
-				for (int i = 1; i < vertices.length; i++) {
-					v = new HE_Vertex(vertices[i]);
-					neighbors = kdtree.getNearestNeighbors(v, 1, false);
-					if (neighbors[0].sqDistance() < WB_Epsilon.SQEPSILON) {
-						uniqueVertices[i] = uniqueVertices[neighbors[0].value()];
-						/*
-						 * System.out.println("HEC_FromFaceList : vertex " + i +
-						 * " already exists as vertex " + neighbors[0].value() +
-						 * ".");
-						 */
-					} else {
-						/*
-						 * System.out.println("HEC_FromFaceList : vertex " + i +
-						 * " is unique.");
-						 */
-						kdtree.put(v, i);
+				final int n = vertices.length;
+				final double[] coords = new double[3 * n];
+				for (int i = 0; i < n; i++) {
+					coords[3 * i] = vertices[i].x;
+					coords[3 * i + 1] = vertices[i].y;
+					coords[3 * i + 2] = vertices[i].z;
+				}
+				final WB_KDTree3D kdtree = new WB_KDTree3D(coords);
+				final double r = Math.sqrt(WB_Epsilon.SQEPSILON);
+				final boolean[] unique = new boolean[n];
+				int[] neighbors = new int[16];
+				double[] d2 = new double[16];
+				for (int i = 0; i < n; i++) {
+					int count = kdtree.getNeighborsInRadius(coords[3 * i],
+							coords[3 * i + 1], coords[3 * i + 2], r, neighbors,
+							d2);
+					if (count > neighbors.length) {
+						neighbors = new int[2 * count];
+						d2 = new double[2 * count];
+						count = kdtree.getNeighborsInRadius(coords[3 * i],
+								coords[3 * i + 1], coords[3 * i + 2], r,
+								neighbors, d2);
+					}
+					// closest earlier unique vertex, as if vertices were
+					// inserted one by one
+					int closest = -1;
+					for (int j = 0; j < count; j++) {
+						final int k = neighbors[j];
+						if (k >= i || !unique[k]
+								|| d2[j] >= WB_Epsilon.SQEPSILON) {
+							continue;
+						}
+						if (closest == -1 || d2[j] < d2[closest]
+								|| (d2[j] == d2[closest] && k < neighbors[closest])) {
+							closest = j;
+						}
+					}
+					if (closest == -1) {
+						final HE_Vertex v = new HE_Vertex(vertices[i]);
+						unique[i] = true;
 						uniqueVertices[i] = v;
-						mesh.add(uniqueVertices[i]);
+						mesh.add(v);
+					} else {
+						uniqueVertices[i] = uniqueVertices[neighbors[closest]];
 					}
-
 				}
 			} else {
 				HE_Vertex v;
@@ -293,7 +327,7 @@ public class HEC_FromFacelist extends HEC_Creator {
 					mesh.addHalfedges(faceEdges);
 				}
 			}
-			mesh.pairHalfedges();
+			mesh.pairHalfedges(parallel);
 			mesh.capHalfedges();
 			//mesh.resolvePinchPoints();
 
@@ -3,33 +3,56 @@
  */
 package wblut.hemesh;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPInputStream;
 
-import wblut.geom.WB_ExplicitTriangle;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_Point3d;
 
 /**
+ * Creates a mesh from the vertices and faces of an OBJ file, optionally
+ * gzipped. Texture coordinates, normals, groups and materials are ignored.
+ *
+ * The file is tokenized directly from bytes, numbers are parsed without
+ * creating Strings. Uncompressed files are memory-mapped in ranges that end
+ * on a line break, with setParallel(true) the ranges are parsed on multiple
+ * threads. Vertices with identical coordinates are welded through a hash
+ * before the mesh is built with HEC_FromFacelist.
+ *
  * @author Corneel Cannaerts, Intorspekto, 2012
  * 
  */
 
 public class HEC_FromObjFile extends HEC_Creator {
-	private String path;
-	private double scale;
+
+	/** Largest range of bytes mapped at once. */
+	private static final int		MAXRANGE	= 1 << 28;
+
+	/** Exactly representable powers of ten. */
+	private static final double[]	POW10		= { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private String					path;
+	private double					scale;
+	private boolean					duplicate;
+	private boolean					parallel;
 
 	public HEC_FromObjFile() {
 		super();
 		scale = 1;
 		path = null;
+		duplicate = true;
 		override = true;
 	}
 
@@ -37,6 +60,7 @@ public class HEC_FromObjFile extends HEC_Creator {
 		super();
 		this.path = path;
 		scale = 1;
+		duplicate = true;
 		override = true;
 	}
 
@@ -50,6 +74,29 @@ public class HEC_FromObjFile extends HEC_Creator {
 		return this;
 	}
 
+	/**
+	 * Weld vertices with identical coordinates, default true.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_FromObjFile setDuplicate(final boolean b) {
+		duplicate = b;
+		return this;
+	}
+
+	/**
+	 * Parse the file and pair halfedges on multiple threads. Only worthwhile
+	 * for large files.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_FromObjFile setParallel(final boolean b) {
+		parallel = b;
+		return this;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -57,62 +104,91 @@ public class HEC_FromObjFile extends HEC_Creator {
 	 */
 	@Override
 	protected HE_Mesh createBase() {
-		if (path == null)
+		if (path == null) {
 			return new HE_Mesh();
+		}
 		final File file = new File(path);
-		InputStream is = createInputStream(file);
-		if (is == null)
+		List<Part> parts;
+		try {
+			if (file.getName().toLowerCase().endsWith(".gz")) {
+				parts = readStream(file);
+			} else {
+				parts = readMapped(file);
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
 			return new HE_Mesh();
-		final ArrayList<WB_ExplicitTriangle> triangles = new ArrayList<WB_ExplicitTriangle>();
-		ArrayList<WB_Point3d> vertexList = new ArrayList();
-		ArrayList<int[]> faceList = new ArrayList();
-		int faceCount = 0;
-	
-		// load OBJ file as an array of strings
-		String objStrings[] = loadStrings(is);
-		for (int i = 0; i < objStrings.length; i++) {
-	
-			// split every line in parts divided by spaces
-			String[] parts = objStrings[i].split("\\s+");
-	
-			// the first part indicates the kind of data that is in that line
-			// v stands for vertex data
-			if (parts[0].equals("v")) {
-				double x1 =scale* Double.parseDouble(parts[1]);
-				double y1 =scale* Double.parseDouble(parts[2]);
-				double z1 = scale*Double.parseDouble(parts[3]);
-				WB_Point3d pointLoc = new WB_Point3d(x1, y1, z1);
-				vertexList.add(pointLoc);
-			}
-			// f stands for facelist data
-			// should work for non triangular faces
-			if (parts[0].equals("f")) {
-				int[] tempFace = new int[parts.length - 1];
-				for (int j = 0; j < parts.length - 1; j++) {
-					String[] num = parts[j + 1].split("/");
-					tempFace[j] = Integer.parseInt(num[0]) - 1;
-				}
-				faceList.add(tempFace);
-				faceCount++;
-			}
-		}
-	
-		// the HEC_FromFacelist wants the face data as int[][]
-		int[][] faceArray = new int[faceCount][];
-		for (int i = 0; i < faceCount; i++) {
-			int[] tempFace = faceList.get(i);
-			faceArray[i] = tempFace;
-		}
-		// et voila... add to the creator
-		HEC_FromFacelist creator = new HEC_FromFacelist();
-		creator.setVertices(vertexList);
-		creator.setFaces(faceArray);
-		creator.setDuplicate(true);
-		return new HE_Mesh(creator);
-	
+		}
+		int nv = 0;
+		int nf = 0;
+		for (final Part part : parts) {
+			nv += part.nv;
+			nf += part.nf;
+		}
+		double[] coords = new double[3 * nv];
+		final int[] vertexOffset = new int[parts.size()];
+		int offset = 0;
+		for (int p = 0; p < parts.size(); p++) {
+			final Part part = parts.get(p);
+			vertexOffset[p] = offset;
+			System.arraycopy(part.coords, 0, coords, 3 * offset, 3 * part.nv);
+			offset += part.nv;
+			part.coords = null;
+		}
+		int[] remap = null;
+		if (duplicate) {
+			remap = weld(coords, nv);
+			int unique = 0;
+			for (int i = 0; i < nv; i++) {
+				unique = Math.max(unique, remap[i] + 1);
+			}
+			nv = unique;
+		}
+		final WB_Point3d[] vertices = new WB_Point3d[nv];
+		for (int i = 0; i < nv; i++) {
+			vertices[i] = new WB_Point3d(scale * coords[3 * i], scale
+					* coords[3 * i + 1], scale * coords[3 * i + 2]);
+		}
+		coords = null;
+		final int total = offset;
+		final int[][] faces = new int[nf][];
+		int f = 0;
+		int skipped = 0;
+		for (int p = 0; p < parts.size(); p++) {
+			final Part part = parts.get(p);
+			for (int i = 0; i < part.nf; i++) {
+				final int start = part.faceStart[i];
+				final int order = part.faceStart[i + 1] - start;
+				final int[] face = new int[order];
+				boolean valid = true;
+				for (int j = 0; j < order; j++) {
+					int index = part.faceIndices[start + j];
+					if (index < 0) {
+						// relative index, counted back from this line
+						index = vertexOffset[p] + Part.decode(index);
+					}
+					if (index < 0 || index >= total) {
+						valid = false;
+						break;
+					}
+					face[j] = (remap == null) ? index : remap[index];
+				}
+				if (valid) {
+					faces[f++] = face;
+				} else {
+					skipped++;
+				}
+			}
+			parts.set(p, null);
+		}
+		if (skipped > 0) {
+			System.out.println("HEC_FromObjFile: skipped " + skipped
+					+ " faces with invalid vertex indices.");
+		}
+		return new HEC_FromFacelist().setVertices(vertices)
+				.setFaces((f == nf) ? faces : Arrays.copyOf(faces, f))
+				.setDuplicate(false).setParallel(parallel).createBase();
 	}
-	
-	//Code excerpts form processing.core
 
 	private InputStream createInputStream(final File file) {
 		if (file == null) {
@@ -131,46 +207,398 @@ public class HEC_FromObjFile extends HEC_Creator {
 		return null;
 	}
 
-	private String[] loadStrings(InputStream input) {
+	/**
+	 * Parse uncompressed file through memory-mapped ranges of lines.
+	 *
+	 * @param file file
+	 * @return parsed ranges in file order
+	 * @throws IOException
+	 */
+	private List<Part> readMapped(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
 		try {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					input, "UTF-8"));
-			return loadStrings(reader);
-		} catch (IOException e) {
-			e.printStackTrace();
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			int ranges = parallel ? Math.max(1,
+					(int) Math.min(4 * WB_Parallel.getThreads(), size >> 20))
+					: 1;
+			ranges = (int) Math.max(ranges, (size + MAXRANGE - 1) / MAXRANGE);
+			final long[] bounds = new long[ranges + 1];
+			bounds[ranges] = size;
+			final ByteBuffer probe = ByteBuffer.allocate(4096);
+			for (int r = 1; r < ranges; r++) {
+				bounds[r] = Math.max(bounds[r - 1], size * r / ranges);
+				bounds[r] = nextLine(channel, bounds[r], probe);
+			}
+			final List<Callable<Part>> tasks = new ArrayList<Callable<Part>>();
+			for (int r = 0; r < ranges; r++) {
+				final long from = bounds[r];
+				final long to = bounds[r + 1];
+				tasks.add(new Callable<Part>() {
+					public Part call() throws IOException {
+						final Part part = new Part(to - from);
+						if (to > from) {
+							part.parse(channel.map(
+									FileChannel.MapMode.READ_ONLY, from, to
+											- from));
+						}
+						return part;
+					}
+				});
+			}
+			if (parallel && ranges > 1) {
+				return WB_Parallel.invokeAll(tasks);
+			}
+			final List<Part> parts = new ArrayList<Part>();
+			for (final Callable<Part> task : tasks) {
+				try {
+					parts.add(task.call());
+				} catch (final IOException e) {
+					throw e;
+				} catch (final Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return parts;
+		} finally {
+			raf.close();
 		}
-		return null;
 	}
 
-	private String[] loadStrings(BufferedReader reader) {
-		try {
-			String lines[] = new String[100];
-			int lineCount = 0;
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				if (lineCount == lines.length) {
-					String temp[] = new String[lineCount << 1];
-					System.arraycopy(lines, 0, temp, 0, lineCount);
-					lines = temp;
+	/**
+	 * Position after the first line break at or after a position.
+	 */
+	private static long nextLine(final FileChannel channel, long position,
+			final ByteBuffer probe) throws IOException {
+		final long size = channel.size();
+		if (position == 0) {
+			return 0;
+		}
+		// start at the preceding byte, a range may start right after a break
+		position--;
+		while (position < size) {
+			probe.clear();
+			final int n = channel.read(probe, position);
+			if (n <= 0) {
+				return size;
+			}
+			for (int i = 0; i < n; i++) {
+				if (probe.get(i) == '\n') {
+					return position + i + 1;
 				}
-				lines[lineCount++] = line;
 			}
-			reader.close();
+			position += n;
+		}
+		return size;
+	}
 
-			if (lineCount == lines.length) {
-				return lines;
+	/**
+	 * Parse compressed file in blocks of complete lines.
+	 *
+	 * @param file file
+	 * @return parsed file as single part
+	 * @throws IOException
+	 */
+	private List<Part> readStream(final File file) throws IOException {
+		final InputStream stream = createInputStream(file);
+		final List<Part> parts = new ArrayList<Part>();
+		final Part part = new Part(file.length());
+		try {
+			byte[] block = new byte[1 << 20];
+			int filled = 0;
+			int n;
+			while (true) {
+				n = stream.read(block, filled, block.length - filled);
+				if (n < 0) {
+					break;
+				}
+				filled += n;
+				int end = filled;
+				while (end > 0 && block[end - 1] != '\n') {
+					end--;
+				}
+				if (end == 0) {
+					if (filled == block.length) {
+						// line longer than block
+						block = Arrays.copyOf(block, 2 * block.length);
+					}
+					continue;
+				}
+				part.parse(ByteBuffer.wrap(block, 0, end));
+				System.arraycopy(block, end, block, 0, filled - end);
+				filled -= end;
+			}
+			if (filled > 0) {
+				part.parse(ByteBuffer.wrap(block, 0, filled));
 			}
-			String output[] = new String[lineCount];
-			System.arraycopy(lines, 0, output, 0, lineCount);
-			return output;
+		} finally {
+			stream.close();
+		}
+		parts.add(part);
+		return parts;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Merge vertices with identical coordinates. Unique vertices are moved to
+	 * the front of the array in order of first appearance.
+	 *
+	 * @param coords coordinates, compacted on return
+	 * @param n number of vertices
+	 * @return new index of each vertex
+	 */
+	private static int[] weld(final double[] coords, final int n) {
+		final int[] remap = new int[n];
+		int cap = 16;
+		while (cap < 2 * n) {
+			cap += cap;
 		}
-		return null;
+		final int mask = cap - 1;
+		// unique vertex index+1, 0 is free
+		final int[] table = new int[cap];
+		int unique = 0;
+		for (int v = 0; v < n; v++) {
+			// -0.0 and 0.0 weld
+			final double x = coords[3 * v] + 0.0;
+			final double y = coords[3 * v + 1] + 0.0;
+			final double z = coords[3 * v + 2] + 0.0;
+			long h = Double.doubleToLongBits(x) * 0x9E3779B97F4A7C15L
+					+ Double.doubleToLongBits(y);
+			h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(z);
+			h *= 0x9E3779B97F4A7C15L;
+			int index = (int) (h ^ (h >>> 32)) & mask;
+			int e;
+			remap[v] = -1;
+			while ((e = table[index]) != 0) {
+				final int i = 3 * (e - 1);
+				if (coords[i] == x && coords[i + 1] == y && coords[i + 2] == z) {
+					remap[v] = e - 1;
+					break;
+				}
+				index = (index + 1) & mask;
+			}
+			if (remap[v] == -1) {
+				coords[3 * unique] = x;
+				coords[3 * unique + 1] = y;
+				coords[3 * unique + 2] = z;
+				remap[v] = unique++;
+				table[index] = unique;
+			}
+		}
+		return remap;
 	}
 
+	/**
+	 * Vertices and faces of a range of lines.
+	 */
+	private static class Part {
+
+		/** Relative indices are stored offset by this value. */
+		static final int	RELATIVE	= -(1 << 30);
+
+		double[]			coords;
+		int					nv;
+		int[]				faceIndices;
+		int					nfi;
+		int[]				faceStart;
+		int					nf;
+
+		private ByteBuffer	buffer;
+		private int			pos;
+		private int			limit;
+
+		/**
+		 *
+		 * @param bytes expected size of the text, to estimate capacity
+		 */
+		Part(final long bytes) {
+			// typical lines take 30-40 bytes, about twice as many faces as vertices
+			final int nv = (int) Math.max(16, Math.min(bytes / 100, 1 << 24));
+			coords = new double[3 * nv];
+			faceIndices = new int[6 * nv];
+			faceStart = new int[2 * nv + 1];
+		}
+
+		/**
+		 * Vertex index in part of a relative index.
+		 */
+		static int decode(final int index) {
+			return index - RELATIVE;
+		}
+
+		void parse(final ByteBuffer buffer) {
+			this.buffer = buffer;
+			pos = buffer.position();
+			limit = buffer.limit();
+			while (pos < limit) {
+				skipBlanks();
+				if (pos < limit) {
+					final byte c = buffer.get(pos);
+					if (c == 'v' && isBlank(pos + 1)) {
+						pos++;
+						vertex();
+					} else if (c == 'f' && isBlank(pos + 1)) {
+						pos++;
+						face();
+					}
+				}
+				skipLine();
+			}
+			this.buffer = null;
+		}
+
+		private boolean isBlank(final int i) {
+			if (i >= limit) {
+				return false;
+			}
+			final byte c = buffer.get(i);
+			return c == ' ' || c == '\t';
+		}
+
+		private void skipBlanks() {
+			while (isBlank(pos)) {
+				pos++;
+			}
+		}
+
+		private boolean atLineEnd() {
+			if (pos >= limit) {
+				return true;
+			}
+			final byte c = buffer.get(pos);
+			return c == '\n' || c == '\r' || c == '#';
+		}
+
+		private void skipLine() {
+			while (pos < limit && buffer.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+		}
+
+		private void vertex() {
+			if (3 * nv + 3 > coords.length) {
+				coords = Arrays.copyOf(coords, 2 * coords.length);
+			}
+			for (int i = 0; i < 3; i++) {
+				skipBlanks();
+				coords[3 * nv + i] = atLineEnd() ? 0 : parseDouble();
+			}
+			nv++;
+		}
+
+		private void face() {
+			final int start = nfi;
+			while (true) {
+				skipBlanks();
+				if (atLineEnd()) {
+					break;
+				}
+				final byte c = buffer.get(pos);
+				if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+					break;
+				}
+				final int index = parseInt();
+				// ignore texture and normal indices
+				while (pos < limit && !isBlank(pos) && !atLineEnd()) {
+					pos++;
+				}
+				if (nfi == faceIndices.length) {
+					faceIndices = Arrays.copyOf(faceIndices,
+							2 * faceIndices.length);
+				}
+				if (index > 0) {
+					faceIndices[nfi++] = index - 1;
+				} else if (index < 0) {
+					faceIndices[nfi++] = RELATIVE + nv + index;
+				}
+			}
+			if (nfi - start < 3) {
+				nfi = start;
+				return;
+			}
+			if (nf + 2 > faceStart.length) {
+				faceStart = Arrays.copyOf(faceStart, 2 * faceStart.length);
+			}
+			faceStart[nf] = start;
+			nf++;
+			faceStart[nf] = nfi;
+		}
 
-	
+		private int parseInt() {
+			boolean negative = false;
+			byte c = buffer.get(pos);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				pos++;
+			}
+			int result = 0;
+			while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+				result = 10 * result + (c - '0');
+				pos++;
+			}
+			return negative ? -result : result;
+		}
+
+		/**
+		 * Parse a decimal number. Up to 18 significant digits with a decimal
+		 * exponent up to 22 are converted exactly through a power of ten,
+		 * anything else falls back to Double.parseDouble().
+		 */
+		private double parseDouble() {
+			final int start = pos;
+			boolean negative = false;
+			byte c = buffer.get(pos);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				pos++;
+			}
+			long mantissa = 0;
+			int digits = 0;
+			int exponent = 0;
+			boolean exact = true;
+			while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = 10 * mantissa + (c - '0');
+					if (mantissa > 0) {
+						digits++;
+					}
+				} else {
+					exponent++;
+					exact = false;
+				}
+				pos++;
+			}
+			if (pos < limit && buffer.get(pos) == '.') {
+				pos++;
+				while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+					if (digits < 18) {
+						mantissa = 10 * mantissa + (c - '0');
+						if (mantissa > 0) {
+							digits++;
+						}
+						exponent--;
+					} else if (c != '0') {
+						exact = false;
+					}
+					pos++;
+				}
+			}
+			if (pos < limit && ((c = buffer.get(pos)) == 'e' || c == 'E')) {
+				pos++;
+				exponent += parseInt();
+			}
+			if (exact && mantissa < (1L << 53) && exponent >= -22
+					&& exponent <= 22) {
+				final double value = (exponent < 0) ? mantissa
+						/ POW10[-exponent] : mantissa * POW10[exponent];
+				return negative ? -value : value;
+			}
+			final byte[] text = new byte[pos - start];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = buffer.get(start + i);
+			}
+			return Double.parseDouble(new String(text));
+		}
+	}
 
 }
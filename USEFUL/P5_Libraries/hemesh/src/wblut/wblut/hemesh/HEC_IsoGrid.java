@@ -13,9 +13,12 @@
  */
 package wblut.hemesh;
 
+import java.util.ArrayList;
 import java.util.Map.Entry;
 
 import wblut.WB_Epsilon;
+import wblut.core.OaLongIntMap;
+import wblut.geom.WB_BrickGrid;
 import wblut.geom.WB_HashGrid;
 import wblut.geom.WB_Point3d;
 
@@ -321,6 +324,7 @@ public class HEC_IsoGrid extends HEC_Creator {
 			{ -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 } };
 
 	private WB_HashGrid					values;
+	private WB_BrickGrid				bricks;
 	private int							resx, resy, resz;
 	private double						cx, cy, cz;
 	private double						dx, dy, dz;
@@ -329,6 +333,8 @@ public class HEC_IsoGrid extends HEC_Creator {
 	private FastMap<Integer, HE_Vertex>	xedges;
 	private FastMap<Integer, HE_Vertex>	yedges;
 	private FastMap<Integer, HE_Vertex>	zedges;
+	private OaLongIntMap				edgeVertices;
+	private ArrayList<HE_Vertex>		vertices;
 	private final HE_Vertex[]			vertlist;
 	HE_Mesh								mesh;
 	private boolean						invert;
@@ -371,6 +377,24 @@ public class HEC_IsoGrid extends HEC_Creator {
 		resz = values.getD() - 1;
 		boundary = values.getDefaultValue();
 		this.values = values;
+		bricks = null;
+		return this;
+	}
+
+	/**
+	 * Values at grid points. Only the cells touching an allocated brick are
+	 * polygonised.
+	 * 
+	 * @param values WB_BrickGrid
+	 * @return self
+	 */
+	public HEC_IsoGrid setValues(final WB_BrickGrid values) {
+		resx = values.getW() - 1;
+		resy = values.getH() - 1;
+		resz = values.getD() - 1;
+		boundary = values.getDefaultValue();
+		bricks = values;
+		this.values = null;
 		return this;
 	}
 
@@ -418,18 +442,23 @@ public class HEC_IsoGrid extends HEC_Creator {
 
 	private double value(final int i, final int j, final int k) {
 		if (boundary == Double.NaN) {
-			return values.getValue(i, j, k);
+			return (bricks == null) ? values.getValue(i, j, k) : bricks
+					.getValue(i, j, k);
 		}
 		if ((i == 0) || (j == 0) || (k == 0) || (i == resx) || (j == resy)
 				|| (k == resz)) {
 			return (invert) ? -boundary : boundary;
 		}
 
-		return values.getValue(i, j, k);
+		return (bricks == null) ? values.getValue(i, j, k) : bricks.getValue(
+				i, j, k);
 
 	}
 
 	private HE_Vertex xedge(final int i, final int j, final int k) {
+		if (bricks != null) {
+			return brickEdge(i, j, k, 0);
+		}
 		HE_Vertex xedge = xedges.get(index(i, j, k));
 		if (xedge != null) {
 			return xedge;
@@ -448,6 +477,9 @@ public class HEC_IsoGrid extends HEC_Creator {
 	}
 
 	private HE_Vertex yedge(final int i, final int j, final int k) {
+		if (bricks != null) {
+			return brickEdge(i, j, k, 1);
+		}
 		HE_Vertex yedge = yedges.get(index(i, j, k));
 		if (yedge != null) {
 			return yedge;
@@ -466,6 +498,9 @@ public class HEC_IsoGrid extends HEC_Creator {
 	}
 
 	private HE_Vertex zedge(final int i, final int j, final int k) {
+		if (bricks != null) {
+			return brickEdge(i, j, k, 2);
+		}
 		HE_Vertex zedge = zedges.get(index(i, j, k));
 		if (zedge != null) {
 			return zedge;
@@ -485,6 +520,40 @@ public class HEC_IsoGrid extends HEC_Creator {
 
 	}
 
+	/**
+	 * Edge vertex when polygonising a WB_BrickGrid. Bricks are visited in no
+	 * particular order, vertices are cached by grid edge for the whole grid.
+	 *
+	 * @param i
+	 * @param j
+	 * @param k
+	 * @param axis 0, 1 or 2 for edge along x, y or z
+	 * @return vertex
+	 */
+	private HE_Vertex brickEdge(final int i, final int j, final int k,
+			final int axis) {
+		final long key = 3L * (i + (resx + 1L) * (j + (resy + 1L) * k))
+				+ axis;
+		final int id = edgeVertices.get(key);
+		if (id > -1) {
+			return vertices.get(id);
+		}
+		final int di = (axis == 0) ? 1 : 0;
+		final int dj = (axis == 1) ? 1 : 0;
+		final int dk = (axis == 2) ? 1 : 0;
+		final WB_Point3d p0 = new WB_Point3d(i * dx, j * dy, k * dz);
+		final WB_Point3d p1 = new WB_Point3d((i + di) * dx, (j + dj) * dy,
+				(k + dk) * dz);
+		final HE_Vertex v = interp(isolevel, p0, p1, value(i, j, k),
+				value(i + di, j + dj, k + dk));
+		v.add(cx - 0.5 * resx * dx, cy - 0.5 * resy * dy, cz - 0.5 * resz
+				* dz);
+		mesh.add(v);
+		edgeVertices.put(key, vertices.size());
+		vertices.add(v);
+		return v;
+	}
+
 	/*
 	 * Linearly interpolate the position where an isosurface cuts an edge
 	 * between two vertices, each with their own scalar value
@@ -598,6 +667,53 @@ public class HEC_IsoGrid extends HEC_Creator {
 		mesh.pairHalfedges();
 	}
 
+	/**
+	 * Polygonise only the cells with a corner in an allocated brick. These
+	 * cells lie in the brick itself or in one of its lower neighbors.
+	 */
+	private void polygoniseBricks() {
+		edgeVertices = new OaLongIntMap();
+		vertices = new ArrayList<HE_Vertex>();
+		final int B = WB_BrickGrid.BRICK;
+		final int[] origins = bricks.getBrickOrigins();
+		final OaLongIntMap visited = new OaLongIntMap(8 * bricks
+				.numberOfBricks());
+		final int nbx = resx / B + 1;
+		final int nby = resy / B + 1;
+		int i0, j0, k0;
+		for (int n = 0; n < bricks.numberOfBricks(); n++) {
+			for (int dk = -B; dk <= 0; dk += B) {
+				k0 = origins[3 * n + 2] + dk;
+				for (int dj = -B; dj <= 0; dj += B) {
+					j0 = origins[3 * n + 1] + dj;
+					for (int di = -B; di <= 0; di += B) {
+						i0 = origins[3 * n] + di;
+						if ((i0 < 0) || (j0 < 0) || (k0 < 0) || (i0 >= resx)
+								|| (j0 >= resy) || (k0 >= resz)) {
+							continue;
+						}
+						final long key = i0 / B + (long) nbx
+								* (j0 / B + (long) nby * (k0 / B));
+						if (visited.containsKey(key)) {
+							continue;
+						}
+						visited.put(key, n);
+						for (int k = k0; k < Math.min(k0 + B, resz); k++) {
+							for (int j = j0; j < Math.min(j0 + B, resy); j++) {
+								for (int i = i0; i < Math.min(i0 + B, resx); i++) {
+									getPolygons(i, j, k, classifyCell(i, j, k));
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		mesh.pairHalfedges();
+		edgeVertices = null;
+		vertices = null;
+	}
+
 	private void getPolygons(final int i, final int j, final int k,
 			final int cubeindex) {
 
@@ -677,7 +793,11 @@ public class HEC_IsoGrid extends HEC_Creator {
 	@Override
 	protected HE_Mesh createBase() {
 		mesh = new HE_Mesh();
-		polygonise();
+		if (bricks == null) {
+			polygonise();
+		} else {
+			polygoniseBricks();
+		}
 		// mesh.resolvePinchPoints();
 		return mesh;
 
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2010, Frederik Vanhoutte This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ * http://creativecommons.org/licenses/LGPL/2.1/ This library is distributed in
+ * the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Lesser General Public License for more details. You should have
+ * received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package wblut.hemesh;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import wblut.WB_Epsilon;
+import wblut.geom.WB_Point3d;
+import wblut.math.WB_Function3D;
+
+/**
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ * Out-of-core marching cubes. The values are pulled one z-slice at a time,
+ * either from a function or from a memory-mapped file of floats, and the
+ * triangles of each layer of cells are passed to a HET_TriangleSink as soon as
+ * the layer is done. Only two slices of values and the edge vertices of the
+ * current layer are kept in memory.
+ *
+ * A value file holds (resx+1)*(resy+1)*(resz+1) 32-bit floats, x varying
+ * fastest, then y, then z.
+ *
+ * Used as a creator, the triangles are collected in a HE_Mesh. Use
+ * stream(HET_TriangleSink) to send them elsewhere, e.g. to a
+ * HET_BinarySTLWriter.
+ **/
+
+public class HEC_IsoStream extends HEC_Creator {
+
+	private int						resx, resy, resz;
+	private double					cx, cy, cz;
+	private double					dx, dy, dz;
+	private double					isolevel;
+	private double					boundary;
+	private boolean					invert;
+	private WB_Function3D<Double>	function;
+	private double					fcx, fcy, fcz, dfx, dfy, dfz;
+	private String					path;
+	private ByteOrder				order;
+
+	/** Values of the bottom and top slice of the current layer. */
+	private double[]				low, high;
+
+	/** Vertex ids of the edges in the bottom and top plane and the layer. */
+	private int[]					lowX, lowY, highX, highY, layerZ;
+
+	/** Coordinates of the vertices still in use, starting at id base. */
+	private double[]				coords;
+	private int						base;
+	private int						nextId;
+
+	private final int[]				ids		= new int[3];
+	private final double[]			tri		= new double[9];
+	private final int[]				vertlist	= new int[12];
+
+	/**
+	 * Instantiates a new HEC_IsoStream.
+	 *
+	 */
+	public HEC_IsoStream() {
+		super();
+		override = true;
+		boundary = Double.NaN;
+		order = ByteOrder.LITTLE_ENDIAN;
+	}
+
+	/**
+	 * Number of cells
+	 * 
+	 * @param resx
+	 * @param resy
+	 * @param resz
+	 * @return self
+	 */
+	public HEC_IsoStream setResolution(final int resx, final int resy,
+			final int resz) {
+		this.resx = resx;
+		this.resy = resy;
+		this.resz = resz;
+		return this;
+	}
+
+	/**
+	 * Size of cell
+	 * 
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @return self
+	 */
+	public HEC_IsoStream setSize(final double dx, final double dy,
+			final double dz) {
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+		return this;
+	}
+
+	/**
+	 * Function that defines values at grid points, sampled on a grid centered
+	 * at (xi,yi,zi) with spacing (dx,dy,dz).
+	 * 
+	 * @param function implementation of WB_Function3D interface
+	 * @return self
+	 */
+	public HEC_IsoStream setFunction(final WB_Function3D<Double> function,
+			final double xi, final double yi, final double zi, final double dx,
+			final double dy, final double dz) {
+		this.function = function;
+		path = null;
+		fcx = xi;
+		fcy = yi;
+		fcz = zi;
+		dfx = dx;
+		dfy = dy;
+		dfz = dz;
+		return this;
+	}
+
+	/**
+	 * File with values at grid points, little-endian floats.
+	 * 
+	 * @param path path of value file
+	 * @return self
+	 */
+	public HEC_IsoStream setPath(final String path) {
+		return setPath(path, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * File with values at grid points.
+	 * 
+	 * @param path path of value file
+	 * @param order byte order of the floats
+	 * @return self
+	 */
+	public HEC_IsoStream setPath(final String path, final ByteOrder order) {
+		this.path = path;
+		this.order = order;
+		function = null;
+		return this;
+	}
+
+	/**
+	 * Isolevel
+	 * 
+	 * @param v isolevel
+	 * @return self
+	 */
+	public HEC_IsoStream setIsolevel(final double v) {
+		isolevel = v;
+		return this;
+	}
+
+	/**
+	 * Boundary level
+	 * 
+	 * @param v boundary level
+	 * @return self
+	 */
+	public HEC_IsoStream setBoundary(final double v) {
+		boundary = v;
+		return this;
+	}
+
+	/**
+	 * Clear boundary level
+	 * 
+	 * @return self
+	 */
+	public HEC_IsoStream clearBoundary() {
+		boundary = Double.NaN;
+		return this;
+	}
+
+	/**
+	 * Invert isosurface
+	 * 
+	 * @param invert true/false
+	 * @return self
+	 */
+	public HEC_IsoStream setInvert(final boolean invert) {
+		this.invert = invert;
+		return this;
+	}
+
+	@Override
+	public HEC_IsoStream setCenter(final WB_Point3d c) {
+		cx = c.x;
+		cy = c.y;
+		cz = c.z;
+		return this;
+	}
+
+	/**
+	 * Polygonise and send all triangles to a sink.
+	 * 
+	 * @param sink receiver of the triangles
+	 * @throws RuntimeException wrapping the IOException if the value file or
+	 *             the sink fails, the output is then incomplete
+	 */
+	public void stream(final HET_TriangleSink sink) {
+		final int sx = resx + 1;
+		low = new double[sx * (resy + 1)];
+		high = new double[sx * (resy + 1)];
+		lowX = newCache(resx * (resy + 1));
+		lowY = newCache(sx * resy);
+		highX = newCache(resx * (resy + 1));
+		highY = newCache(sx * resy);
+		layerZ = newCache(sx * (resy + 1));
+		coords = new double[3 * 1024];
+		base = 0;
+		nextId = 0;
+		RandomAccessFile file = null;
+		FileChannel channel = null;
+		try {
+			if (path != null) {
+				file = new RandomAccessFile(path, "r");
+				channel = file.getChannel();
+			}
+			readSlice(channel, 0, high);
+			int previousLayer = 0;
+			for (int k = 0; k < resz; k++) {
+				double[] tmp = low;
+				low = high;
+				high = tmp;
+				readSlice(channel, k + 1, high);
+				// vertices on the bottom plane were made in the previous layer
+				release(previousLayer);
+				previousLayer = nextId;
+				Arrays.fill(layerZ, -1);
+				for (int j = 0; j < resy; j++) {
+					for (int i = 0; i < resx; i++) {
+						polygoniseCell(i, j, k, sink);
+					}
+				}
+				int[] swap = lowX;
+				lowX = highX;
+				highX = swap;
+				Arrays.fill(highX, -1);
+				swap = lowY;
+				lowY = highY;
+				highY = swap;
+				Arrays.fill(highY, -1);
+			}
+			if (file != null) {
+				final RandomAccessFile f = file;
+				file = null;
+				f.close();
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (file != null) {
+				// already failing, keep the original exception
+				try {
+					file.close();
+				} catch (final IOException e) {
+				}
+			}
+			low = high = null;
+			lowX = lowY = highX = highY = layerZ = null;
+			coords = null;
+		}
+	}
+
+	private static int[] newCache(final int n) {
+		final int[] cache = new int[n];
+		Arrays.fill(cache, -1);
+		return cache;
+	}
+
+	/**
+	 * Fill slice k with values from the function or the value file.
+	 */
+	private void readSlice(final FileChannel channel, final int k,
+			final double[] slice) throws IOException {
+		final int sx = resx + 1;
+		if (channel != null) {
+			final long bytes = 4L * slice.length;
+			final FloatBuffer values = channel
+					.map(FileChannel.MapMode.READ_ONLY, bytes * k, bytes)
+					.order(order).asFloatBuffer();
+			for (int id = 0; id < slice.length; id++) {
+				slice[id] = values.get(id);
+			}
+		} else {
+			final double fxi = fcx - 0.5 * resx * dfx;
+			final double fyi = fcy - 0.5 * resy * dfy;
+			final double fzi = fcz - 0.5 * resz * dfz;
+			for (int j = 0; j <= resy; j++) {
+				for (int i = 0; i <= resx; i++) {
+					slice[i + sx * j] = function.f(fxi + i * dfx, fyi + j
+							* dfy, fzi + k * dfz);
+				}
+			}
+		}
+		if (!Double.isNaN(boundary)) {
+			final double b = (invert) ? -boundary : boundary;
+			for (int j = 0; j <= resy; j++) {
+				for (int i = 0; i <= resx; i++) {
+					if ((i == 0) || (j == 0) || (k == 0) || (i == resx)
+							|| (j == resy) || (k == resz)) {
+						slice[i + sx * j] = b;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the coordinates of vertices with an id below first.
+	 */
+	private void release(final int first) {
+		if (first > base) {
+			System.arraycopy(coords, 3 * (first - base), coords, 0,
+					3 * (nextId - first));
+			base = first;
+		}
+	}
+
+	private boolean inside(final double v) {
+		return (invert) ? v > isolevel : v < isolevel;
+	}
+
+	private void polygoniseCell(final int i, final int j, final int k,
+			final HET_TriangleSink sink) {
+		final int sx = resx + 1;
+		final int c = i + sx * j;
+		int cubeindex = 0;
+		if (inside(low[c])) {
+			cubeindex |= 1;
+		}
+		if (inside(low[c + 1])) {
+			cubeindex |= 2;
+		}
+		if (inside(low[c + sx + 1])) {
+			cubeindex |= 4;
+		}
+		if (inside(low[c + sx])) {
+			cubeindex |= 8;
+		}
+		if (inside(high[c])) {
+			cubeindex |= 16;
+		}
+		if (inside(high[c + 1])) {
+			cubeindex |= 32;
+		}
+		if (inside(high[c + sx + 1])) {
+			cubeindex |= 64;
+		}
+		if (inside(high[c + sx])) {
+			cubeindex |= 128;
+		}
+		final int edges = HEC_IsoSurface.edgeTable[cubeindex];
+		if (edges == 0) {
+			return;
+		}
+		final int x0 = i + resx * j;
+		if ((edges & 1) == 1) {
+			vertlist[0] = edgeVertex(lowX, x0, i, j, k, 1, 0, 0, low[c],
+					low[c + 1]);
+		}
+		if ((edges & 2) == 2) {
+			vertlist[1] = edgeVertex(lowY, c + 1, i + 1, j, k, 0, 1, 0,
+					low[c + 1], low[c + sx + 1]);
+		}
+		if ((edges & 4) == 4) {
+			vertlist[2] = edgeVertex(lowX, x0 + resx, i, j + 1, k, 1, 0, 0,
+					low[c + sx], low[c + sx + 1]);
+		}
+		if ((edges & 8) == 8) {
+			vertlist[3] = edgeVertex(lowY, c, i, j, k, 0, 1, 0, low[c],
+					low[c + sx]);
+		}
+		if ((edges & 16) == 16) {
+			vertlist[4] = edgeVertex(highX, x0, i, j, k + 1, 1, 0, 0, high[c],
+					high[c + 1]);
+		}
+		if ((edges & 32) == 32) {
+			vertlist[5] = edgeVertex(highY, c + 1, i + 1, j, k + 1, 0, 1, 0,
+					high[c + 1], high[c + sx + 1]);
+		}
+		if ((edges & 64) == 64) {
+			vertlist[6] = edgeVertex(highX, x0 + resx, i, j + 1, k + 1, 1, 0,
+					0, high[c + sx], high[c + sx + 1]);
+		}
+		if ((edges & 128) == 128) {
+			vertlist[7] = edgeVertex(highY, c, i, j, k + 1, 0, 1, 0, high[c],
+					high[c + sx]);
+		}
+		if ((edges & 256) == 256) {
+			vertlist[8] = edgeVertex(layerZ, c, i, j, k, 0, 0, 1, low[c],
+					high[c]);
+		}
+		if ((edges & 512) == 512) {
+			vertlist[9] = edgeVertex(layerZ, c + 1, i + 1, j, k, 0, 0, 1,
+					low[c + 1], high[c + 1]);
+		}
+		if ((edges & 1024) == 1024) {
+			vertlist[10] = edgeVertex(layerZ, c + sx + 1, i + 1, j + 1, k, 0,
+					0, 1, low[c + sx + 1], high[c + sx + 1]);
+		}
+		if ((edges & 2048) == 2048) {
+			vertlist[11] = edgeVertex(layerZ, c + sx, i, j + 1, k, 0, 0, 1,
+					low[c + sx], high[c + sx]);
+		}
+		final int[] triangles = HEC_IsoSurface.triTable[cubeindex];
+		for (int t = 0; triangles[t] != -1; t += 3) {
+			for (int v = 0; v < 3; v++) {
+				ids[v] = vertlist[triangles[t + v]];
+				final int p = 3 * (ids[v] - base);
+				tri[3 * v] = coords[p];
+				tri[3 * v + 1] = coords[p + 1];
+				tri[3 * v + 2] = coords[p + 2];
+			}
+			sink.triangle(ids, tri);
+		}
+	}
+
+	/**
+	 * Get the id of the vertex on the grid edge from (i,j,k) to
+	 * (i+di,j+dj,k+dk), create it if it isn't cached yet.
+	 */
+	private int edgeVertex(final int[] cache, final int id, final int i,
+			final int j, final int k, final int di, final int dj,
+			final int dk, final double val0, final double val1) {
+		if (cache[id] > -1) {
+			return cache[id];
+		}
+		final double x0 = i * dx;
+		final double y0 = j * dy;
+		final double z0 = k * dz;
+		double x, y, z;
+		if (WB_Epsilon.isEqualAbs(isolevel, val0)
+				|| (!WB_Epsilon.isEqualAbs(isolevel, val1) && WB_Epsilon
+						.isEqualAbs(val0, val1))) {
+			x = x0;
+			y = y0;
+			z = z0;
+		} else if (WB_Epsilon.isEqualAbs(isolevel, val1)) {
+			x = x0 + di * dx;
+			y = y0 + dj * dy;
+			z = z0 + dk * dz;
+		} else {
+			final double mu = (isolevel - val0) / (val1 - val0);
+			x = x0 + mu * di * dx;
+			y = y0 + mu * dj * dy;
+			z = z0 + mu * dk * dz;
+		}
+		final int p = 3 * (nextId - base);
+		if (p == coords.length) {
+			coords = Arrays.copyOf(coords, 2 * coords.length);
+		}
+		coords[p] = x + cx - 0.5 * resx * dx;
+		coords[p + 1] = y + cy - 0.5 * resy * dy;
+		coords[p + 2] = z + cz - 0.5 * resz * dz;
+		cache[id] = nextId;
+		return nextId++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see wblut.hemesh.creators.HEB_Creator#createBase()
+	 */
+	@Override
+	protected HE_Mesh createBase() {
+		final HE_Mesh mesh = new HE_Mesh();
+		stream(new HET_TriangleSink() {
+			private HE_Vertex[]	vertices	= new HE_Vertex[1024];
+
+			public void triangle(final int[] ids, final double[] coords) {
+				final HE_Face f = new HE_Face();
+				final HE_Halfedge[] he = new HE_Halfedge[3];
+				for (int v = 0; v < 3; v++) {
+					if (ids[v] >= vertices.length) {
+						vertices = Arrays.copyOf(vertices, Math.max(
+								2 * vertices.length, ids[v] + 1));
+					}
+					if (vertices[ids[v]] == null) {
+						vertices[ids[v]] = new HE_Vertex(coords[3 * v],
+								coords[3 * v + 1], coords[3 * v + 2]);
+						mesh.add(vertices[ids[v]]);
+					}
+					he[v] = new HE_Halfedge();
+					he[v].setVertex(vertices[ids[v]]);
+					vertices[ids[v]].setHalfedge(he[v]);
+					he[v].setFace(f);
+					mesh.add(he[v]);
+				}
+				he[0].setNext(he[1]);
+				he[1].setNext(he[2]);
+				he[2].setNext(he[0]);
+				f.setHalfedge(he[0]);
+				mesh.add(f);
+			}
+		});
+		mesh.pairHalfedges();
+		return mesh;
+	}
+
+}
@@ -13,10 +13,16 @@
  */
 package wblut.hemesh;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import wblut.WB_Epsilon;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_Point3d;
 
 
+import javolution.util.FastList;
 import javolution.util.FastMap;
 
 /**
@@ -329,6 +335,7 @@ public class HEC_IsoSurface extends HEC_Creator {
 	private final HE_Vertex[]			vertlist;
 	HE_Mesh								mesh;
 	private boolean						invert;
+	private boolean						parallel;
 
 	/**
 	 * Instantiates a new HEC_IsoSurface.
@@ -439,6 +446,18 @@ public class HEC_IsoSurface extends HEC_Creator {
 		return this;
 	}
 
+	/**
+	 * Polygonise in parallel? The grid is split in slabs along z that are
+	 * processed concurrently.
+	 * 
+	 * @param b true/false
+	 * @return self
+	 */
+	public HEC_IsoSurface setParallel(final boolean b) {
+		parallel = b;
+		return this;
+	}
+
 	@Override
 	public HEC_IsoSurface setCenter(final WB_Point3d c) {
 		cx = c.x;
@@ -696,6 +715,260 @@ public class HEC_IsoSurface extends HEC_Creator {
 
 	}
 
+	/**
+	 * Polygonise z-slabs concurrently. Each slab caches its edge vertices in
+	 * int arrays for the two planes and the layer of cells being processed.
+	 * Vertices on the plane shared by two slabs are computed by both and
+	 * merged when the mesh is built.
+	 */
+	private void polygoniseParallel() {
+		final int[] chunks = WB_Parallel.split(resz, 4);
+		final List<Callable<Slab>> tasks = new FastList<Callable<Slab>>();
+		for (int s = 0; s < chunks.length - 1; s++) {
+			final int k0 = chunks[s];
+			final int k1 = chunks[s + 1];
+			tasks.add(new Callable<Slab>() {
+				public Slab call() {
+					return polygoniseSlab(k0, k1);
+				}
+			});
+		}
+		final List<Slab> slabs = WB_Parallel.invokeAll(tasks);
+		HE_Vertex[] prev = null;
+		Slab prevSlab = null;
+		for (int s = 0; s < slabs.size(); s++) {
+			final Slab slab = slabs.get(s);
+			final HE_Vertex[] vertices = new HE_Vertex[slab.nv];
+			if (prevSlab != null) {
+				stitch(vertices, slab.bottomX, prev, prevSlab.topX);
+				stitch(vertices, slab.bottomY, prev, prevSlab.topY);
+			}
+			for (int v = 0; v < slab.nv; v++) {
+				if (vertices[v] == null) {
+					vertices[v] = new HE_Vertex(slab.coords[3 * v],
+							slab.coords[3 * v + 1], slab.coords[3 * v + 2]);
+					mesh.add(vertices[v]);
+				}
+			}
+			for (int t = 0; t < 3 * slab.nt; t += 3) {
+				final HE_Face f = new HE_Face();
+				final HE_Halfedge he1 = new HE_Halfedge();
+				final HE_Halfedge he2 = new HE_Halfedge();
+				final HE_Halfedge he3 = new HE_Halfedge();
+				he1.setNext(he2);
+				he2.setNext(he3);
+				he3.setNext(he1);
+				he1.setFace(f);
+				he2.setFace(f);
+				he3.setFace(f);
+				he1.setVertex(vertices[slab.triangles[t]]);
+				he1.getVertex().setHalfedge(he1);
+				he2.setVertex(vertices[slab.triangles[t + 1]]);
+				he2.getVertex().setHalfedge(he2);
+				he3.setVertex(vertices[slab.triangles[t + 2]]);
+				he3.getVertex().setHalfedge(he3);
+				f.setHalfedge(he1);
+				mesh.add(f);
+				mesh.add(he1);
+				mesh.add(he2);
+				mesh.add(he3);
+			}
+			prev = vertices;
+			prevSlab = slab;
+		}
+		mesh.pairHalfedges(true);
+	}
+
+	/**
+	 * Reuse the vertices of the previous slab on the shared plane.
+	 *
+	 * @param vertices vertices of slab
+	 * @param bottom vertex indices on the bottom plane of the slab
+	 * @param prev vertices of previous slab
+	 * @param top vertex indices on the top plane of the previous slab
+	 */
+	private static void stitch(final HE_Vertex[] vertices, final int[] bottom,
+			final HE_Vertex[] prev, final int[] top) {
+		for (int id = 0; id < bottom.length; id++) {
+			if ((bottom[id] > -1) && (top[id] > -1)) {
+				vertices[bottom[id]] = prev[top[id]];
+			}
+		}
+	}
+
+	/**
+	 * Polygonise the cells in the layers k0 to k1-1. Only thread-safe reads of
+	 * the creator state, no mesh elements are created.
+	 *
+	 * @param k0 first layer
+	 * @param k1 last layer, exclusive
+	 * @return vertices and triangles of the slab
+	 */
+	private Slab polygoniseSlab(final int k0, final int k1) {
+		final Slab slab = new Slab();
+		final int nx = resx * (resy + 1);
+		final int ny = (resx + 1) * resy;
+		final int nz = (resx + 1) * (resy + 1);
+		int[] lowX = newCache(nx);
+		int[] lowY = newCache(ny);
+		int[] highX = newCache(nx);
+		int[] highY = newCache(ny);
+		final int[] layerZ = newCache(nz);
+		slab.bottomX = lowX;
+		slab.bottomY = lowY;
+		final int[] vl = new int[12];
+		for (int k = k0; k < k1; k++) {
+			Arrays.fill(layerZ, -1);
+			for (int j = 0; j < resy; j++) {
+				for (int i = 0; i < resx; i++) {
+					final int cubeindex = classifyCell(i, j, k);
+					final int edges = edgeTable[cubeindex];
+					if (edges == 0) {
+						continue;
+					}
+					final int x0 = i + resx * j;
+					final int y0 = i + (resx + 1) * j;
+					if ((edges & 1) == 1) {
+						vl[0] = edgeVertex(slab, lowX, x0, i, j, k, 1, 0, 0);
+					}
+					if ((edges & 2) == 2) {
+						vl[1] = edgeVertex(slab, lowY, y0 + 1, i + 1, j, k, 0,
+								1, 0);
+					}
+					if ((edges & 4) == 4) {
+						vl[2] = edgeVertex(slab, lowX, x0 + resx, i, j + 1, k,
+								1, 0, 0);
+					}
+					if ((edges & 8) == 8) {
+						vl[3] = edgeVertex(slab, lowY, y0, i, j, k, 0, 1, 0);
+					}
+					if ((edges & 16) == 16) {
+						vl[4] = edgeVertex(slab, highX, x0, i, j, k + 1, 1, 0,
+								0);
+					}
+					if ((edges & 32) == 32) {
+						vl[5] = edgeVertex(slab, highY, y0 + 1, i + 1, j,
+								k + 1, 0, 1, 0);
+					}
+					if ((edges & 64) == 64) {
+						vl[6] = edgeVertex(slab, highX, x0 + resx, i, j + 1,
+								k + 1, 1, 0, 0);
+					}
+					if ((edges & 128) == 128) {
+						vl[7] = edgeVertex(slab, highY, y0, i, j, k + 1, 0, 1,
+								0);
+					}
+					if ((edges & 256) == 256) {
+						vl[8] = edgeVertex(slab, layerZ, y0, i, j, k, 0, 0, 1);
+					}
+					if ((edges & 512) == 512) {
+						vl[9] = edgeVertex(slab, layerZ, y0 + 1, i + 1, j, k,
+								0, 0, 1);
+					}
+					if ((edges & 1024) == 1024) {
+						vl[10] = edgeVertex(slab, layerZ, y0 + resx + 2, i + 1,
+								j + 1, k, 0, 0, 1);
+					}
+					if ((edges & 2048) == 2048) {
+						vl[11] = edgeVertex(slab, layerZ, y0 + resx + 1, i,
+								j + 1, k, 0, 0, 1);
+					}
+					for (int t = 0; triTable[cubeindex][t] != -1; t += 3) {
+						slab.addTriangle(vl[triTable[cubeindex][t]],
+								vl[triTable[cubeindex][t + 1]],
+								vl[triTable[cubeindex][t + 2]]);
+					}
+				}
+			}
+			lowX = highX;
+			lowY = highY;
+			highX = newCache(nx);
+			highY = newCache(ny);
+		}
+		slab.topX = lowX;
+		slab.topY = lowY;
+		return slab;
+	}
+
+	private static int[] newCache(final int n) {
+		final int[] cache = new int[n];
+		Arrays.fill(cache, -1);
+		return cache;
+	}
+
+	/**
+	 * Get the index of the vertex on the grid edge from (i,j,k) to
+	 * (i+di,j+dj,k+dk), create it if it isn't cached yet. Same interpolation
+	 * as xedge, yedge and zedge.
+	 */
+	private int edgeVertex(final Slab slab, final int[] cache, final int id,
+			final int i, final int j, final int k, final int di,
+			final int dj, final int dk) {
+		if (cache[id] > -1) {
+			return cache[id];
+		}
+		final double x0 = i * dx;
+		final double y0 = j * dy;
+		final double z0 = k * dz;
+		final double x1 = x0 + di * dx;
+		final double y1 = y0 + dj * dy;
+		final double z1 = z0 + dk * dz;
+		final double val0 = value(i, j, k);
+		final double val1 = value(i + di, j + dj, k + dk);
+		double x, y, z;
+		if (WB_Epsilon.isEqualAbs(isolevel, val0)
+				|| (!WB_Epsilon.isEqualAbs(isolevel, val1) && WB_Epsilon
+						.isEqualAbs(val0, val1))) {
+			x = x0;
+			y = y0;
+			z = z0;
+		} else if (WB_Epsilon.isEqualAbs(isolevel, val1)) {
+			x = x1;
+			y = y1;
+			z = z1;
+		} else {
+			final double mu = (isolevel - val0) / (val1 - val0);
+			x = x0 + mu * (x1 - x0);
+			y = y0 + mu * (y1 - y0);
+			z = z0 + mu * (z1 - z0);
+		}
+		cache[id] = slab.addVertex(x + cx - 0.5 * resx * dx, y + cy - 0.5
+				* resy * dy, z + cz - 0.5 * resz * dz);
+		return cache[id];
+	}
+
+	/**
+	 * Vertices and triangles of one z-slab, with the vertex indices on its
+	 * bottom and top plane.
+	 */
+	private static class Slab {
+		double[]	coords		= new double[192];
+		int			nv;
+		int[]		triangles	= new int[192];
+		int			nt;
+		int[]		bottomX, bottomY, topX, topY;
+
+		int addVertex(final double x, final double y, final double z) {
+			if (3 * nv == coords.length) {
+				coords = Arrays.copyOf(coords, 2 * coords.length);
+			}
+			coords[3 * nv] = x;
+			coords[3 * nv + 1] = y;
+			coords[3 * nv + 2] = z;
+			return nv++;
+		}
+
+		void addTriangle(final int a, final int b, final int c) {
+			if (3 * nt == triangles.length) {
+				triangles = Arrays.copyOf(triangles, 2 * triangles.length);
+			}
+			triangles[3 * nt] = a;
+			triangles[3 * nt + 1] = b;
+			triangles[3 * nt + 2] = c;
+			nt++;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see wblut.hemesh.creators.HEB_Creator#createBase()
@@ -703,7 +976,11 @@ public class HEC_IsoSurface extends HEC_Creator {
 	@Override
 	protected HE_Mesh createBase() {
 		mesh = new HE_Mesh();
-		polygonise();
+		if (parallel) {
+			polygoniseParallel();
+		} else {
+			polygonise();
+		}
 		// mesh.resolvePinchPoints();
 		return mesh;
 
@@ -16,10 +16,15 @@ package wblut.hemesh;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import wblut.WB_Epsilon;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_AABB;
-import wblut.geom.WB_KDNeighbor;
-import wblut.geom.WB_KDTree3Dold;
+import wblut.geom.WB_Distance;
+import wblut.geom.WB_KDTree3D;
 import wblut.geom.WB_Point3d;
 
 
@@ -28,11 +33,38 @@ import wblut.geom.WB_Point3d;
 /**
  * Creates the Voronoi cells of a collection of points, constrained by a mesh.
  * 
+ * By default each cell is only sliced with the points that can affect it: a
+ * bounding cell is built from the nearest points in a box around the
+ * container, and only points closer than twice its radius are used. With
+ * setParallel(true) the cells are created on multiple threads, each on its own
+ * copy of the container.
+ * 
  * @author Frederik Vanhoutte (W:Blut)
  * 
  */
 public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 
+	/**
+	 * Progress and cancel hook.
+	 */
+	public interface Progress {
+
+		/**
+		 * Called after each cell. Calls are never concurrent, but in parallel
+		 * mode they come from the worker threads and cells finish out of
+		 * order.
+		 * 
+		 * @param cell index of the cell
+		 * @param created number of cells created so far
+		 * @param total number of cells
+		 * @return false to cancel the remaining cells
+		 */
+		boolean cellCreated(int cell, int created, int total);
+	}
+
+	/** Number of nearest points used to bound a cell before pruning. */
+	private static final int	BOUNDPOINTS	= 24;
+
 	/** Points. */
 	private WB_Point3d[]	points;
 
@@ -61,6 +93,15 @@ public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 
 	public int				limit;
 
+	/** Only slice each cell with the points that can affect it? */
+	private boolean			prune;
+
+	/** Create cells on multiple threads? */
+	private boolean			parallel;
+
+	/** Progress hook. */
+	private Progress		progress;
+
 	/**
 	 * Instantiates a new HEMC_VoronoiCells.
 	 *
@@ -68,6 +109,8 @@ public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 	public HEMC_VoronoiCells() {
 		super();
 		useDummy = false;
+		prune = true;
+		parallel = false;
 	}
 
 	/**
@@ -229,6 +272,41 @@ public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 		return this;
 	}
 
+	/**
+	 * Only slice each cell with the points that can affect it? Pruning does
+	 * not change the cells. Ignored if limit is set.
+	 *
+	 * @param b true, false
+	 * @return self
+	 */
+	public HEMC_VoronoiCells setPrune(final boolean b) {
+		prune = b;
+		return this;
+	}
+
+	/**
+	 * Create cells on multiple threads?
+	 *
+	 * @param b true, false
+	 * @return self
+	 */
+	public HEMC_VoronoiCells setParallel(final boolean b) {
+		parallel = b;
+		return this;
+	}
+
+	/**
+	 * Set progress hook. Without a hook, progress is printed to System.out.
+	 * If the hook cancels, only the cells created so far are returned.
+	 *
+	 * @param progress Progress
+	 * @return self
+	 */
+	public HEMC_VoronoiCells setProgress(final Progress progress) {
+		this.progress = progress;
+		return this;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see wblut.hemesh.HE_MultiCreator#create()
@@ -251,57 +329,84 @@ public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 		if (numberOfPoints == 0) {
 			numberOfPoints = points.length;
 		}
-		if (useDummy) {
-			return createWithDummy();
-		}
-		final ArrayList<HE_Mesh> lresult = new ArrayList<HE_Mesh>();
-		final ArrayList<HE_Selection> linnersel = new ArrayList<HE_Selection>();
-		final ArrayList<HE_Selection> loutersel = new ArrayList<HE_Selection>();
-		final HEC_VoronoiCell cvc = new HEC_VoronoiCell();
-		cvc.setPoints(points).setN(numberOfPoints).setContainer(container)
-				.setSurface(surface).setOffset(offset).setSimpleCap(simpleCap);
-		if (limit > 0) {
-			final WB_KDTree3Dold<Integer> tree = new WB_KDTree3Dold<Integer>();
-			for (int i = 0; i < numberOfPoints; i++) {
-				tree.put(points[i], i);
-			}
-
-			for (int i = 0; i < numberOfPoints; i++) {
-				cvc.setCellIndex(i);
-				System.out.println("HEMC_VoronoiCells: creating cell "
-						+ (i + 1) + " of " + numberOfPoints + ".");
-				final WB_KDNeighbor<Integer>[] closest = tree
-						.getNearestNeighbors(points[i], limit);
-				final ArrayList<Integer> indicesToUse = new ArrayList<Integer>();
-				for (int j = 0; j < limit; j++) {
-					indicesToUse.add(closest[j].value());
-				}
+		return createCells(useDummy);
+	}
 
-				cvc.setLimitPoints(true).setPointsToUse(indicesToUse);
+	public HE_Mesh[] createWithDummy() {
+		if (numberOfPoints == 0) {
+			numberOfPoints = points.length;
+		}
+		return createCells(true);
+	}
 
-				final HE_Mesh mesh = cvc.createBase();
-				linnersel.add(cvc.inner);
-				loutersel.add(cvc.outer);
-				lresult.add(mesh);
+	private HE_Mesh[] createCells(final boolean dummy) {
+		final int n = numberOfPoints;
+		WB_KDTree3D tree = null;
+		if ((limit > 0) || prune) {
+			final double[] coords = new double[3 * n];
+			for (int i = 0; i < n; i++) {
+				coords[3 * i] = points[i].x;
+				coords[3 * i + 1] = points[i].y;
+				coords[3 * i + 2] = points[i].z;
 			}
-
+			tree = new WB_KDTree3D(coords);
+		}
+		final HE_Mesh box = (dummy || ((limit <= 0) && prune)) ? createBox()
+				: null;
+		final HE_Mesh[] cells = new HE_Mesh[n];
+		final HE_Selection[] innerCells = new HE_Selection[n];
+		final HE_Selection[] outerCells = new HE_Selection[n];
+		final int[] created = new int[1];
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		if (parallel) {
+			final WB_KDTree3D ftree = tree;
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
+					n);
+			for (int i = 0; i < n; i++) {
+				final int cell = i;
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						if (cancelled.get()) {
+							return null;
+						}
+						createCell(cell, ftree, box, dummy, cells, innerCells,
+								outerCells);
+						synchronized (created) {
+							created[0]++;
+							if (!report(cell, created[0])) {
+								cancelled.set(true);
+							}
+						}
+						return null;
+					}
+				});
+			}
+			WB_Parallel.invokeAll(tasks);
 		} else {
-			for (int i = 0; i < numberOfPoints; i++) {
-				cvc.setCellIndex(i);
-				System.out.println("HEMC_VoronoiCells: creating cell "
-						+ (i + 1) + " of " + numberOfPoints + ".");
-				final HE_Mesh mesh = cvc.createBase();
-				linnersel.add(cvc.inner);
-				loutersel.add(cvc.outer);
-				lresult.add(mesh);
+			for (int i = 0; i < n; i++) {
+				createCell(i, tree, box, dummy, cells, innerCells, outerCells);
+				created[0]++;
+				if (!report(i, created[0])) {
+					break;
+				}
 			}
-
 		}
 
-		result = new HE_Mesh[(createSkin) ? lresult.size() + 1 : lresult.size()];
-		inner = new HE_Selection[lresult.size()];
-		outer = new HE_Selection[lresult.size()];
+		final ArrayList<HE_Mesh> lresult = new ArrayList<HE_Mesh>();
+		final ArrayList<HE_Selection> linnersel = new ArrayList<HE_Selection>();
+		final ArrayList<HE_Selection> loutersel = new ArrayList<HE_Selection>();
+		for (int i = 0; i < n; i++) {
+			if (cells[i] != null) {
+				lresult.add(cells[i]);
+				linnersel.add(innerCells[i]);
+				loutersel.add(outerCells[i]);
+			}
+		}
 		_numberOfMeshes = lresult.size();
+		final HE_Mesh[] result = new HE_Mesh[(createSkin) ? _numberOfMeshes + 1
+				: _numberOfMeshes];
+		inner = new HE_Selection[_numberOfMeshes];
+		outer = new HE_Selection[_numberOfMeshes];
 		for (int i = 0; i < _numberOfMeshes; i++) {
 			result[i] = lresult.get(i);
 			inner[i] = linnersel.get(i);
@@ -309,94 +414,159 @@ public class HEMC_VoronoiCells extends HEMC_MultiCreator {
 		}
 
 		if (createSkin) {
-			final boolean[] on = new boolean[_numberOfMeshes];
-			for (int i = 0; i < _numberOfMeshes; i++) {
-				on[i] = true;
+			// face labels are point indices, cells of a cancelled run are
+			// missing
+			final boolean[] on = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				on[i] = (cells[i] != null);
 			}
-
 			result[_numberOfMeshes] = new HE_Mesh(new HEC_FromVoronoiCells()
-					.setActive(on).setCells(result));
+					.setActive(on).setCells(cells));
 		}
 		return result;
 	}
 
-	public HE_Mesh[] createWithDummy() {
-		final WB_AABB AABB = new WB_AABB(points, numberOfPoints);
-		final WB_AABB meshAABB = container.getAABB();
-		AABB.getMin().x = Math.min(AABB.getMin().x, meshAABB.getMin().x);
-		AABB.getMin().y = Math.min(AABB.getMin().y, meshAABB.getMin().y);
-		AABB.getMin().z = Math.min(AABB.getMin().z, meshAABB.getMin().z);
-		AABB.getMax().x = Math.max(AABB.getMax().x, meshAABB.getMax().x);
-		AABB.getMax().y = Math.max(AABB.getMax().y, meshAABB.getMax().y);
-		AABB.getMax().z = Math.max(AABB.getMax().z, meshAABB.getMax().z);
-
-		final HE_Mesh dummy = new HE_Mesh(new HEC_Box().setFromAABB(AABB, 20));
-		HE_Mesh[] result;
-
-		final ArrayList<HE_Mesh> lresult = new ArrayList<HE_Mesh>();
-		final ArrayList<HE_Selection> linnersel = new ArrayList<HE_Selection>();
-		final ArrayList<HE_Selection> loutersel = new ArrayList<HE_Selection>();
-		final HEC_VoronoiCell cvc = new HEC_VoronoiCell();
-		cvc.setPoints(points).setN(numberOfPoints).setContainer(container)
-				.setSurface(surface).setOffset(offset).setSimpleCap(simpleCap);
-
-		final HEC_VoronoiCell dvc = new HEC_VoronoiCell();
-		dvc.setPoints(points).setN(numberOfPoints).setContainer(dummy)
-				.setSurface(surface).setOffset(offset).setSimpleCap(true);
-
-		HE_Mesh mesh;
-		for (int i = 0; i < numberOfPoints; i++) {
-			cvc.setCellIndex(i);
-			dvc.setCellIndex(i);
-			System.out.println("HEMC_VoronoiCells: creating cell " + (i + 1)
-					+ " of " + numberOfPoints + ".");
-
-			mesh = dvc.createBase();
-			final ArrayList<Integer> indicesToUse = new ArrayList<Integer>(
+	/**
+	 * Create one cell. Only writes to the slots of the cell, so cells can be
+	 * created concurrently.
+	 */
+	private void createCell(final int i, final WB_KDTree3D tree,
+			final HE_Mesh box, final boolean dummy, final HE_Mesh[] cells,
+			final HE_Selection[] innerCells, final HE_Selection[] outerCells) {
+		int[] indicesToUse = null;
+		if (limit > 0) {
+			final int[] values = new int[Math.min(limit + 1, numberOfPoints)];
+			final double[] d2 = new double[values.length];
+			final WB_Point3d p = points[i];
+			final int k = tree.getNearestNeighbors(p.x, p.y, p.z, values, d2);
+			indicesToUse = without(i, values, k);
+		} else if (prune) {
+			indicesToUse = pruneCell(i, tree, box);
+		}
+		if (dummy) {
+			final HEC_VoronoiCell dvc = new HEC_VoronoiCell();
+			dvc.setPoints(points).setN(numberOfPoints).setContainer(box)
+					.setSurface(surface).setOffset(offset).setSimpleCap(true)
+					.setCellIndex(i);
+			if (indicesToUse != null) {
+				dvc.setLimitPoints(true).setPointsToUse(indicesToUse);
+			}
+			final HE_Mesh mesh = dvc.createBase();
+			if (mesh.numberOfFaces() == 0) {
+				cells[i] = new HE_Mesh();
+				innerCells[i] = new HE_Selection(cells[i]);
+				outerCells[i] = new HE_Selection(cells[i]);
+				return;
+			}
+			final ArrayList<Integer> labels = new ArrayList<Integer>(
 					mesh.numberOfFaces());
 			final Iterator<HE_Face> fItr = mesh.fItr();
 			while (fItr.hasNext()) {
 				final int j = fItr.next().getLabel();
 				if (j > -1) {
-					indicesToUse.add(j);
+					labels.add(j);
 				}
 			}
-			if (mesh.numberOfFaces() == 0) {
-				mesh = new HE_Mesh();
-				linnersel.add(new HE_Selection(mesh));
-				loutersel.add(new HE_Selection(mesh));
-			} else {
-				cvc.setLimitPoints(true).setPointsToUse(indicesToUse);
-				mesh = cvc.createBase();
-				linnersel.add(cvc.inner);
-				loutersel.add(cvc.outer);
+			indicesToUse = new int[labels.size()];
+			for (int j = 0; j < indicesToUse.length; j++) {
+				indicesToUse[j] = labels.get(j);
 			}
-			lresult.add(mesh);
 		}
-		result = new HE_Mesh[lresult.size()];
-		inner = new HE_Selection[lresult.size()];
-		outer = new HE_Selection[lresult.size()];
-		_numberOfMeshes = lresult.size();
-		for (int i = 0; i < _numberOfMeshes; i++) {
-			result[i] = lresult.get(i);
-			inner[i] = linnersel.get(i);
-			outer[i] = loutersel.get(i);
+		final HEC_VoronoiCell cvc = new HEC_VoronoiCell();
+		cvc.setPoints(points).setN(numberOfPoints).setContainer(container)
+				.setSurface(surface).setOffset(offset).setSimpleCap(simpleCap)
+				.setCellIndex(i);
+		if (indicesToUse != null) {
+			cvc.setLimitPoints(true).setPointsToUse(indicesToUse);
 		}
+		cells[i] = cvc.createBase();
+		innerCells[i] = cvc.inner;
+		outerCells[i] = cvc.outer;
+	}
 
-		if (createSkin) {
-			final boolean[] on = new boolean[_numberOfMeshes];
-			for (int i = 0; i < _numberOfMeshes; i++) {
-				on[i] = true;
-			}
-
-			final HE_Mesh[] temp = new HE_Mesh[result.length + 1];
-			System.arraycopy(result, 0, temp, 0, result.length);
-			temp[result.length] = new HE_Mesh(new HEC_FromVoronoiCells()
-					.setActive(on).setCells(result));
-			result = temp;
+	/**
+	 * Points that can affect cell i. The cell lies inside the cell of the
+	 * nearest points in the box, so it lies within a radius R of point i. The
+	 * bisector plane of a point at distance d is at distance d/2-offset of
+	 * point i, it can only cut the cell if d<2*(R+offset).
+	 */
+	private int[] pruneCell(final int i, final WB_KDTree3D tree,
+			final HE_Mesh box) {
+		final WB_Point3d p = points[i];
+		int[] values = new int[Math.min(BOUNDPOINTS + 1, numberOfPoints)];
+		final double[] d2 = new double[values.length];
+		int k = tree.getNearestNeighbors(p.x, p.y, p.z, values, d2);
+		final int[] nearest = without(i, values, k);
+		final HEC_VoronoiCell bvc = new HEC_VoronoiCell();
+		bvc.setPoints(points).setN(numberOfPoints).setContainer(box)
+				.setOffset(offset).setSimpleCap(true).setCellIndex(i)
+				.setLimitPoints(true).setPointsToUse(nearest);
+		final HE_Mesh bound = bvc.createBase();
+		if (bound.numberOfVertices() == 0) {
+			return nearest;
+		}
+		double R2 = 0;
+		final Iterator<HE_Vertex> vItr = bound.vItr();
+		while (vItr.hasNext()) {
+			R2 = Math.max(R2, WB_Distance.sqDistance(p, vItr.next()));
+		}
+		final double r = 2 * (Math.sqrt(R2) + offset
+				+ WB_Epsilon.PLANE_EPSILON);
+		if (r <= 0) {
+			return nearest;
 		}
+		k = tree.getNeighborsInRadius(p.x, p.y, p.z, r, values, null);
+		if (k > values.length) {
+			values = new int[k];
+			tree.getNeighborsInRadius(p.x, p.y, p.z, r, values, null);
+		}
+		return without(i, values, k);
+	}
 
+	/**
+	 * First n values, without i.
+	 */
+	private static int[] without(final int i, final int[] values, final int n) {
+		int m = 0;
+		for (int j = 0; j < n; j++) {
+			if (values[j] != i) {
+				m++;
+			}
+		}
+		final int[] result = new int[m];
+		m = 0;
+		for (int j = 0; j < n; j++) {
+			if (values[j] != i) {
+				result[m++] = values[j];
+			}
+		}
 		return result;
 	}
 
+	/**
+	 * Box enclosing the points and the container.
+	 */
+	private HE_Mesh createBox() {
+		final WB_AABB AABB = new WB_AABB(points, numberOfPoints);
+		final WB_AABB meshAABB = container.getAABB();
+		AABB.getMin().x = Math.min(AABB.getMin().x, meshAABB.getMin().x);
+		AABB.getMin().y = Math.min(AABB.getMin().y, meshAABB.getMin().y);
+		AABB.getMin().z = Math.min(AABB.getMin().z, meshAABB.getMin().z);
+		AABB.getMax().x = Math.max(AABB.getMax().x, meshAABB.getMax().x);
+		AABB.getMax().y = Math.max(AABB.getMax().y, meshAABB.getMax().y);
+		AABB.getMax().z = Math.max(AABB.getMax().z, meshAABB.getMax().z);
+		final double padding = 0.01 * Math.max(AABB.getWidth(),
+				Math.max(AABB.getHeight(), AABB.getDepth()));
+		return new HE_Mesh(new HEC_Box().setFromAABB(AABB, padding));
+	}
+
+	private boolean report(final int cell, final int created) {
+		if (progress == null) {
+			System.out.println("HEMC_VoronoiCells: created cell " + created
+					+ " of " + numberOfPoints + ".");
+			return true;
+		}
+		return progress.cellCreated(cell, created, numberOfPoints);
+	}
+
 }
@@ -14,10 +14,16 @@
 package wblut.hemesh;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
 
+import wblut.WB_Epsilon;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_Distance;
 import wblut.geom.WB_Plane;
 import wblut.geom.WB_Point3d;
@@ -29,6 +35,14 @@ import wblut.geom.WB_Point3d;
  * Multiple planar cuts of a mesh. Faces on positive side of cut plane are
  * removed.
  * 
+ * With simple caps on a closed mesh that is capped, all vertices are
+ * classified against all planes in one pass. Planes are then applied in order, but each cut only visits the faces
+ * that have a vertex behind it: faces are queued for the first plane they
+ * are behind, and requeued for the next one after each cut. Faces in front
+ * of all planes are never touched. Holes are capped locally after each cut,
+ * so later planes trim the caps of earlier ones. Open meshes, and meshes cut
+ * without caps, are cut plane by plane with HEM_Slice.
+ * 
  * @author Frederik Vanhoutte (W:Blut)
  * 
  */
@@ -179,69 +193,64 @@ public class HEM_MultiSlice extends HEM_Modifier {
 		if (planes == null) {
 			return mesh;
 		}
-		if (labels == null) {
-			labels = new int[planes.size()];
-			for (int i = 0; i < planes.size(); i++) {
-				labels[i] = i;
-			}
-
+		final int np = planes.size();
+		final int[] planeLabels = new int[np];
+		for (int i = 0; i < np; i++) {
+			planeLabels[i] = (labels == null) ? i : labels[i];
 		}
-		Iterator<HE_Face> fItr = mesh.fItr();
 		mesh.resetFaceLabels();
-		final HEM_Slice slice = new HEM_Slice();
-		slice.setReverse(reverse).setCap(capHoles).setOffset(offset)
-				.setSimpleCap(simpleCap);
+
+		// sort planes by distance of their origin to the center, keep order
+		// of equidistant planes
+		final Integer[] order = new Integer[np];
+		for (int i = 0; i < np; i++) {
+			order[i] = i;
+		}
 		if (center != null) {
-			final double[] r = new double[planes.size()];
-			for (int i = 0; i < planes.size(); i++) {
-				final WB_Plane P = planes.get(i);
-				r[i] = WB_Distance.sqDistance(P.getOrigin(), center);
+			final double[] r = new double[np];
+			for (int i = 0; i < np; i++) {
+				r[i] = WB_Distance.sqDistance(planes.get(i).getOrigin(), center);
 			}
-			for (int i = planes.size(); --i >= 0;) {
-				for (int m = 0; m < i; m++) {
-					if (r[m] > r[m + 1]) {
-						Collections.swap(planes, m, m + 1);
-						final double tmp = r[m];
-						r[m] = r[m + 1];
-						r[m + 1] = tmp;
-						final int tmpid = labels[m];
-						labels[m] = labels[m + 1];
-						labels[m + 1] = tmpid;
-					}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(final Integer a, final Integer b) {
+					return Double.compare(r[a], r[b]);
 				}
-			}
+			});
 		}
-
-		boolean unique = false;
-		WB_Plane Pi;
-		WB_Plane Pj;
-		final int stop = planes.size();
-		for (int i = 0; i < stop; i++) {
-			Pi = planes.get(i);
-			unique = true;
-			for (int j = 0; j < i; j++) {
-				Pj = planes.get(j);
-				if (WB_Plane.isEqual(Pi, Pj)) {
+		final List<WB_Plane> cutPlanes = new ArrayList<WB_Plane>();
+		final List<Integer> cutLabels = new ArrayList<Integer>();
+		for (int i = 0; i < np; i++) {
+			final WB_Plane Pi = planes.get(order[i]);
+			boolean unique = true;
+			for (int j = 0; j < cutPlanes.size(); j++) {
+				if (WB_Plane.isEqual(Pi, cutPlanes.get(j))) {
 					unique = false;
 					break;
 				}
 			}
 			if (unique) {
+				cutPlanes.add(Pi);
+				cutLabels.add(planeLabels[order[i]]);
+			}
+		}
 
-				slice.setPlane(Pi);
-				slice.setKeepCenter(true);
+		if (simpleCap && capHoles && isClosed(mesh)) {
+			new Slicer(mesh, cutPlanes, cutLabels).slice();
+		} else {
+			final HEM_Slice slice = new HEM_Slice();
+			slice.setReverse(reverse).setCap(capHoles).setOffset(offset)
+					.setSimpleCap(simpleCap).setKeepCenter(true);
+			for (int i = 0; i < cutPlanes.size(); i++) {
+				slice.setPlane(cutPlanes.get(i));
 				slice.apply(mesh);
-				fItr = slice.cap.fItr();
+				final Iterator<HE_Face> fItr = slice.cap.fItr();
 				while (fItr.hasNext()) {
-
-					fItr.next().setLabel(labels[i]);
-
+					fItr.next().setLabel(cutLabels.get(i));
 				}
 			}
-
 		}
 
-		fItr = mesh.fItr();
+		final Iterator<HE_Face> fItr = mesh.fItr();
 		HE_Face f;
 		while (fItr.hasNext()) {
 			f = fItr.next();
@@ -257,6 +266,408 @@ public class HEM_MultiSlice extends HEM_Modifier {
 		return mesh;
 	}
 
+	/**
+	 * Check if all halfedges of a mesh have a face and a pair.
+	 */
+	private static boolean isClosed(final HE_Mesh mesh) {
+		final Iterator<HE_Halfedge> heItr = mesh.heItr();
+		HE_Halfedge he;
+		while (heItr.hasNext()) {
+			he = heItr.next();
+			if ((he.getFace() == null) || (he.getPair() == null)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * State of a multi-plane cut with simple caps on a closed mesh. Vertices are numbered in
+	 * the order they are classified, each has a bit per plane for being in
+	 * front of it and a bit for being behind it.
+	 */
+	private class Slicer {
+		final HE_Mesh						mesh;
+
+		final int							np;
+
+		/** Words per vertex in the bit masks. */
+		final int							words;
+
+		final double[]						nx, ny, nz, d;
+
+		final int[]							capLabels;
+
+		/** Vertex key to vertex number. */
+		final HashMap<Integer, Integer>		number;
+
+		long[]								front;
+
+		long[]								behind;
+
+		int									nv;
+
+		/** Faces to visit for each plane. */
+		final List<List<HE_Face>>			queue;
+
+		Slicer(final HE_Mesh mesh, final List<WB_Plane> cutPlanes,
+				final List<Integer> cutLabels) {
+			this.mesh = mesh;
+			np = cutPlanes.size();
+			words = Math.max(1, (np + 63) >>> 6);
+			nx = new double[np];
+			ny = new double[np];
+			nz = new double[np];
+			d = new double[np];
+			capLabels = new int[np];
+			for (int i = 0; i < np; i++) {
+				final WB_Plane lP = cutPlanes.get(i).get();
+				if (reverse) {
+					lP.flipNormal();
+				}
+				lP.set(lP.getNormal(), lP.d() + offset);
+				nx[i] = lP.getNormal().x;
+				ny[i] = lP.getNormal().y;
+				nz[i] = lP.getNormal().z;
+				d[i] = lP.d();
+				capLabels[i] = cutLabels.get(i);
+			}
+			number = new HashMap<Integer, Integer>();
+			queue = new ArrayList<List<HE_Face>>(np);
+			for (int i = 0; i < np; i++) {
+				queue.add(null);
+			}
+		}
+
+		void slice() {
+			final HE_Vertex[] vertices = mesh.getVerticesAsArray();
+			final HE_Face[] faces = mesh.getFacesAsArray();
+			nv = vertices.length;
+			front = new long[Math.max(16, nv) * words];
+			behind = new long[Math.max(16, nv) * words];
+			for (int i = 0; i < nv; i++) {
+				number.put(vertices[i].key(), i);
+			}
+			final int[] events = new int[faces.length];
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			int[] chunks = WB_Parallel.split(nv, 4096);
+			for (int c = 0; c < chunks.length - 1; c++) {
+				final int s = chunks[c];
+				final int e = chunks[c + 1];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						for (int i = s; i < e; i++) {
+							classify(vertices[i], i, -1);
+						}
+						return null;
+					}
+				});
+			}
+			WB_Parallel.invokeAll(tasks);
+			tasks.clear();
+			chunks = WB_Parallel.split(faces.length, 4096);
+			for (int c = 0; c < chunks.length - 1; c++) {
+				final int s = chunks[c];
+				final int e = chunks[c + 1];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						for (int i = s; i < e; i++) {
+							events[i] = nextEvent(faces[i], 0);
+						}
+						return null;
+					}
+				});
+			}
+			WB_Parallel.invokeAll(tasks);
+			for (int i = 0; i < faces.length; i++) {
+				if (events[i] != -1) {
+					enqueue(faces[i], events[i]);
+				}
+			}
+
+			for (int j = 0; j < np; j++) {
+				final List<HE_Face> work = queue.get(j);
+				if (work == null) {
+					continue;
+				}
+				queue.set(j, null);
+				final List<HE_Face> removed = new ArrayList<HE_Face>();
+				for (int i = 0; i < work.size(); i++) {
+					cut(work.get(i), j, removed);
+				}
+				cap(remove(removed), j);
+			}
+		}
+
+		/**
+		 * Set the front and behind bits of a vertex, a vertex created on plane
+		 * skip is on that plane.
+		 */
+		void classify(final HE_Vertex v, final int i, final int skip) {
+			final int o = i * words;
+			for (int k = 0; k < np; k++) {
+				if (k == skip) {
+					continue;
+				}
+				final double dist = nx[k] * v.x + ny[k] * v.y + nz[k] * v.z
+						- d[k];
+				if (dist > WB_Epsilon.PLANE_EPSILON) {
+					front[o + (k >>> 6)] |= 1L << k;
+				} else if (dist < -WB_Epsilon.PLANE_EPSILON) {
+					behind[o + (k >>> 6)] |= 1L << k;
+				}
+			}
+		}
+
+		int add(final HE_Vertex v, final int plane) {
+			if ((nv + 1) * words > front.length) {
+				front = Arrays.copyOf(front, 2 * front.length);
+				behind = Arrays.copyOf(behind, 2 * behind.length);
+			}
+			number.put(v.key(), nv);
+			classify(v, nv, plane);
+			return nv++;
+		}
+
+		boolean isFront(final HE_Vertex v, final int k) {
+			final int i = number.get(v.key());
+			return (front[i * words + (k >>> 6)] & (1L << k)) != 0;
+		}
+
+		boolean isBehind(final HE_Vertex v, final int k) {
+			final int i = number.get(v.key());
+			return (behind[i * words + (k >>> 6)] & (1L << k)) != 0;
+		}
+
+		/**
+		 * First plane from a given plane on that a vertex of the face is
+		 * behind.
+		 *
+		 * @return plane, -1 if none
+		 */
+		int nextEvent(final HE_Face f, final int from) {
+			if (from >= np) {
+				return -1;
+			}
+			for (int w = from >>> 6; w < words; w++) {
+				long bits = 0;
+				HE_Halfedge he = f.getHalfedge();
+				do {
+					bits |= behind[number.get(he.getVertex().key()) * words + w];
+					he = he.getNextInFace();
+				} while (he != f.getHalfedge());
+				if (w == (from >>> 6)) {
+					bits &= -1L << (from & 63);
+				}
+				if (bits != 0) {
+					final int k = (w << 6) + Long.numberOfTrailingZeros(bits);
+					return (k < np) ? k : -1;
+				}
+			}
+			return -1;
+		}
+
+		void enqueue(final HE_Face f, final int plane) {
+			List<HE_Face> list = queue.get(plane);
+			if (list == null) {
+				list = new ArrayList<HE_Face>();
+				queue.set(plane, list);
+			}
+			list.add(f);
+		}
+
+		/**
+		 * Cut a face with plane j. The parts behind the plane are collected
+		 * for removal, the remaining part is queued for the next plane it is
+		 * behind.
+		 */
+		void cut(final HE_Face f, final int j, final List<HE_Face> removed) {
+			HE_Face current = f;
+			while (true) {
+				boolean hasFront = false;
+				boolean hasBehind = false;
+				HE_Halfedge he = current.getHalfedge();
+				do {
+					hasFront |= isFront(he.getVertex(), j);
+					hasBehind |= isBehind(he.getVertex(), j);
+					he = he.getNextInFace();
+				} while (he != current.getHalfedge());
+				if (!hasBehind) {
+					final int next = nextEvent(current, j + 1);
+					if (next != -1) {
+						enqueue(current, next);
+					}
+					return;
+				}
+				if (!hasFront) {
+					removed.add(current);
+					return;
+				}
+				splitEdges(current, j);
+				// find a vertex on the plane followed by vertices behind it
+				he = current.getHalfedge();
+				while (!(!isFront(he.getVertex(), j)
+						&& !isBehind(he.getVertex(), j) && isBehind(he
+						.getNextInFace().getVertex(), j))) {
+					he = he.getNextInFace();
+				}
+				HE_Halfedge hen = he.getNextInFace();
+				while (isBehind(hen.getVertex(), j)) {
+					hen = hen.getNextInFace();
+				}
+				final HE_Selection out = mesh.splitFace(current,
+						he.getVertex(), hen.getVertex());
+				if (out == null) {
+					removed.add(current);
+					return;
+				}
+				// the original face keeps the part behind the plane
+				removed.add(current);
+				current = out.fItr().next();
+			}
+		}
+
+		/**
+		 * Insert a vertex on plane j in all edges of a face that cross it.
+		 */
+		void splitEdges(final HE_Face f, final int j) {
+			HE_Halfedge he = f.getHalfedge();
+			do {
+				final HE_Vertex v0 = he.getVertex();
+				final HE_Vertex v1 = he.getNextInFace().getVertex();
+				if ((isBehind(v0, j) && isFront(v1, j))
+						|| (isFront(v0, j) && isBehind(v1, j))) {
+					final double d0 = nx[j] * v0.x + ny[j] * v0.y + nz[j]
+							* v0.z - d[j];
+					final double d1 = nx[j] * v1.x + ny[j] * v1.y + nz[j]
+							* v1.z - d[j];
+					final double t = d0 / (d0 - d1);
+					final HE_Vertex nv = mesh.splitEdge(he.getEdge(),
+							new WB_Point3d(v0.x + t * (v1.x - v0.x), v0.y + t
+									* (v1.y - v0.y), v0.z + t * (v1.z - v0.z)))
+							.vItr().next();
+					add(nv, j);
+				}
+				he = he.getNextInFace();
+			} while (he != f.getHalfedge());
+		}
+
+		/**
+		 * Remove faces with their halfedges, edges and vertices.
+		 *
+		 * @return halfedges that lost their pair
+		 */
+		List<HE_Halfedge> remove(final List<HE_Face> removed) {
+			final List<HE_Halfedge> boundary = new ArrayList<HE_Halfedge>();
+			for (int i = 0; i < removed.size(); i++) {
+				mesh.remove(removed.get(i));
+			}
+			final List<HE_Vertex> touched = new ArrayList<HE_Vertex>();
+			for (int i = 0; i < removed.size(); i++) {
+				final HE_Face f = removed.get(i);
+				HE_Halfedge he = f.getHalfedge();
+				do {
+					mesh.remove(he);
+					touched.add(he.getVertex());
+					final HE_Halfedge pair = he.getPair();
+					if (pair == null) {
+						if (he.getEdge() != null) {
+							mesh.remove(he.getEdge());
+						}
+					} else if (pair.getFace() == null) {
+						// outer halfedge of an open mesh
+						mesh.remove(pair);
+						mesh.remove(he.getEdge());
+						mesh.remove(pair.getEdge());
+					} else if (!mesh.contains(pair.getFace())) {
+						mesh.remove(he.getEdge());
+					} else {
+						boundary.add(pair);
+					}
+					he = he.getNextInFace();
+				} while (he != f.getHalfedge());
+			}
+			for (int i = 0; i < boundary.size(); i++) {
+				final HE_Halfedge he = boundary.get(i);
+				he.clearPair();
+				he.getEdge().setHalfedge(he);
+				he.getVertex().setHalfedge(he);
+			}
+			for (int i = 0; i < touched.size(); i++) {
+				final HE_Vertex v = touched.get(i);
+				if (!mesh.contains(v.getHalfedge())) {
+					mesh.remove(v);
+				}
+			}
+			return boundary;
+		}
+
+		/**
+		 * Close the holes left by the removed faces. Each cap is queued for the
+		 * next plane it is behind.
+		 */
+		void cap(final List<HE_Halfedge> boundary, final int j) {
+			final int n = boundary.size();
+			if (n == 0) {
+				return;
+			}
+			final HE_Halfedge[] caps = new HE_Halfedge[n];
+			final HashMap<Integer, HE_Halfedge> capStart = new HashMap<Integer, HE_Halfedge>();
+			for (int i = 0; i < n; i++) {
+				final HE_Halfedge he = boundary.get(i);
+				final HE_Halfedge che = new HE_Halfedge();
+				che.setVertex(he.getNextInFace().getVertex());
+				che.setPair(he);
+				che.setEdge(he.getEdge());
+				mesh.add(che);
+				caps[i] = che;
+				capStart.put(che.getVertex().key(), che);
+			}
+			for (int i = 0; i < n; i++) {
+				final HE_Halfedge next = capStart.get(caps[i].getPair()
+						.getVertex().key());
+				if (next != null) {
+					caps[i].setNext(next);
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				if (caps[i].getFace() != null || !isLoop(caps[i], n)) {
+					continue;
+				}
+				final HE_Face nf = new HE_Face();
+				nf.setLabel(capLabels[j]);
+				nf.setHalfedge(caps[i]);
+				HE_Halfedge he = caps[i];
+				do {
+					he.setFace(nf);
+					he = he.getNextInFace();
+				} while (he != caps[i]);
+				mesh.add(nf);
+				final int next = nextEvent(nf, j + 1);
+				if (next != -1) {
+					enqueue(nf, next);
+				}
+			}
+		}
+
+		/**
+		 * Check if a cap halfedge is part of a closed loop of at least three
+		 * halfedges.
+		 */
+		boolean isLoop(final HE_Halfedge start, final int max) {
+			HE_Halfedge he = start;
+			int count = 0;
+			do {
+				he = he.getNextInFace();
+				count++;
+				if (he == null || count > max) {
+					return false;
+				}
+			} while (he != start);
+			return count > 2;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see
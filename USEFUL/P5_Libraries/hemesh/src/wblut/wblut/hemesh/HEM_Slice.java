@@ -17,15 +17,12 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import wblut.geom.Triangulation;
-import wblut.geom.WB_AABB2D;
 import wblut.geom.WB_ClassifyPolygonToPlane;
-import wblut.geom.WB_IndexedTriangle2D;
+import wblut.geom.WB_Delaunay2D;
 import wblut.geom.WB_Plane;
 import wblut.geom.WB_Point2d;
 
 
-import javolution.util.FastList;
 import javolution.util.FastMap;
 
 // TODO: Auto-generated Javadoc
@@ -203,38 +200,22 @@ public class HEM_Slice extends HEM_Modifier {
 				List<HE_Halfedge> unpairedHalfedges = mesh
 						.getUnpairedHalfedges();
 				if (unpairedHalfedges.size() > 0) {
-					final FastList<HE_Vertex> verticesOnCutFaces = new FastList<HE_Vertex>();
-					final FastList<WB_Point2d> mappedVertices = new FastList<WB_Point2d>();
+					final List<HE_Vertex> verticesOnCutFaces = new ArrayList<HE_Vertex>();
+					final List<WB_Point2d> mappedVertices = new ArrayList<WB_Point2d>();
 					final FastMap<Integer, Integer> vertexKeyToMappedVertexIndex = new FastMap<Integer, Integer>();
 					HE_Vertex v;
 					for (final HE_Halfedge he : unpairedHalfedges) {
 						v = he.getVertex();
-						if (!verticesOnCutFaces.contains(v)) {
-							verticesOnCutFaces.add(v);
-							final WB_Point2d mappedV = lP.localPoint2D(v);
-							mappedVertices.add(mappedV);
+						if (!vertexKeyToMappedVertexIndex.containsKey(v.key())) {
 							vertexKeyToMappedVertexIndex.put(v.key(),
-									mappedVertices.size() + 3);
+									mappedVertices.size());
+							verticesOnCutFaces.add(v);
+							mappedVertices.add(lP.localPoint2D(v));
 						}
 					}
-					final WB_AABB2D AABB = new WB_AABB2D(mappedVertices);
-					final WB_Point2d leftlower = AABB.getMin().multAndCopy(2)
-							.sub(AABB.getCenter());
-					final WB_Point2d rightupper = AABB.getMax().multAndCopy(2)
-							.sub(AABB.getCenter());
-					final WB_Point2d[] boundary = new WB_Point2d[4];
-
-					boundary[0] = leftlower;
-					boundary[1] = new WB_Point2d(leftlower.x, rightupper.y);
-					boundary[2] = rightupper;
-					boundary[3] = new WB_Point2d(rightupper.x, leftlower.y);
-
-					final Triangulation triang = new Triangulation();
-
-					triang.startWithBoundary(boundary);
-					for (final WB_Point2d point : mappedVertices) {
-						triang.addInteriorPoint(point);
-					}
+					final WB_Delaunay2D triang = new WB_Delaunay2D(
+							mappedVertices.toArray(new WB_Point2d[mappedVertices
+									.size()]));
 					for (final HE_Halfedge he : unpairedHalfedges) {
 						final int c1 = vertexKeyToMappedVertexIndex.get(he
 								.getVertex().key());
@@ -242,43 +223,29 @@ public class HEM_Slice extends HEM_Modifier {
 								.getEndVertex().key());
 						triang.addConstraint(c1, c2);
 					}
-					final WB_Point2d[] dummy = new WB_Point2d[mappedVertices
-							.size() + 4];
-					for (int i = 0; i < mappedVertices.size() + 4; i++) {
-						dummy[i] = new WB_Point2d(1, 1);
-
-					}
-					final List<WB_IndexedTriangle2D> tris = triang
-							.getIndexedTrianglesAsList(dummy);
-					for (final WB_IndexedTriangle2D tri : tris) {
-						if ((tri.i1 > 3) && (tri.i2 > 3) && (tri.i3 > 3)) {// leave
-																			// out
-																			// triangles
-																			// with
-																			// boundary
-																			// points
-
-							final HE_Face newFace = new HE_Face();
-							final HE_Halfedge he1 = new HE_Halfedge();
-							final HE_Halfedge he2 = new HE_Halfedge();
-							final HE_Halfedge he3 = new HE_Halfedge();
-							he1.setVertex(verticesOnCutFaces.get(tri.i1 - 4));
-							he2.setVertex(verticesOnCutFaces.get(tri.i3 - 4));
-							he3.setVertex(verticesOnCutFaces.get(tri.i2 - 4));
-							he1.setNext(he2);
-							he1.setFace(newFace);
-							he2.setNext(he3);
-							he2.setFace(newFace);
-							he3.setNext(he1);
-							he3.setFace(newFace);
-							mesh.add(he1);
-							mesh.add(he2);
-							mesh.add(he3);
-							newFace.setHalfedge(he1);
-							mesh.add(newFace);
-							cap.add(newFace);
-
-						}
+					// holes in the cut are outside an even number of
+					// constraint loops
+					final int[] tris = triang.getTrianglesInsideConstraints();
+					for (int i = 0; i < tris.length; i += 3) {
+						final HE_Face newFace = new HE_Face();
+						final HE_Halfedge he1 = new HE_Halfedge();
+						final HE_Halfedge he2 = new HE_Halfedge();
+						final HE_Halfedge he3 = new HE_Halfedge();
+						he1.setVertex(verticesOnCutFaces.get(tris[i]));
+						he2.setVertex(verticesOnCutFaces.get(tris[i + 2]));
+						he3.setVertex(verticesOnCutFaces.get(tris[i + 1]));
+						he1.setNext(he2);
+						he1.setFace(newFace);
+						he2.setNext(he3);
+						he2.setFace(newFace);
+						he3.setNext(he1);
+						he3.setFace(newFace);
+						mesh.add(he1);
+						mesh.add(he2);
+						mesh.add(he3);
+						newFace.setHalfedge(he1);
+						mesh.add(newFace);
+						cap.add(newFace);
 					}
 					mesh.pairHalfedges();
 					int old = 0;
@@ -15,10 +15,8 @@
 package wblut.hemesh;
 
 import java.util.Iterator;
-import java.util.List;
 
 import wblut.geom.WB_AABB;
-import wblut.geom.WB_Point3d;
 
 
 
@@ -56,39 +54,27 @@ public class HEM_Smooth extends HEM_Modifier {
 			box = mesh.getAABB();
 		}
 
-		final WB_Point3d[] newPositions = new WB_Point3d[mesh
-				.numberOfVertices()];
+		final double[] newPositions = new double[3 * mesh.numberOfVertices()];
+		final HE_VertexCirculator vc = new HE_VertexCirculator();
 		if (iter < 1) {
 			iter = 1;
 		}
 		for (int r = 0; r < iter; r++) {
 			Iterator<HE_Vertex> vItr = mesh.vItr();
 			HE_Vertex v;
-			List<HE_Vertex> neighbors;
 			int id = 0;
-			WB_Point3d p;
 			while (vItr.hasNext()) {
 				v = vItr.next();
-				p = new WB_Point3d(v);
-				neighbors = v.getNeighborVertices();
-				p.mult(neighbors.size());
-		
-				for (int i = 0; i < neighbors.size(); i++) {
-					p.add(neighbors.get(i));
-				}
-
-				newPositions[id] = p.scale(0.5 / neighbors.size());
-				
-				id++;
-				
+				id = smooth(v, null, vc, newPositions, id);
 			}
 			vItr = mesh.vItr();
 			id = 0;
 			while (vItr.hasNext()) {
-				vItr.next().set(newPositions[id]);
-				id++;
+				vItr.next().set(newPositions[id], newPositions[id + 1],
+						newPositions[id + 2]);
+				id += 3;
 			}
-			
+
 		}
 		mesh.resetCenter();
 		if (autoRescale) {
@@ -110,43 +96,27 @@ public class HEM_Smooth extends HEM_Modifier {
 		if (autoRescale) {
 			box = selection.parent.getAABB();
 		}
-		final WB_Point3d[] newPositions = new WB_Point3d[selection
+		final double[] newPositions = new double[3 * selection
 				.numberOfVertices()];
+		final HE_VertexCirculator vc = new HE_VertexCirculator();
 		if (iter < 1) {
 			iter = 1;
 		}
 		for (int r = 0; r < iter; r++) {
 			Iterator<HE_Vertex> vItr = selection.vItr();
 			HE_Vertex v;
-			HE_Vertex n;
-			List<HE_Vertex> neighbors;
 			int id = 0;
 
 			while (vItr.hasNext()) {
 				v = vItr.next();
-				final WB_Point3d p = new WB_Point3d(v);
-
-				neighbors = v.getNeighborVertices();
-				final Iterator<HE_Vertex> nItr = neighbors.iterator();
-				while (nItr.hasNext()) {
-					n = nItr.next();
-					if (!selection.contains(n)) {
-						nItr.remove();
-					}
-				}
-				p.mult(neighbors.size());
-				for (int i = 0; i < neighbors.size(); i++) {
-					p.add(neighbors.get(i));
-				}
-
-				newPositions[id] = p.scale(0.5 / neighbors.size());
-				id++;
+				id = smooth(v, selection, vc, newPositions, id);
 			}
 			vItr = selection.vItr();
 			id = 0;
 			while (vItr.hasNext()) {
-				vItr.next().set(newPositions[id]);
-				id++;
+				vItr.next().set(newPositions[id], newPositions[id + 1],
+						newPositions[id + 2]);
+				id += 3;
 			}
 		}
 		selection.parent.resetCenter();
@@ -156,4 +126,39 @@ public class HEM_Smooth extends HEM_Modifier {
 		return selection.parent;
 	}
 
+	/**
+	 * Average of vertex and the average of its neighbors, only neighbors in
+	 * the selection if not null.
+	 *
+	 * @return id of the next position
+	 */
+	private int smooth(final HE_Vertex v, final HE_Selection selection,
+			final HE_VertexCirculator vc, final double[] newPositions,
+			final int id) {
+		int count = 0;
+		vc.reset(v);
+		while (vc.nextNeighbor()) {
+			if ((selection == null) || selection.contains(vc.neighbor())) {
+				count++;
+			}
+		}
+		double x = v.x * count;
+		double y = v.y * count;
+		double z = v.z * count;
+		vc.reset(v);
+		while (vc.nextNeighbor()) {
+			final HE_Vertex n = vc.neighbor();
+			if ((selection == null) || selection.contains(n)) {
+				x += n.x;
+				y += n.y;
+				z += n.z;
+			}
+		}
+		final double f = 0.5 / count;
+		newPositions[id] = x * f;
+		newPositions[id + 1] = y * f;
+		newPositions[id + 2] = z * f;
+		return id + 3;
+	}
+
 }
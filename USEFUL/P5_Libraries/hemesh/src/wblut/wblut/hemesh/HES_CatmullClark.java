@@ -14,10 +14,14 @@
 package wblut.hemesh;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import javolution.util.FastList;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_Intersection;
 import wblut.geom.WB_Plane;
 import wblut.geom.WB_Point3d;
@@ -43,6 +47,9 @@ public class HES_CatmullClark extends HES_Subdividor {
 
 	private WB_Parameter<Double>	blendFactor;
 
+	/** Compute new points concurrently and rebuild the mesh in one pass? */
+	private boolean					parallel;
+
 	public HES_CatmullClark() {
 		super();
 		blendFactor = new WB_ConstantParameter<Double>(1.0);
@@ -83,12 +90,30 @@ public class HES_CatmullClark extends HES_Subdividor {
 		return this;
 	}
 
+	/**
+	 * Subdivide full meshes in parallel? Face, edge and vertex points are
+	 * computed concurrently and the new connectivity is built in one pass
+	 * instead of splitting edges and faces one by one. A blend factor
+	 * parameter is then evaluated from several threads. Subdividing a
+	 * selection is not affected.
+	 *
+	 * @param b true/false
+	 * @return self
+	 */
+	public HES_CatmullClark setParallel(final boolean b) {
+		parallel = b;
+		return this;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see wblut.hemesh.HE_Subdividor#subdivide(wblut.hemesh.HE_Mesh)
 	 */
 	@Override
 	public HE_Mesh apply(final HE_Mesh mesh) {
+		if (parallel) {
+			return applyParallel(mesh);
+		}
 		mesh.resetVertexLabels();
 		final HashMap<Integer, WB_Point3d> avgFC = new HashMap<Integer, WB_Point3d>();
 		HE_Vertex v;
@@ -118,17 +143,21 @@ public class HES_CatmullClark extends HES_Subdividor {
 		final List<HE_Vertex> inner = all.getInnerVertices();
 
 		HE_Vertex n;
-		List<HE_Vertex> neighbors;
+		final HE_VertexCirculator vc = new HE_VertexCirculator();
 		vItr = inner.iterator();
 		while (vItr.hasNext()) {
 			v = vItr.next();
 			if (v.getLabel() == -1) {
 				p = avgFC.get(v.key());
-				neighbors = v.getNeighborVertices();
-				final int order = neighbors.size();
+				int order = 0;
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					order++;
+				}
 				final double io = 1.0 / order;
-				for (int i = 0; i < order; i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
 					p.add(2.0 * io * n.x, 2.0 * io * n.y, 2.0 * io * n.z);
 				}
 				p.add(v.multAndCopy(order - 3));
@@ -139,11 +168,12 @@ public class HES_CatmullClark extends HES_Subdividor {
 								blendFactor.value(v.x, v.y, v.z)));
 			} else {
 				p = new WB_Point3d();
-				neighbors = v.getNeighborVertices();
-				final int order = neighbors.size();
+				int order = 0;
 				boolean edgePoint = false;
-				for (int i = 0; i < order; i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
+					order++;
 					p.add(n);
 					if (n.getLabel() == -1) {
 						edgePoint = true;
@@ -169,11 +199,11 @@ public class HES_CatmullClark extends HES_Subdividor {
 				newPositions.put(v.key(), v);
 			} else {
 				p = new WB_Point3d(v);
-				neighbors = v.getNeighborVertices();
 				double c = 1;
 				int nc = 0;
-				for (int i = 0; i < neighbors.size(); i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
 					if (boundary.contains(n)) {
 						p.add(n);
 						nc++;
@@ -200,6 +230,310 @@ public class HES_CatmullClark extends HES_Subdividor {
 		return mesh;
 	}
 
+	/**
+	 * Subdivide a full mesh. Face points, edge points and new vertex positions
+	 * are computed concurrently on a compact copy of the mesh. The refined
+	 * connectivity is then built in a single pass, replacing the halfedges,
+	 * edges and faces of the mesh. Original vertices and faces are kept.
+	 *
+	 * @param mesh mesh
+	 * @return mesh
+	 */
+	private HE_Mesh applyParallel(final HE_Mesh mesh) {
+		mesh.resetVertexLabels();
+		final HE_CompactMesh cm = new HE_CompactMesh(mesh);
+		final int nv = cm.numberOfVertices();
+		final int nhe = cm.numberOfHalfedges();
+		final int ne = cm.numberOfEdges();
+		final int nf = cm.numberOfFaces();
+		final double[] fp = new double[3 * nf];
+		final double[] ep = new double[3 * ne];
+		final double[] vp = new double[3 * nv];
+
+		List<Callable<Object>> tasks = new FastList<Callable<Object>>();
+		int[] chunks = WB_Parallel.split(nf, 1024);
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int from = chunks[c];
+			final int to = chunks[c + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					final double[] center = new double[3];
+					for (int f = from; f < to; f++) {
+						cm.getFaceCenter(f, center);
+						fp[3 * f] = center[0];
+						fp[3 * f + 1] = center[1];
+						fp[3 * f + 2] = center[2];
+					}
+					return null;
+				}
+			});
+		}
+		WB_Parallel.invokeAll(tasks);
+
+		tasks = new FastList<Callable<Object>>();
+		chunks = WB_Parallel.split(ne, 1024);
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int from = chunks[c];
+			final int to = chunks[c + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					edgePoints(cm, fp, ep, from, to);
+					return null;
+				}
+			});
+		}
+		chunks = WB_Parallel.split(nv, 1024);
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int from = chunks[c];
+			final int to = chunks[c + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					vertexPoints(cm, fp, vp, from, to);
+					return null;
+				}
+			});
+		}
+		WB_Parallel.invokeAll(tasks);
+
+		// Every halfedge h is split in a = 2h (start to edge point) and
+		// b = 2h + 1 (edge point to end). Each face corner j adds two spokes,
+		// edge point to face point and face point to previous edge point.
+		final int[] faceOffset = new int[nf + 1];
+		for (int f = 0; f < nf; f++) {
+			faceOffset[f + 1] = faceOffset[f] + cm.getFaceOrder(f);
+		}
+		final int nc = faceOffset[nf];
+		final HE_Vertex[] vertices = mesh.getVerticesAsArray();
+		final HE_Edge[] edges = mesh.getEdgesAsArray();
+		final HE_Face[] faces = mesh.getFacesAsArray();
+		final HE_Vertex[] edgeVertices = new HE_Vertex[ne];
+		final HE_Vertex[] faceVertices = new HE_Vertex[nf];
+		final HE_Halfedge[] halfedges = new HE_Halfedge[2 * nhe + 2 * nc];
+		final HE_Edge[] newEdges = new HE_Edge[2 * ne + nc];
+		final HE_Face[] newFaces = new HE_Face[nc];
+		for (int i = 0; i < halfedges.length; i++) {
+			halfedges[i] = new HE_Halfedge();
+		}
+		for (int v = 0; v < nv; v++) {
+			vertices[v].set(vp[3 * v], vp[3 * v + 1], vp[3 * v + 2]);
+			if (cm.vertexHalfedge[v] > -1) {
+				vertices[v].setHalfedge(halfedges[2 * cm.vertexHalfedge[v]]);
+			}
+		}
+		HE_Halfedge a, b;
+		for (int e = 0; e < ne; e++) {
+			final int he = cm.edgeHalfedge[e];
+			final int pair = cm.hePair[he];
+			edgeVertices[e] = new HE_Vertex(ep[3 * e], ep[3 * e + 1],
+					ep[3 * e + 2]);
+			edgeVertices[e].setLabel(1);
+			edgeVertices[e].setHalfedge(halfedges[2 * he + 1]);
+			newEdges[e] = edges[e];
+			newEdges[e].setHalfedge(halfedges[2 * he]);
+			halfedges[2 * he].setEdge(edges[e]);
+			halfedges[2 * pair + 1].setEdge(edges[e]);
+			newEdges[ne + e] = new HE_Edge();
+			newEdges[ne + e].setLabel(edges[e].getLabel());
+			newEdges[ne + e].setHalfedge(halfedges[2 * he + 1]);
+			halfedges[2 * he + 1].setEdge(newEdges[ne + e]);
+			halfedges[2 * pair].setEdge(newEdges[ne + e]);
+		}
+		for (int h = 0; h < nhe; h++) {
+			a = halfedges[2 * h];
+			b = halfedges[2 * h + 1];
+			a.setVertex(vertices[cm.heVertex[h]]);
+			b.setVertex(edgeVertices[cm.heEdge[h]]);
+			a.setPair(halfedges[2 * cm.hePair[h] + 1]);
+			if (cm.heFace[h] == -1) {
+				a.setNext(b);
+				b.setNext(halfedges[2 * cm.heNext[h]]);
+			}
+		}
+		int[] corners = new int[8];
+		int nnf = nf;
+		for (int f = 0; f < nf; f++) {
+			faceVertices[f] = new HE_Vertex(fp[3 * f], fp[3 * f + 1],
+					fp[3 * f + 2]);
+			faceVertices[f].setLabel(2);
+			final int order = faceOffset[f + 1] - faceOffset[f];
+			if (order == 0) {
+				continue;
+			}
+			if (corners.length < order) {
+				corners = new int[order];
+			}
+			int he = cm.faceHalfedge[f];
+			for (int j = 0; j < order; j++) {
+				corners[j] = he;
+				he = cm.heNext[he];
+			}
+			final int s = 2 * nhe + 2 * faceOffset[f];
+			for (int j = 0; j < order; j++) {
+				final HE_Face quad;
+				if (j == 0) {
+					quad = faces[f];
+				} else {
+					quad = new HE_Face();
+					quad.setLabel(faces[f].getLabel());
+				}
+				newFaces[(j == 0) ? f : nnf++] = quad;
+				a = halfedges[2 * corners[j]];
+				b = halfedges[2 * corners[(j + order - 1) % order] + 1];
+				final HE_Halfedge out = halfedges[s + 2 * j];
+				final HE_Halfedge in = halfedges[s + 2 * j + 1];
+				out.setVertex(edgeVertices[cm.heEdge[corners[j]]]);
+				in.setVertex(faceVertices[f]);
+				a.setNext(out);
+				out.setNext(in);
+				in.setNext(b);
+				b.setNext(a);
+				a.setFace(quad);
+				out.setFace(quad);
+				in.setFace(quad);
+				b.setFace(quad);
+				quad.setHalfedge(a);
+				out.setPair(halfedges[s + 2 * ((j + 1) % order) + 1]);
+				final HE_Edge spoke = new HE_Edge();
+				spoke.setHalfedge(out);
+				out.setEdge(spoke);
+				out.getPair().setEdge(spoke);
+				newEdges[2 * ne + faceOffset[f] + j] = spoke;
+			}
+			faceVertices[f].setHalfedge(halfedges[s + 1]);
+		}
+		mesh.replaceHalfedges(halfedges);
+		mesh.replaceEdges(newEdges);
+		mesh.replaceFaces(nnf == nc ? newFaces : Arrays.copyOf(newFaces, nnf));
+		mesh.addVertices(edgeVertices);
+		mesh.addVertices(faceVertices);
+		return mesh;
+	}
+
+	/**
+	 * Compute edge points for a range of edges. Boundary edge points stay at
+	 * the midpoint.
+	 *
+	 * @param cm compact mesh
+	 * @param fp face points
+	 * @param ep edge points
+	 * @param from first edge
+	 * @param to last edge, exclusive
+	 */
+	private void edgePoints(final HE_CompactMesh cm, final double[] fp,
+			final double[] ep, final int from, final int to) {
+		final double[] coords = cm.coords;
+		for (int e = from; e < to; e++) {
+			final int he = cm.edgeHalfedge[e];
+			final int pair = cm.hePair[he];
+			final int p0 = 3 * cm.heVertex[he];
+			final int p1 = 3 * cm.heVertex[pair];
+			final double mx = 0.5 * (coords[p0] + coords[p1]);
+			final double my = 0.5 * (coords[p0 + 1] + coords[p1 + 1]);
+			final double mz = 0.5 * (coords[p0 + 2] + coords[p1 + 2]);
+			final int f0 = cm.heFace[he];
+			final int f1 = cm.heFace[pair];
+			if ((f0 == -1) || (f1 == -1)) {
+				ep[3 * e] = mx;
+				ep[3 * e + 1] = my;
+				ep[3 * e + 2] = mz;
+			} else {
+				final double t = blendFactor.value(mx, my, mz);
+				ep[3 * e] = mx
+						+ t
+						* (0.25 * (coords[p0] + coords[p1] + fp[3 * f0] + fp[3 * f1]) - mx);
+				ep[3 * e + 1] = my
+						+ t
+						* (0.25 * (coords[p0 + 1] + coords[p1 + 1]
+								+ fp[3 * f0 + 1] + fp[3 * f1 + 1]) - my);
+				ep[3 * e + 2] = mz
+						+ t
+						* (0.25 * (coords[p0 + 2] + coords[p1 + 2]
+								+ fp[3 * f0 + 2] + fp[3 * f1 + 2]) - mz);
+			}
+		}
+	}
+
+	/**
+	 * Compute new positions for a range of original vertices.
+	 *
+	 * @param cm compact mesh
+	 * @param fp face points
+	 * @param vp new vertex positions
+	 * @param from first vertex
+	 * @param to last vertex, exclusive
+	 */
+	private void vertexPoints(final HE_CompactMesh cm, final double[] fp,
+			final double[] vp, final int from, final int to) {
+		final double[] coords = cm.coords;
+		for (int v = from; v < to; v++) {
+			final double x = coords[3 * v];
+			final double y = coords[3 * v + 1];
+			final double z = coords[3 * v + 2];
+			vp[3 * v] = x;
+			vp[3 * v + 1] = y;
+			vp[3 * v + 2] = z;
+			final int start = cm.vertexHalfedge[v];
+			if (start == -1) {
+				continue;
+			}
+			// average face point, sum of edge midpoints, sum of boundary edge
+			// midpoints
+			double fx = 0, fy = 0, fz = 0;
+			double mx = 0, my = 0, mz = 0;
+			double bx = 0, by = 0, bz = 0;
+			int order = 0;
+			int nfc = 0;
+			int nb = 0;
+			boolean boundary = false;
+			int he = start;
+			do {
+				final int pair = cm.hePair[he];
+				final int q = 3 * cm.heVertex[pair];
+				final double hx = 0.5 * (x + coords[q]);
+				final double hy = 0.5 * (y + coords[q + 1]);
+				final double hz = 0.5 * (z + coords[q + 2]);
+				mx += hx;
+				my += hy;
+				mz += hz;
+				order++;
+				final int f = cm.heFace[he];
+				if (f == -1) {
+					boundary = true;
+				} else {
+					fx += fp[3 * f];
+					fy += fp[3 * f + 1];
+					fz += fp[3 * f + 2];
+					nfc++;
+				}
+				if ((f == -1) || (cm.heFace[pair] == -1)) {
+					bx += hx;
+					by += hy;
+					bz += hz;
+					nb++;
+				}
+				he = cm.heNext[pair];
+			} while (he != start);
+			double px, py, pz;
+			if (boundary) {
+				if (keepBoundary || (nb < 2)) {
+					continue;
+				}
+				px = (x + bx) / (nb + 1);
+				py = (y + by) / (nb + 1);
+				pz = (z + bz) / (nb + 1);
+			} else {
+				final double io = 1.0 / order;
+				px = (fx / nfc + 2.0 * io * mx + (order - 3) * x) * io;
+				py = (fy / nfc + 2.0 * io * my + (order - 3) * y) * io;
+				pz = (fz / nfc + 2.0 * io * mz + (order - 3) * z) * io;
+			}
+			final double t = blendFactor.value(x, y, z);
+			vp[3 * v] = x + t * (px - x);
+			vp[3 * v + 1] = y + t * (py - y);
+			vp[3 * v + 2] = z + t * (pz - z);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see
@@ -249,18 +583,22 @@ public class HES_CatmullClark extends HES_Subdividor {
 		}
 
 		HE_Vertex n;
-		List<HE_Vertex> neighbors;
+		final HE_VertexCirculator vc = new HE_VertexCirculator();
 		int id = 0;
 		vItr = inner.iterator();
 		while (vItr.hasNext()) {
 			v = vItr.next();
 			if (v.getLabel() == -1) {
 				p = avgFC.get(v.key());
-				neighbors = v.getNeighborVertices();
-				final int order = neighbors.size();
+				int order = 0;
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					order++;
+				}
 				final double io = 1.0 / order;
-				for (int i = 0; i < order; i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
 					p.add(2.0 * io * n.x, 2.0 * io * n.y, 2.0 * io * n.z);
 				}
 				p.add(v.multAndCopy(order - 3));
@@ -271,11 +609,12 @@ public class HES_CatmullClark extends HES_Subdividor {
 								blendFactor.value(v.x, v.y, v.z)));
 			} else {
 				p = new WB_Point3d();
-				neighbors = v.getNeighborVertices();
-				final int order = neighbors.size();
+				int order = 0;
 				boolean edgePoint = false;
-				for (int i = 0; i < order; i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
+					order++;
 					p.add(n);
 					if (n.getLabel() == -1) {
 						edgePoint = true;
@@ -299,11 +638,11 @@ public class HES_CatmullClark extends HES_Subdividor {
 				newPositions.put(v.key(), v);
 			} else {
 				p = new WB_Point3d(v);
-				neighbors = v.getNeighborVertices();
 				double c = 1;
 				int nc = 0;
-				for (int i = 0; i < neighbors.size(); i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
 					if ((boundary.contains(n)) && (selection.contains(n))) {
 						p.add(n);
 						nc++;
@@ -318,7 +657,6 @@ public class HES_CatmullClark extends HES_Subdividor {
 			id++;
 		}
 		List<WB_Plane> planes;
-		List<HE_Face> faceStar;
 		HE_Face f;
 		WB_Plane P;
 		vItr = outer.iterator();
@@ -329,9 +667,9 @@ public class HES_CatmullClark extends HES_Subdividor {
 				newPositions.put(v.key(), v);
 			} else {
 
-				faceStar = v.getFaceStar();
-				for (int i = 0; i < faceStar.size(); i++) {
-					f = faceStar.get(i);
+				vc.reset(v);
+				while (vc.nextFace()) {
+					f = vc.face();
 					if (!selection.contains(f)) {
 						P = f.toPlane();
 						boolean unique = true;
@@ -348,11 +686,11 @@ public class HES_CatmullClark extends HES_Subdividor {
 				}
 
 				p = new WB_Point3d(v);
-				neighbors = v.getNeighborVertices();
 				double c = 1;
 				int nc = 0;
-				for (int i = 0; i < neighbors.size(); i++) {
-					n = neighbors.get(i);
+				vc.reset(v);
+				while (vc.nextNeighbor()) {
+					n = vc.neighbor();
 					if (outer.contains(n)) {
 						sharedFaces = selection.parent.getSharedFaces(v, n);
 						boolean singleFaceGap = true;
@@ -0,0 +1,668 @@
+/**
+ *
+ */
+package wblut.hemesh;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import wblut.core.IndexedHeap;
+import wblut.core.OaLongIntMap;
+
+/**
+ * Quadric error metric simplification (Garland and Heckbert). Each collapse
+ * merges two neighboring vertices into the point that minimizes the summed,
+ * area-weighted squared distance to the planes of the original faces around
+ * them. Boundaries are held in place by constraint planes perpendicular to
+ * the boundary faces.
+ *
+ * The mesh is triangulated and copied to flat arrays. Every vertex is kept in
+ * an IndexedHeap with the cost of its cheapest collapse, after a collapse only
+ * the surviving vertex and its neighbors are reevaluated. Collapses that
+ * would flip a face or create non-manifold topology are rejected. The result
+ * is rebuilt through HE_CompactMesh.
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class HES_QuadricDec extends HES_Simplifier {
+
+	private int				goal;
+	private double			maxError;
+	private double			boundaryWeight;
+	private double			minCos;
+
+	/** Vertex coordinates, 3 per vertex. */
+	private double[]		coords;
+
+	/** Vertex quadrics, 10 per vertex. */
+	private double[]		quadrics;
+	private boolean[]		boundary;
+	private boolean[]		removedVertex;
+
+	/** Triangle vertex indices, 3 per triangle. */
+	private int[]			triangles;
+	private boolean[]		removedTriangle;
+
+	/** Corner references 3*t+c of each vertex, stored as slices of refs. */
+	private int[]			refs;
+	private int				nrefs;
+	private int[]			refStart;
+	private int[]			refCount;
+
+	/** Cheapest collapse of each vertex. */
+	private int[]			target;
+	private double[]		targetPos;
+
+	private int[]			mark;
+	private int				stamp;
+	private int[]			neighbors;
+	private IndexedHeap		heap;
+	private final double[]	p	= new double[3];
+	private final double[]	q	= new double[10];
+	private final double[]	n0	= new double[3];
+	private final double[]	n1	= new double[3];
+
+	public HES_QuadricDec() {
+		maxError = Double.POSITIVE_INFINITY;
+		boundaryWeight = 1000.0;
+		minCos = 0.2;
+	}
+
+	/**
+	 * Set target number of vertices, default is 90% of the original vertices.
+	 *
+	 * @param g number of vertices
+	 * @return self
+	 */
+	public HES_QuadricDec setGoal(final int g) {
+		goal = g;
+		return this;
+	}
+
+	/**
+	 * Stop when the cheapest collapse exceeds this error, default no limit.
+	 *
+	 * @param e maximum quadric error
+	 * @return self
+	 */
+	public HES_QuadricDec setMaxError(final double e) {
+		maxError = e;
+		return this;
+	}
+
+	/**
+	 * Weight of boundary constraint planes relative to face planes, default
+	 * 1000.
+	 *
+	 * @param w weight
+	 * @return self
+	 */
+	public HES_QuadricDec setBoundaryWeight(final double w) {
+		boundaryWeight = w;
+		return this;
+	}
+
+	/**
+	 * Reject collapses that turn a face normal by more than this angle,
+	 * default 78 degrees.
+	 *
+	 * @param a angle in radians
+	 * @return self
+	 */
+	public HES_QuadricDec setMaxNormalChange(final double a) {
+		minCos = Math.cos(a);
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see wblut.hemesh.HES_Simplifier#apply(wblut.hemesh.HE_Mesh)
+	 */
+	@Override
+	public HE_Mesh apply(final HE_Mesh mesh) {
+		final Iterator<HE_Face> fItr = mesh.fItr();
+		while (fItr.hasNext()) {
+			if (fItr.next().getFaceOrder() != 3) {
+				mesh.triangulate();
+				break;
+			}
+		}
+		final int nv = mesh.numberOfVertices();
+		if (nv < 4) {
+			return mesh;
+		}
+		int g = goal;
+		if (g < 4) {
+			g = (int) (0.9 * nv);
+		}
+		if (g < 4 || g >= nv) {
+			return mesh;
+		}
+		init(mesh);
+		int alive = nv;
+		int v;
+		while (alive > g && !heap.isEmpty()) {
+			if (heap.peekPriority() > maxError) {
+				break;
+			}
+			v = heap.pop();
+			if (collapse(v)) {
+				alive--;
+			}
+		}
+		rebuild(mesh);
+		coords = null;
+		quadrics = null;
+		triangles = null;
+		refs = null;
+		heap = null;
+		return mesh;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see wblut.hemesh.HES_Simplifier#apply(wblut.hemesh.HE_Selection)
+	 */
+	@Override
+	public HE_Mesh apply(final HE_Selection selection) {
+		return apply(selection.parent);
+	}
+
+	private void init(final HE_Mesh mesh) {
+		final double[][] vertices = mesh.getVerticesAsDouble();
+		final int[][] faces = mesh.getFacesAsInt();
+		final int nv = vertices.length;
+		final int nt = faces.length;
+		coords = new double[3 * nv];
+		for (int i = 0; i < nv; i++) {
+			coords[3 * i] = vertices[i][0];
+			coords[3 * i + 1] = vertices[i][1];
+			coords[3 * i + 2] = vertices[i][2];
+		}
+		triangles = new int[3 * nt];
+		for (int i = 0; i < nt; i++) {
+			triangles[3 * i] = faces[i][0];
+			triangles[3 * i + 1] = faces[i][1];
+			triangles[3 * i + 2] = faces[i][2];
+		}
+		removedTriangle = new boolean[nt];
+		removedVertex = new boolean[nv];
+		boundary = new boolean[nv];
+		quadrics = new double[10 * nv];
+		final double[] n = new double[3];
+		for (int t = 0; t < nt; t++) {
+			final double area2 = normal(t, n);
+			if (area2 == 0) {
+				continue;
+			}
+			final double d = -(n[0] * coords[3 * triangles[3 * t]] + n[1]
+					* coords[3 * triangles[3 * t] + 1] + n[2]
+					* coords[3 * triangles[3 * t] + 2]);
+			for (int c = 0; c < 3; c++) {
+				addPlane(triangles[3 * t + c], n[0], n[1], n[2], d, 0.5 * area2);
+			}
+		}
+		// boundary edges have no opposite halfedge
+		final OaLongIntMap halfedges = new OaLongIntMap(3 * nt);
+		for (int i = 0; i < 3 * nt; i++) {
+			halfedges.put(
+					OaLongIntMap.key(triangles[i], triangles[next(i)]), i);
+		}
+		for (int i = 0; i < 3 * nt; i++) {
+			final int a = triangles[i];
+			final int b = triangles[next(i)];
+			if (!halfedges.containsKey(OaLongIntMap.key(b, a))) {
+				boundary[a] = true;
+				boundary[b] = true;
+				addBoundaryPlane(i / 3, a, b, n);
+			}
+		}
+		refStart = new int[nv];
+		refCount = new int[nv];
+		for (int i = 0; i < 3 * nt; i++) {
+			refCount[triangles[i]]++;
+		}
+		for (int i = 1; i < nv; i++) {
+			refStart[i] = refStart[i - 1] + refCount[i - 1];
+		}
+		refs = new int[6 * nt + 16];
+		nrefs = 3 * nt;
+		final int[] fill = Arrays.copyOf(refStart, nv);
+		for (int i = 0; i < 3 * nt; i++) {
+			refs[fill[triangles[i]]++] = i;
+		}
+		target = new int[nv];
+		targetPos = new double[3 * nv];
+		mark = new int[nv];
+		stamp = 0;
+		neighbors = new int[64];
+		heap = new IndexedHeap(nv);
+		for (int v = 0; v < nv; v++) {
+			evaluate(v);
+		}
+	}
+
+	private static int next(final int corner) {
+		return (corner % 3 == 2) ? corner - 2 : corner + 1;
+	}
+
+	/**
+	 * Unit normal of triangle.
+	 *
+	 * @param t triangle
+	 * @param n normal, output
+	 * @return twice the area
+	 */
+	private double normal(final int t, final double[] n) {
+		final int a = 3 * triangles[3 * t];
+		final int b = 3 * triangles[3 * t + 1];
+		final int c = 3 * triangles[3 * t + 2];
+		return normal(coords[a], coords[a + 1], coords[a + 2], coords[b],
+				coords[b + 1], coords[b + 2], coords[c], coords[c + 1],
+				coords[c + 2], n);
+	}
+
+	private static double normal(final double ax, final double ay,
+			final double az, final double bx, final double by,
+			final double bz, final double cx, final double cy,
+			final double cz, final double[] n) {
+		final double ux = bx - ax, uy = by - ay, uz = bz - az;
+		final double wx = cx - ax, wy = cy - ay, wz = cz - az;
+		n[0] = uy * wz - uz * wy;
+		n[1] = uz * wx - ux * wz;
+		n[2] = ux * wy - uy * wx;
+		final double l = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if (l > 0) {
+			n[0] /= l;
+			n[1] /= l;
+			n[2] /= l;
+		}
+		return l;
+	}
+
+	private void addPlane(final int v, final double a, final double b,
+			final double c, final double d, final double w) {
+		final int i = 10 * v;
+		quadrics[i] += w * a * a;
+		quadrics[i + 1] += w * a * b;
+		quadrics[i + 2] += w * a * c;
+		quadrics[i + 3] += w * a * d;
+		quadrics[i + 4] += w * b * b;
+		quadrics[i + 5] += w * b * c;
+		quadrics[i + 6] += w * b * d;
+		quadrics[i + 7] += w * c * c;
+		quadrics[i + 8] += w * c * d;
+		quadrics[i + 9] += w * d * d;
+	}
+
+	/**
+	 * Add the plane through boundary edge ab, perpendicular to its face.
+	 */
+	private void addBoundaryPlane(final int t, final int a, final int b,
+			final double[] n) {
+		if (normal(t, n) == 0) {
+			return;
+		}
+		final double ex = coords[3 * b] - coords[3 * a];
+		final double ey = coords[3 * b + 1] - coords[3 * a + 1];
+		final double ez = coords[3 * b + 2] - coords[3 * a + 2];
+		final double l2 = ex * ex + ey * ey + ez * ez;
+		double mx = ey * n[2] - ez * n[1];
+		double my = ez * n[0] - ex * n[2];
+		double mz = ex * n[1] - ey * n[0];
+		final double l = Math.sqrt(mx * mx + my * my + mz * mz);
+		if (l == 0) {
+			return;
+		}
+		mx /= l;
+		my /= l;
+		mz /= l;
+		final double d = -(mx * coords[3 * a] + my * coords[3 * a + 1] + mz
+				* coords[3 * a + 2]);
+		addPlane(a, mx, my, mz, d, boundaryWeight * l2);
+		addPlane(b, mx, my, mz, d, boundaryWeight * l2);
+	}
+
+	private static double error(final double[] q, final double x,
+			final double y, final double z) {
+		return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3]
+				* x + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y + q[7]
+				* z * z + 2 * q[8] * z + q[9];
+	}
+
+	/**
+	 * Cost of collapsing edge vw, optimal position is stored in p.
+	 */
+	private double collapseCost(final int v, final int w) {
+		for (int i = 0; i < 10; i++) {
+			q[i] = quadrics[10 * v + i] + quadrics[10 * w + i];
+		}
+		final double a00 = q[0], a01 = q[1], a02 = q[2];
+		final double a11 = q[4], a12 = q[5], a22 = q[7];
+		final double c00 = a11 * a22 - a12 * a12;
+		final double c01 = a02 * a12 - a01 * a22;
+		final double c02 = a01 * a12 - a02 * a11;
+		final double det = a00 * c00 + a01 * c01 + a02 * c02;
+		final double s = Math.abs(a00) + Math.abs(a11) + Math.abs(a22);
+		if (Math.abs(det) > 1e-9 * s * s * s) {
+			final double bx = -q[3], by = -q[6], bz = -q[8];
+			final double c11 = a00 * a22 - a02 * a02;
+			final double c12 = a01 * a02 - a00 * a12;
+			final double c22 = a00 * a11 - a01 * a01;
+			p[0] = (c00 * bx + c01 * by + c02 * bz) / det;
+			p[1] = (c01 * bx + c11 * by + c12 * bz) / det;
+			p[2] = (c02 * bx + c12 * by + c22 * bz) / det;
+			return Math.max(0, error(q, p[0], p[1], p[2]));
+		}
+		// singular, choose between endpoints and midpoint
+		final double vx = coords[3 * v], vy = coords[3 * v + 1], vz = coords[3 * v + 2];
+		final double wx = coords[3 * w], wy = coords[3 * w + 1], wz = coords[3 * w + 2];
+		final double mx = 0.5 * (vx + wx), my = 0.5 * (vy + wy), mz = 0.5 * (vz + wz);
+		final double ev = error(q, vx, vy, vz);
+		final double ew = error(q, wx, wy, wz);
+		final double em = error(q, mx, my, mz);
+		if (ev <= ew && ev <= em) {
+			p[0] = vx;
+			p[1] = vy;
+			p[2] = vz;
+			return Math.max(0, ev);
+		} else if (ew <= em) {
+			p[0] = wx;
+			p[1] = wy;
+			p[2] = wz;
+			return Math.max(0, ew);
+		}
+		p[0] = mx;
+		p[1] = my;
+		p[2] = mz;
+		return Math.max(0, em);
+	}
+
+	/**
+	 * Find the cheapest collapse of a vertex and update the heap.
+	 */
+	private void evaluate(final int v) {
+		stamp++;
+		mark[v] = stamp;
+		double best = Double.POSITIVE_INFINITY;
+		int bestTarget = -1;
+		final int end = refStart[v] + refCount[v];
+		for (int r = refStart[v]; r < end; r++) {
+			final int t = refs[r] / 3;
+			if (removedTriangle[t]) {
+				continue;
+			}
+			for (int c = 0; c < 3; c++) {
+				final int w = triangles[3 * t + c];
+				if (mark[w] == stamp) {
+					continue;
+				}
+				mark[w] = stamp;
+				final double cost = collapseCost(v, w);
+				if (cost < best) {
+					best = cost;
+					bestTarget = w;
+					targetPos[3 * v] = p[0];
+					targetPos[3 * v + 1] = p[1];
+					targetPos[3 * v + 2] = p[2];
+				}
+			}
+		}
+		if (bestTarget == -1) {
+			heap.remove(v);
+		} else {
+			target[v] = bestTarget;
+			heap.push(v, best);
+		}
+	}
+
+	/**
+	 * Collapse vertex into its target. An invalid collapse leaves the vertex
+	 * out of the heap until its neighborhood changes.
+	 *
+	 * @param v vertex
+	 * @return true, if collapsed
+	 */
+	private boolean collapse(final int v) {
+		final int u = target[v];
+		if (removedVertex[u]) {
+			evaluate(v);
+			return false;
+		}
+		p[0] = targetPos[3 * v];
+		p[1] = targetPos[3 * v + 1];
+		p[2] = targetPos[3 * v + 2];
+		if (!isValid(v, u)) {
+			return false;
+		}
+		// move u, retarget v's triangles to u
+		coords[3 * u] = p[0];
+		coords[3 * u + 1] = p[1];
+		coords[3 * u + 2] = p[2];
+		for (int i = 0; i < 10; i++) {
+			quadrics[10 * u + i] += quadrics[10 * v + i];
+		}
+		boundary[u] |= boundary[v];
+		ensureRefCapacity(refCount[u] + refCount[v]);
+		final int start = nrefs;
+		int end = refStart[v] + refCount[v];
+		for (int r = refStart[v]; r < end; r++) {
+			final int corner = refs[r];
+			final int t = corner / 3;
+			if (removedTriangle[t]) {
+				continue;
+			}
+			if (triangles[3 * t] == u || triangles[3 * t + 1] == u
+					|| triangles[3 * t + 2] == u) {
+				removedTriangle[t] = true;
+			} else {
+				triangles[corner] = u;
+				refs[nrefs++] = corner;
+			}
+		}
+		end = refStart[u] + refCount[u];
+		for (int r = refStart[u]; r < end; r++) {
+			if (!removedTriangle[refs[r] / 3]) {
+				refs[nrefs++] = refs[r];
+			}
+		}
+		refStart[u] = start;
+		refCount[u] = nrefs - start;
+		refCount[v] = 0;
+		removedVertex[v] = true;
+		// collect neighbors first, evaluate() reuses the marks
+		stamp++;
+		mark[u] = stamp;
+		int nn = 0;
+		end = refStart[u] + refCount[u];
+		for (int r = refStart[u]; r < end; r++) {
+			final int t = refs[r] / 3;
+			for (int c = 0; c < 3; c++) {
+				final int w = triangles[3 * t + c];
+				if (mark[w] != stamp) {
+					mark[w] = stamp;
+					if (nn == neighbors.length) {
+						neighbors = Arrays.copyOf(neighbors, 2 * nn);
+					}
+					neighbors[nn++] = w;
+				}
+			}
+		}
+		evaluate(u);
+		// only the costs of edges to u changed, unless a neighbor targeted u or v
+		for (int i = 0; i < nn; i++) {
+			final int w = neighbors[i];
+			if (!heap.contains(w) || target[w] == u || target[w] == v) {
+				evaluate(w);
+			} else {
+				final double cost = collapseCost(w, u);
+				if (cost < heap.getPriority(w)) {
+					target[w] = u;
+					targetPos[3 * w] = p[0];
+					targetPos[3 * w + 1] = p[1];
+					targetPos[3 * w + 2] = p[2];
+					heap.push(w, cost);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check link condition, boundary pinching and face flips for collapsing v
+	 * into u at p.
+	 */
+	private boolean isValid(final int v, final int u) {
+		// the two rings may only share the vertices opposite to edge vu
+		final int first = ++stamp;
+		int end = refStart[v] + refCount[v];
+		int shared = 0;
+		for (int r = refStart[v]; r < end; r++) {
+			final int t = refs[r] / 3;
+			if (removedTriangle[t]) {
+				continue;
+			}
+			for (int c = 0; c < 3; c++) {
+				mark[triangles[3 * t + c]] = first;
+				if (triangles[3 * t + c] == u) {
+					shared++;
+				}
+			}
+		}
+		if (shared == 0) {
+			return false;
+		}
+		final int second = ++stamp;
+		mark[u] = second;
+		mark[v] = second;
+		int common = 0;
+		end = refStart[u] + refCount[u];
+		for (int r = refStart[u]; r < end; r++) {
+			final int t = refs[r] / 3;
+			if (removedTriangle[t]) {
+				continue;
+			}
+			for (int c = 0; c < 3; c++) {
+				final int w = triangles[3 * t + c];
+				if (mark[w] == first) {
+					common++;
+				}
+				mark[w] = second;
+			}
+		}
+		if (common != shared) {
+			return false;
+		}
+		if (shared > 1 && boundary[u] && boundary[v]) {
+			return false;
+		}
+		return !flips(v, u) && !flips(u, v);
+	}
+
+	/**
+	 * Check if moving v to p flips or degenerates one of the triangles around
+	 * v that do not contain u.
+	 */
+	private boolean flips(final int v, final int u) {
+		final int end = refStart[v] + refCount[v];
+		for (int r = refStart[v]; r < end; r++) {
+			final int corner = refs[r];
+			final int t = corner / 3;
+			if (removedTriangle[t]) {
+				continue;
+			}
+			final int b = triangles[next(corner)];
+			final int c = triangles[next(next(corner))];
+			if (b == u || c == u) {
+				continue;
+			}
+			if (normal(t, n0) == 0) {
+				continue;
+			}
+			if (normal(p[0], p[1], p[2], coords[3 * b], coords[3 * b + 1],
+					coords[3 * b + 2], coords[3 * c], coords[3 * c + 1],
+					coords[3 * c + 2], n1) == 0) {
+				return true;
+			}
+			if (n0[0] * n1[0] + n0[1] * n1[1] + n0[2] * n1[2] < minCos) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void ensureRefCapacity(final int n) {
+		if (nrefs + n <= refs.length) {
+			return;
+		}
+		// compact the slices of live vertices
+		final int nv = refStart.length;
+		int live = 0;
+		for (int v = 0; v < nv; v++) {
+			live += refCount[v];
+		}
+		final int[] nrefsArray = new int[Math.max(2 * (live + n), 16)];
+		int k = 0;
+		for (int v = 0; v < nv; v++) {
+			final int s = refStart[v];
+			refStart[v] = k;
+			for (int r = s; r < s + refCount[v]; r++) {
+				if (!removedTriangle[refs[r] / 3]) {
+					nrefsArray[k++] = refs[r];
+				}
+			}
+			refCount[v] = k - refStart[v];
+		}
+		refs = nrefsArray;
+		nrefs = k;
+	}
+
+	private void rebuild(final HE_Mesh mesh) {
+		final int nv = refStart.length;
+		final int nt = removedTriangle.length;
+		final int[] index = new int[nv];
+		Arrays.fill(index, -1);
+		int nvAlive = 0;
+		int ntAlive = 0;
+		for (int t = 0; t < nt; t++) {
+			if (!removedTriangle[t]) {
+				ntAlive++;
+				for (int c = 0; c < 3; c++) {
+					final int v = triangles[3 * t + c];
+					if (index[v] == -1) {
+						index[v] = nvAlive++;
+					}
+				}
+			}
+		}
+		final HE_CompactMesh cm = new HE_CompactMesh(nvAlive, ntAlive);
+		final int[] vertices = new int[nvAlive];
+		for (int v = 0; v < nv; v++) {
+			if (index[v] != -1) {
+				vertices[index[v]] = v;
+			}
+		}
+		for (int i = 0; i < nvAlive; i++) {
+			final int v = vertices[i];
+			cm.addVertex(coords[3 * v], coords[3 * v + 1], coords[3 * v + 2]);
+		}
+		final int[] face = new int[3];
+		for (int t = 0; t < nt; t++) {
+			if (!removedTriangle[t]) {
+				face[0] = index[triangles[3 * t]];
+				face[1] = index[triangles[3 * t + 1]];
+				face[2] = index[triangles[3 * t + 2]];
+				cm.addFace(face);
+			}
+		}
+		cm.pairHalfedges();
+		cm.capHalfedges();
+		final HE_Mesh result = cm.toMesh();
+		mesh.replaceVertices(result.getVerticesAsArray());
+		mesh.replaceFaces(result.getFacesAsArray());
+		mesh.replaceHalfedges(result.getHalfedgesAsArray());
+		mesh.replaceEdges(result.getEdgesAsArray());
+	}
+
+}
@@ -4,12 +4,10 @@
 package wblut.hemesh;
 
 import java.util.Iterator;
-import java.util.List;
 
-import javolution.util.FastList;
-import javolution.util.FastMap;
 import wblut.WB_Epsilon;
-import wblut.core.Heap;
+import wblut.core.IndexedHeap;
+import wblut.core.OaLongIntMap;
 import wblut.geom.WB_ExplicitTriangle;
 import wblut.geom.WB_Normal3d;
 import wblut.geom.WB_Plane;
@@ -21,10 +19,18 @@ import wblut.geom.WB_Vector3d;
  */
 public class HES_TriDec extends HES_Simplifier {
 	private double				_lambda;
-	private Heap<HE_Halfedge>	heap;
+
+	/** Vertices by heap handle. */
+	private IndexedHeap			heap;
+	private HE_Halfedge[]		minHalfedge;
+	private OaLongIntMap		vertexIndex;
 	private HE_Mesh				_mesh;
-	FastMap<Integer, Double>	vertexCost;
+	double[]					vertexCost;
 	private int					goal;
+	private HE_VertexCirculator	vc;
+	/** Neighbors of a collapsed vertex. */
+	private HE_Vertex[]			ring;
+	private double				minCost;
 
 	public HES_TriDec() {
 		_lambda = 10;
@@ -62,19 +68,33 @@ public class HES_TriDec extends HES_Simplifier {
 
 		_mesh = mesh;
 
+		vc = new HE_VertexCirculator();
+		ring = new HE_Vertex[16];
 		buildHeap();
 		int cn = -1;
 		while ((mesh.numberOfVertices() > goal)
-				&& (cn != mesh.numberOfVertices())) {
-			final HE_Halfedge he = heap.pop();
-			final List<HE_Vertex> vertices = he.getVertex()
-					.getNeighborVertices();
+				&& (cn != mesh.numberOfVertices()) && !heap.isEmpty()) {
+			final HE_Halfedge he = minHalfedge[heap.pop()];
+			int n = 0;
+			vc.reset(he.getVertex());
+			while (vc.nextNeighbor()) {
+				if (n == ring.length) {
+					final HE_Vertex[] tmp = new HE_Vertex[2 * n];
+					System.arraycopy(ring, 0, tmp, 0, n);
+					ring = tmp;
+				}
+				ring[n++] = vc.neighbor();
+			}
 			cn = mesh.numberOfVertices();
 			collapseHalfedge(he);
-			vertexCost.remove(he.getVertex().key());
-			updateHeap(vertices);
+			updateHeap(ring, n);
 
 		}
+		heap = null;
+		minHalfedge = null;
+		vertexIndex = null;
+		vc = null;
+		ring = null;
 		return mesh;
 	}
 
@@ -91,57 +111,64 @@ public class HES_TriDec extends HES_Simplifier {
 	}
 
 	private void buildHeap() {
-		heap = new Heap<HE_Halfedge>();
-		vertexCost = new FastMap<Integer, Double>(_mesh.numberOfVertices());
+		final int nv = _mesh.numberOfVertices();
+		heap = new IndexedHeap(nv);
+		minHalfedge = new HE_Halfedge[nv];
+		vertexIndex = new OaLongIntMap(nv);
+		vertexCost = new double[nv];
 		final Iterator<HE_Vertex> vItr = _mesh.vItr();
+		int index = 0;
 		while (vItr.hasNext()) {
 			final HE_Vertex v = vItr.next();
+			vertexIndex.put(v.key(), index);
 			final double vvi = visualImportance(v);
-			vertexCost.put(v.key(), vvi);
-			final List<HE_Halfedge> vstar = v.getHalfedgeStar();
-			HE_Halfedge minhe = vstar.get(0);
-			double min = halfedgeCollapseCost(vstar.get(0));
-			for (int i = 1; i < vstar.size(); i++) {
-				final double c = halfedgeCollapseCost(vstar.get(i));
-				if (c < min) {
-					min = c;
-					minhe = vstar.get(i);
-				}
-			}
-			heap.push(min * vvi, minhe);
+			vertexCost[index] = vvi;
+			final HE_Halfedge minhe = minCostHalfedge(v);
+			minHalfedge[index] = minhe;
+			heap.push(index, minCost * vvi);
+			index++;
 		}
 	}
 
-	private void updateHeap(final List<HE_Vertex> vertices) {
-		final Iterator<HE_Vertex> vItr = vertices.iterator();
-		while (vItr.hasNext()) {
-			final HE_Vertex v = vItr.next();
+	private void updateHeap(final HE_Vertex[] vertices, final int n) {
+		for (int i = 0; i < n; i++) {
+			final HE_Vertex v = vertices[i];
+			final int index = vertexIndex.get(v.key());
 			final double vvi = visualImportance(v);
-			vertexCost.put(v.key(), vvi);
-			final List<HE_Halfedge> vstar = v.getHalfedgeStar();
-			HE_Halfedge minhe = vstar.get(0);
-			heap.removeNoRebuild(vstar.get(0));
-			double min = halfedgeCollapseCost(vstar.get(0));
-			for (int i = 1; i < vstar.size(); i++) {
-				final double c = halfedgeCollapseCost(vstar.get(i));
-				heap.removeNoRebuild(vstar.get(i));
-				if (c < min) {
-					min = c;
-					minhe = vstar.get(i);
+			vertexCost[index] = vvi;
+			final HE_Halfedge minhe = minCostHalfedge(v);
+			minHalfedge[index] = minhe;
+			heap.update(index, minCost * vvi);
+		}
+	}
 
-				}
+	/**
+	 * Outgoing halfedge of v with the lowest collapse cost, the first one
+	 * on ties. The cost is left in minCost.
+	 */
+	private HE_Halfedge minCostHalfedge(final HE_Vertex v) {
+		vc.reset(v);
+		vc.next();
+		HE_Halfedge minhe = vc.halfedge();
+		double min = halfedgeCollapseCost(minhe);
+		while (vc.next()) {
+			final double c = halfedgeCollapseCost(vc.halfedge());
+			if (c < min) {
+				min = c;
+				minhe = vc.halfedge();
 			}
-			heap.push(min * vvi, minhe);
 		}
-		heap.rebuild();
+		minCost = min;
+		return minhe;
 	}
 
 	private double visualImportance(final HE_Vertex v) {
-		final List<HE_Face> faces = v.getFaceStar();
 		final WB_Normal3d nom = new WB_Normal3d();
 		double denom = 0.0;
 		double A;
-		for (final HE_Face f : faces) {
+		vc.reset(v);
+		while (vc.nextFace()) {
+			final HE_Face f = vc.face();
 			A = f.getFaceArea();
 			nom.add(f.getFaceNormal(), A);
 			denom += A;
@@ -155,7 +182,6 @@ public class HES_TriDec extends HES_Simplifier {
 	}
 
 	private double halfedgeCollapseCost(final HE_Halfedge he) {
-		final List<HE_Face> faces = new FastList<HE_Face>();
 		final HE_Face f = he.getFace();
 		final HE_Face fp = he.getPair().getFace();
 		if ((f == null) || (fp == null)) {
@@ -178,7 +204,7 @@ public class HES_TriDec extends HES_Simplifier {
 						cost += 0.5
 								* (T.getArea() + fl.getFaceArea())
 								* (1.0 - fl.getFaceNormal().dot(
-										T.getPlane().getNormal()));
+										P.getNormal()));
 					}
 
 				}
@@ -206,7 +232,7 @@ public class HES_TriDec extends HES_Simplifier {
 	}
 
 	private void collapseHalfedge(final HE_Halfedge he) {
-
+		heap.remove(vertexIndex.get(he.getVertex().key()));
 		_mesh.remove(he.getVertex());
 		final HE_Vertex ve = he.getEndVertex();
 		ve.setHalfedge(he.getNextInVertex());
@@ -245,12 +271,6 @@ public class HES_TriDec extends HES_Simplifier {
 			_mesh.remove(hep);
 			_mesh.remove(hep.getNextInFace());
 			_mesh.remove(hep.getPrevInFace());
-			heap.removeNoRebuild(he);
-			heap.removeNoRebuild(he.getNextInFace());
-			heap.removeNoRebuild(he.getPrevInFace());
-			heap.removeNoRebuild(hep);
-			heap.removeNoRebuild(hep.getNextInFace());
-			heap.removeNoRebuild(hep.getPrevInFace());
 
 			_mesh.remove(he.getEdge());
 
@@ -0,0 +1,256 @@
+/**
+ * 
+ */
+package wblut.hemesh;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.WB_Parallel;
+import wblut.geom.WB_Point3d;
+
+/**
+ * Binary STL writer that writes triangles as they arrive. Facets are collected
+ * in a fixed buffer and written in blocks, the facet count in the header is
+ * filled in by endSave. A whole mesh can be written with mesh(), optionally
+ * encoding chunks of faces on multiple threads.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class HET_BinarySTLWriter implements HET_TriangleSink {
+
+	/** Facets per block. */
+	private static final int	BLOCK	= 4096;
+
+	/** Faces per task when writing a mesh in parallel. */
+	private static final int	CHUNK	= 16384;
+
+	protected RandomAccessFile	stlFile;
+	protected FileChannel		stlChannel;
+	private ByteBuffer			buffer;
+	private int					count;
+	private double				scale;
+
+	public void beginSave(final String fn) {
+		beginSave(fn, 1.0);
+	}
+
+	public void beginSave(final String fn, final double scale) {
+		try {
+			this.scale = scale;
+			stlFile = new RandomAccessFile(fn, "rw");
+			stlFile.setLength(0);
+			stlChannel = stlFile.getChannel();
+			buffer = ByteBuffer.allocateDirect(50 * BLOCK);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			count = 0;
+			// empty header and facet count placeholder
+			buffer.put(new byte[84]);
+			flush();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void endSave() {
+		try {
+			flush();
+			final ByteBuffer n = ByteBuffer.allocate(4);
+			n.order(ByteOrder.LITTLE_ENDIAN);
+			n.putInt(count);
+			n.flip();
+			stlChannel.write(n, 80);
+			stlChannel.close();
+			stlFile.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Number of facets written so far.
+	 * 
+	 * @return number of facets
+	 */
+	public int numberOfFacets() {
+		return count;
+	}
+
+	public void triangle(final int[] ids, final double[] coords) {
+		facet(coords[0], coords[1], coords[2], coords[3], coords[4],
+				coords[5], coords[6], coords[7], coords[8]);
+	}
+
+	public void triangle(final WB_Point3d p0, final WB_Point3d p1,
+			final WB_Point3d p2) {
+		facet(p0.x, p0.y, p0.z, p1.x, p1.y, p1.z, p2.x, p2.y, p2.z);
+	}
+
+	/**
+	 * Write all faces of a mesh. Faces with more than three vertices are
+	 * triangulated on the fly, the mesh is not copied.
+	 * 
+	 * @param mesh mesh
+	 * @param parallel encode chunks of faces on multiple threads?
+	 */
+	public void mesh(final HE_Mesh mesh, final boolean parallel) {
+		final HE_Face[] faces = mesh.getFacesAsArray();
+		final int n = faces.length;
+		if (!parallel || (WB_Parallel.getThreads() < 2) || (n <= CHUNK)) {
+			for (int i = 0; i < n; i++) {
+				final HE_Halfedge he = faces[i].getHalfedge();
+				if (he == null) {
+					continue;
+				}
+				if (he.getNextInFace().getNextInFace().getNextInFace() == he) {
+					triangle(he.getVertex(), he.getNextInFace().getVertex(), he
+							.getNextInFace().getNextInFace().getVertex());
+				} else {
+					final HE_Vertex[] tris = faces[i].getTriangleVertices();
+					for (int j = 0; j < tris.length; j += 3) {
+						triangle(tris[j], tris[j + 1], tris[j + 2]);
+					}
+				}
+			}
+			return;
+		}
+		// chunks are encoded a round at a time to limit memory, and written
+		// in order
+		final int round = 2 * CHUNK * WB_Parallel.getThreads();
+		try {
+			flush();
+			for (int start = 0; start < n; start += round) {
+				final int end = Math.min(n, start + round);
+				final List<Callable<ByteBuffer>> tasks = new ArrayList<Callable<ByteBuffer>>();
+				for (int from = start; from < end; from += CHUNK) {
+					final int ffrom = from;
+					final int fto = Math.min(end, from + CHUNK);
+					tasks.add(new Callable<ByteBuffer>() {
+						public ByteBuffer call() {
+							return encode(faces, ffrom, fto, scale);
+						}
+					});
+				}
+				for (final ByteBuffer chunk : WB_Parallel.invokeAll(tasks)) {
+					count += chunk.remaining() / 50;
+					while (chunk.hasRemaining()) {
+						stlChannel.write(chunk);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Encode faces [from, to) as facets.
+	 * 
+	 * @return flipped buffer
+	 */
+	private static ByteBuffer encode(final HE_Face[] faces, final int from,
+			final int to, final double scale) {
+		ByteBuffer chunk = ByteBuffer.allocate(50 * (to - from));
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = from; i < to; i++) {
+			final HE_Halfedge he = faces[i].getHalfedge();
+			if (he == null) {
+				continue;
+			}
+			if (he.getNextInFace().getNextInFace().getNextInFace() == he) {
+				if (chunk.remaining() < 50) {
+					chunk = grow(chunk, 50);
+				}
+				final HE_Vertex v0 = he.getVertex();
+				final HE_Vertex v1 = he.getNextInFace().getVertex();
+				final HE_Vertex v2 = he.getNextInFace().getNextInFace()
+						.getVertex();
+				putFacet(chunk, scale, v0.x, v0.y, v0.z, v1.x, v1.y, v1.z,
+						v2.x, v2.y, v2.z);
+			} else {
+				final HE_Vertex[] tris = faces[i].getTriangleVertices();
+				if (chunk.remaining() < 50 * tris.length / 3) {
+					chunk = grow(chunk, 50 * tris.length / 3);
+				}
+				for (int j = 0; j < tris.length; j += 3) {
+					putFacet(chunk, scale, tris[j].x, tris[j].y, tris[j].z,
+							tris[j + 1].x, tris[j + 1].y, tris[j + 1].z,
+							tris[j + 2].x, tris[j + 2].y, tris[j + 2].z);
+				}
+			}
+		}
+		chunk.flip();
+		return chunk;
+	}
+
+	private static ByteBuffer grow(final ByteBuffer buffer, final int required) {
+		final ByteBuffer result = ByteBuffer.allocate(Math.max(
+				2 * buffer.capacity(), buffer.position() + required));
+		result.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+
+	private void facet(final double x0, final double y0, final double z0,
+			final double x1, final double y1, final double z1, final double x2,
+			final double y2, final double z2) {
+		putFacet(buffer, scale, x0, y0, z0, x1, y1, z1, x2, y2, z2);
+		count++;
+		if (!buffer.hasRemaining()) {
+			try {
+				flush();
+			} catch (final IOException e) {
+				// a streaming producer must not go on with a truncated file
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Put one facet: normal, three vertices and an empty attribute.
+	 */
+	private static void putFacet(final ByteBuffer buffer, final double scale,
+			final double x0, final double y0, final double z0,
+			final double x1, final double y1, final double z1, final double x2,
+			final double y2, final double z2) {
+		double nx = (y1 - y0) * (z2 - z0) - (z1 - z0) * (y2 - y0);
+		double ny = (z1 - z0) * (x2 - x0) - (x1 - x0) * (z2 - z0);
+		double nz = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+		final double d = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (d > 0) {
+			nx /= d;
+			ny /= d;
+			nz /= d;
+		}
+		buffer.putFloat((float) nx);
+		buffer.putFloat((float) ny);
+		buffer.putFloat((float) nz);
+		buffer.putFloat((float) (scale * x0));
+		buffer.putFloat((float) (scale * y0));
+		buffer.putFloat((float) (scale * z0));
+		buffer.putFloat((float) (scale * x1));
+		buffer.putFloat((float) (scale * y1));
+		buffer.putFloat((float) (scale * z1));
+		buffer.putFloat((float) (scale * x2));
+		buffer.putFloat((float) (scale * y2));
+		buffer.putFloat((float) (scale * z2));
+		buffer.putShort((short) 0);
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			stlChannel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -3,14 +3,11 @@
  */
 package wblut.hemesh;
 
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Iterator;
 
-import wblut.geom.WB_Normal3d;
+import wblut.core.OaLongIntMap;
 import wblut.geom.WB_Point3d;
 
 
@@ -52,7 +49,7 @@ public class HET_Export {
 		final int nOffset = obj.getCurrNormalOffset() + 1;
 		obj.newObject(mesh.key().toString());
 		// vertices
-		final FastMap<Integer, Integer> keyToIndex = new FastMap<Integer, Integer>(
+		final OaLongIntMap keyToIndex = new OaLongIntMap(
 				mesh.numberOfVertices());
 		Iterator<HE_Vertex> vItr = triMesh.vItr();
 		HE_Vertex v;
@@ -99,9 +96,9 @@ public class HET_Export {
 	* @param stream
 	*/
 	public static void saveToOBJ(final HE_Mesh mesh, final OutputStream stream) {
-		final HET_OBJWriter obj = new HET_OBJWriter();
+		final HET_OBJStreamWriter obj = new HET_OBJStreamWriter();
 		obj.beginSave(stream);
-		saveToOBJ(mesh, obj);
+		obj.mesh(mesh, false);
 		obj.endSave();
 	}
 
@@ -112,9 +109,22 @@ public class HET_Export {
 	 * @param path
 	 */
 	public static void saveToOBJ(final HE_Mesh mesh, final String path) {
-		final HET_OBJWriter obj = new HET_OBJWriter();
+		saveToOBJ(mesh, path, false);
+	}
+
+	/**
+	 * Saves the mesh as OBJ format to the given file path. Existing files will
+	 * be overwritten. The mesh is streamed through a {@link HET_OBJStreamWriter}
+	 * without copying, faces are triangulated on the fly.
+	 * 
+	 * @param path
+	 * @param parallel format chunks of lines on multiple threads?
+	 */
+	public static void saveToOBJ(final HE_Mesh mesh, final String path,
+			final boolean parallel) {
+		final HET_OBJStreamWriter obj = new HET_OBJStreamWriter();
 		obj.beginSave(path);
-		saveToOBJ(mesh, obj);
+		obj.mesh(mesh, parallel);
 		obj.endSave();
 	}
 
@@ -129,74 +139,27 @@ public class HET_Export {
 	 */
 	public static void saveToSTL(final HE_Mesh mesh, final String path,
 			final double scale) {
-		System.out.println("HET_Export.saveToSTL: copying mesh");
-		final HE_Mesh save = mesh.get();
-		System.out.println("HET_Export.saveToSTL: triangulating copy");
-		save.triangulate();
-		System.out.println("HET_Export.saveToSTL: opening stream");
-		FileOutputStream out;
-		try {
-			out = new FileOutputStream(path);
-
-			byte[] header = new byte[80];
-
-			final ByteBuffer buf = ByteBuffer.allocate(200);
-
-			header = new byte[80];
-			buf.get(header, 0, 80);
-			out.write(header);
-			buf.rewind();
-
-			buf.order(ByteOrder.LITTLE_ENDIAN);
-			buf.putInt(save.numberOfFaces());
-			buf.rewind();
-			buf.get(header, 0, 4);
-			out.write(header, 0, 4);
-			buf.rewind();
-			buf.clear();
-			header = new byte[50];
-			HE_Face f;
-			int i = 1;
-			final Iterator<HE_Face> fItr = save.fItr();
-			while (fItr.hasNext()) {
-
-				f = fItr.next();
-
-				final WB_Normal3d n = f.getFaceNormal();
-				final WB_Point3d v1 = f.getHalfedge().getVertex();
-				final WB_Point3d v2 = f.getHalfedge().getNextInFace()
-						.getVertex();
-				final WB_Point3d v3 = f.getHalfedge().getNextInFace()
-						.getNextInFace().getVertex();
-				buf.rewind();
-				buf.putFloat((float) n.x);
-				buf.putFloat((float) n.y);
-				buf.putFloat((float) n.z);
-				buf.putFloat((float) (scale * v1.x));
-				buf.putFloat((float) (scale * v1.y));
-				buf.putFloat((float) (scale * v1.z));
-				buf.putFloat((float) (scale * v2.x));
-				buf.putFloat((float) (scale * v2.y));
-				buf.putFloat((float) (scale * v2.z));
-				buf.putFloat((float) (scale * v3.x));
-				buf.putFloat((float) (scale * v3.y));
-				buf.putFloat((float) (scale * v3.z));
-
-				buf.rewind();
-				buf.get(header);
-				out.write(header);
-				i++;
-
-			}
-
-			out.flush();
-			out.close();
-			System.out.println("HET_Export.saveToSTL:done saving");
+		saveToSTL(mesh, path, scale, false);
+	}
 
-		} catch (final Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * Export mesh to binary STL file. The mesh is streamed through a
+	 * {@link HET_BinarySTLWriter} without copying, faces are triangulated on
+	 * the fly.
+	 * 
+	 * @param path
+	 *            file path
+	 * @param scale
+	 *            scaling factor
+	 * @param parallel
+	 *            encode chunks of faces on multiple threads?
+	 */
+	public static void saveToSTL(final HE_Mesh mesh, final String path,
+			final double scale, final boolean parallel) {
+		final HET_BinarySTLWriter stl = new HET_BinarySTLWriter();
+		stl.beginSave(path, scale);
+		stl.mesh(mesh, parallel);
+		stl.endSave();
 	}
 
 	/**
@@ -0,0 +1,488 @@
+/**
+ *
+ */
+package wblut.hemesh;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import wblut.core.OaLongIntMap;
+import wblut.core.WB_Parallel;
+import wblut.geom.WB_Normal3d;
+import wblut.geom.WB_Point3d;
+
+/**
+ * OBJ writer that formats numbers straight into a byte buffer and writes it
+ * through a channel in large blocks. Coordinates are written at full
+ * precision, as Double.toString, so they read back exactly. With
+ * setDecimals() they are rounded to a fixed number of decimals instead and
+ * trailing zeros are dropped. A whole mesh can be written with mesh(),
+ * optionally formatting chunks of lines on multiple threads.
+ *
+ * As a HET_TriangleSink it writes each streamed vertex when its id is first
+ * used. Ids are counted from the last call to newObject().
+ *
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class HET_OBJStreamWriter implements HET_TriangleSink {
+
+	/** Bytes per block. */
+	private static final int	BLOCK	= 1 << 20;
+
+	/** Room reserved for one line. */
+	private static final int	MAXLINE	= 128;
+
+	/** Elements per task when writing a mesh in parallel. */
+	private static final int	CHUNK	= 16384;
+
+	/**
+	 * Growable byte buffer with number formatting. If it has a channel, it is
+	 * written to the channel when full instead of growing.
+	 */
+	private static final class Lines {
+		byte[]						bytes;
+		int							size;
+		final WritableByteChannel	channel;
+
+		Lines(final int capacity, final WritableByteChannel channel) {
+			bytes = new byte[capacity];
+			size = 0;
+			this.channel = channel;
+		}
+
+		void ensure(final int n) throws IOException {
+			if (size + n <= bytes.length) {
+				return;
+			}
+			if (channel != null) {
+				flush();
+				if (n <= bytes.length) {
+					return;
+				}
+			}
+			final byte[] tmp = new byte[Math.max(2 * bytes.length, size + n)];
+			System.arraycopy(bytes, 0, tmp, 0, size);
+			bytes = tmp;
+		}
+
+		void flush() throws IOException {
+			write(channel);
+			size = 0;
+		}
+
+		void write(final WritableByteChannel to) throws IOException {
+			final ByteBuffer buf = ByteBuffer.wrap(bytes, 0, size);
+			while (buf.hasRemaining()) {
+				to.write(buf);
+			}
+		}
+
+		void put(final char c) {
+			bytes[size++] = (byte) c;
+		}
+
+		void put(final String s) {
+			for (int i = 0; i < s.length(); i++) {
+				bytes[size++] = (byte) s.charAt(i);
+			}
+		}
+
+		void put(long v) {
+			if (v < 0) {
+				if (v == Long.MIN_VALUE) {
+					put(Long.toString(v));
+					return;
+				}
+				put('-');
+				v = -v;
+			}
+			int digits = 1;
+			for (long t = v; t >= 10; t /= 10) {
+				digits++;
+			}
+			int pos = size + digits;
+			size = pos;
+			do {
+				bytes[--pos] = (byte) ('0' + (v % 10));
+				v /= 10;
+			} while (v > 0);
+		}
+
+		void put(final double v, final int decimals, final long factor) {
+			final double a = Math.abs(v);
+			// also catches NaN
+			if ((decimals < 0) || !(a < 9e18 / factor)) {
+				put(Double.toString(v));
+				return;
+			}
+			final long r = Math.round(a * factor);
+			if (r == 0) {
+				put('0');
+				return;
+			}
+			if (v < 0) {
+				put('-');
+			}
+			put(r / factor);
+			long frac = r % factor;
+			if (frac != 0) {
+				int d = decimals;
+				while (frac % 10 == 0) {
+					frac /= 10;
+					d--;
+				}
+				put('.');
+				int pos = size + d;
+				size = pos;
+				for (int i = 0; i < d; i++) {
+					bytes[--pos] = (byte) ('0' + (frac % 10));
+					frac /= 10;
+				}
+			}
+		}
+	}
+
+	/** Formats the lines of one element. */
+	private interface Formatter {
+		void format(int i, Lines lines) throws IOException;
+	}
+
+	protected OutputStream			objStream;
+	protected WritableByteChannel	objChannel;
+	private Lines					buffer;
+	private int						decimals;
+	private long					factor;
+	protected int					numVerticesWritten	= 0;
+	protected int					numNormalsWritten	= 0;
+
+	/** Vertex offset of streamed triangles. */
+	private int						streamOffset;
+
+	/** Number of streamed vertices. */
+	private int						streamCount;
+
+	public HET_OBJStreamWriter() {
+		setDecimals(-1);
+	}
+
+	/**
+	 * Set number of decimals of coordinates. Default is full precision.
+	 *
+	 * @param d decimals, 0-9, negative for full precision
+	 * @return self
+	 */
+	public HET_OBJStreamWriter setDecimals(final int d) {
+		decimals = (d < 0) ? -1 : Math.min(9, d);
+		factor = 1;
+		for (int i = 0; i < decimals; i++) {
+			factor *= 10;
+		}
+		return this;
+	}
+
+	public void beginSave(final OutputStream stream) {
+		try {
+			objStream = stream;
+			handleBeginSave();
+		} catch (final Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void beginSave(final String fn) {
+		try {
+			objStream = new FileOutputStream(fn);
+			handleBeginSave();
+		} catch (final Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void handleBeginSave() throws IOException {
+		objChannel = Channels.newChannel(objStream);
+		buffer = new Lines(BLOCK, objChannel);
+		numVerticesWritten = 0;
+		numNormalsWritten = 0;
+		streamOffset = 0;
+		streamCount = 0;
+		buffer.put("# generated by HE_OBJExport\n");
+	}
+
+	public void endSave() {
+		try {
+			buffer.flush();
+			objChannel.close();
+			objStream.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public int getCurrNormalOffset() {
+		return numNormalsWritten;
+	}
+
+	public int getCurrVertexOffset() {
+		return numVerticesWritten;
+	}
+
+	public void newObject(final String name) {
+		try {
+			buffer.ensure(name.length() + 3);
+			buffer.put("o ");
+			buffer.put(name);
+			buffer.put('\n');
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		streamOffset = numVerticesWritten;
+		streamCount = 0;
+	}
+
+	public void vertex(final double x, final double y, final double z) {
+		try {
+			buffer.ensure(MAXLINE);
+			putVertex(buffer, x, y, z);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		numVerticesWritten++;
+	}
+
+	public void vertex(final WB_Point3d v) {
+		vertex(v.x, v.y, v.z);
+	}
+
+	public void normal(final double x, final double y, final double z) {
+		try {
+			buffer.ensure(MAXLINE);
+			putNormal(buffer, x, y, z);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		numNormalsWritten++;
+	}
+
+	public void normal(final WB_Normal3d n) {
+		normal(n.x, n.y, n.z);
+	}
+
+	public void face(final int a, final int b, final int c) {
+		try {
+			buffer.ensure(MAXLINE);
+			buffer.put("f ");
+			buffer.put(a);
+			buffer.put(' ');
+			buffer.put(b);
+			buffer.put(' ');
+			buffer.put(c);
+			buffer.put('\n');
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void faceWithNormals(final int a, final int b, final int c,
+			final int na, final int nb, final int nc) {
+		try {
+			buffer.ensure(MAXLINE);
+			putFace(buffer, a, b, c, na, nb, nc);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write a streamed triangle and its new vertices.
+	 *
+	 * @throws RuntimeException wrapping the IOException if writing fails, so
+	 *             the producer stops instead of leaving a truncated file
+	 */
+	public void triangle(final int[] ids, final double[] coords) {
+		try {
+			// ids are numbered in order of first use
+			for (int pass = 0; pass < 3; pass++) {
+				for (int k = 0; k < 3; k++) {
+					if (ids[k] == streamCount) {
+						buffer.ensure(MAXLINE);
+						putVertex(buffer, coords[3 * k], coords[3 * k + 1],
+								coords[3 * k + 2]);
+						numVerticesWritten++;
+						streamCount++;
+					}
+				}
+			}
+			buffer.ensure(MAXLINE);
+			buffer.put("f ");
+			buffer.put(streamOffset + ids[0] + 1);
+			buffer.put(' ');
+			buffer.put(streamOffset + ids[1] + 1);
+			buffer.put(' ');
+			buffer.put(streamOffset + ids[2] + 1);
+			buffer.put('\n');
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a mesh as a new object: vertices, vertex normals and faces with
+	 * normals. Faces with more than three vertices are triangulated on the
+	 * fly, the mesh is not copied.
+	 *
+	 * @param mesh mesh
+	 * @param parallel format chunks of lines on multiple threads?
+	 */
+	public void mesh(final HE_Mesh mesh, final boolean parallel) {
+		final int vOffset = numVerticesWritten + 1;
+		final int nOffset = numNormalsWritten + 1;
+		newObject(mesh.key().toString());
+		final HE_Vertex[] vertices = mesh.getVerticesAsArray();
+		final HE_Face[] faces = mesh.getFacesAsArray();
+		final OaLongIntMap keyToIndex = new OaLongIntMap(vertices.length);
+		for (int i = 0; i < vertices.length; i++) {
+			keyToIndex.put(vertices[i].key(), i);
+		}
+		try {
+			write(vertices.length, new Formatter() {
+				public void format(final int i, final Lines lines)
+						throws IOException {
+					lines.ensure(MAXLINE);
+					putVertex(lines, vertices[i].x, vertices[i].y,
+							vertices[i].z);
+				}
+			}, parallel);
+			write(vertices.length, new Formatter() {
+				public void format(final int i, final Lines lines)
+						throws IOException {
+					final WB_Normal3d n = vertices[i].getVertexNormal();
+					lines.ensure(MAXLINE);
+					if (n == null) {
+						putNormal(lines, 0, 0, 0);
+					} else {
+						putNormal(lines, n.x, n.y, n.z);
+					}
+				}
+			}, parallel);
+			write(faces.length, new Formatter() {
+				public void format(final int i, final Lines lines)
+						throws IOException {
+					final HE_Halfedge he = faces[i].getHalfedge();
+					if (he == null) {
+						return;
+					}
+					if (he.getNextInFace().getNextInFace().getNextInFace() == he) {
+						final int a = keyToIndex.get(he.getVertex().key());
+						final int b = keyToIndex.get(he.getNextInFace()
+								.getVertex().key());
+						final int c = keyToIndex.get(he.getNextInFace()
+								.getNextInFace().getVertex().key());
+						lines.ensure(MAXLINE);
+						putFace(lines, a + vOffset, b + vOffset, c + vOffset,
+								a + nOffset, b + nOffset, c + nOffset);
+					} else {
+						final HE_Vertex[] tris = faces[i].getTriangleVertices();
+						for (int j = 0; j < tris.length; j += 3) {
+							final int a = keyToIndex.get(tris[j].key());
+							final int b = keyToIndex.get(tris[j + 1].key());
+							final int c = keyToIndex.get(tris[j + 2].key());
+							lines.ensure(MAXLINE);
+							putFace(lines, a + vOffset, b + vOffset, c
+									+ vOffset, a + nOffset, b + nOffset, c
+									+ nOffset);
+						}
+					}
+				}
+			}, parallel);
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		numVerticesWritten += vertices.length;
+		numNormalsWritten += vertices.length;
+		streamOffset = numVerticesWritten;
+	}
+
+	/**
+	 * Format and write the lines of n elements. In parallel, chunks are
+	 * formatted a round at a time to limit memory, and written in order.
+	 */
+	private void write(final int n, final Formatter formatter,
+			final boolean parallel) throws IOException {
+		if (!parallel || (WB_Parallel.getThreads() < 2) || (n <= CHUNK)) {
+			for (int i = 0; i < n; i++) {
+				formatter.format(i, buffer);
+			}
+			return;
+		}
+		buffer.flush();
+		final int round = 2 * CHUNK * WB_Parallel.getThreads();
+		for (int start = 0; start < n; start += round) {
+			final int end = Math.min(n, start + round);
+			final List<Callable<Lines>> tasks = new ArrayList<Callable<Lines>>();
+			for (int from = start; from < end; from += CHUNK) {
+				final int ffrom = from;
+				final int fto = Math.min(end, from + CHUNK);
+				tasks.add(new Callable<Lines>() {
+					public Lines call() throws IOException {
+						final Lines lines = new Lines(48 * (fto - ffrom), null);
+						for (int i = ffrom; i < fto; i++) {
+							formatter.format(i, lines);
+						}
+						return lines;
+					}
+				});
+			}
+			for (final Lines lines : WB_Parallel.invokeAll(tasks)) {
+				lines.write(objChannel);
+			}
+		}
+	}
+
+	private void putVertex(final Lines lines, final double x, final double y,
+			final double z) {
+		lines.put("v ");
+		lines.put(x, decimals, factor);
+		lines.put(' ');
+		lines.put(y, decimals, factor);
+		lines.put(' ');
+		lines.put(z, decimals, factor);
+		lines.put('\n');
+	}
+
+	private void putNormal(final Lines lines, final double x, final double y,
+			final double z) {
+		lines.put("vn ");
+		lines.put(x, decimals, factor);
+		lines.put(' ');
+		lines.put(y, decimals, factor);
+		lines.put(' ');
+		lines.put(z, decimals, factor);
+		lines.put('\n');
+	}
+
+	private static void putFace(final Lines lines, final int a, final int b,
+			final int c, final int na, final int nb, final int nc) {
+		lines.put("f ");
+		lines.put(a);
+		lines.put("//");
+		lines.put(na);
+		lines.put(' ');
+		lines.put(b);
+		lines.put("//");
+		lines.put(nb);
+		lines.put(' ');
+		lines.put(c);
+		lines.put("//");
+		lines.put(nc);
+		lines.put('\n');
+	}
+
+}
@@ -0,0 +1,24 @@
+/**
+ * 
+ */
+package wblut.hemesh;
+
+/**
+ * Receiver for a stream of triangles, e.g. from HEC_IsoStream.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public interface HET_TriangleSink {
+
+	/**
+	 * Receive one triangle. Vertex ids are consecutive from 0 in order of
+	 * first use and identify vertices shared by several triangles. Both arrays
+	 * are reused by the caller, copy what needs to be kept.
+	 * 
+	 * @param ids three vertex ids
+	 * @param coords coordinates x0, y0, z0, x1, y1, z1, x2, y2, z2
+	 */
+	public void triangle(int[] ids, double[] coords);
+
+}
@@ -0,0 +1,959 @@
+/*
+ * Copyright (c) 2010, Frederik Vanhoutte This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ * http://creativecommons.org/licenses/LGPL/2.1/ This library is distributed in
+ * the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Lesser General Public License for more details. You should have
+ * received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package wblut.hemesh;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import wblut.core.OaLongIntMap;
+
+/**
+ * Compact half-edge data structure. All elements are identified by their
+ * index, connectivity is stored in int arrays and vertex positions in a single
+ * double array (x0, y0, z0, x1, y1, z1, ...). A missing reference is -1.
+ *
+ * Conversion from and to HE_Mesh preserves element order, connectivity,
+ * positions and labels. Keys and attached data are not preserved.
+ *
+ * @author Frederik Vanhoutte (W:Blut)
+ *
+ */
+public class HE_CompactMesh {
+
+	/** Vertex coordinates, x0, y0, z0, x1, y1, z1, ... */
+	protected double[]	coords;
+
+	/** Outgoing halfedge of vertex. */
+	protected int[]		vertexHalfedge;
+
+	/** Vertex labels. */
+	protected int[]		vertexLabel;
+
+	/** Next halfedge in face. */
+	protected int[]		heNext;
+
+	/** Paired halfedge. */
+	protected int[]		hePair;
+
+	/** Start vertex of halfedge. */
+	protected int[]		heVertex;
+
+	/** Face of halfedge, -1 for boundary halfedges. */
+	protected int[]		heFace;
+
+	/** Edge of halfedge. */
+	protected int[]		heEdge;
+
+	/** Halfedge labels. */
+	protected int[]		heLabel;
+
+	/** Halfedge of edge. */
+	protected int[]		edgeHalfedge;
+
+	/** Edge labels. */
+	protected int[]		edgeLabel;
+
+	/** Halfedge of face. */
+	protected int[]		faceHalfedge;
+
+	/** Face labels. */
+	protected int[]		faceLabel;
+
+	/** Number of vertices. */
+	protected int		nv;
+
+	/** Number of halfedges. */
+	protected int		nhe;
+
+	/** Number of edges. */
+	protected int		ne;
+
+	/** Number of faces. */
+	protected int		nf;
+
+	/**
+	 * Instantiates a new empty HE_CompactMesh.
+	 */
+	public HE_CompactMesh() {
+		this(16, 16);
+	}
+
+	/**
+	 * Instantiates a new empty HE_CompactMesh with preallocated storage.
+	 *
+	 * @param vertexCapacity expected number of vertices
+	 * @param faceCapacity expected number of faces
+	 */
+	public HE_CompactMesh(final int vertexCapacity, final int faceCapacity) {
+		final int vc = Math.max(vertexCapacity, 4);
+		final int fc = Math.max(faceCapacity, 4);
+		coords = new double[3 * vc];
+		vertexHalfedge = new int[vc];
+		vertexLabel = new int[vc];
+		faceHalfedge = new int[fc];
+		faceLabel = new int[fc];
+		heNext = new int[4 * fc];
+		hePair = new int[4 * fc];
+		heVertex = new int[4 * fc];
+		heFace = new int[4 * fc];
+		heEdge = new int[4 * fc];
+		heLabel = new int[4 * fc];
+		edgeHalfedge = new int[2 * fc];
+		edgeLabel = new int[2 * fc];
+	}
+
+	/**
+	 * Instantiates a new HE_CompactMesh as a copy of a HE_Mesh.
+	 *
+	 * @param mesh source mesh
+	 */
+	public HE_CompactMesh(final HE_Mesh mesh) {
+		this(mesh.numberOfVertices(), mesh.numberOfFaces());
+		set(mesh);
+	}
+
+	/**
+	 * Replace contents with a copy of a HE_Mesh.
+	 *
+	 * @param mesh source mesh
+	 * @return self
+	 */
+	public HE_CompactMesh set(final HE_Mesh mesh) {
+		clear();
+		final OaLongIntMap vertexIndex = new OaLongIntMap(
+				mesh.numberOfVertices());
+		final OaLongIntMap halfedgeIndex = new OaLongIntMap(
+				mesh.numberOfHalfedges());
+		final OaLongIntMap edgeIndex = new OaLongIntMap(mesh.numberOfEdges());
+		final OaLongIntMap faceIndex = new OaLongIntMap(mesh.numberOfFaces());
+		ensureVertexCapacity(mesh.numberOfVertices());
+		ensureHalfedgeCapacity(mesh.numberOfHalfedges());
+		ensureEdgeCapacity(mesh.numberOfEdges());
+		ensureFaceCapacity(mesh.numberOfFaces());
+		final Iterator<HE_Vertex> vItr = mesh.vItr();
+		HE_Vertex v;
+		while (vItr.hasNext()) {
+			v = vItr.next();
+			vertexIndex.put(v.key(), nv);
+			addVertex(v.x, v.y, v.z);
+			vertexLabel[nv - 1] = v.getLabel();
+		}
+		final Iterator<HE_Halfedge> heItr = mesh.heItr();
+		while (heItr.hasNext()) {
+			halfedgeIndex.put(heItr.next().key(), nhe);
+			nhe++;
+		}
+		final Iterator<HE_Edge> eItr = mesh.eItr();
+		HE_Edge e;
+		while (eItr.hasNext()) {
+			e = eItr.next();
+			edgeIndex.put(e.key(), ne);
+			edgeHalfedge[ne] = index(halfedgeIndex, e.getHalfedge() == null ? null
+					: e.getHalfedge().key());
+			edgeLabel[ne] = e.getLabel();
+			ne++;
+		}
+		final Iterator<HE_Face> fItr = mesh.fItr();
+		HE_Face f;
+		while (fItr.hasNext()) {
+			f = fItr.next();
+			faceIndex.put(f.key(), nf);
+			faceHalfedge[nf] = index(halfedgeIndex, f.getHalfedge() == null ? null
+					: f.getHalfedge().key());
+			faceLabel[nf] = f.getLabel();
+			nf++;
+		}
+		final Iterator<HE_Vertex> vItr2 = mesh.vItr();
+		int i = 0;
+		while (vItr2.hasNext()) {
+			v = vItr2.next();
+			vertexHalfedge[i++] = index(halfedgeIndex,
+					v.getHalfedge() == null ? null : v.getHalfedge().key());
+		}
+		final Iterator<HE_Halfedge> heItr2 = mesh.heItr();
+		HE_Halfedge he;
+		i = 0;
+		while (heItr2.hasNext()) {
+			he = heItr2.next();
+			heNext[i] = index(halfedgeIndex, he.getNextInFace() == null ? null
+					: he.getNextInFace().key());
+			hePair[i] = index(halfedgeIndex, he.getPair() == null ? null : he
+					.getPair().key());
+			heVertex[i] = index(vertexIndex, he.getVertex() == null ? null : he
+					.getVertex().key());
+			heFace[i] = index(faceIndex, he.getFace() == null ? null : he
+					.getFace().key());
+			heEdge[i] = index(edgeIndex, he.getEdge() == null ? null : he
+					.getEdge().key());
+			heLabel[i] = he.getLabel();
+			i++;
+		}
+		return this;
+	}
+
+	/**
+	 * Lookup index of key, -1 if key is null or not present.
+	 *
+	 * @param map key to index map
+	 * @param key key
+	 * @return index
+	 */
+	private static int index(final OaLongIntMap map, final Integer key) {
+		if (key == null) {
+			return -1;
+		}
+		return map.get(key);
+	}
+
+	/**
+	 * Convert to a new HE_Mesh.
+	 *
+	 * @return HE_Mesh
+	 */
+	public HE_Mesh toMesh() {
+		final HE_Mesh mesh = new HE_Mesh();
+		final HE_Vertex[] vertices = new HE_Vertex[nv];
+		final HE_Halfedge[] halfedges = new HE_Halfedge[nhe];
+		final HE_Edge[] edges = new HE_Edge[ne];
+		final HE_Face[] faces = new HE_Face[nf];
+		for (int i = 0; i < nv; i++) {
+			vertices[i] = new HE_Vertex(coords[3 * i], coords[3 * i + 1],
+					coords[3 * i + 2]);
+			vertices[i].setLabel(vertexLabel[i]);
+		}
+		for (int i = 0; i < nhe; i++) {
+			halfedges[i] = new HE_Halfedge();
+			halfedges[i].setLabel(heLabel[i]);
+		}
+		for (int i = 0; i < ne; i++) {
+			edges[i] = new HE_Edge();
+			edges[i].setLabel(edgeLabel[i]);
+			if (edgeHalfedge[i] > -1) {
+				edges[i].setHalfedge(halfedges[edgeHalfedge[i]]);
+			}
+		}
+		for (int i = 0; i < nf; i++) {
+			faces[i] = new HE_Face();
+			faces[i].setLabel(faceLabel[i]);
+			if (faceHalfedge[i] > -1) {
+				faces[i].setHalfedge(halfedges[faceHalfedge[i]]);
+			}
+		}
+		for (int i = 0; i < nv; i++) {
+			if (vertexHalfedge[i] > -1) {
+				vertices[i].setHalfedge(halfedges[vertexHalfedge[i]]);
+			}
+		}
+		HE_Halfedge he;
+		for (int i = 0; i < nhe; i++) {
+			he = halfedges[i];
+			if (heNext[i] > -1) {
+				he.setNext(halfedges[heNext[i]]);
+			}
+			if (hePair[i] > -1) {
+				he.setPair(halfedges[hePair[i]]);
+			}
+			if (heVertex[i] > -1) {
+				he.setVertex(vertices[heVertex[i]]);
+			}
+			if (heFace[i] > -1) {
+				he.setFace(faces[heFace[i]]);
+			}
+			if (heEdge[i] > -1) {
+				he.setEdge(edges[heEdge[i]]);
+			}
+		}
+		mesh.addVertices(vertices);
+		mesh.addFaces(faces);
+		mesh.addHalfedges(halfedges);
+		mesh.addEdges(edges);
+		return mesh;
+	}
+
+	/**
+	 * Remove all elements. Storage is retained.
+	 */
+	public void clear() {
+		nv = 0;
+		nhe = 0;
+		ne = 0;
+		nf = 0;
+	}
+
+	/**
+	 * Release unused storage.
+	 */
+	public void trimToSize() {
+		coords = Arrays.copyOf(coords, 3 * nv);
+		vertexHalfedge = Arrays.copyOf(vertexHalfedge, nv);
+		vertexLabel = Arrays.copyOf(vertexLabel, nv);
+		heNext = Arrays.copyOf(heNext, nhe);
+		hePair = Arrays.copyOf(hePair, nhe);
+		heVertex = Arrays.copyOf(heVertex, nhe);
+		heFace = Arrays.copyOf(heFace, nhe);
+		heEdge = Arrays.copyOf(heEdge, nhe);
+		heLabel = Arrays.copyOf(heLabel, nhe);
+		edgeHalfedge = Arrays.copyOf(edgeHalfedge, ne);
+		edgeLabel = Arrays.copyOf(edgeLabel, ne);
+		faceHalfedge = Arrays.copyOf(faceHalfedge, nf);
+		faceLabel = Arrays.copyOf(faceLabel, nf);
+	}
+
+	/**
+	 * Grow capacity.
+	 *
+	 * @param current current capacity
+	 * @param required required capacity
+	 * @return new capacity
+	 */
+	private static int grow(final int current, final int required) {
+		int cap = Math.max(current, 4);
+		while (cap < required) {
+			cap += cap >> 1;
+		}
+		return cap;
+	}
+
+	/**
+	 * Ensure storage for a number of vertices.
+	 *
+	 * @param n number of vertices
+	 */
+	public void ensureVertexCapacity(final int n) {
+		if (n > vertexHalfedge.length) {
+			final int cap = grow(vertexHalfedge.length, n);
+			coords = Arrays.copyOf(coords, 3 * cap);
+			vertexHalfedge = Arrays.copyOf(vertexHalfedge, cap);
+			vertexLabel = Arrays.copyOf(vertexLabel, cap);
+		}
+	}
+
+	/**
+	 * Ensure storage for a number of halfedges.
+	 *
+	 * @param n number of halfedges
+	 */
+	public void ensureHalfedgeCapacity(final int n) {
+		if (n > heNext.length) {
+			final int cap = grow(heNext.length, n);
+			heNext = Arrays.copyOf(heNext, cap);
+			hePair = Arrays.copyOf(hePair, cap);
+			heVertex = Arrays.copyOf(heVertex, cap);
+			heFace = Arrays.copyOf(heFace, cap);
+			heEdge = Arrays.copyOf(heEdge, cap);
+			heLabel = Arrays.copyOf(heLabel, cap);
+		}
+	}
+
+	/**
+	 * Ensure storage for a number of edges.
+	 *
+	 * @param n number of edges
+	 */
+	public void ensureEdgeCapacity(final int n) {
+		if (n > edgeHalfedge.length) {
+			final int cap = grow(edgeHalfedge.length, n);
+			edgeHalfedge = Arrays.copyOf(edgeHalfedge, cap);
+			edgeLabel = Arrays.copyOf(edgeLabel, cap);
+		}
+	}
+
+	/**
+	 * Ensure storage for a number of faces.
+	 *
+	 * @param n number of faces
+	 */
+	public void ensureFaceCapacity(final int n) {
+		if (n > faceHalfedge.length) {
+			final int cap = grow(faceHalfedge.length, n);
+			faceHalfedge = Arrays.copyOf(faceHalfedge, cap);
+			faceLabel = Arrays.copyOf(faceLabel, cap);
+		}
+	}
+
+	// BUILD
+
+	/**
+	 * Add vertex.
+	 *
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @param z z-coordinate
+	 * @return index of new vertex
+	 */
+	public int addVertex(final double x, final double y, final double z) {
+		ensureVertexCapacity(nv + 1);
+		coords[3 * nv] = x;
+		coords[3 * nv + 1] = y;
+		coords[3 * nv + 2] = z;
+		vertexHalfedge[nv] = -1;
+		vertexLabel[nv] = -1;
+		return nv++;
+	}
+
+	/**
+	 * Add halfedge.
+	 *
+	 * @param vertex start vertex
+	 * @param face face, -1 for boundary halfedge
+	 * @return index of new halfedge
+	 */
+	public int addHalfedge(final int vertex, final int face) {
+		ensureHalfedgeCapacity(nhe + 1);
+		heNext[nhe] = -1;
+		hePair[nhe] = -1;
+		heVertex[nhe] = vertex;
+		heFace[nhe] = face;
+		heEdge[nhe] = -1;
+		heLabel[nhe] = -1;
+		return nhe++;
+	}
+
+	/**
+	 * Add edge.
+	 *
+	 * @param halfedge halfedge of edge
+	 * @return index of new edge
+	 */
+	public int addEdge(final int halfedge) {
+		ensureEdgeCapacity(ne + 1);
+		edgeHalfedge[ne] = halfedge;
+		edgeLabel[ne] = -1;
+		return ne++;
+	}
+
+	/**
+	 * Add face defined by a loop of vertex indices. The halfedges of the face
+	 * are created and cycled, pairing is left to pairHalfedges().
+	 *
+	 * @param vertices vertex indices
+	 * @return index of new face
+	 */
+	public int addFace(final int[] vertices) {
+		ensureFaceCapacity(nf + 1);
+		final int f = nf++;
+		faceLabel[f] = -1;
+		final int n = vertices.length;
+		ensureHalfedgeCapacity(nhe + n);
+		final int first = nhe;
+		for (int i = 0; i < n; i++) {
+			addHalfedge(vertices[i], f);
+			heNext[first + i] = first + (i + 1) % n;
+			vertexHalfedge[vertices[i]] = first + i;
+		}
+		faceHalfedge[f] = (n > 0) ? first : -1;
+		return f;
+	}
+
+	/**
+	 * Try to pair all unpaired halfedges. Outgoing halfedges are bucketed per
+	 * vertex and sorted by end vertex, each pair is then found by binary
+	 * search. A new edge is created for every new pair.
+	 */
+	public void pairHalfedges() {
+		final int[] start = new int[nv + 1];
+		for (int i = 0; i < nhe; i++) {
+			if (hePair[i] == -1 && heNext[i] > -1) {
+				start[heVertex[i] + 1]++;
+			}
+		}
+		for (int i = 0; i < nv; i++) {
+			start[i + 1] += start[i];
+		}
+		final int[] fill = Arrays.copyOf(start, nv);
+		final long[] out = new long[start[nv]];
+		for (int i = 0; i < nhe; i++) {
+			if (hePair[i] == -1 && heNext[i] > -1) {
+				out[fill[heVertex[i]]++] = ((long) heVertex[heNext[i]] << 32)
+						| i;
+			}
+		}
+		for (int i = 0; i < nv; i++) {
+			if (start[i + 1] - start[i] > 1) {
+				Arrays.sort(out, start[i], start[i + 1]);
+			}
+		}
+		int s, t, j;
+		for (int i = 0; i < nhe; i++) {
+			if (hePair[i] == -1 && heNext[i] > -1) {
+				s = heVertex[i];
+				t = heVertex[heNext[i]];
+				j = Arrays.binarySearch(out, start[t], start[t + 1],
+						((long) s << 32));
+				if (j < 0) {
+					j = -j - 1;
+				}
+				while (j < start[t + 1] && (int) (out[j] >>> 32) == s) {
+					final int he2 = (int) out[j];
+					if (he2 != i && hePair[he2] == -1) {
+						hePair[i] = he2;
+						hePair[he2] = i;
+						final int e = addEdge(i);
+						heEdge[i] = e;
+						heEdge[he2] = e;
+						break;
+					}
+					j++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cap all remaining unpaired halfedges with boundary halfedges. Only use
+	 * after pairHalfedges().
+	 */
+	public void capHalfedges() {
+		final int n = nhe;
+		final int first = nhe;
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (hePair[i] == -1 && heNext[i] > -1) {
+				final int he = addHalfedge(heVertex[heNext[i]], -1);
+				hePair[i] = he;
+				hePair[he] = i;
+				final int e = addEdge(i);
+				heEdge[i] = e;
+				heEdge[he] = e;
+				count++;
+			}
+		}
+		// boundary halfedge leaving v follows the boundary halfedge ending in v
+		final int[] boundaryOut = new int[nv];
+		Arrays.fill(boundaryOut, -1);
+		for (int i = first; i < first + count; i++) {
+			boundaryOut[heVertex[i]] = i;
+		}
+		for (int i = first; i < first + count; i++) {
+			heNext[i] = boundaryOut[heVertex[hePair[i]]];
+		}
+	}
+
+	// ACCESS
+
+	/**
+	 * Number of vertices.
+	 *
+	 * @return the number of vertices
+	 */
+	public int numberOfVertices() {
+		return nv;
+	}
+
+	/**
+	 * Number of halfedges.
+	 *
+	 * @return the number of halfedges
+	 */
+	public int numberOfHalfedges() {
+		return nhe;
+	}
+
+	/**
+	 * Number of edges.
+	 *
+	 * @return the number of edges
+	 */
+	public int numberOfEdges() {
+		return ne;
+	}
+
+	/**
+	 * Number of faces.
+	 *
+	 * @return the number of faces
+	 */
+	public int numberOfFaces() {
+		return nf;
+	}
+
+	/**
+	 * Direct access to vertex coordinates, x0, y0, z0, x1, y1, z1, ... Only
+	 * the first 3*numberOfVertices() values are valid.
+	 *
+	 * @return coordinate array, no copy is made
+	 */
+	public double[] getCoordinates() {
+		return coords;
+	}
+
+	/**
+	 * Get x-coordinate of vertex.
+	 *
+	 * @param v vertex index
+	 * @return x
+	 */
+	public double getX(final int v) {
+		return coords[3 * v];
+	}
+
+	/**
+	 * Get y-coordinate of vertex.
+	 *
+	 * @param v vertex index
+	 * @return y
+	 */
+	public double getY(final int v) {
+		return coords[3 * v + 1];
+	}
+
+	/**
+	 * Get z-coordinate of vertex.
+	 *
+	 * @param v vertex index
+	 * @return z
+	 */
+	public double getZ(final int v) {
+		return coords[3 * v + 2];
+	}
+
+	/**
+	 * Set position of vertex.
+	 *
+	 * @param v vertex index
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @param z z-coordinate
+	 */
+	public void setVertex(final int v, final double x, final double y,
+			final double z) {
+		coords[3 * v] = x;
+		coords[3 * v + 1] = y;
+		coords[3 * v + 2] = z;
+	}
+
+	/**
+	 * Get outgoing halfedge of vertex.
+	 *
+	 * @param v vertex index
+	 * @return halfedge index
+	 */
+	public int getVertexHalfedge(final int v) {
+		return vertexHalfedge[v];
+	}
+
+	/**
+	 * Get halfedge of face.
+	 *
+	 * @param f face index
+	 * @return halfedge index
+	 */
+	public int getFaceHalfedge(final int f) {
+		return faceHalfedge[f];
+	}
+
+	/**
+	 * Get halfedge of edge.
+	 *
+	 * @param e edge index
+	 * @return halfedge index
+	 */
+	public int getEdgeHalfedge(final int e) {
+		return edgeHalfedge[e];
+	}
+
+	/**
+	 * Get next halfedge in face.
+	 *
+	 * @param he halfedge index
+	 * @return halfedge index
+	 */
+	public int getNextInFace(final int he) {
+		return heNext[he];
+	}
+
+	/**
+	 * Get previous halfedge in face. Not stored, requires a walk around the
+	 * face.
+	 *
+	 * @param he halfedge index
+	 * @return halfedge index
+	 */
+	public int getPrevInFace(final int he) {
+		int prev = he;
+		int next = heNext[he];
+		while (next != he && next > -1) {
+			prev = next;
+			next = heNext[next];
+		}
+		return prev;
+	}
+
+	/**
+	 * Get next halfedge in vertex.
+	 *
+	 * @param he halfedge index
+	 * @return halfedge index
+	 */
+	public int getNextInVertex(final int he) {
+		final int pair = hePair[he];
+		return (pair == -1) ? -1 : heNext[pair];
+	}
+
+	/**
+	 * Get paired halfedge.
+	 *
+	 * @param he halfedge index
+	 * @return halfedge index
+	 */
+	public int getPair(final int he) {
+		return hePair[he];
+	}
+
+	/**
+	 * Get start vertex of halfedge.
+	 *
+	 * @param he halfedge index
+	 * @return vertex index
+	 */
+	public int getVertex(final int he) {
+		return heVertex[he];
+	}
+
+	/**
+	 * Get end vertex of halfedge.
+	 *
+	 * @param he halfedge index
+	 * @return vertex index
+	 */
+	public int getEndVertex(final int he) {
+		final int pair = hePair[he];
+		if (pair > -1) {
+			return heVertex[pair];
+		}
+		return heVertex[heNext[he]];
+	}
+
+	/**
+	 * Get face of halfedge.
+	 *
+	 * @param he halfedge index
+	 * @return face index, -1 for boundary halfedges
+	 */
+	public int getFace(final int he) {
+		return heFace[he];
+	}
+
+	/**
+	 * Get edge of halfedge.
+	 *
+	 * @param he halfedge index
+	 * @return edge index
+	 */
+	public int getEdge(final int he) {
+		return heEdge[he];
+	}
+
+	/**
+	 * Get number of vertices in face.
+	 *
+	 * @param f face index
+	 * @return number of vertices
+	 */
+	public int getFaceOrder(final int f) {
+		final int start = faceHalfedge[f];
+		if (start == -1) {
+			return 0;
+		}
+		int result = 0;
+		int he = start;
+		do {
+			result++;
+			he = heNext[he];
+		} while (he != start);
+		return result;
+	}
+
+	/**
+	 * Get number of edges connected to vertex.
+	 *
+	 * @param v vertex index
+	 * @return number of edges
+	 */
+	public int getVertexOrder(final int v) {
+		final int start = vertexHalfedge[v];
+		if (start == -1) {
+			return 0;
+		}
+		int result = 0;
+		int he = start;
+		do {
+			result++;
+			he = getNextInVertex(he);
+		} while (he != start && he != -1);
+		return result;
+	}
+
+	/**
+	 * Get vertex indices of face.
+	 *
+	 * @param f face index
+	 * @param result array to store result in, should hold at least
+	 * getFaceOrder(f) values
+	 * @return number of vertices
+	 */
+	public int getFaceVertices(final int f, final int[] result) {
+		final int start = faceHalfedge[f];
+		if (start == -1) {
+			return 0;
+		}
+		int n = 0;
+		int he = start;
+		do {
+			result[n++] = heVertex[he];
+			he = heNext[he];
+		} while (he != start);
+		return n;
+	}
+
+	/**
+	 * Get faces as array of vertex indices.
+	 *
+	 * @return 2D array of int. First index gives face. Second index gives
+	 *         vertices.
+	 */
+	public int[][] getFacesAsInt() {
+		final int[][] result = new int[nf][];
+		for (int f = 0; f < nf; f++) {
+			result[f] = new int[getFaceOrder(f)];
+			getFaceVertices(f, result[f]);
+		}
+		return result;
+	}
+
+	/**
+	 * Get vertex label.
+	 *
+	 * @param v vertex index
+	 * @return label
+	 */
+	public int getVertexLabel(final int v) {
+		return vertexLabel[v];
+	}
+
+	/**
+	 * Set vertex label.
+	 *
+	 * @param v vertex index
+	 * @param label label
+	 */
+	public void setVertexLabel(final int v, final int label) {
+		vertexLabel[v] = label;
+	}
+
+	/**
+	 * Get face label.
+	 *
+	 * @param f face index
+	 * @return label
+	 */
+	public int getFaceLabel(final int f) {
+		return faceLabel[f];
+	}
+
+	/**
+	 * Set face label.
+	 *
+	 * @param f face index
+	 * @param label label
+	 */
+	public void setFaceLabel(final int f, final int label) {
+		faceLabel[f] = label;
+	}
+
+	/**
+	 * Get face normal, Newell's method.
+	 *
+	 * @param f face index
+	 * @param result array to store normal in
+	 */
+	public void getFaceNormal(final int f, final double[] result) {
+		result[0] = result[1] = result[2] = 0;
+		final int start = faceHalfedge[f];
+		if (start == -1) {
+			return;
+		}
+		int he = start;
+		int p0, p1;
+		do {
+			p0 = 3 * heVertex[he];
+			p1 = 3 * heVertex[heNext[he]];
+			result[0] += (coords[p0 + 1] - coords[p1 + 1])
+					* (coords[p0 + 2] + coords[p1 + 2]);
+			result[1] += (coords[p0 + 2] - coords[p1 + 2])
+					* (coords[p0] + coords[p1]);
+			result[2] += (coords[p0] - coords[p1])
+					* (coords[p0 + 1] + coords[p1 + 1]);
+			he = heNext[he];
+		} while (he != start);
+		final double d = Math.sqrt(result[0] * result[0] + result[1]
+				* result[1] + result[2] * result[2]);
+		if (d > 0) {
+			result[0] /= d;
+			result[1] /= d;
+			result[2] /= d;
+		}
+	}
+
+	/**
+	 * Get face center.
+	 *
+	 * @param f face index
+	 * @param result array to store center in
+	 */
+	public void getFaceCenter(final int f, final double[] result) {
+		result[0] = result[1] = result[2] = 0;
+		final int start = faceHalfedge[f];
+		if (start == -1) {
+			return;
+		}
+		int he = start;
+		int c = 0;
+		int p;
+		do {
+			p = 3 * heVertex[he];
+			result[0] += coords[p];
+			result[1] += coords[p + 1];
+			result[2] += coords[p + 2];
+			c++;
+			he = heNext[he];
+		} while (he != start);
+		result[0] /= c;
+		result[1] /= c;
+		result[2] /= c;
+	}
+
+	/**
+	 * Get range of vertex coordinates.
+	 *
+	 * @return array of limit values: min x, min y, min z, max x, max y, max z
+	 */
+	public double[] limits() {
+		final double[] result = new double[6];
+		for (int i = 0; i < 3; i++) {
+			result[i] = Double.POSITIVE_INFINITY;
+			result[i + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < 3 * nv; i += 3) {
+			result[0] = Math.min(result[0], coords[i]);
+			result[1] = Math.min(result[1], coords[i + 1]);
+			result[2] = Math.min(result[2], coords[i + 2]);
+			result[3] = Math.max(result[3], coords[i]);
+			result[4] = Math.max(result[4], coords[i + 1]);
+			result[5] = Math.max(result[5], coords[i + 2]);
+		}
+		return result;
+	}
+
+}
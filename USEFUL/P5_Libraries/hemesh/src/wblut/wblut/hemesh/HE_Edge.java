@@ -14,6 +14,7 @@
 package wblut.hemesh;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wblut.core.WB_HasData;
 import wblut.geom.WB_Distance;
@@ -35,7 +36,7 @@ public class HE_Edge  implements WB_HasData {
 	private HE_Halfedge		_halfedge;
 
 	/** Static edge key counter. */
-	protected static int	_currentKey;
+	protected static final AtomicInteger	_currentKey = new AtomicInteger();
 
 	/** Unique edge key. */
 	protected final Integer	_key;
@@ -49,8 +50,7 @@ public class HE_Edge  implements WB_HasData {
 	 * Instantiates a new HE_Edge.
 	 */
 	public HE_Edge() {
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
@@ -15,6 +15,7 @@ package wblut.hemesh;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wblut.core.WB_HasData;
 import wblut.geom.WB_ExplicitPolygon;
@@ -46,7 +47,7 @@ public class HE_Face  implements WB_HasData {
 	protected boolean		_sorted;
 
 	/** Static face key counter. */
-	protected static int	_currentKey;
+	protected static final AtomicInteger	_currentKey = new AtomicInteger();
 
 	/** Unique face key. */
 	protected final Integer	_key;
@@ -60,8 +61,7 @@ public class HE_Face  implements WB_HasData {
 	 * Instantiates a new HE_Face.
 	 */
 	public HE_Face() {
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
@@ -234,6 +234,40 @@ public class HE_Face  implements WB_HasData {
 
 	}
 
+	/**
+	 * Visit vertices of face, starting at the halfedge of the face. Unlike
+	 * getFaceVertices() the face is not sorted and no list is created.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitFaceVertices(final HE_Visitor<HE_Vertex> visitor) {
+		if (_halfedge == null) {
+			return;
+		}
+		HE_Halfedge he = _halfedge;
+		do {
+			visitor.visit(he.getVertex());
+			he = he.getNextInFace();
+		} while (he != _halfedge);
+	}
+
+	/**
+	 * Visit halfedges of face, starting at the halfedge of the face. Unlike
+	 * getFaceHalfedges() the face is not sorted and no list is created.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitFaceHalfedges(final HE_Visitor<HE_Halfedge> visitor) {
+		if (_halfedge == null) {
+			return;
+		}
+		HE_Halfedge he = _halfedge;
+		do {
+			visitor.visit(he);
+			he = he.getNextInFace();
+		} while (he != _halfedge);
+	}
+
 	/**
 	 * Get number of vertices in face.
 	 *
@@ -374,13 +408,50 @@ public class HE_Face  implements WB_HasData {
 	}
 
 	/**
-	 * Triangulate the face, returns indexed 2D triangles. The index refers to the face vertices()
+	 * Triangulate the face, returns indexed 2D triangles. The index is the
+	 * position in the face loop, starting at the leftmost halfedge. For a face
+	 * that passes a vertex twice, this is not the index in getFaceVertices().
 	 * @return ArrayList of WB_IndexedTriangle
 	 */
 	public List<WB_IndexedTriangle2D> triangulate() {
 		return toPolygon2D().indexedTriangulate();
 	}
 
+	/**
+	 * Get the vertices of the triangles of the face, three per triangle.
+	 * Faces with more than three vertices are triangulated, the triangles are
+	 * resolved by position in the face loop.
+	 *
+	 * @return vertices
+	 */
+	public HE_Vertex[] getTriangleVertices() {
+		final int n = getFaceOrder();
+		if (n < 3) {
+			return new HE_Vertex[0];
+		}
+		if (n == 3) {
+			return new HE_Vertex[] { _halfedge.getVertex(),
+					_halfedge.getNextInFace().getVertex(),
+					_halfedge.getNextInFace().getNextInFace().getVertex() };
+		}
+		final List<WB_IndexedTriangle2D> tris = triangulate();
+		final HE_Vertex[] vertices = new HE_Vertex[n];
+		HE_Halfedge he = _halfedge;
+		int i = 0;
+		do {
+			vertices[i++] = he.getVertex();
+			he = he.getNextInFace();
+		} while (he != _halfedge);
+		final HE_Vertex[] result = new HE_Vertex[3 * tris.size()];
+		i = 0;
+		for (final WB_IndexedTriangle2D tri : tris) {
+			result[i++] = vertices[tri.i1];
+			result[i++] = vertices[tri.i2];
+			result[i++] = vertices[tri.i3];
+		}
+		return result;
+	}
+
 	/**
 	 * Get the face as a WB_Polygon2D.
 	 * 
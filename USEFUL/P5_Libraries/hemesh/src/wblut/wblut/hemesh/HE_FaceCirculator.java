@@ -0,0 +1,107 @@
+/**
+ * 
+ */
+package wblut.hemesh;
+
+/**
+ * Reusable cursor over the halfedges of a face, in the order of
+ * getNextInFace(). Unlike getFaceHalfedges() and getFaceVertices() it starts
+ * at the halfedge of the face as is and does not sort the face. Nothing is
+ * allocated after construction.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class HE_FaceCirculator {
+
+	private HE_Halfedge	start;
+
+	private HE_Halfedge	current;
+
+	/**
+	 * Circulator, use reset() to start.
+	 */
+	public HE_FaceCirculator() {
+	}
+
+	/**
+	 * Circulator around face.
+	 * 
+	 * @param f face
+	 */
+	public HE_FaceCirculator(final HE_Face f) {
+		reset(f);
+	}
+
+	/**
+	 * Restart around a face.
+	 * 
+	 * @param f face
+	 * @return self
+	 */
+	public HE_FaceCirculator reset(final HE_Face f) {
+		start = (f == null) ? null : f.getHalfedge();
+		current = null;
+		return this;
+	}
+
+	/**
+	 * Advance to the next halfedge.
+	 * 
+	 * @return false, if all halfedges were visited
+	 */
+	public boolean next() {
+		if (start == null) {
+			return false;
+		}
+		if (current == null) {
+			current = start;
+			return true;
+		}
+		current = current.getNextInFace();
+		if ((current == null) || (current == start)) {
+			start = null;
+			current = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Current halfedge.
+	 * 
+	 * @return halfedge
+	 */
+	public HE_Halfedge halfedge() {
+		return current;
+	}
+
+	/**
+	 * Start vertex of the current halfedge.
+	 * 
+	 * @return vertex
+	 */
+	public HE_Vertex vertex() {
+		return current.getVertex();
+	}
+
+	/**
+	 * Edge of the current halfedge.
+	 * 
+	 * @return edge
+	 */
+	public HE_Edge edge() {
+		return current.getEdge();
+	}
+
+	/**
+	 * Face across the current halfedge.
+	 * 
+	 * @return face, null at a boundary
+	 */
+	public HE_Face neighborFace() {
+		final HE_Halfedge pair = current.getPair();
+		return (pair == null) ? null : pair.getFace();
+	}
+
+}
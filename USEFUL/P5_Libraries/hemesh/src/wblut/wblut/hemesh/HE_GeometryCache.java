@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2010, Frederik Vanhoutte This library is free software; you can
+ * redistribute it and/or modify it under the terms of the GNU Lesser General
+ * Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ * http://creativecommons.org/licenses/LGPL/2.1/ This library is distributed in
+ * the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU Lesser General Public License for more details. You should have
+ * received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 51 Franklin St,
+ * Fifth Floor, Boston, MA 02110-1301 USA
+ */
+package wblut.hemesh;
+
+import wblut.WB_Epsilon;
+import wblut.core.OaLongIntMap;
+import wblut.geom.WB_Normal3d;
+import wblut.geom.WB_Plane;
+import wblut.geom.WB_Point3d;
+
+/**
+ * Face normals, centers and areas and vertex normals of a mesh, stored in
+ * packed double arrays in the iteration order of the mesh.
+ *
+ * The cache remembers the topology and geometry version of the mesh and
+ * recomputes on first access after a change. Vertices moved directly, not
+ * through HE_Mesh methods, need a call to mesh.geometryChanged(). Values
+ * are identical to those of HE_Face and HE_Vertex.
+ *
+ * @author Frederik Vanhoutte (W:Blut)
+ *
+ */
+public class HE_GeometryCache {
+
+	private final HE_Mesh		mesh;
+
+	/** Mesh versions the cache was computed for. */
+	private int					topologyVersion;
+
+	private int					geometryVersion;
+
+	private boolean				computed;
+
+	private HE_Face[]			faces;
+
+	private HE_Vertex[]			vertices;
+
+	/** Index of each face and vertex, by key. */
+	private final OaLongIntMap	faceIndices;
+
+	private final OaLongIntMap	vertexIndices;
+
+	/** Unit face normals, 3 per face. */
+	private double[]			faceNormals;
+
+	/** Face centers, 3 per face. */
+	private double[]			faceCenters;
+
+	private double[]			faceAreas;
+
+	/** Unit vertex normals, 3 per vertex. */
+	private double[]			vertexNormals;
+
+	/** Scratch for the faces around a vertex. */
+	private int[]				ring;
+
+	/**
+	 *
+	 * @param mesh mesh
+	 */
+	public HE_GeometryCache(final HE_Mesh mesh) {
+		this.mesh = mesh;
+		faceIndices = new OaLongIntMap();
+		vertexIndices = new OaLongIntMap();
+		ring = new int[16];
+	}
+
+	/**
+	 * Bring the cache up to date with its mesh. Called by all accessors.
+	 *
+	 * @return true, if values were recomputed
+	 */
+	public boolean update() {
+		if (computed && (mesh.getTopologyVersion() == topologyVersion)
+				&& (mesh.getGeometryVersion() == geometryVersion)) {
+			return false;
+		}
+		if (!computed || (mesh.getTopologyVersion() != topologyVersion)) {
+			index();
+		}
+		topologyVersion = mesh.getTopologyVersion();
+		geometryVersion = mesh.getGeometryVersion();
+		computeFaces();
+		computeVertices();
+		computed = true;
+		return true;
+	}
+
+	/**
+	 * Check if the cache was computed for the current state of the mesh.
+	 *
+	 * @return true, if no changes to the mesh were signalled since the last
+	 *         computation
+	 */
+	public boolean isUpToDate() {
+		return computed && (mesh.getTopologyVersion() == topologyVersion)
+				&& (mesh.getGeometryVersion() == geometryVersion);
+	}
+
+	/**
+	 * Index of face in the packed arrays.
+	 *
+	 * @param f face
+	 * @return index, -1 if the face is not part of the mesh
+	 */
+	public int getFaceIndex(final HE_Face f) {
+		update();
+		return faceIndices.get(f.key());
+	}
+
+	/**
+	 * Index of vertex in the packed arrays.
+	 *
+	 * @param v vertex
+	 * @return index, -1 if the vertex is not part of the mesh
+	 */
+	public int getVertexIndex(final HE_Vertex v) {
+		update();
+		return vertexIndices.get(v.key());
+	}
+
+	/**
+	 * Faces in index order.
+	 *
+	 * @return faces, not to be modified
+	 */
+	public HE_Face[] getFaces() {
+		update();
+		return faces;
+	}
+
+	/**
+	 * Vertices in index order.
+	 *
+	 * @return vertices, not to be modified
+	 */
+	public HE_Vertex[] getVertices() {
+		update();
+		return vertices;
+	}
+
+	/**
+	 * Unit face normals, x,y,z per face.
+	 *
+	 * @return packed normals, not to be modified
+	 */
+	public double[] getFaceNormals() {
+		update();
+		return faceNormals;
+	}
+
+	/**
+	 * Face centers, x,y,z per face.
+	 *
+	 * @return packed centers, not to be modified
+	 */
+	public double[] getFaceCenters() {
+		update();
+		return faceCenters;
+	}
+
+	/**
+	 * Face areas.
+	 *
+	 * @return areas, not to be modified
+	 */
+	public double[] getFaceAreas() {
+		update();
+		return faceAreas;
+	}
+
+	/**
+	 * Unit vertex normals, x,y,z per vertex.
+	 *
+	 * @return packed normals, not to be modified
+	 */
+	public double[] getVertexNormals() {
+		update();
+		return vertexNormals;
+	}
+
+	/**
+	 * Face normal.
+	 *
+	 * @param f face
+	 * @return normal
+	 */
+	public WB_Normal3d getFaceNormal(final HE_Face f) {
+		final int i = getFaceIndex(f);
+		if (i < 0) {
+			return f.getFaceNormal();
+		}
+		return new WB_Normal3d(faceNormals[3 * i], faceNormals[3 * i + 1],
+				faceNormals[3 * i + 2]);
+	}
+
+	/**
+	 * Face center.
+	 *
+	 * @param f face
+	 * @return center
+	 */
+	public WB_Point3d getFaceCenter(final HE_Face f) {
+		final int i = getFaceIndex(f);
+		if (i < 0) {
+			return f.getFaceCenter();
+		}
+		return new WB_Point3d(faceCenters[3 * i], faceCenters[3 * i + 1],
+				faceCenters[3 * i + 2]);
+	}
+
+	/**
+	 * Face area.
+	 *
+	 * @param f face
+	 * @return area
+	 */
+	public double getFaceArea(final HE_Face f) {
+		final int i = getFaceIndex(f);
+		if (i < 0) {
+			return f.getFaceArea();
+		}
+		return faceAreas[i];
+	}
+
+	/**
+	 * Plane of face.
+	 *
+	 * @param f face
+	 * @return plane
+	 */
+	public WB_Plane toPlane(final HE_Face f) {
+		return new WB_Plane(getFaceCenter(f), getFaceNormal(f));
+	}
+
+	/**
+	 * Vertex normal.
+	 *
+	 * @param v vertex
+	 * @return normal
+	 */
+	public WB_Normal3d getVertexNormal(final HE_Vertex v) {
+		final int i = getVertexIndex(v);
+		if (i < 0) {
+			return v.getVertexNormal();
+		}
+		return new WB_Normal3d(vertexNormals[3 * i], vertexNormals[3 * i + 1],
+				vertexNormals[3 * i + 2]);
+	}
+
+	private void index() {
+		faces = mesh.getFacesAsArray();
+		vertices = mesh.getVerticesAsArray();
+		faceIndices.clear();
+		for (int i = 0; i < faces.length; i++) {
+			faceIndices.put(faces[i].key(), i);
+		}
+		vertexIndices.clear();
+		for (int i = 0; i < vertices.length; i++) {
+			vertexIndices.put(vertices[i].key(), i);
+		}
+		faceNormals = new double[3 * faces.length];
+		faceCenters = new double[3 * faces.length];
+		faceAreas = new double[faces.length];
+		vertexNormals = new double[3 * vertices.length];
+	}
+
+	/**
+	 * Newell normal, average of vertices and area projected on the dominant
+	 * plane, as in HE_Face.
+	 */
+	private void computeFaces() {
+		for (int i = 0; i < faces.length; i++) {
+			final HE_Halfedge start = faces[i].getHalfedge();
+			if (start == null) {
+				faceNormals[3 * i] = faceNormals[3 * i + 1] = faceNormals[3 * i + 2] = 0;
+				faceCenters[3 * i] = faceCenters[3 * i + 1] = faceCenters[3 * i + 2] = Double.NaN;
+				faceAreas[i] = Double.NaN;
+				continue;
+			}
+			double nx = 0, ny = 0, nz = 0;
+			double cx = 0, cy = 0, cz = 0;
+			int c = 0;
+			HE_Halfedge he = start;
+			do {
+				final HE_Vertex p0 = he.getVertex();
+				final HE_Vertex p1 = he.getNextInFace().getVertex();
+				nx += (p0.y - p1.y) * (p0.z + p1.z);
+				ny += (p0.z - p1.z) * (p0.x + p1.x);
+				nz += (p0.x - p1.x) * (p0.y + p1.y);
+				cx += p0.x;
+				cy += p0.y;
+				cz += p0.z;
+				c++;
+				he = he.getNextInFace();
+			} while (he != start);
+			final double d = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (WB_Epsilon.isZero(d)) {
+				nx = ny = nz = 0;
+			} else {
+				nx /= d;
+				ny /= d;
+				nz /= d;
+			}
+			faceNormals[3 * i] = nx;
+			faceNormals[3 * i + 1] = ny;
+			faceNormals[3 * i + 2] = nz;
+			final double ic = 1.0 / c;
+			faceCenters[3 * i] = cx * ic;
+			faceCenters[3 * i + 1] = cy * ic;
+			faceCenters[3 * i + 2] = cz * ic;
+			final double ax = Math.abs(nx);
+			final double ay = Math.abs(ny);
+			final double az = Math.abs(nz);
+			double area = 0;
+			he = start;
+			if ((ax >= ay) && (ax >= az)) {
+				do {
+					area += he.getVertex().y
+							* (he.getNextInFace().getVertex().z - he
+									.getPrevInFace().getVertex().z);
+					he = he.getNextInFace();
+				} while (he != start);
+				area *= 0.5 / ax;
+			} else if ((ay >= ax) && (ay >= az)) {
+				do {
+					area += he.getVertex().x
+							* (he.getNextInFace().getVertex().z - he
+									.getPrevInFace().getVertex().z);
+					he = he.getNextInFace();
+				} while (he != start);
+				area *= 0.5 / ay;
+			} else {
+				do {
+					area += he.getVertex().x
+							* (he.getNextInFace().getVertex().y - he
+									.getPrevInFace().getVertex().y);
+					he = he.getNextInFace();
+				} while (he != start);
+				area *= 0.5 / az;
+			}
+			faceAreas[i] = Math.abs(area);
+		}
+	}
+
+	/**
+	 * Sum of the normals of the faces around each vertex, skipping normals
+	 * parallel to a later one, as in HE_Vertex.
+	 */
+	private void computeVertices() {
+		for (int i = 0; i < vertices.length; i++) {
+			final HE_Halfedge start = vertices[i].getHalfedge();
+			double nx = 0, ny = 0, nz = 0;
+			if (start != null) {
+				int n = 0;
+				HE_Halfedge he = start;
+				do {
+					final int f = (he.getFace() == null) ? -1 : faceIndices
+							.get(he.getFace().key());
+					if (f >= 0) {
+						if (n == ring.length) {
+							final int[] tmp = new int[2 * n];
+							System.arraycopy(ring, 0, tmp, 0, n);
+							ring = tmp;
+						}
+						ring[n++] = f;
+					}
+					he = he.getNextInVertex();
+				} while (he != start);
+				for (int j = 0; j < n; j++) {
+					final int a = 3 * ring[j];
+					boolean degenerate = false;
+					for (int k = j + 1; k < n; k++) {
+						if (parallel(a, 3 * ring[k])) {
+							degenerate = true;
+							break;
+						}
+					}
+					if (!degenerate) {
+						nx += faceNormals[a];
+						ny += faceNormals[a + 1];
+						nz += faceNormals[a + 2];
+					}
+				}
+				final double d = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (WB_Epsilon.isZero(d)) {
+					nx = ny = nz = 0;
+				} else {
+					nx /= d;
+					ny /= d;
+					nz /= d;
+				}
+			}
+			vertexNormals[3 * i] = nx;
+			vertexNormals[3 * i + 1] = ny;
+			vertexNormals[3 * i + 2] = nz;
+		}
+	}
+
+	/**
+	 * Are face normals at a and b parallel, as WB_Point3d.isParallel.
+	 */
+	private boolean parallel(final int a, final int b) {
+		final double ax = faceNormals[a], ay = faceNormals[a + 1], az = faceNormals[a + 2];
+		final double bx = faceNormals[b], by = faceNormals[b + 1], bz = faceNormals[b + 2];
+		final double cx = ay * bz - az * by;
+		final double cy = az * bx - ax * bz;
+		final double cz = ax * by - ay * bx;
+		return (cx * cx + cy * cy + cz * cz)
+				/ ((bx * bx + by * by + bz * bz) * (ax * ax + ay * ay + az
+						* az)) < WB_Epsilon.SQEPSILON;
+	}
+}
@@ -13,6 +13,7 @@
  */
 package wblut.hemesh;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import wblut.geom.WB_Normal3d;
 import wblut.geom.WB_Point3d;
 import wblut.geom.WB_Vector3d;
@@ -45,7 +46,7 @@ public class HE_Halfedge {
 	private HE_Face			_face;
 
 	/** Static halfedge key counter. */
-	protected static int	_currentKey;
+	protected static final AtomicInteger	_currentKey = new AtomicInteger();
 
 	/** Unique halfedge key. */
 	protected final Integer	_key;
@@ -57,8 +58,7 @@ public class HE_Halfedge {
 	 * Instantiates a new HE_Halfedge.
 	 */
 	public HE_Halfedge() {
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
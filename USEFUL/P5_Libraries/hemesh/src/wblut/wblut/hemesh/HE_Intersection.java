@@ -4,10 +4,10 @@
 package wblut.hemesh;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
-import wblut.geom.WB_AABBNode;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_AABBTree;
-import wblut.geom.WB_Distance;
 import wblut.geom.WB_ExplicitSegment;
 import wblut.geom.WB_Intersection;
 import wblut.geom.WB_IntersectionResult;
@@ -16,6 +16,7 @@ import wblut.geom.WB_Plane;
 import wblut.geom.WB_Point3d;
 import wblut.geom.WB_Ray;
 import wblut.geom.WB_Segment;
+import wblut.geom.WB_Vector3d;
 
 
 import javolution.util.FastList;
@@ -25,7 +26,10 @@ import javolution.util.FastList;
  *
  */
 public class HE_Intersection {
-	public static HE_Face	lastface;
+	public static HE_Face		lastface;
+
+	/** Minimum number of rays cast by one task. */
+	private static final int	RAYPACKET	= 256;
 
 	public static WB_Point3d getIntersection(final HE_Face face,
 			final WB_Line line) {
@@ -89,24 +93,12 @@ public class HE_Intersection {
 
 	public static List<WB_Point3d> getIntersection(final WB_AABBTree tree,
 			final WB_Ray ray) {
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-
 		final List<WB_Point3d> p = new FastList<WB_Point3d>();
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(ray,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(ray, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					p.add((WB_Point3d) lpi.object);
-				}
+		WB_Point3d q;
+		for (final HE_Face face : tree.getFaces(ray)) {
+			q = getIntersection(face, ray);
+			if (q != null) {
+				p.add(q);
 			}
 		}
 
@@ -115,24 +107,12 @@ public class HE_Intersection {
 
 	public static List<WB_Point3d> getIntersection(final WB_AABBTree tree,
 			final WB_Segment segment) {
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-
 		final List<WB_Point3d> p = new FastList<WB_Point3d>();
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(
-				segment, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(segment, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					p.add((WB_Point3d) lpi.object);
-				}
+		WB_Point3d q;
+		for (final HE_Face face : tree.getFaces(segment)) {
+			q = getIntersection(face, segment);
+			if (q != null) {
+				p.add(q);
 			}
 		}
 
@@ -141,24 +121,12 @@ public class HE_Intersection {
 
 	public static List<WB_Point3d> getIntersection(final WB_AABBTree tree,
 			final WB_Line line) {
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-
 		final List<WB_Point3d> p = new FastList<WB_Point3d>();
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(line,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(line, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					p.add((WB_Point3d) lpi.object);
-				}
+		WB_Point3d q;
+		for (final HE_Face face : tree.getFaces(line)) {
+			q = getIntersection(face, line);
+			if (q != null) {
+				p.add(q);
 			}
 		}
 
@@ -167,14 +135,8 @@ public class HE_Intersection {
 
 	public static List<WB_ExplicitSegment> getIntersection(
 			final WB_AABBTree tree, final WB_Plane P) {
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection
-				.getIntersection(P, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
 		final List<WB_ExplicitSegment> cuts = new FastList<WB_ExplicitSegment>();
-		for (final HE_Face face : candidates) {
+		for (final HE_Face face : tree.getFaces(P)) {
 			cuts.addAll(WB_Intersection.getIntersection(face.toPolygon(), P));
 		}
 
@@ -183,260 +145,326 @@ public class HE_Intersection {
 
 	public static List<HE_Face> getPotentialIntersectedFaces(
 			final WB_AABBTree tree, final WB_Plane P) {
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection
-				.getIntersection(P, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		return candidates;
+		return tree.getFaces(P);
 	}
 
 	public static List<HE_Face> getPotentialIntersectedFaces(
 			final WB_AABBTree tree, final WB_Ray R) {
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection
-				.getIntersection(R, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		return candidates;
+		return tree.getFaces(R);
 	}
 
 	public static List<HE_Face> getPotentialIntersectedFaces(
 			final WB_AABBTree tree, final WB_Line L) {
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection
-				.getIntersection(L, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		return candidates;
+		return tree.getFaces(L);
 	}
 
 	public static List<HE_Face> getPotentialIntersectedFaces(
 			final WB_AABBTree tree, final WB_Segment segment) {
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(
-				segment, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		return candidates;
+		return tree.getFaces(segment);
 	}
 
 	public static WB_Point3d getClosestIntersection(final WB_AABBTree tree,
 			final WB_Ray ray) {
-
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
-
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(ray,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		double d2, d2min = Double.POSITIVE_INFINITY;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(ray, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(ray.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 < d2min) {
-						lastface = face;
-						d2min = d2;
-						p = (WB_Point3d) lpi.object;
-					}
-				}
-			}
-		}
-
-		return p;
-
+		return getClosestIntersection(tree, ray, ray.getOrigin(),
+				ray.getDirection(), 0, Double.POSITIVE_INFINITY);
 	}
 
 	public static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
 			final WB_Ray ray) {
+		return getFurthestIntersection(tree, ray, ray.getOrigin(),
+				ray.getDirection(), 0, Double.POSITIVE_INFINITY);
+	}
 
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
-
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(ray,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		double d2, d2max = -1;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(ray, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(ray.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 > d2max) {
-						lastface = face;
-						d2max = d2;
-						p = (WB_Point3d) lpi.object;
-					}
-				}
-			}
-		}
-
-		return p;
+	public static WB_Point3d getClosestIntersection(final WB_AABBTree tree,
+			final WB_Line line) {
+		return getClosestIntersection(tree, line, line.getOrigin(),
+				line.getDirection(), Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY);
+	}
 
+	public static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
+			final WB_Line line) {
+		return getFurthestIntersection(tree, line, line.getOrigin(),
+				line.getDirection(), Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY);
 	}
 
 	public static WB_Point3d getClosestIntersection(final WB_AABBTree tree,
-			final WB_Line line) {
+			final WB_Segment segment) {
+		return getClosestIntersection(tree, segment, segment.getOrigin(),
+				segment.getEnd().subToVector(segment.getOrigin()), 0, 1);
+	}
 
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
+	public static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
+			final WB_Segment segment) {
+		return getFurthestIntersection(tree, segment, segment.getOrigin(),
+				segment.getEnd().subToVector(segment.getOrigin()), 0, 1);
+	}
 
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(line,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
+	/**
+	 * Intersection of a face with a ray, segment or line.
+	 */
+	private static WB_Point3d getIntersection(final HE_Face face,
+			final Object query) {
+		if (query instanceof WB_Ray) {
+			return getIntersection(face, (WB_Ray) query);
+		} else if (query instanceof WB_Line) {
+			return getIntersection(face, (WB_Line) query);
 		}
+		return getIntersection(face, (WB_Segment) query);
+	}
 
-		double d2, d2min = Double.POSITIVE_INFINITY;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(line, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(line.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 < d2min) {
-						lastface = face;
-						d2min = d2;
-						p = (WB_Point3d) lpi.object;
+	/**
+	 * Intersection of query, o+t*d with t in [tmin,tmax], closest to o.
+	 * Nodes are visited nearest first, nodes that start beyond the closest
+	 * intersection found so far are skipped.
+	 */
+	private static WB_Point3d getClosestIntersection(final WB_AABBTree tree,
+			final Object query, final WB_Point3d o, final WB_Vector3d d,
+			final double tmin, final double tmax) {
+		final double idx = 1.0 / d.x;
+		final double idy = 1.0 / d.y;
+		final double idz = 1.0 / d.z;
+		final int[] stack = new int[tree.getDepth() + 2];
+		int top = 0;
+		stack[top++] = 0;
+		double best = Double.POSITIVE_INFINITY;
+		final double d2 = d.dot(d);
+		WB_Point3d result = null;
+		while (top > 0) {
+			final int node = stack[--top];
+			final double lo = Math.max(tmin, -best);
+			final double hi = Math.min(tmax, best);
+			if (tree.getEntry(node, o.x, o.y, o.z, idx, idy, idz, lo, hi) == Double.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (tree.isLeaf(node)) {
+				final int first = tree.getFirstFace(node);
+				final int last = first + tree.getNumberOfFaces(node);
+				for (int i = first; i < last; i++) {
+					final HE_Face face = tree.getFace(i);
+					final WB_Point3d p = getIntersection(face, query);
+					if (p != null) {
+						final double t = Math.abs(p.subToVector(o).dot(d)) / d2;
+						if (t < best) {
+							best = t;
+							result = p;
+							lastface = face;
+						}
 					}
 				}
+			} else {
+				final int left = tree.getLeftChild(node);
+				final int right = tree.getRightChild(node);
+				final double tl = tree.getEntry(left, o.x, o.y, o.z, idx, idy,
+						idz, lo, hi);
+				final double tr = tree.getEntry(right, o.x, o.y, o.z, idx,
+						idy, idz, lo, hi);
+				if (tl <= tr) {
+					stack[top++] = right;
+					stack[top++] = left;
+				} else {
+					stack[top++] = left;
+					stack[top++] = right;
+				}
 			}
 		}
-
-		return p;
-
+		return result;
 	}
 
-	public static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
-			final WB_Line line) {
-
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
-
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(line,
-				tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
-		}
-
-		double d2, d2max = -1;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(line, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(line.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 > d2max) {
-						lastface = face;
-						d2max = d2;
-						p = (WB_Point3d) lpi.object;
+	/**
+	 * Intersection of query, o+t*d with t in [tmin,tmax], furthest from o.
+	 * Nodes that lie within the furthest intersection found so far are
+	 * skipped.
+	 */
+	private static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
+			final Object query, final WB_Point3d o, final WB_Vector3d d,
+			final double tmin, final double tmax) {
+		final double idx = 1.0 / d.x;
+		final double idy = 1.0 / d.y;
+		final double idz = 1.0 / d.z;
+		final int[] stack = new int[tree.getDepth() + 2];
+		int top = 0;
+		stack[top++] = 0;
+		double best = -1;
+		final double d2 = d.dot(d);
+		WB_Point3d result = null;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (tree.getEntry(node, o.x, o.y, o.z, idx, idy, idz,
+					Math.max(tmin, best), tmax) == Double.POSITIVE_INFINITY
+					&& (tmin >= -best || tree.getEntry(node, o.x, o.y, o.z,
+							idx, idy, idz, tmin, -best) == Double.POSITIVE_INFINITY)) {
+				continue;
+			}
+			if (tree.isLeaf(node)) {
+				final int first = tree.getFirstFace(node);
+				final int last = first + tree.getNumberOfFaces(node);
+				for (int i = first; i < last; i++) {
+					final HE_Face face = tree.getFace(i);
+					final WB_Point3d p = getIntersection(face, query);
+					if (p != null) {
+						final double t = Math.abs(p.subToVector(o).dot(d)) / d2;
+						if (t > best) {
+							best = t;
+							result = p;
+							lastface = face;
+						}
 					}
 				}
+			} else {
+				stack[top++] = tree.getRightChild(node);
+				stack[top++] = tree.getLeftChild(node);
 			}
 		}
-
-		return p;
-
+		return result;
 	}
 
-	public static WB_Point3d getClosestIntersection(final WB_AABBTree tree,
-			final WB_Segment segment) {
-
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
-
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(
-				segment, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
+	/**
+	 * Closest intersections of a batch of rays with the faces in a tree. Ray
+	 * i starts at (origins[3i], origins[3i+1], origins[3i+2]) and runs along
+	 * (directions[3i], directions[3i+1], directions[3i+2]), t is measured in
+	 * units of that direction. Faces are split in triangles, the barycentric
+	 * coordinates refer to the triangle that was hit.
+	 *
+	 * Nothing is allocated per ray. In parallel mode the rays are cast in
+	 * packets, one work array per packet.
+	 *
+	 * @param tree tree
+	 * @param origins ray origins, 3 per ray
+	 * @param directions ray directions, 3 per ray
+	 * @param numberOfRays number of rays
+	 * @param tmax maximum t
+	 * @param faceKeys receives key of face hit, -1 for a miss
+	 * @param t receives t of hit, Double.POSITIVE_INFINITY for a miss, can be
+	 *        null
+	 * @param barycentrics receives u and v of hit, 2 per ray, can be null
+	 * @param parallel cast packets concurrently?
+	 * @return number of rays that hit a face
+	 */
+	public static int getClosestIntersections(final WB_AABBTree tree,
+			final double[] origins, final double[] directions,
+			final int numberOfRays, final double tmax, final int[] faceKeys,
+			final double[] t, final double[] barycentrics,
+			final boolean parallel) {
+		if (!parallel) {
+			return getClosestIntersections(tree, origins, directions, 0,
+					numberOfRays, tmax, faceKeys, t, barycentrics);
 		}
-
-		double d2, d2min = Double.POSITIVE_INFINITY;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(segment, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(segment.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 < d2min) {
-						lastface = face;
-						d2min = d2;
-						p = (WB_Point3d) lpi.object;
-					}
+		final int[] chunks = WB_Parallel.split(numberOfRays, RAYPACKET);
+		final List<Callable<Integer>> tasks = new FastList<Callable<Integer>>();
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int s = chunks[c];
+			final int e = chunks[c + 1];
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					return getClosestIntersections(tree, origins, directions,
+							s, e, tmax, faceKeys, t, barycentrics);
+				}
+			});
+		}
+		int hits = 0;
+		for (final Integer h : WB_Parallel.invokeAll(tasks)) {
+			hits += h;
+		}
+		return hits;
+	}
+
+	private static int getClosestIntersections(final WB_AABBTree tree,
+			final double[] origins, final double[] directions, final int s,
+			final int e, final double tmax, final int[] faceKeys,
+			final double[] t, final double[] barycentrics) {
+		final int[] stack = new int[tree.getDepth() + 2];
+		final double[] hit = new double[3];
+		int hits = 0;
+		for (int i = s; i < e; i++) {
+			final int f = tree.getClosestHit(origins[3 * i],
+					origins[3 * i + 1], origins[3 * i + 2], directions[3 * i],
+					directions[3 * i + 1], directions[3 * i + 2], 0, tmax,
+					stack, hit);
+			if (f == -1) {
+				faceKeys[i] = -1;
+				if (t != null) {
+					t[i] = Double.POSITIVE_INFINITY;
+				}
+				if (barycentrics != null) {
+					barycentrics[2 * i] = 0;
+					barycentrics[2 * i + 1] = 0;
+				}
+			} else {
+				hits++;
+				faceKeys[i] = tree.getFace(f).key();
+				if (t != null) {
+					t[i] = hit[0];
+				}
+				if (barycentrics != null) {
+					barycentrics[2 * i] = hit[1];
+					barycentrics[2 * i + 1] = hit[2];
 				}
 			}
 		}
-
-		return p;
-
+		return hits;
 	}
 
-	public static WB_Point3d getFurthestIntersection(final WB_AABBTree tree,
-			final WB_Segment segment) {
-
-		WB_Plane P;
-		WB_IntersectionResult lpi;
-		WB_Point3d p = null;
-
-		final List<HE_Face> candidates = new FastList<HE_Face>();
-		final List<WB_AABBNode> nodes = WB_Intersection.getIntersection(
-				segment, tree);
-		for (final WB_AABBNode n : nodes) {
-			candidates.addAll(n.getFaces());
+	/**
+	 * Check a batch of rays for any intersection with the faces in a tree,
+	 * e.g. for ambient occlusion or shadows. Rays are given as in
+	 * getClosestIntersections(), the search for a ray stops at the first hit.
+	 *
+	 * @param tree tree
+	 * @param origins ray origins, 3 per ray
+	 * @param directions ray directions, 3 per ray
+	 * @param numberOfRays number of rays
+	 * @param tmin minimum t, a small offset avoids hitting the face a ray
+	 *        starts on
+	 * @param tmax maximum t
+	 * @param occluded receives true if the ray hits a face
+	 * @param parallel cast packets concurrently?
+	 * @return number of rays that hit a face
+	 */
+	public static int getOcclusions(final WB_AABBTree tree,
+			final double[] origins, final double[] directions,
+			final int numberOfRays, final double tmin, final double tmax,
+			final boolean[] occluded, final boolean parallel) {
+		if (!parallel) {
+			return getOcclusions(tree, origins, directions, 0, numberOfRays,
+					tmin, tmax, occluded);
 		}
-
-		double d2, d2max = -1;
-		for (final HE_Face face : candidates) {
-			P = face.toPlane();
-			lpi = WB_Intersection.getIntersection(segment, P);
-			if (lpi.intersection) {
-				if (HE_Mesh.pointIsInFace((WB_Point3d) lpi.object, face)) {
-					d2 = WB_Distance.sqDistance(segment.getOrigin(),
-							(WB_Point3d) lpi.object);
-					if (d2 > d2max) {
-						lastface = face;
-						d2max = d2;
-						p = (WB_Point3d) lpi.object;
-					}
+		final int[] chunks = WB_Parallel.split(numberOfRays, RAYPACKET);
+		final List<Callable<Integer>> tasks = new FastList<Callable<Integer>>();
+		for (int c = 0; c < chunks.length - 1; c++) {
+			final int s = chunks[c];
+			final int e = chunks[c + 1];
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					return getOcclusions(tree, origins, directions, s, e,
+							tmin, tmax, occluded);
 				}
+			});
+		}
+		int hits = 0;
+		for (final Integer h : WB_Parallel.invokeAll(tasks)) {
+			hits += h;
+		}
+		return hits;
+	}
+
+	private static int getOcclusions(final WB_AABBTree tree,
+			final double[] origins, final double[] directions, final int s,
+			final int e, final double tmin, final double tmax,
+			final boolean[] occluded) {
+		final int[] stack = new int[tree.getDepth() + 2];
+		int hits = 0;
+		for (int i = s; i < e; i++) {
+			occluded[i] = tree.isOccluded(origins[3 * i], origins[3 * i + 1],
+					origins[3 * i + 2], directions[3 * i],
+					directions[3 * i + 1], directions[3 * i + 2], tmin, tmax,
+					stack);
+			if (occluded[i]) {
+				hits++;
 			}
 		}
-
-		return p;
-
+		return hits;
 	}
 
 	public static List<WB_Point3d> getIntersection(final HE_Mesh mesh,
@@ -18,10 +18,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 
 import wblut.WB_Epsilon;
+import wblut.core.OaLongIntMap;
 import wblut.core.WB_HasData;
+import wblut.core.WB_Parallel;
 import wblut.geom.WB_AABB;
 import wblut.geom.WB_ClassifyPointToPlane;
 import wblut.geom.WB_Distance;
@@ -30,11 +33,9 @@ import wblut.geom.WB_ExplicitSegment;
 import wblut.geom.WB_Frame;
 import wblut.geom.WB_IndexedSegment;
 import wblut.geom.WB_IndexedTriangle;
-import wblut.geom.WB_IndexedTriangle2D;
 import wblut.geom.WB_Intersection;
 import wblut.geom.WB_IntersectionResult;
-import wblut.geom.WB_KDNeighbor;
-import wblut.geom.WB_KDTree3Dold;
+import wblut.geom.WB_KDTree3D;
 import wblut.geom.WB_Normal3d;
 import wblut.geom.WB_Plane;
 import wblut.geom.WB_Point3d;
@@ -66,6 +67,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	protected int		label;
 
 	private HashMap<String, Object> _data;
+
+	/** Cached face and vertex geometry, null unless enabled. */
+	private HE_GeometryCache	_geometryCache;
 	
 	/**
 	 * Instantiates a new HE_Mesh.
@@ -88,6 +92,32 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 
 	}
 
+	/**
+	 * Keep face normals, centers and areas and vertex normals in a
+	 * HE_GeometryCache, recomputed only after the mesh changes. Vertices moved
+	 * directly need a call to geometryChanged().
+	 *
+	 * @param b true, false
+	 * @return self
+	 */
+	public HE_Mesh setGeometryCache(final boolean b) {
+		if (!b) {
+			_geometryCache = null;
+		} else if (_geometryCache == null) {
+			_geometryCache = new HE_GeometryCache(this);
+		}
+		return this;
+	}
+
+	/**
+	 * Geometry cache, see setGeometryCache().
+	 *
+	 * @return HE_GeometryCache, null if not enabled
+	 */
+	public HE_GeometryCache getGeometryCache() {
+		return _geometryCache;
+	}
+
 	// CREATE
 
 	/**
@@ -113,7 +143,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return self
 	 */
 	public HE_Mesh modify(final HEM_Modifier modifier) {
-		return modifier.apply(this);
+		final HE_Mesh result = modifier.apply(this);
+		geometryChanged();
+		return result;
 	}
 
 	/**
@@ -125,7 +157,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 */
 	public HE_Mesh modifySelected(final HEM_Modifier modifier,
 			final HE_Selection selection) {
-		return modifier.apply(selection.get());
+		final HE_Mesh result = modifier.apply(selection.get());
+		geometryChanged();
+		return result;
 	}
 
 	// SUBDIVIDE
@@ -138,7 +172,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return self
 	 */
 	public HE_Mesh subdivide(final HES_Subdividor subdividor) {
-		return subdividor.apply(this);
+		final HE_Mesh result = subdividor.apply(this);
+		geometryChanged();
+		return result;
 	}
 
 	/**
@@ -152,8 +188,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 */
 	public HE_Mesh subdivideSelected(final HES_Subdividor subdividor,
 			final HE_Selection selection) {
-		return subdividor.apply(selection);
-
+		final HE_Mesh result = subdividor.apply(selection);
+		geometryChanged();
+		return result;
 	}
 
 	/**
@@ -192,7 +229,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 
 	
 	public HE_Mesh simplify(final HES_Simplifier simplifier) {
-		return simplifier.apply(this);
+		final HE_Mesh result = simplifier.apply(this);
+		geometryChanged();
+		return result;
 	}
 	
 	/**
@@ -380,6 +419,8 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 
 		_center = target._center;
 		_centerUpdated = target._centerUpdated;
+		_topologyVersion++;
+		_geometryVersion++;
 
 	}
 
@@ -480,6 +521,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return array of WB_Normal.
 	 */
 	public WB_Normal3d[] getVertexNormals() {
+		if (_geometryCache != null) {
+			return toNormals(_geometryCache.getVertexNormals());
+		}
 		final WB_Normal3d[] result = new WB_Normal3d[numberOfVertices()];
 		int i = 0;
 		HE_Vertex v;
@@ -500,6 +544,15 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	public Map<Integer, WB_Normal3d> getKeyedVertexNormals() {
 		final Map<Integer, WB_Normal3d> result = new FastMap<Integer, WB_Normal3d>(
 				numberOfVertices());
+		if (_geometryCache != null) {
+			final double[] normals = _geometryCache.getVertexNormals();
+			final HE_Vertex[] vertices = _geometryCache.getVertices();
+			for (int i = 0; i < vertices.length; i++) {
+				result.put(vertices[i].key(), new WB_Normal3d(normals[3 * i],
+						normals[3 * i + 1], normals[3 * i + 2]));
+			}
+			return result;
+		}
 		HE_Vertex v;
 		final Iterator<HE_Vertex> vItr = vItr();
 		while (vItr.hasNext()) {
@@ -550,6 +603,9 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return array of WB_Normal.
 	 */
 	public WB_Normal3d[] getFaceNormals() {
+		if (_geometryCache != null) {
+			return toNormals(_geometryCache.getFaceNormals());
+		}
 		final WB_Normal3d[] result = new WB_Normal3d[numberOfFaces()];
 		int i = 0;
 		HE_Face f;
@@ -570,6 +626,15 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	public Map<Integer, WB_Normal3d> getKeyedFaceNormals() {
 		final Map<Integer, WB_Normal3d> result = new FastMap<Integer, WB_Normal3d>(
 				numberOfFaces());
+		if (_geometryCache != null) {
+			final double[] normals = _geometryCache.getFaceNormals();
+			final HE_Face[] faces = _geometryCache.getFaces();
+			for (int i = 0; i < faces.length; i++) {
+				result.put(faces[i].key(), new WB_Normal3d(normals[3 * i],
+						normals[3 * i + 1], normals[3 * i + 2]));
+			}
+			return result;
+		}
 		HE_Face f;
 		final Iterator<HE_Face> fItr = fItr();
 		while (fItr.hasNext()) {
@@ -585,6 +650,15 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return array of WB_Point.
 	 */
 	public WB_Point3d[] getFaceCenters() {
+		if (_geometryCache != null) {
+			final double[] centers = _geometryCache.getFaceCenters();
+			final WB_Point3d[] result = new WB_Point3d[centers.length / 3];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = new WB_Point3d(centers[3 * i], centers[3 * i + 1],
+						centers[3 * i + 2]);
+			}
+			return result;
+		}
 		final WB_Point3d[] result = new WB_Point3d[numberOfFaces()];
 		int i = 0;
 		HE_Face f;
@@ -605,6 +679,15 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	public Map<Integer, WB_Point3d> getKeyedFaceCenters() {
 		final Map<Integer, WB_Point3d> result = new FastMap<Integer, WB_Point3d>(
 				numberOfFaces());
+		if (_geometryCache != null) {
+			final double[] centers = _geometryCache.getFaceCenters();
+			final HE_Face[] faces = _geometryCache.getFaces();
+			for (int i = 0; i < faces.length; i++) {
+				result.put(faces[i].key(), new WB_Point3d(centers[3 * i],
+						centers[3 * i + 1], centers[3 * i + 2]));
+			}
+			return result;
+		}
 		HE_Face f;
 		final Iterator<HE_Face> fItr = fItr();
 		while (fItr.hasNext()) {
@@ -614,6 +697,18 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 		return result;
 	}
 
+	/**
+	 * Packed normals as WB_Normal3d.
+	 */
+	private static WB_Normal3d[] toNormals(final double[] normals) {
+		final WB_Normal3d[] result = new WB_Normal3d[normals.length / 3];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new WB_Normal3d(normals[3 * i], normals[3 * i + 1],
+					normals[3 * i + 2]);
+		}
+		return result;
+	}
+
 	/**
 	 * Return all edge normals.
 	 * 
@@ -700,7 +795,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			v.set(values[i][0], values[i][1], values[i][2]);
 			i++;
 		}
-
+		geometryChanged();
 	}
 
 	/**
@@ -718,7 +813,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			v.set(values[i]);
 			i++;
 		}
-		;
+		geometryChanged();
 	}
 
 	/**
@@ -737,7 +832,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			i++;
 
 		}
-		;
+		geometryChanged();
 	}
 
 	/**
@@ -756,7 +851,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			i++;
 
 		}
-		;
+		geometryChanged();
 	}
 
 	/**
@@ -851,6 +946,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 		while (vItr.hasNext()) {
 			T.apply(vItr.next());
 		}
+		geometryChanged();
 		return this;
 	}
 
@@ -868,6 +964,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 		while (vItr.hasNext()) {
 			vItr.next().add(x, y, z);
 		}
+		geometryChanged();
 		return this;
 	}
 
@@ -898,6 +995,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			vItr.next().add(x - _center.x, y - _center.y, z - _center.z);
 		}
 		_center.set(x, y, z);
+		geometryChanged();
 		return this;
 	}
 
@@ -939,7 +1037,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			raa.applyInto(v, v);
 		}
 		raa.applyInto(_center, _center);
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -965,7 +1063,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			raa.applyInto(v, v);
 		}
 		raa.applyInto(_center, _center);
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -991,7 +1089,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			raa.applyInto(v, v);
 		}
 		raa.applyInto(_center, _center);
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -1017,7 +1115,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			raa.applyInto(v, v);
 		}
 		raa.applyInto(_center, _center);
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -1048,7 +1146,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 		}
 		_center.set(c.x + scaleFactorx * (-c.x + _center.x), c.y + scaleFactory
 				* (-c.y + _center.y), c.z + scaleFactorz * (-c.z + _center.z));
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -1089,7 +1187,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 					+ scaleFactory * (v.y - _center.y), _center.z
 					+ scaleFactorz * (v.z - _center.z));
 		}
-		;
+		geometryChanged();
 		return this;
 	}
 
@@ -1231,136 +1329,168 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * Try to pair all unpaired halfedges.
 	 */
 	public void pairHalfedges() {
-		class VertexInfo {
-			FastList<HE_Halfedge>	out;
-			FastList<HE_Halfedge>	in;
-
-			VertexInfo() {
-				out = new FastList<HE_Halfedge>();
-				in = new FastList<HE_Halfedge>();
-			}
+		pairHalfedges(getUnpairedHalfedges(), false);
+	}
 
-		}
+	/**
+	 * Try to pair all unpaired halfedges.
+	 *
+	 * @param parallel match halfedges on multiple threads, only worthwhile
+	 * for very large meshes
+	 */
+	public void pairHalfedges(final boolean parallel) {
+		pairHalfedges(getUnpairedHalfedges(), parallel);
+	}
 
-		final FastMap<Integer, VertexInfo> vertexLists = new FastMap<Integer, VertexInfo>();
+	/**
+	 * Try to pair halfedges.
+	 *
+	 * @param unpairedHalfedges halfedges to pair
+	 */
+	public void pairHalfedges(final List<HE_Halfedge> unpairedHalfedges) {
+		pairHalfedges(unpairedHalfedges, false);
+	}
 
-		final List<HE_Halfedge> unpairedHalfedges = getUnpairedHalfedges();
-		HE_Vertex v;
-		VertexInfo vi;
-		// System.out.println("HE_Mesh : collating " + unpairedHalfedges.size()
-		// + " unpaired halfedges per vertex.");
-		for (final HE_Halfedge he : unpairedHalfedges) {
-			v = he.getVertex();
-			vi = vertexLists.get(v.key());
-			if (vi == null) {
-				vi = new VertexInfo();
-
-				vertexLists.put(v.key(), vi);
+	/**
+	 * Try to pair halfedges. Each halfedge is hashed on its start and end
+	 * vertex key, its pair is found by looking up the reversed key. Pairing
+	 * is linear in the number of halfedges, regardless of vertex valence.
+	 *
+	 * @param unpairedHalfedges halfedges to pair
+	 * @param parallel match halfedges on multiple threads, only worthwhile
+	 * for very large meshes
+	 */
+	public void pairHalfedges(final List<HE_Halfedge> unpairedHalfedges,
+			final boolean parallel) {
+		final int n = unpairedHalfedges.size();
+		final HE_Halfedge[] halfedges = unpairedHalfedges
+				.toArray(new HE_Halfedge[n]);
+		final int[] start = new int[n];
+		final int[] end = new int[n];
+		final int[] pairs = new int[n];
+		HE_Halfedge he;
+		for (int i = 0; i < n; i++) {
+			he = halfedges[i];
+			pairs[i] = -1;
+			if (he.getPair() != null || he.getNextInFace() == null) {
+				// already paired or not part of a loop, never matched
+				pairs[i] = i;
+			} else {
+				start[i] = he.getVertex().key();
+				end[i] = he.getNextInFace().getVertex().key();
 			}
-			vi.out.add(he);
-			v = he.getNextInFace().getVertex();
-			vi = vertexLists.get(v.key());
-			if (vi == null) {
-				vi = new VertexInfo();
-				vertexLists.put(v.key(), vi);
-
+		}
+		if (parallel && n >= PARALLEL_PAIRING_THRESHOLD
+				&& WB_Parallel.getThreads() > 1) {
+			matchHalfedgesParallel(start, end, pairs);
+		} else {
+			final int[] indices = new int[n];
+			for (int i = 0; i < n; i++) {
+				indices[i] = i;
 			}
-			vi.in.add(he);
+			matchHalfedges(start, end, pairs, indices, n);
 		}
-		HE_Halfedge he;
 		HE_Halfedge he2;
 		HE_Edge e;
-		// System.out.println("HE_Mesh : pairing unpaired halfedges per vertex.");
-		for (final VertexInfo vInfo : vertexLists.values()) {
-			for (int i = 0; i < vInfo.out.size(); i++) {
-				he = vInfo.out.get(i);
-				if (he.getPair() == null) {
-					for (int j = 0; j < vInfo.in.size(); j++) {
-						he2 = vInfo.in.get(j);
-						if ((he2.getPair() == null)
-								&& (he.getVertex() == he2.getNextInFace()
-										.getVertex())
-								&& (he2.getVertex() == he.getNextInFace()
-										.getVertex())) {
-							he.setPair(he2);
-							e = new HE_Edge();
-							e.setHalfedge(he);
-							he.setEdge(e);
-							he2.setEdge(e);
-							add(e);
-							break;
-
-						}
-					}
-				}
+		for (int i = 0; i < n; i++) {
+			if (pairs[i] > i) {
+				he = halfedges[i];
+				he2 = halfedges[pairs[i]];
+				he.setPair(he2);
+				e = new HE_Edge();
+				e.setHalfedge(he);
+				he.setEdge(e);
+				he2.setEdge(e);
+				add(e);
 			}
 		}
-
 	}
 
-	public void pairHalfedges(final List<HE_Halfedge> unpairedHalfedges) {
-		class VertexInfo {
-			FastList<HE_Halfedge>	out;
-			FastList<HE_Halfedge>	in;
+	/** Minimum number of halfedges for parallel pairing. */
+	private static final int	PARALLEL_PAIRING_THRESHOLD	= 1 << 16;
 
-			VertexInfo() {
-				out = new FastList<HE_Halfedge>();
-				in = new FastList<HE_Halfedge>();
+	/**
+	 * Match halfedges with reversed start and end vertex. Halfedges sharing the
+	 * same start and end vertex are chained, the first unmatched one is used.
+	 *
+	 * @param start start vertex keys
+	 * @param end end vertex keys
+	 * @param pairs matched index per halfedge, -1 if unmatched, updated
+	 * @param indices halfedges to consider
+	 * @param n number of halfedges to consider
+	 */
+	private static void matchHalfedges(final int[] start, final int[] end,
+			final int[] pairs, final int[] indices, final int n) {
+		final OaLongIntMap heads = new OaLongIntMap(n);
+		final int[] chain = new int[n];
+		int i;
+		for (int k = n - 1; k >= 0; k--) {
+			i = indices[k];
+			if (pairs[i] == -1) {
+				chain[k] = heads.put(OaLongIntMap.key(start[i], end[i]), k);
 			}
-
 		}
-
-		final FastMap<Integer, VertexInfo> vertexLists = new FastMap<Integer, VertexInfo>();
-		HE_Vertex v;
-		VertexInfo vi;
-		System.out.println("HE_Mesh : collating " + unpairedHalfedges.size()
-				+ " unpaired halfedges per vertex.");
-		for (final HE_Halfedge he : unpairedHalfedges) {
-			v = he.getVertex();
-			vi = vertexLists.get(v.key());
-			if (vi == null) {
-				vi = new VertexInfo();
-
-				vertexLists.put(v.key(), vi);
-			}
-			vi.out.add(he);
-			v = he.getNextInFace().getVertex();
-			vi = vertexLists.get(v.key());
-			if (vi == null) {
-				vi = new VertexInfo();
-				vertexLists.put(v.key(), vi);
-
+		int k2;
+		int j;
+		for (int k = 0; k < n; k++) {
+			i = indices[k];
+			if (pairs[i] == -1) {
+				k2 = heads.get(OaLongIntMap.key(end[i], start[i]));
+				while (k2 != -1) {
+					j = indices[k2];
+					if (j != i && pairs[j] == -1) {
+						pairs[i] = j;
+						pairs[j] = i;
+						break;
+					}
+					k2 = chain[k2];
+				}
 			}
-			vi.in.add(he);
 		}
-		HE_Halfedge he;
-		HE_Halfedge he2;
-		HE_Edge e;
-		System.out.println("HE_Mesh : pairing unpaired halfedges per vertex.");
-		for (final VertexInfo vInfo : vertexLists.values()) {
-			for (int i = 0; i < vInfo.out.size(); i++) {
-				he = vInfo.out.get(i);
-				if (he.getPair() == null) {
-					for (int j = 0; j < vInfo.in.size(); j++) {
-						he2 = vInfo.in.get(j);
-						if ((he2.getPair() == null)
-								&& (he.getVertex() == he2.getNextInFace()
-										.getVertex())
-								&& (he2.getVertex() == he.getNextInFace()
-										.getVertex())) {
-							he.setPair(he2);
-							e = new HE_Edge();
-							e.setHalfedge(he);
-							he.setEdge(e);
-							he2.setEdge(e);
-							add(e);
-							break;
+	}
 
-						}
-					}
+	/**
+	 * Match halfedges on multiple threads. Halfedges are distributed over
+	 * buckets by their unordered vertex pair, so every candidate pair ends up
+	 * in the same bucket.
+	 *
+	 * @param start start vertex keys
+	 * @param end end vertex keys
+	 * @param pairs matched index per halfedge, -1 if unmatched, updated
+	 */
+	private static void matchHalfedgesParallel(final int[] start,
+			final int[] end, final int[] pairs) {
+		final int n = start.length;
+		final int nb = 4 * WB_Parallel.getThreads();
+		final int[] bucket = new int[n];
+		final int[] count = new int[nb + 1];
+		for (int i = 0; i < n; i++) {
+			final int h = 31 * Math.min(start[i], end[i])
+					+ Math.max(start[i], end[i]);
+			bucket[i] = ((-1640531527 * h) >>> 1) % nb;
+			count[bucket[i] + 1]++;
+		}
+		for (int b = 0; b < nb; b++) {
+			count[b + 1] += count[b];
+		}
+		final int[] fill = Arrays.copyOf(count, nb);
+		final int[] sorted = new int[n];
+		for (int i = 0; i < n; i++) {
+			sorted[fill[bucket[i]]++] = i;
+		}
+		final List<Callable<Object>> tasks = new FastList<Callable<Object>>();
+		for (int b = 0; b < nb; b++) {
+			final int from = count[b];
+			final int to = count[b + 1];
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					matchHalfedges(start, end, pairs,
+							Arrays.copyOfRange(sorted, from, to), to - from);
+					return null;
 				}
-			}
+			});
 		}
+		WB_Parallel.invokeAll(tasks);
 	}
 
 	/**
@@ -1410,6 +1540,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 				he.getEdge().setHalfedge(he.getPair());
 				he.getPair().clearPair();
 				heItr.remove();
+				topologyChanged();
 			}
 
 		}
@@ -4071,35 +4202,57 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	}
 
 	/**
-	 * Return a KD-tree containing all face centers
+	 * Return a KD-tree containing all face centers, the value of each center
+	 * is the face key.
 	 * 
-	 * @return WB_KDTree
+	 * @return WB_KDTree3D
 	 */
-	public WB_KDTree3Dold<Integer> getFaceTree() {
-		final WB_KDTree3Dold<Integer> tree = new WB_KDTree3Dold<Integer>();
+	public WB_KDTree3D getFaceTree() {
+		final int n = numberOfFaces();
+		final int[] keys = new int[n];
+		int i = 0;
+		if (_geometryCache != null) {
+			final HE_Face[] faces = _geometryCache.getFaces();
+			for (i = 0; i < n; i++) {
+				keys[i] = faces[i].key();
+			}
+			return new WB_KDTree3D(_geometryCache.getFaceCenters(), keys, n);
+		}
+		final double[] coords = new double[3 * n];
 		HE_Face f;
 		final Iterator<HE_Face> fItr = fItr();
 		while (fItr.hasNext()) {
 			f = fItr.next();
-			tree.put(f.getFaceCenter(), f.key());
+			final WB_Point3d c = f.getFaceCenter();
+			coords[3 * i] = c.x;
+			coords[3 * i + 1] = c.y;
+			coords[3 * i + 2] = c.z;
+			keys[i++] = f.key();
 		}
-		return tree;
+		return new WB_KDTree3D(coords, keys, n);
 	}
 
 	/**
-	 * Return a KD-tree containing all vertices
+	 * Return a KD-tree containing all vertices, the value of each vertex is
+	 * its key.
 	 * 
-	 * @return WB_KDTree
+	 * @return WB_KDTree3D
 	 */
-	public WB_KDTree3Dold<Integer> getVertexTree() {
-		final WB_KDTree3Dold<Integer> tree = new WB_KDTree3Dold<Integer>();
+	public WB_KDTree3D getVertexTree() {
+		final int n = numberOfVertices();
+		final double[] coords = new double[3 * n];
+		final int[] keys = new int[n];
+		int i = 0;
 		HE_Vertex v;
 		final Iterator<HE_Vertex> vItr = vItr();
 		while (vItr.hasNext()) {
 			v = vItr.next();
-			tree.put(v, v.key());
+			coords[3 * i] = v.x;
+			coords[3 * i + 1] = v.y;
+			coords[3 * i + 2] = v.z;
+			keys[i++] = v.key();
 		}
-		return tree;
+		return new WB_KDTree3D(coords, keys, n);
 	}
 
 	/**
@@ -4110,16 +4263,37 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return HE_Vertex closest vertex
 	 */
 	public HE_Vertex getClosestVertex(final WB_Point3d p,
-			final WB_KDTree3Dold<Integer> vertexTree) {
-		final WB_KDNeighbor<Integer>[] closestVertex = vertexTree
-				.getNearestNeighbors(p, 1);
-		if (closestVertex.length == 0) {
+			final WB_KDTree3D vertexTree) {
+		final int key = vertexTree.getNearest(p);
+		if (key == -1) {
 			return null;
 		}
-		return getVertexByKey(closestVertex[0].value());
+		return getVertexByKey(key);
 
 	}
 
+	/**
+	 * Return the closest vertex for each of a batch of points, for snapping
+	 * large point sets to the mesh.
+	 * 
+	 * @param points x, y, z of each query point
+	 * @param numberOfPoints number of query points
+	 * @param vertexTree KD-tree from mesh (from vertexTree())
+	 * @param parallel split the batch over the worker threads?
+	 * @return closest vertex of each point
+	 */
+	public HE_Vertex[] getClosestVertices(final double[] points,
+			final int numberOfPoints, final WB_KDTree3D vertexTree,
+			final boolean parallel) {
+		final int[] keys = new int[numberOfPoints];
+		vertexTree.getNearest(points, numberOfPoints, keys, null, parallel);
+		final HE_Vertex[] result = new HE_Vertex[numberOfPoints];
+		for (int i = 0; i < numberOfPoints; i++) {
+			result[i] = (keys[i] == -1) ? null : getVertexByKey(keys[i]);
+		}
+		return result;
+	}
+
 	/**
 	 * Return the closest point on the mesh.
 	 * 
@@ -4128,10 +4302,8 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @return WB_Point closest point
 	 */
 	public WB_Point3d getClosestPoint(final WB_Point3d p,
-			final WB_KDTree3Dold<Integer> vertexTree) {
-		final WB_KDNeighbor<Integer>[] closestVertex = vertexTree
-				.getNearestNeighbors(p, 1);
-		final HE_Vertex v = getVertexByKey(closestVertex[0].value());
+			final WB_KDTree3D vertexTree) {
+		final HE_Vertex v = getClosestVertex(p, vertexTree);
 		if (v == null) {
 			return null;
 		}
@@ -4158,10 +4330,8 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	 * @param vertexTree KD-tree from mesh (from vertexTree())
 	 */
 	public void addPointInClosestFace(final WB_Point3d p,
-			final WB_KDTree3Dold<Integer> vertexTree) {
-		final WB_KDNeighbor<Integer>[] closestVertex = vertexTree
-				.getNearestNeighbors(p, 1);
-		final HE_Vertex v = getVertexByKey(closestVertex[0].value());
+			final WB_KDTree3D vertexTree) {
+		final HE_Vertex v = getClosestVertex(p, vertexTree);
 		final List<HE_Face> faces = v.getFaceStar();
 		double d;
 		double dmin = Double.POSITIVE_INFINITY;
@@ -4177,7 +4347,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 			}
 		}
 		final HE_Vertex nv = triSplitFace(face, p).vItr().next();
-		vertexTree.put(nv, nv.key());
+		vertexTree.add(nv, nv.key());
 	}
 
 	/**
@@ -4298,8 +4468,15 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 	}
 
 	public double getArea() {
-		final Iterator<HE_Face> fItr = fItr();
 		double A = 0.0;
+		if (_geometryCache != null) {
+			final double[] areas = _geometryCache.getFaceAreas();
+			for (int i = 0; i < areas.length; i++) {
+				A += areas[i];
+			}
+			return A;
+		}
+		final Iterator<HE_Face> fItr = fItr();
 		while (fItr.hasNext()) {
 			A += fItr.next().getFaceArea();
 		}
@@ -4319,8 +4496,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 
 	public void triangulate(final HE_Face face) {
 		if (face.getFaceOrder() > 3) {
-			final List<WB_IndexedTriangle2D> tris = face.triangulate();
-			final List<HE_Vertex> vertices = face.getFaceVertices();
+			final HE_Vertex[] tris = face.getTriangleVertices();
 			HE_Halfedge he = face.getHalfedge();
 			remove(face);
 			do {
@@ -4331,17 +4507,16 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 				he = he.getNextInFace();
 			} while (he != face.getHalfedge());
 
-			for (int i = 0; i < tris.size(); i++) {
-				final WB_IndexedTriangle2D tri = tris.get(i);
+			for (int i = 0; i < tris.length; i += 3) {
 				final HE_Face f = new HE_Face();
 				add(f);
 				f.setLabel(face.getLabel());
 				final HE_Halfedge he1 = new HE_Halfedge();
 				final HE_Halfedge he2 = new HE_Halfedge();
 				final HE_Halfedge he3 = new HE_Halfedge();
-				he1.setVertex(vertices.get(tri.i1));
-				he2.setVertex(vertices.get(tri.i2));
-				he3.setVertex(vertices.get(tri.i3));
+				he1.setVertex(tris[i]);
+				he2.setVertex(tris[i + 1]);
+				he3.setVertex(tris[i + 2]);
 				he1.getVertex().setHalfedge(he1);
 				he2.getVertex().setHalfedge(he2);
 				he3.getVertex().setHalfedge(he3);
@@ -4364,8 +4539,7 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 
 	private void triangulateNoPairing(final HE_Face face) {
 		if (face.getFaceOrder() > 3) {
-			final List<WB_IndexedTriangle2D> tris = face.triangulate();
-			final List<HE_Vertex> vertices = face.getFaceVertices();
+			final HE_Vertex[] tris = face.getTriangleVertices();
 			HE_Halfedge he = face.getHalfedge();
 			remove(face);
 			do {
@@ -4380,17 +4554,16 @@ public class HE_Mesh extends HE_MeshStructure  implements WB_HasData {
 				he = he.getNextInFace();
 			} while (he != face.getHalfedge());
 
-			for (int i = 0; i < tris.size(); i++) {
-				final WB_IndexedTriangle2D tri = tris.get(i);
+			for (int i = 0; i < tris.length; i += 3) {
 				final HE_Face f = new HE_Face();
 				add(f);
 				f.setLabel(face.getLabel());
 				final HE_Halfedge he1 = new HE_Halfedge();
 				final HE_Halfedge he2 = new HE_Halfedge();
 				final HE_Halfedge he3 = new HE_Halfedge();
-				he1.setVertex(vertices.get(tri.i1));
-				he2.setVertex(vertices.get(tri.i2));
-				he3.setVertex(vertices.get(tri.i3));
+				he1.setVertex(tris[i]);
+				he2.setVertex(tris[i + 1]);
+				he3.setVertex(tris[i + 2]);
 				he1.getVertex().setHalfedge(he1);
 				he2.getVertex().setHalfedge(he2);
 				he3.getVertex().setHalfedge(he3);
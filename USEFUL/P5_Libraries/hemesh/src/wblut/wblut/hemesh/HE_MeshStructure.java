@@ -16,13 +16,14 @@ package wblut.hemesh;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import wblut.core.OaIntMap;
 import wblut.geom.WB_AABB;
 import wblut.geom.WB_Point3d;
 
 
 import javolution.util.FastList;
-import javolution.util.FastMap;
 
 /**
  * Collection of mesh elements. Contains methods for adding, deleting and accessing elements
@@ -32,40 +33,45 @@ import javolution.util.FastMap;
  */
 public abstract class HE_MeshStructure {
 
-	/** Linked HashMap of vertices.*/
-	protected FastMap<Integer, HE_Vertex>	_hashedVertices;
+	/** Linked int map of vertices.*/
+	protected OaIntMap<HE_Vertex>	_hashedVertices;
 
 	/** Iterator over vertices. */
 	protected Iterator<HE_Vertex>			_vertexItr;
 
-	/** Linked HashMap of halfedges. */
-	protected FastMap<Integer, HE_Halfedge>	_hashedHalfedges;
+	/** Linked int map of halfedges. */
+	protected OaIntMap<HE_Halfedge>	_hashedHalfedges;
 
 	/** Iterator over halfedges. */
 	protected Iterator<HE_Halfedge>			_halfedgeItr;
 
-	/** Linked HashMap of edges. */
-	protected FastMap<Integer, HE_Edge>		_hashedEdges;
+	/** Linked int map of edges. */
+	protected OaIntMap<HE_Edge>		_hashedEdges;
 
 	/** Iterator over edges. */
 	protected Iterator<HE_Edge>				_edgeItr;
 
 	/** Static structure key counter. */
-	protected static int					_currentKey;
+	protected static final AtomicInteger					_currentKey = new AtomicInteger();
 
 	/** Unique structure key. */
 	protected final Integer					_key;
 
+	/** Incremented when elements are added, removed or replaced. */
+	protected int							_topologyVersion;
+
+	/** Incremented when vertices are moved through HE_Mesh methods. */
+	protected int							_geometryVersion;
+
 	/**
 	 * Instantiates a new HE_Structure.
 	 */
 	protected HE_MeshStructure() {
-		_key = new Integer(_currentKey);
-		_currentKey++;
-		_hashedVertices = new FastMap<Integer, HE_Vertex>();
-		_hashedHalfedges = new FastMap<Integer, HE_Halfedge>();
-		_hashedEdges = new FastMap<Integer, HE_Edge>();
-		_hashedFaces = new FastMap<Integer, HE_Face>();
+		_key = new Integer(_currentKey.getAndIncrement());
+		_hashedVertices = new OaIntMap<HE_Vertex>();
+		_hashedHalfedges = new OaIntMap<HE_Halfedge>();
+		_hashedEdges = new OaIntMap<HE_Edge>();
+		_hashedFaces = new OaIntMap<HE_Face>();
 
 	}
 
@@ -79,10 +85,49 @@ public abstract class HE_MeshStructure {
 		return _key;
 	}
 
+	/**
+	 * Topology version. Changes whenever elements are added, removed or
+	 * replaced. Code that only reconnects existing elements should call
+	 * topologyChanged().
+	 *
+	 * @return topology version
+	 */
+	public final int getTopologyVersion() {
+		return _topologyVersion;
+	}
+
+	/**
+	 * Geometry version. Changes when vertices are moved by HE_Mesh methods,
+	 * including modify(). Code that moves vertices directly should call
+	 * geometryChanged().
+	 *
+	 * @return geometry version
+	 */
+	public final int getGeometryVersion() {
+		return _geometryVersion;
+	}
+
+	/**
+	 * Signal a change in connectivity, spatial indexes built on this
+	 * structure need a rebuild.
+	 */
+	public final void topologyChanged() {
+		_topologyVersion++;
+	}
+
+	/**
+	 * Signal moved vertices, spatial indexes built on this structure need a
+	 * refit.
+	 */
+	public final void geometryChanged() {
+		_geometryVersion++;
+	}
+
 	/**
 	 * Clear entire structure.
 	 */
 	public void clear() {
+		_topologyVersion++;
 		_hashedVertices.clear();
 		_hashedHalfedges.clear();
 		_hashedEdges.clear();
@@ -93,6 +138,7 @@ public abstract class HE_MeshStructure {
 	 * Clear vertices.
 	 */
 	public final void clearVertices() {
+		_topologyVersion++;
 		_hashedVertices.clear();
 	}
 
@@ -100,6 +146,7 @@ public abstract class HE_MeshStructure {
 	 * Clear halfedges.
 	 */
 	public final void clearHalfedges() {
+		_topologyVersion++;
 		_hashedHalfedges.clear();
 	}
 
@@ -107,6 +154,7 @@ public abstract class HE_MeshStructure {
 	 * Clear edges.
 	 */
 	public final void clearEdges() {
+		_topologyVersion++;
 		_hashedEdges.clear();
 	}
 
@@ -201,7 +249,7 @@ public abstract class HE_MeshStructure {
 	 * @return vertex
 	 */
 	public final HE_Vertex getVertexByKey(final Integer key) {
-		return _hashedVertices.get(key);
+		return (key == null) ? null : _hashedVertices.get(key);
 	}
 
 	/**
@@ -211,7 +259,7 @@ public abstract class HE_MeshStructure {
 	 * @return halfedge
 	 */
 	public final HE_Halfedge getHalfedgeByKey(final Integer key) {
-		return _hashedHalfedges.get(key);
+		return (key == null) ? null : _hashedHalfedges.get(key);
 	}
 
 	/**
@@ -221,7 +269,7 @@ public abstract class HE_MeshStructure {
 	 * @return edge
 	 */
 	public final HE_Edge getEdgeByKey(final Integer key) {
-		return _hashedEdges.get(key);
+		return (key == null) ? null : _hashedEdges.get(key);
 	}
 
 	/**
@@ -287,6 +335,7 @@ public abstract class HE_MeshStructure {
 	 * @param e edge to add
 	 */
 	public final void add(final HE_Edge e) {
+		_topologyVersion++;
 		_hashedEdges.put(e.key(), e);
 
 	}
@@ -297,6 +346,7 @@ public abstract class HE_MeshStructure {
 	 * @param he halfedge to add
 	 */
 	public final void add(final HE_Halfedge he) {
+		_topologyVersion++;
 		_hashedHalfedges.put(he.key(), he);
 	}
 
@@ -306,6 +356,7 @@ public abstract class HE_MeshStructure {
 	 * @param v vertex to add
 	 */
 	public final void add(final HE_Vertex v) {
+		_topologyVersion++;
 		_hashedVertices.put(v.key(), v);
 	}
 
@@ -381,6 +432,7 @@ public abstract class HE_MeshStructure {
 	 * @param e edge to remove
 	 */
 	public void remove(final HE_Edge e) {
+		_topologyVersion++;
 		_hashedEdges.remove(e._key);
 	}
 
@@ -390,6 +442,7 @@ public abstract class HE_MeshStructure {
 	 * @param he halfedge to remove
 	 */
 	public void remove(final HE_Halfedge he) {
+		_topologyVersion++;
 		_hashedHalfedges.remove(he._key);
 	}
 
@@ -399,6 +452,7 @@ public abstract class HE_MeshStructure {
 	 * @param v vertex to remove
 	 */
 	public void remove(final HE_Vertex v) {
+		_topologyVersion++;
 		_hashedVertices.remove(v.key());
 	}
 
@@ -474,6 +528,7 @@ public abstract class HE_MeshStructure {
 	 * @param vertices vertices to replace with as HE_Vertex[]
 	 */
 	public final void replaceVertices(final HE_Vertex[] vertices) {
+		_topologyVersion++;
 		_hashedVertices.clear();
 		final Collection<HE_Vertex> _vertices = _hashedVertices.values();
 		_vertices.clear();
@@ -488,6 +543,7 @@ public abstract class HE_MeshStructure {
 	 * @param edges edges to replace with as HE_Edge[]
 	 */
 	public final void replaceEdges(final HE_Edge[] edges) {
+		_topologyVersion++;
 		_hashedEdges.clear();
 		for (final HE_Edge edge : edges) {
 			add(edge);
@@ -500,6 +556,7 @@ public abstract class HE_MeshStructure {
 	 * @param halfedges halfedges to replace with as HE_Halfedge[]
 	 */
 	public final void replaceHalfedges(final HE_Halfedge[] halfedges) {
+		_topologyVersion++;
 		_hashedHalfedges.clear();
 		for (final HE_Halfedge halfedge : halfedges) {
 			add(halfedge);
@@ -512,6 +569,7 @@ public abstract class HE_MeshStructure {
 	 * @param vertices vertices to replace with as HE_Vertex[]
 	 */
 	public final void replaceVertices(final List<HE_Vertex> vertices) {
+		_topologyVersion++;
 		_hashedVertices.clear();
 		final Collection<HE_Vertex> _vertices = _hashedVertices.values();
 		_vertices.clear();
@@ -526,6 +584,7 @@ public abstract class HE_MeshStructure {
 	 * @param edges edges to replace with as HE_Edge[]
 	 */
 	public final void replaceEdges(final List<HE_Edge> edges) {
+		_topologyVersion++;
 		_hashedEdges.clear();
 		for (int i = 0; i < edges.size(); i++) {
 			add(edges.get(i));
@@ -538,6 +597,7 @@ public abstract class HE_MeshStructure {
 	 * @param halfedges halfedges to replace with as HE_halfedge[]
 	 */
 	public final void replaceHalfedges(final List<HE_Halfedge> halfedges) {
+		_topologyVersion++;
 		_hashedHalfedges.clear();
 		for (int i = 0; i < halfedges.size(); i++) {
 			add(halfedges.get(i));
@@ -571,8 +631,8 @@ public abstract class HE_MeshStructure {
 		return _hashedHalfedges.values().iterator();
 	}
 
-	/** Linked HashMap of faces. */
-	protected FastMap<Integer, HE_Face>	_hashedFaces;
+	/** Linked int map of faces. */
+	protected OaIntMap<HE_Face>	_hashedFaces;
 
 	/** Iterator over faces. */
 	protected Iterator<HE_Face>			_faceItr;
@@ -581,6 +641,7 @@ public abstract class HE_MeshStructure {
 	 * Clear faces.
 	 */
 	public final void clearFaces() {
+		_topologyVersion++;
 		_hashedFaces.clear();
 	}
 
@@ -618,7 +679,7 @@ public abstract class HE_MeshStructure {
 	 * @return face
 	 */
 	public final HE_Face getFaceByKey(final Integer key) {
-		return _hashedFaces.get(key);
+		return (key == null) ? null : _hashedFaces.get(key);
 	}
 
 	/**
@@ -646,6 +707,7 @@ public abstract class HE_MeshStructure {
 	 * @param f face to add
 	 */
 	public final void add(final HE_Face f) {
+		_topologyVersion++;
 		_hashedFaces.put(f.key(), f);
 
 	}
@@ -678,6 +740,7 @@ public abstract class HE_MeshStructure {
 	 * @param f face to remove
 	 */
 	public void remove(final HE_Face f) {
+		_topologyVersion++;
 		_hashedFaces.remove(f._key);
 	}
 
@@ -709,6 +772,7 @@ public abstract class HE_MeshStructure {
 	 * @param faces faces to replace with as HE_Face[]
 	 */
 	public final void replaceFaces(final HE_Face[] faces) {
+		_topologyVersion++;
 		_hashedFaces.clear();
 		for (final HE_Face face : faces) {
 			add(face);
@@ -721,6 +785,7 @@ public abstract class HE_MeshStructure {
 	 * @param faces faces to replace with as HE_Face[]
 	 */
 	public final void replaceFaces(final List<HE_Face> faces) {
+		_topologyVersion++;
 		_hashedFaces.clear();
 		for (int i = 0; i < faces.size(); i++) {
 			add(faces.get(i));
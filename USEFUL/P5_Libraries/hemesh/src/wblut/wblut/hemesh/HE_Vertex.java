@@ -15,6 +15,7 @@ package wblut.hemesh;
 
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wblut.WB_Epsilon;
 import wblut.core.WB_HasData;
@@ -37,7 +38,7 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 	private HE_Halfedge		_halfedge;
 
 	/** Static vertex key counter. */
-	protected static int	_currentKey;
+	protected static final AtomicInteger	_currentKey = new AtomicInteger();
 
 	/** Unique vertex key. */
 	protected final Integer	_key;
@@ -51,8 +52,7 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 	 * Instantiates a new HE_Vertex.
 	 */
 	public HE_Vertex() {
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
@@ -65,8 +65,7 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 	 */
 	public HE_Vertex(final double x, final double y, final double z) {
 		super(x, y, z);
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
@@ -77,8 +76,7 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 	 */
 	public HE_Vertex(final WB_Point3d v) {
 		super(v);
-		_key = new Integer(_currentKey);
-		_currentKey++;
+		_key = new Integer(_currentKey.getAndIncrement());
 		label = -1;
 	}
 
@@ -130,19 +128,26 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 		}
 		HE_Halfedge he = _halfedge;
 		final WB_Normal3d _normal = new WB_Normal3d();
-		final FastList<WB_Normal3d> normals = new FastList<WB_Normal3d>();
+		int n = 0;
+		do {
+			if (he.getFace() != null) {
+				n++;
+			}
+			he = he.getNextInVertex();
+		} while (he != _halfedge);
+		final WB_Normal3d[] normals = new WB_Normal3d[n];
+		n = 0;
 		do {
 			if (he.getFace() != null) {
-				final WB_Normal3d fn = he.getFace().getFaceNormal();
-				normals.add(fn);
+				normals[n++] = he.getFace().getFaceNormal();
 			}
 			he = he.getNextInVertex();
 		} while (he != _halfedge);
-		for (int i = 0; i < normals.size(); i++) {
-			final WB_Normal3d ni = normals.get(i);
+		for (int i = 0; i < n; i++) {
+			final WB_Normal3d ni = normals[i];
 			boolean degenerate = false;
-			for (int j = i + 1; j < normals.size(); j++) {
-				final WB_Normal3d nj = normals.get(j);
+			for (int j = i + 1; j < n; j++) {
+				final WB_Normal3d nj = normals[j];
 				if (ni.isParallel(nj)) {
 					degenerate = true;
 					break;
@@ -339,6 +344,81 @@ public class HE_Vertex extends WB_Point3d implements WB_HasData {
 		return vv;
 	}
 
+	/**
+	 * Visit halfedges in vertex, as getHalfedgeStar() without creating a
+	 * list.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitHalfedgeStar(final HE_Visitor<HE_Halfedge> visitor) {
+		if (getHalfedge() == null) {
+			return;
+		}
+		HE_Halfedge he = getHalfedge();
+		do {
+			visitor.visit(he);
+			he = he.getNextInVertex();
+		} while ((he != null) && (he != getHalfedge()));
+	}
+
+	/**
+	 * Visit edges in vertex, as getEdgeStar() without creating a list.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitEdgeStar(final HE_Visitor<HE_Edge> visitor) {
+		if (getHalfedge() == null) {
+			return;
+		}
+		HE_Halfedge he = getHalfedge();
+		do {
+			if (!HE_VertexCirculator.seenEdge(getHalfedge(), he)) {
+				visitor.visit(he.getEdge());
+			}
+			he = he.getNextInVertex();
+		} while ((he != null) && (he != getHalfedge()));
+	}
+
+	/**
+	 * Visit faces in vertex, as getFaceStar() without creating a list.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitFaceStar(final HE_Visitor<HE_Face> visitor) {
+		if (getHalfedge() == null) {
+			return;
+		}
+		HE_Halfedge he = getHalfedge();
+		do {
+			if ((he.getFace() != null)
+					&& !HE_VertexCirculator.seenFace(getHalfedge(), he)) {
+				visitor.visit(he.getFace());
+			}
+			he = he.getNextInVertex();
+		} while ((he != null) && (he != getHalfedge()));
+	}
+
+	/**
+	 * Visit neighboring vertices, as getNeighborVertices() without creating
+	 * a list.
+	 *
+	 * @param visitor visitor
+	 */
+	public void visitNeighborVertices(final HE_Visitor<HE_Vertex> visitor) {
+		if (getHalfedge() == null) {
+			return;
+		}
+		HE_Halfedge he = getHalfedge();
+		do {
+			final HE_Vertex n = he.getNextInFace().getVertex();
+			if ((n != this)
+					&& !HE_VertexCirculator.seenNeighbor(getHalfedge(), he)) {
+				visitor.visit(n);
+			}
+			he = he.getNextInVertex();
+		} while ((he != null) && (he != getHalfedge()));
+	}
+
 	public WB_Point3d[] getNeighborsAsPoints() {
 		final WB_Point3d[] vv = new WB_Point3d[getVertexOrder()];
 		if (getHalfedge() == null) {
@@ -0,0 +1,202 @@
+/**
+ * 
+ */
+package wblut.hemesh;
+
+/**
+ * Reusable cursor over the halfedges leaving a vertex, in the order of
+ * getNextInVertex().
+ * 
+ * <pre>
+ * final HE_VertexCirculator vc = new HE_VertexCirculator();
+ * ...
+ * vc.reset(v);
+ * while (vc.nextNeighbor()) {
+ * 	sum.add(vc.neighbor());
+ * }
+ * </pre>
+ * 
+ * next() visits every halfedge. nextNeighbor(), nextFace() and nextEdge()
+ * skip the halfedges that getNeighborVertices(), getFaceStar() and
+ * getEdgeStar() leave out, so they visit the same elements in the same
+ * order. Nothing is allocated after construction.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ */
+public class HE_VertexCirculator {
+
+	private HE_Vertex	vertex;
+
+	private HE_Halfedge	start;
+
+	private HE_Halfedge	current;
+
+	/**
+	 * Circulator, use reset() to start.
+	 */
+	public HE_VertexCirculator() {
+	}
+
+	/**
+	 * Circulator around vertex.
+	 * 
+	 * @param v vertex
+	 */
+	public HE_VertexCirculator(final HE_Vertex v) {
+		reset(v);
+	}
+
+	/**
+	 * Restart around a vertex.
+	 * 
+	 * @param v vertex
+	 * @return self
+	 */
+	public HE_VertexCirculator reset(final HE_Vertex v) {
+		vertex = v;
+		start = (v == null) ? null : v.getHalfedge();
+		current = null;
+		return this;
+	}
+
+	/**
+	 * Advance to the next outgoing halfedge. Stops at an unpaired halfedge.
+	 * 
+	 * @return false, if all halfedges were visited
+	 */
+	public boolean next() {
+		if (start == null) {
+			return false;
+		}
+		if (current == null) {
+			current = start;
+			return true;
+		}
+		current = current.getNextInVertex();
+		if ((current == null) || (current == start)) {
+			start = null;
+			current = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Advance to the next halfedge ending in a vertex not visited before.
+	 * 
+	 * @return false, if all neighbors were visited
+	 */
+	public boolean nextNeighbor() {
+		while (next()) {
+			if ((neighbor() != vertex) && !seenNeighbor(start, current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Advance to the next halfedge with a face not visited before.
+	 * 
+	 * @return false, if all faces were visited
+	 */
+	public boolean nextFace() {
+		while (next()) {
+			if ((current.getFace() != null) && !seenFace(start, current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Advance to the next halfedge with an edge not visited before.
+	 * 
+	 * @return false, if all edges were visited
+	 */
+	public boolean nextEdge() {
+		while (next()) {
+			if (!seenEdge(start, current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Current outgoing halfedge.
+	 * 
+	 * @return halfedge
+	 */
+	public HE_Halfedge halfedge() {
+		return current;
+	}
+
+	/**
+	 * End vertex of the current halfedge.
+	 * 
+	 * @return vertex
+	 */
+	public HE_Vertex neighbor() {
+		return current.getNextInFace().getVertex();
+	}
+
+	/**
+	 * Face of the current halfedge.
+	 * 
+	 * @return face, null for a boundary halfedge
+	 */
+	public HE_Face face() {
+		return current.getFace();
+	}
+
+	/**
+	 * Edge of the current halfedge.
+	 * 
+	 * @return edge
+	 */
+	public HE_Edge edge() {
+		return current.getEdge();
+	}
+
+	/**
+	 * Does a halfedge from start up to he end in the same vertex as he?
+	 */
+	static boolean seenNeighbor(final HE_Halfedge start, final HE_Halfedge he) {
+		final HE_Vertex n = he.getNextInFace().getVertex();
+		for (HE_Halfedge h = start; h != he; h = h.getNextInVertex()) {
+			if (h.getNextInFace().getVertex() == n) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Does a halfedge from start up to he have the same face as he?
+	 */
+	static boolean seenFace(final HE_Halfedge start, final HE_Halfedge he) {
+		final HE_Face f = he.getFace();
+		for (HE_Halfedge h = start; h != he; h = h.getNextInVertex()) {
+			if (h.getFace() == f) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Does a halfedge from start up to he have the same edge as he?
+	 */
+	static boolean seenEdge(final HE_Halfedge start, final HE_Halfedge he) {
+		final HE_Edge e = he.getEdge();
+		for (HE_Halfedge h = start; h != he; h = h.getNextInVertex()) {
+			if (h.getEdge() == e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
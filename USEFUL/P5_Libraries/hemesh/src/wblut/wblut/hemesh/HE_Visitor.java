@@ -0,0 +1,24 @@
+/**
+ * 
+ */
+package wblut.hemesh;
+
+/**
+ * Callback for the visit methods of HE_Vertex and HE_Face, which walk a
+ * neighborhood without creating lists. A visitor can be reused for any
+ * number of visits.
+ * 
+ * @author Frederik Vanhoutte, W:Blut
+ *
+ * @param <T> type of element visited
+ */
+public interface HE_Visitor<T> {
+
+	/**
+	 * Visit one element.
+	 * 
+	 * @param element element
+	 */
+	public void visit(T element);
+
+}
@@ -19,7 +19,6 @@ import wblut.geom.WB_Circle;
 import wblut.geom.WB_Curve;
 import wblut.geom.WB_ExplicitTriangle2D;
 import wblut.geom.WB_Frame;
-import wblut.geom.WB_IndexedTriangle2D;
 import wblut.geom.WB_Line;
 import wblut.geom.WB_Line2D;
 import wblut.geom.WB_FrameNode;
@@ -42,6 +41,7 @@ import wblut.geom.WB_VertexType2D;
 import wblut.hemesh.HET_Selector;
 import wblut.hemesh.HE_Edge;
 import wblut.hemesh.HE_Face;
+import wblut.hemesh.HE_GeometryCache;
 import wblut.hemesh.HE_Halfedge;
 import wblut.hemesh.HE_Mesh;
 import wblut.hemesh.HE_Selection;
@@ -390,10 +390,11 @@ public class WB_Render {
 		WB_Point3d fc;
 		WB_Normal3d fn;
 		HE_Face f;
+		final HE_GeometryCache cache = mesh.getGeometryCache();
 		while (fItr.hasNext()) {
 			f = fItr.next();
-			fc = f.getFaceCenter();
-			fn = f.getFaceNormal();
+			fc = (cache == null) ? f.getFaceCenter() : cache.getFaceCenter(f);
+			fn = (cache == null) ? f.getFaceNormal() : cache.getFaceNormal(f);
 			_home.line((float) fc.x, (float) fc.y, (float) fc.z,
 					(float) (fc.x + d * fn.x), (float) (fc.y + d * fn.y),
 					(float) (fc.z + d * fn.z));
@@ -564,11 +565,21 @@ public class WB_Render {
 		while (vItr.hasNext()) {
 			v = vItr.next();
 
-			vn = v.getVertexNormal();
+			vn = vertexNormal(v, mesh);
 			draw(v, vn, d);
 		}
 	}
 
+	/**
+	 * Vertex normal, from the geometry cache of the mesh if it has one.
+	 */
+	private WB_Normal3d vertexNormal(final HE_Vertex v, final HE_Mesh mesh) {
+		final HE_GeometryCache cache = (mesh == null) ? null : mesh
+				.getGeometryCache();
+		return (cache == null) ? v.getVertexNormal() : cache
+				.getVertexNormal(v);
+	}
+
 	/**
 	 * Draw mesh halfedges, for debugging purposes.
 	 * 
@@ -1001,17 +1012,14 @@ public class WB_Render {
 
 	private void drawConcaveFace(final HE_Face f) {
 
-		final List<WB_IndexedTriangle2D> tris = f.triangulate();
-		final List<HE_Vertex> vertices = f.getFaceVertices();
+		final HE_Vertex[] tris = f.getTriangleVertices();
 		WB_Point3d v0, v1, v2;
-		WB_IndexedTriangle2D tri;
-		for (int i = 0; i < tris.size(); i++) {
-			tri = tris.get(i);
+		for (int i = 0; i < tris.length; i += 3) {
 			_home.beginShape(PConstants.TRIANGLES);
 
-			v0 = vertices.get(tri.i1);
-			v1 = vertices.get(tri.i2);
-			v2 = vertices.get(tri.i3);
+			v0 = tris[i];
+			v1 = tris[i + 1];
+			v2 = tris[i + 2];
 
 			_home.vertex((float) v0.x, (float) v0.y, (float) v0.z);
 
@@ -1025,17 +1033,14 @@ public class WB_Render {
 
 	private void drawConcaveFace(final HE_Face f, final PGraphics pg) {
 
-		final List<WB_IndexedTriangle2D> tris = f.triangulate();
-		final List<HE_Vertex> vertices = f.getFaceVertices();
+		final HE_Vertex[] tris = f.getTriangleVertices();
 		WB_Point3d v0, v1, v2;
-		WB_IndexedTriangle2D tri;
-		for (int i = 0; i < tris.size(); i++) {
-			tri = tris.get(i);
+		for (int i = 0; i < tris.length; i += 3) {
 			pg.beginShape(PConstants.TRIANGLES);
 
-			v0 = vertices.get(tri.i1);
-			v1 = vertices.get(tri.i2);
-			v2 = vertices.get(tri.i3);
+			v0 = tris[i];
+			v1 = tris[i + 1];
+			v2 = tris[i + 2];
 
 			pg.vertex((float) v0.x, (float) v0.y, (float) v0.z);
 
@@ -1062,11 +1067,11 @@ public class WB_Render {
 			if (smooth) {
 				_home.beginShape(PConstants.TRIANGLES);
 				final HE_Vertex v0 = vertices.get(0);
-				final WB_Normal3d n0 = v0.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
 				final HE_Vertex v1 = vertices.get(1);
-				final WB_Normal3d n1 = v1.getVertexNormal();
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
 				final HE_Vertex v2 = vertices.get(2);
-				final WB_Normal3d n2 = v2.getVertexNormal();
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
 				_home.normal((float) n0.x, (float) n0.y, (float) n0.z);
 				_home.vertex((float) v0.x, (float) v0.y, (float) v0.z);
 				_home.normal((float) n1.x, (float) n1.y, (float) n1.z);
@@ -1095,10 +1100,10 @@ public class WB_Render {
 				final HE_Vertex v1 = vertices.get(1);
 				final HE_Vertex v2 = vertices.get(2);
 				final HE_Vertex v3 = vertices.get(3);
-				final WB_Normal3d n0 = v0.getVertexNormal();
-				final WB_Normal3d n1 = v1.getVertexNormal();
-				final WB_Normal3d n2 = v2.getVertexNormal();
-				final WB_Normal3d n3 = v3.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
+				final WB_Normal3d n3 = vertexNormal(v3, mesh);
 
 				_home.beginShape(PConstants.TRIANGLES);
 				_home.normal((float) n0.x, (float) n0.y, (float) n0.z);
@@ -1140,11 +1145,11 @@ public class WB_Render {
 				final HE_Vertex v3 = vertices.get(3);
 				final HE_Vertex v4 = vertices.get(4);
 
-				final WB_Normal3d n0 = v0.getVertexNormal();
-				final WB_Normal3d n1 = v1.getVertexNormal();
-				final WB_Normal3d n2 = v2.getVertexNormal();
-				final WB_Normal3d n3 = v3.getVertexNormal();
-				final WB_Normal3d n4 = v4.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
+				final WB_Normal3d n3 = vertexNormal(v3, mesh);
+				final WB_Normal3d n4 = vertexNormal(v4, mesh);
 
 				_home.beginShape(PConstants.TRIANGLES);
 				_home.normal((float) n0.x, (float) n0.y, (float) n0.z);
@@ -1224,11 +1229,11 @@ public class WB_Render {
 			if (smooth) {
 				pg.beginShape(PConstants.TRIANGLES);
 				final HE_Vertex v0 = vertices.get(0);
-				final WB_Normal3d n0 = v0.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
 				final HE_Vertex v1 = vertices.get(1);
-				final WB_Normal3d n1 = v1.getVertexNormal();
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
 				final HE_Vertex v2 = vertices.get(2);
-				final WB_Normal3d n2 = v2.getVertexNormal();
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
 				pg.normal((float) n0.x, (float) n0.y, (float) n0.z);
 				pg.vertex((float) v0.x, (float) v0.y, (float) v0.z);
 				pg.normal((float) n1.x, (float) n1.y, (float) n1.z);
@@ -1257,10 +1262,10 @@ public class WB_Render {
 				final HE_Vertex v1 = vertices.get(1);
 				final HE_Vertex v2 = vertices.get(2);
 				final HE_Vertex v3 = vertices.get(3);
-				final WB_Normal3d n0 = v0.getVertexNormal();
-				final WB_Normal3d n1 = v1.getVertexNormal();
-				final WB_Normal3d n2 = v2.getVertexNormal();
-				final WB_Normal3d n3 = v3.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
+				final WB_Normal3d n3 = vertexNormal(v3, mesh);
 
 				pg.beginShape(PConstants.TRIANGLES);
 				pg.normal((float) n0.x, (float) n0.y, (float) n0.z);
@@ -1302,11 +1307,11 @@ public class WB_Render {
 				final HE_Vertex v3 = vertices.get(3);
 				final HE_Vertex v4 = vertices.get(4);
 
-				final WB_Normal3d n0 = v0.getVertexNormal();
-				final WB_Normal3d n1 = v1.getVertexNormal();
-				final WB_Normal3d n2 = v2.getVertexNormal();
-				final WB_Normal3d n3 = v3.getVertexNormal();
-				final WB_Normal3d n4 = v4.getVertexNormal();
+				final WB_Normal3d n0 = vertexNormal(v0, mesh);
+				final WB_Normal3d n1 = vertexNormal(v1, mesh);
+				final WB_Normal3d n2 = vertexNormal(v2, mesh);
+				final WB_Normal3d n3 = vertexNormal(v3, mesh);
+				final WB_Normal3d n4 = vertexNormal(v4, mesh);
 
 				pg.beginShape(PConstants.TRIANGLES);
 				pg.normal((float) n0.x, (float) n0.y, (float) n0.z);